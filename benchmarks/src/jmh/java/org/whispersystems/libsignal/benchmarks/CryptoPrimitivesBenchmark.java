@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.whispersystems.libsignal.util.CryptoPrimitives;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The JCA operations performed for every message, using this thread's instances from
+ * {@link CryptoPrimitives}, and, for comparison, looking up a new instance with
+ * getInstance() for each operation as the library did before.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CryptoPrimitivesBenchmark {
+
+  private final byte[] chainKey  = new byte[32];
+  private final byte[] plaintext = new byte[160];
+  private final byte[] cipherKey = new byte[32];
+  private final byte[] iv        = new byte[16];
+
+  private SecretKeySpec   aesKey;
+  private IvParameterSpec ivSpec;
+
+  @Setup
+  public void setup() {
+    SecureRandom random = new SecureRandom();
+
+    random.nextBytes(chainKey);
+    random.nextBytes(plaintext);
+    random.nextBytes(cipherKey);
+    random.nextBytes(iv);
+
+    aesKey = new SecretKeySpec(cipherKey, "AES");
+    ivSpec = new IvParameterSpec(iv);
+  }
+
+  /**
+   * One chain key step: an HMAC over a single byte.
+   */
+  @Benchmark
+  public byte[] hmacThreadLocal() {
+    Mac mac = CryptoPrimitives.getHmacSha256(chainKey);
+    mac.update(plaintext, 0, 1);
+    return mac.doFinal();
+  }
+
+  @Benchmark
+  public byte[] hmacGetInstance() throws Exception {
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(chainKey, "HmacSHA256"));
+    mac.update(plaintext, 0, 1);
+    return mac.doFinal();
+  }
+
+  @Benchmark
+  public byte[] aesThreadLocal() throws Exception {
+    return CryptoPrimitives.getAesCbcCipher(Cipher.ENCRYPT_MODE, aesKey, ivSpec).doFinal(plaintext);
+  }
+
+  @Benchmark
+  public byte[] aesGetInstance() throws Exception {
+    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    cipher.init(Cipher.ENCRYPT_MODE, aesKey, ivSpec);
+    return cipher.doFinal(plaintext);
+  }
+
+  @Benchmark
+  public byte[] sha512ThreadLocal() {
+    return CryptoPrimitives.getSha512().digest(plaintext);
+  }
+
+  @Benchmark
+  public byte[] sha512GetInstance() throws Exception {
+    return MessageDigest.getInstance("SHA-512").digest(plaintext);
+  }
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.whispersystems.libsignal.IdentityKey;
+import org.whispersystems.libsignal.fingerprint.Fingerprint;
+import org.whispersystems.libsignal.fingerprint.NumericFingerprintGenerator;
+import org.whispersystems.libsignal.util.KeyHelper;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Safety number generation with the iteration count used by clients.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FingerprintBenchmark {
+
+  private static final int ITERATIONS = 5200;
+
+  private final NumericFingerprintGenerator generator = new NumericFingerprintGenerator(ITERATIONS);
+
+  private final byte[] localStableIdentifier  = "+14151111111".getBytes();
+  private final byte[] remoteStableIdentifier = "+14152222222".getBytes();
+
+  private IdentityKey localIdentityKey;
+  private IdentityKey remoteIdentityKey;
+
+  @Setup
+  public void setup() {
+    localIdentityKey  = KeyHelper.generateIdentityKeyPair().getPublicKey();
+    remoteIdentityKey = KeyHelper.generateIdentityKeyPair().getPublicKey();
+  }
+
+  @Benchmark
+  public Fingerprint createFor() {
+    return generator.createFor(2, localStableIdentifier, localIdentityKey,
+                               remoteStableIdentifier, remoteIdentityKey);
+  }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.groups.GroupCipher;
+import org.whispersystems.libsignal.groups.GroupSenderSession;
+import org.whispersystems.libsignal.groups.GroupSessionBuilder;
+import org.whispersystems.libsignal.groups.SenderKeyName;
+import org.whispersystems.libsignal.groups.state.SenderKeyRecord;
+import org.whispersystems.libsignal.groups.state.SenderKeyStore;
+import org.whispersystems.libsignal.protocol.SenderKeyDistributionMessage;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group message encryption and decryption under a single sender key.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GroupCipherBenchmark {
+
+  private static final int BATCH_SIZE     = 100;
+  private static final int CATCH_UP_LENGTH = 2000;
+
+  private static final SenderKeyName SENDER_KEY_NAME = new SenderKeyName("benchmark group",
+                                                                         new SignalProtocolAddress("+14151111111", 1));
+
+  private final byte[] plaintext = new byte[160];
+
+  private SenderKeyStore     receiverStore;
+  private GroupCipher        senderCipher;
+  private GroupSenderSession senderSession;
+  private GroupCipher        receiverCipher;
+  private byte[]             receiverRecord;
+  private byte[][]           messages;
+  private byte[]             catchUpRecord;
+  private byte[][]           catchUpMessages;
+
+  @Setup
+  public void setup() throws Exception {
+    SenderKeyStore senderStore = new BenchmarkSenderKeyStore();
+
+    receiverStore = new BenchmarkSenderKeyStore();
+
+    SenderKeyDistributionMessage distributionMessage = new GroupSessionBuilder(senderStore).create(SENDER_KEY_NAME);
+    new GroupSessionBuilder(receiverStore).process(SENDER_KEY_NAME, distributionMessage);
+
+    senderCipher   = new GroupCipher(senderStore, SENDER_KEY_NAME);
+    receiverCipher = new GroupCipher(receiverStore, SENDER_KEY_NAME);
+    receiverRecord = receiverStore.loadSenderKey(SENDER_KEY_NAME).serialize();
+    messages       = new byte[BATCH_SIZE][];
+
+    for (int i=0;i<BATCH_SIZE;i++) {
+      messages[i] = senderCipher.encrypt(plaintext);
+    }
+
+    for (byte[] message : messages) {
+      receiverCipher.decrypt(message);
+    }
+
+    catchUpRecord   = receiverStore.loadSenderKey(SENDER_KEY_NAME).serialize();
+    catchUpMessages = new byte[CATCH_UP_LENGTH + 1][];
+
+    for (int i=0;i<catchUpMessages.length;i++) {
+      catchUpMessages[i] = senderCipher.encrypt(plaintext);
+    }
+
+    senderSession = new GroupSenderSession(senderStore, SENDER_KEY_NAME);
+  }
+
+  @Benchmark
+  public byte[] encrypt() throws Exception {
+    return senderCipher.encrypt(plaintext);
+  }
+
+  @Benchmark
+  public byte[] encryptWithSession() {
+    return senderSession.encrypt(plaintext);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public void decrypt(Blackhole blackhole) throws Exception {
+    receiverStore.storeSenderKey(SENDER_KEY_NAME, new SenderKeyRecord(receiverRecord));
+
+    for (byte[] message : messages) {
+      blackhole.consume(receiverCipher.decrypt(message));
+    }
+  }
+
+  /**
+   * Receives a message {@value #CATCH_UP_LENGTH} iterations ahead, which derives and stores
+   * a skipped message key for each iteration in between.
+   */
+  @Benchmark
+  public byte[] catchUp() throws Exception {
+    receiverStore.storeSenderKey(SENDER_KEY_NAME, new SenderKeyRecord(catchUpRecord));
+    return receiverCipher.decrypt(catchUpMessages[CATCH_UP_LENGTH]);
+  }
+
+  /**
+   * Receives {@value #CATCH_UP_LENGTH} + 1 messages newest first, so that each but the first
+   * is decrypted with a skipped message key.
+   */
+  @Benchmark
+  @OperationsPerInvocation(CATCH_UP_LENGTH + 1)
+  public void catchUpInReverse(Blackhole blackhole) throws Exception {
+    receiverStore.storeSenderKey(SENDER_KEY_NAME, new SenderKeyRecord(catchUpRecord));
+
+    for (int i=catchUpMessages.length-1;i>=0;i--) {
+      blackhole.consume(receiverCipher.decrypt(catchUpMessages[i]));
+    }
+  }
+
+  private static class BenchmarkSenderKeyStore implements SenderKeyStore {
+
+    private final Map<SenderKeyName, byte[]> store = new HashMap<>();
+
+    @Override
+    public void storeSenderKey(SenderKeyName senderKeyName, SenderKeyRecord record) {
+      store.put(senderKeyName, record.serialize());
+    }
+
+    @Override
+    public SenderKeyRecord loadSenderKey(SenderKeyName senderKeyName) {
+      try {
+        byte[] record = store.get(senderKeyName);
+
+        if (record == null) return new SenderKeyRecord();
+        else                return new SenderKeyRecord(record);
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+}
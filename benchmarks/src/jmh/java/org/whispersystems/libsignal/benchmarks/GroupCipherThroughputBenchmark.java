@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.groups.GroupCipher;
+import org.whispersystems.libsignal.groups.GroupSessionBuilder;
+import org.whispersystems.libsignal.groups.SenderKeyName;
+import org.whispersystems.libsignal.groups.state.SenderKeyRecord;
+import org.whispersystems.libsignal.groups.state.SenderKeyStore;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of group messaging when several threads share one sender and one receiver
+ * store, each encrypting and decrypting a message from a random group, as a multi-threaded
+ * service would.  With a single group every operation contends for the same sender key.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(4)
+public class GroupCipherThroughputBenchmark {
+
+  private static final SignalProtocolAddress SENDER_ADDRESS = new SignalProtocolAddress("+14151111111", 1);
+
+  @Param({"1", "1000"})
+  public int groups;
+
+  private final byte[] plaintext = new byte[160];
+
+  private GroupCipher[] senderCiphers;
+  private GroupCipher[] receiverCiphers;
+
+  @Setup
+  public void setup() {
+    SenderKeyStore senderStore   = new BenchmarkSenderKeyStore();
+    SenderKeyStore receiverStore = new BenchmarkSenderKeyStore();
+
+    senderCiphers   = new GroupCipher[groups];
+    receiverCiphers = new GroupCipher[groups];
+
+    for (int i=0;i<groups;i++) {
+      SenderKeyName senderKeyName = new SenderKeyName("benchmark group " + i, SENDER_ADDRESS);
+
+      new GroupSessionBuilder(receiverStore).process(senderKeyName, new GroupSessionBuilder(senderStore).create(senderKeyName));
+
+      senderCiphers[i]   = new GroupCipher(senderStore, senderKeyName);
+      receiverCiphers[i] = new GroupCipher(receiverStore, senderKeyName);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Groups {
+    private final Random random = new Random();
+
+    int next(int groups) {
+      return random.nextInt(groups);
+    }
+  }
+
+  @Benchmark
+  public byte[] encrypt(Groups groups) throws Exception {
+    return senderCiphers[groups.next(this.groups)].encrypt(plaintext);
+  }
+
+  @Benchmark
+  public byte[] encryptAndDecrypt(Groups groups) throws Exception {
+    int group = groups.next(this.groups);
+    return receiverCiphers[group].decrypt(senderCiphers[group].encrypt(plaintext));
+  }
+
+  private static class BenchmarkSenderKeyStore implements SenderKeyStore {
+
+    private final ConcurrentMap<SenderKeyName, byte[]> store = new ConcurrentHashMap<>();
+
+    @Override
+    public void storeSenderKey(SenderKeyName senderKeyName, SenderKeyRecord record) {
+      store.put(senderKeyName, record.serialize());
+    }
+
+    @Override
+    public SenderKeyRecord loadSenderKey(SenderKeyName senderKeyName) {
+      try {
+        byte[] record = store.get(senderKeyName);
+
+        if (record == null) return new SenderKeyRecord();
+        else                return new SenderKeyRecord(record);
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+}
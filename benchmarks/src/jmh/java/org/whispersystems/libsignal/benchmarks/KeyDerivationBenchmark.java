@@ -0,0 +1,64 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.whispersystems.libsignal.kdf.HKDF;
+import org.whispersystems.libsignal.ratchet.ChainKey;
+import org.whispersystems.libsignal.ratchet.MessageKeys;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The key derivations performed for every message: HKDF, and stepping a chain key.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class KeyDerivationBenchmark {
+
+  private static final byte[] INFO = "WhisperMessageKeys".getBytes();
+
+  private final HKDF   kdf    = HKDF.createFor(3);
+  private final byte[] input  = new byte[32];
+  private final byte[] output = new byte[80];
+
+  private ChainKey chainKey;
+
+  @Setup
+  public void setup() {
+    new SecureRandom().nextBytes(input);
+    chainKey = new ChainKey(kdf, input, 0);
+  }
+
+  @Benchmark
+  public byte[] hkdfDeriveSecrets() {
+    return kdf.deriveSecrets(input, INFO, 80);
+  }
+
+  @Benchmark
+  public byte[] hkdfDeriveSecretsIntoBuffer() {
+    kdf.deriveSecrets(input, INFO, output, 0, output.length);
+    return output;
+  }
+
+  @Benchmark
+  public ChainKey chainKeyNext() {
+    return chainKey.getNextChainKey();
+  }
+
+  @Benchmark
+  public MessageKeys chainKeyMessageKeys() {
+    return chainKey.getMessageKeys();
+  }
+}
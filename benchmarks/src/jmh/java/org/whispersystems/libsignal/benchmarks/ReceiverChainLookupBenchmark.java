@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECPublicKey;
+import org.whispersystems.libsignal.kdf.HKDF;
+import org.whispersystems.libsignal.ratchet.ChainKey;
+import org.whispersystems.libsignal.state.SessionState;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding the receiver chain for an incoming ratchet key, by comparing its bytes with each
+ * chain's serialized key as SessionState does, and, for comparison, by decoding each
+ * chain's stored key and comparing the decoded points as SessionState did before.
+ *
+ * Lookups cycle through every chain, and alternate between two equal ECPublicKey objects
+ * for each key, so SessionState's cache of the last key it found never applies; the
+ * repeated benchmark measures that cache on its own.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ReceiverChainLookupBenchmark {
+
+  @Param({"1", "5"})
+  public int chains;
+
+  private SessionState  state;
+  private byte[][]      chainKeys;
+  private ECPublicKey[] targets;
+  private int           next;
+
+  @Setup
+  public void setup() throws Exception {
+    HKDF kdf = HKDF.createFor(3);
+
+    state     = new SessionState();
+    chainKeys = new byte[chains][];
+    targets   = new ECPublicKey[chains * 2];
+
+    for (int i=0;i<chains;i++) {
+      ECPublicKey ratchetKey = Curve.generateKeyPair().getPublicKey();
+
+      state.addReceiverChain(ratchetKey, new ChainKey(kdf, new byte[32], 0));
+
+      chainKeys[i]        = ratchetKey.serialize();
+      targets[i]          = ratchetKey;
+      targets[chains + i] = Curve.decodePoint(ratchetKey.serialize(), 0);
+    }
+  }
+
+  @Benchmark
+  public boolean byteCompare() {
+    return state.hasReceiverChain(nextTarget());
+  }
+
+  /**
+   * Looks up the same key object every time, as the several lookups within one decrypt do.
+   */
+  @Benchmark
+  public boolean byteCompareRepeated() {
+    return state.hasReceiverChain(targets[0]);
+  }
+
+  @Benchmark
+  public boolean decodePoint() throws Exception {
+    ECPublicKey target = nextTarget();
+
+    for (byte[] chainKey : chainKeys) {
+      if (Curve.decodePoint(chainKey, 0).equals(target)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private ECPublicKey nextTarget() {
+    ECPublicKey target = targets[next];
+    next = (next + 1) % targets.length;
+    return target;
+  }
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.whispersystems.libsignal.SessionBuilder;
+import org.whispersystems.libsignal.state.PreKeyBundle;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.whispersystems.libsignal.benchmarks.Sessions.BOB_ADDRESS;
+
+/**
+ * Session setup from a fetched prekey bundle: signature verification, the X3DH agreements
+ * and the first sending ratchet step.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SessionBuilderBenchmark {
+
+  private SignalProtocolStore aliceStore;
+  private SessionBuilder      sessionBuilder;
+  private PreKeyBundle        bobBundle;
+
+  @Setup
+  public void setup() throws Exception {
+    aliceStore     = Sessions.newStore();
+    sessionBuilder = new SessionBuilder(aliceStore, BOB_ADDRESS);
+    bobBundle      = Sessions.newPreKeyBundle(Sessions.newStore(), 31337);
+  }
+
+  @Benchmark
+  public void processPreKeyBundle() throws Exception {
+    aliceStore.deleteSession(BOB_ADDRESS);
+    sessionBuilder.process(bobBundle);
+  }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.whispersystems.libsignal.SessionCipher;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import org.whispersystems.libsignal.protocol.SignalMessage;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.whispersystems.libsignal.benchmarks.Sessions.ALICE_ADDRESS;
+import static org.whispersystems.libsignal.benchmarks.Sessions.BOB_ADDRESS;
+
+/**
+ * One-to-one message encryption and decryption over an established session.
+ *
+ * The decrypt benchmarks replay a fixed batch of messages against a snapshot of the
+ * receiving session, so every invocation pays for restoring that snapshot once; the
+ * batch is large enough that this is a small share of the per-message time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SessionCipherBenchmark {
+
+  private static final int BATCH_SIZE = 100;
+
+  private final byte[] plaintext = new byte[160];
+
+  private SignalProtocolStore aliceStore;
+  private SignalProtocolStore bobStore;
+  private SessionCipher       aliceCipher;
+  private SessionCipher       bobCipher;
+  private byte[]              bobSession;
+  private SignalMessage[]     inOrder;
+  private SignalMessage[]     outOfOrder;
+
+  @Setup
+  public void setup() throws Exception {
+    aliceStore = Sessions.newStore();
+    bobStore   = Sessions.newStore();
+
+    Sessions.establish(aliceStore, bobStore);
+
+    aliceCipher = new SessionCipher(aliceStore, BOB_ADDRESS);
+    bobCipher   = new SessionCipher(bobStore, ALICE_ADDRESS);
+    bobSession  = bobStore.loadSession(ALICE_ADDRESS).serialize();
+    inOrder     = new SignalMessage[BATCH_SIZE];
+    outOfOrder  = new SignalMessage[BATCH_SIZE];
+
+    for (int i=0;i<BATCH_SIZE;i++) {
+      inOrder[i]                     = new SignalMessage(aliceCipher.encrypt(plaintext).serialize());
+      outOfOrder[BATCH_SIZE - 1 - i] = inOrder[i];
+    }
+  }
+
+  @Benchmark
+  public CiphertextMessage encrypt() throws Exception {
+    return aliceCipher.encrypt(plaintext);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public void decryptInOrder(Blackhole blackhole) throws Exception {
+    decryptAll(inOrder, blackhole);
+  }
+
+  /**
+   * The newest message arrives first, so the receiver derives and stores a skipped message
+   * key for each earlier one, which the rest of the batch then consumes.
+   */
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public void decryptOutOfOrder(Blackhole blackhole) throws Exception {
+    decryptAll(outOfOrder, blackhole);
+  }
+
+  /**
+   * A full exchange in which each reply carries a new ratchet key, so both decryptions
+   * perform a DH ratchet step.
+   */
+  @Benchmark
+  public byte[] roundTripWithRatchet() throws Exception {
+    CiphertextMessage request = aliceCipher.encrypt(plaintext);
+    bobCipher.decrypt(new SignalMessage(request.serialize()));
+
+    CiphertextMessage response = bobCipher.encrypt(plaintext);
+    return aliceCipher.decrypt(new SignalMessage(response.serialize()));
+  }
+
+  private void decryptAll(SignalMessage[] messages, Blackhole blackhole) throws Exception {
+    bobStore.storeSession(ALICE_ADDRESS, new SessionRecord(bobSession));
+
+    for (SignalMessage message : messages) {
+      blackhole.consume(bobCipher.decrypt(message));
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.whispersystems.libsignal.SessionCipher;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.protocol.SignalMessage;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.whispersystems.libsignal.benchmarks.Sessions.ALICE_ADDRESS;
+
+/**
+ * Throughput of one-to-one messaging when several threads share one sender store, each
+ * encrypting to and decrypting from its own recipient device, as a multi-threaded service
+ * would.  Since every thread uses a different address, the threads never wait on each
+ * other's session lock, and throughput should scale with the thread count up to the
+ * number of cores; anything less is contention in the shared store or in the library.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SessionCipherThroughputBenchmark {
+
+  private static final String BOB_NAME = "+14152222222";
+
+  private final byte[]        plaintext = new byte[160];
+  private final AtomicInteger threads   = new AtomicInteger();
+
+  private SessionCipher[] aliceCiphers;
+  private SessionCipher[] bobCiphers;
+
+  @Setup
+  public void setup() throws Exception {
+    int                 devices    = Math.max(4, Runtime.getRuntime().availableProcessors());
+    SignalProtocolStore aliceStore = Sessions.newStore();
+
+    aliceCiphers = new SessionCipher[devices];
+    bobCiphers   = new SessionCipher[devices];
+
+    for (int i=0;i<devices;i++) {
+      SignalProtocolAddress bobAddress = new SignalProtocolAddress(BOB_NAME, i + 1);
+      SignalProtocolStore   bobStore   = Sessions.newStore();
+
+      Sessions.establish(aliceStore, bobStore, bobAddress);
+
+      aliceCiphers[i] = new SessionCipher(aliceStore, bobAddress);
+      bobCiphers[i]   = new SessionCipher(bobStore, ALICE_ADDRESS);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Device {
+    int index = -1;
+  }
+
+  @Benchmark
+  @Threads(1)
+  public byte[] roundTrip1(Device device) throws Exception {
+    return roundTrip(device);
+  }
+
+  @Benchmark
+  @Threads(2)
+  public byte[] roundTrip2(Device device) throws Exception {
+    return roundTrip(device);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public byte[] roundTrip4(Device device) throws Exception {
+    return roundTrip(device);
+  }
+
+  /**
+   * One thread per available processor.
+   */
+  @Benchmark
+  @Threads(Threads.MAX)
+  public byte[] roundTripMax(Device device) throws Exception {
+    return roundTrip(device);
+  }
+
+  private byte[] roundTrip(Device device) throws Exception {
+    if (device.index == -1) {
+      device.index = threads.getAndIncrement() % aliceCiphers.length;
+    }
+
+    SignalMessage message = new SignalMessage(aliceCiphers[device.index].encrypt(plaintext).serialize());
+    return bobCiphers[device.index].decrypt(message);
+  }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.whispersystems.libsignal.SessionBuilder;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SessionState;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.whispersystems.libsignal.benchmarks.Sessions.BOB_ADDRESS;
+
+/**
+ * Session record (de)serialization, which a store performs on every load and store.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SessionRecordBenchmark {
+
+  @Param({"0", "40"})
+  public int archivedStates;
+
+  private SessionRecord record;
+  private byte[]        serialized;
+
+  @Setup
+  public void setup() throws Exception {
+    SignalProtocolStore aliceStore = Sessions.newStore();
+    SignalProtocolStore bobStore   = Sessions.newStore();
+
+    for (int i=0;i<archivedStates;i++) {
+      new SessionBuilder(aliceStore, BOB_ADDRESS).process(Sessions.newPreKeyBundle(bobStore, i + 1));
+    }
+
+    Sessions.establish(aliceStore, bobStore);
+
+    record     = aliceStore.loadSession(BOB_ADDRESS);
+    serialized = record.serialize();
+  }
+
+  @Benchmark
+  public byte[] serialize() {
+    return record.serialize();
+  }
+
+  @Benchmark
+  public SessionState parse() throws Exception {
+    return new SessionRecord(serialized).getSessionState();
+  }
+
+  /**
+   * A store's load, use, store cycle in which only the current state is touched.
+   */
+  @Benchmark
+  public byte[] parseAndSerialize() throws Exception {
+    return new SessionRecord(serialized).serialize();
+  }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.benchmarks;
+
+import com.google.protobuf.ByteString;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.whispersystems.libsignal.SessionCipher;
+import org.whispersystems.libsignal.ecc.ECPublicKey;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import org.whispersystems.libsignal.protocol.SignalMessage;
+import org.whispersystems.libsignal.ratchet.ChainKey;
+import org.whispersystems.libsignal.ratchet.MessageKeys;
+import org.whispersystems.libsignal.state.SessionState;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+import org.whispersystems.libsignal.state.StorageProtos.SessionStructure;
+import org.whispersystems.libsignal.state.StorageProtos.SessionStructure.Chain;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.whispersystems.libsignal.benchmarks.Sessions.ALICE_ADDRESS;
+import static org.whispersystems.libsignal.benchmarks.Sessions.BOB_ADDRESS;
+
+/**
+ * The receiver chain updates a decrypt makes, applied to the mutable SessionState model
+ * and, for comparison, to an immutable SessionStructure the way SessionState did before
+ * it became a model: every update rebuilt the chain and then the whole structure with
+ * toBuilder().build().
+ *
+ * Both sides locate the chain by its serialized ratchet key, so neither pays for decoding
+ * points; that cost is measured separately, by ReceiverChainLookupBenchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SessionStateBenchmark {
+
+  @Param({"0", "500"})
+  public int skippedKeys;
+
+  private SessionState     state;
+  private SessionStructure structure;
+  private ECPublicKey      ratchetKey;
+  private ByteString       serializedRatchetKey;
+  private MessageKeys      messageKeys;
+  private ChainKey         nextChainKey;
+
+  @Setup
+  public void setup() throws Exception {
+    SignalProtocolStore aliceStore = Sessions.newStore();
+    SignalProtocolStore bobStore   = Sessions.newStore();
+
+    Sessions.establish(aliceStore, bobStore);
+
+    CiphertextMessage message = new SessionCipher(aliceStore, BOB_ADDRESS).encrypt("hello".getBytes());
+    new SessionCipher(bobStore, ALICE_ADDRESS).decrypt(new SignalMessage(message.serialize()));
+
+    state                = bobStore.loadSession(ALICE_ADDRESS).getSessionState();
+    ratchetKey           = aliceStore.loadSession(BOB_ADDRESS).getSessionState().getSenderRatchetKey();
+    serializedRatchetKey = ByteString.copyFrom(ratchetKey.serialize());
+
+    ChainKey chainKey = state.getReceiverChainKey(ratchetKey);
+
+    for (int i=0;i<skippedKeys;i++) {
+      state.setMessageKeys(ratchetKey, chainKey.getMessageKeys());
+      chainKey = chainKey.getNextChainKey();
+    }
+
+    state.setReceiverChainKey(ratchetKey, chainKey);
+
+    structure    = state.getStructure();
+    messageKeys  = chainKey.getMessageKeys();
+    nextChainKey = chainKey.getNextChainKey();
+  }
+
+  /**
+   * Stores a skipped message key, consumes it, and advances the chain key.
+   */
+  @Benchmark
+  public SessionState model() {
+    state.setMessageKeys(ratchetKey, messageKeys);
+    state.removeMessageKeys(ratchetKey, messageKeys.getCounter());
+    state.setReceiverChainKey(ratchetKey, nextChainKey);
+
+    return state;
+  }
+
+  /**
+   * As {@link #model()}, on the protobuf representation.
+   */
+  @Benchmark
+  public SessionStructure protobuf() {
+    structure = setMessageKeys(structure, serializedRatchetKey, messageKeys);
+    structure = removeMessageKeys(structure, serializedRatchetKey, messageKeys.getCounter());
+    structure = setReceiverChainKey(structure, serializedRatchetKey, nextChainKey);
+
+    return structure;
+  }
+
+  private static int getReceiverChain(SessionStructure structure, ByteString ratchetKey) {
+    for (int i=0;i<structure.getReceiverChainsCount();i++) {
+      if (structure.getReceiverChains(i).getSenderRatchetKey().equals(ratchetKey)) {
+        return i;
+      }
+    }
+
+    throw new AssertionError("No receiver chain");
+  }
+
+  private static SessionStructure setMessageKeys(SessionStructure structure, ByteString ratchetKey,
+                                                 MessageKeys messageKeys)
+  {
+    int              index      = getReceiverChain(structure, ratchetKey);
+    Chain.MessageKey messageKey = Chain.MessageKey.newBuilder()
+                                                  .setCipherKey(ByteString.copyFrom(messageKeys.getCipherKey().getEncoded()))
+                                                  .setMacKey(ByteString.copyFrom(messageKeys.getMacKey().getEncoded()))
+                                                  .setIndex(messageKeys.getCounter())
+                                                  .setIv(ByteString.copyFrom(messageKeys.getIv().getIV()))
+                                                  .build();
+
+    Chain chain = structure.getReceiverChains(index).toBuilder().addMessageKeys(messageKey).build();
+
+    return structure.toBuilder().setReceiverChains(index, chain).build();
+  }
+
+  private static SessionStructure removeMessageKeys(SessionStructure structure, ByteString ratchetKey, int counter) {
+    int           index = getReceiverChain(structure, ratchetKey);
+    Chain.Builder chain = structure.getReceiverChains(index).toBuilder();
+
+    for (int i=0;i<chain.getMessageKeysCount();i++) {
+      if (chain.getMessageKeys(i).getIndex() == counter) {
+        chain.removeMessageKeys(i);
+        break;
+      }
+    }
+
+    return structure.toBuilder().setReceiverChains(index, chain.build()).build();
+  }
+
+  private static SessionStructure setReceiverChainKey(SessionStructure structure, ByteString ratchetKey,
+                                                      ChainKey chainKey)
+  {
+    int            index     = getReceiverChain(structure, ratchetKey);
+    Chain.ChainKey structKey = Chain.ChainKey.newBuilder()
+                                             .setKey(ByteString.copyFrom(chainKey.getKey()))
+                                             .setIndex(chainKey.getIndex())
+                                             .build();
+
+    Chain chain = structure.getReceiverChains(index).toBuilder().setChainKey(structKey).build();
+
+    return structure.toBuilder().setReceiverChains(index, chain).build();
+  }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+import org.whispersystems.libsignal.state.impl.ConcurrentSignalProtocolStore;
+import org.whispersystems.libsignal.state.impl.InMemorySignalProtocolStore;
+import org.whispersystems.libsignal.util.KeyHelper;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the in-memory session stores when shared by several threads, each
+ * loading and storing sessions for a random address, as a multi-threaded service would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(4)
+public class SessionStoreBenchmark {
+
+  private static final int NAMES   = 1000;
+  private static final int DEVICES = 3;
+
+  @Param({"synchronized", "concurrent"})
+  public String store;
+
+  private SignalProtocolStore sessionStore;
+
+  @Setup
+  public void setup() throws Exception {
+    if ("concurrent".equals(store)) {
+      sessionStore = new ConcurrentSignalProtocolStore(KeyHelper.generateIdentityKeyPair(),
+                                                       KeyHelper.generateRegistrationId(false));
+    } else {
+      sessionStore = new InMemorySignalProtocolStore(KeyHelper.generateIdentityKeyPair(),
+                                                     KeyHelper.generateRegistrationId(false));
+    }
+
+    SignalProtocolStore aliceStore = Sessions.newStore();
+    SignalProtocolStore bobStore   = Sessions.newStore();
+
+    Sessions.establish(aliceStore, bobStore);
+
+    SessionRecord record = aliceStore.loadSession(Sessions.BOB_ADDRESS);
+
+    for (int i=0;i<NAMES;i++) {
+      for (int j=1;j<=DEVICES;j++) {
+        sessionStore.storeSession(new SignalProtocolAddress(nameFor(i), j), record);
+      }
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Addresses {
+    private final Random random = new Random();
+
+    SignalProtocolAddress next() {
+      return new SignalProtocolAddress(nameFor(random.nextInt(NAMES)), 1 + random.nextInt(DEVICES));
+    }
+
+    String nextName() {
+      return nameFor(random.nextInt(NAMES));
+    }
+  }
+
+  @Benchmark
+  public void loadAndStore(Addresses addresses) {
+    SignalProtocolAddress address = addresses.next();
+    sessionStore.storeSession(address, sessionStore.loadSession(address));
+  }
+
+  @Benchmark
+  public List<Integer> getSubDeviceSessions(Addresses addresses) {
+    return sessionStore.getSubDeviceSessions(addresses.nextName());
+  }
+
+  private static String nameFor(int index) {
+    return "+1415" + (1000000 + index);
+  }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.benchmarks;
+
+import org.whispersystems.libsignal.SessionBuilder;
+import org.whispersystems.libsignal.SessionCipher;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECKeyPair;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import org.whispersystems.libsignal.protocol.PreKeySignalMessage;
+import org.whispersystems.libsignal.protocol.SignalMessage;
+import org.whispersystems.libsignal.state.PreKeyBundle;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+import org.whispersystems.libsignal.state.impl.InMemorySignalProtocolStore;
+import org.whispersystems.libsignal.util.KeyHelper;
+
+/**
+ * Fixtures shared by the benchmarks: in-memory stores, and fully established sessions
+ * between them.
+ */
+final class Sessions {
+
+  static final SignalProtocolAddress ALICE_ADDRESS = new SignalProtocolAddress("+14151111111", 1);
+  static final SignalProtocolAddress BOB_ADDRESS   = new SignalProtocolAddress("+14152222222", 1);
+
+  private static final int SIGNED_PRE_KEY_ID = 22;
+
+  private Sessions() {}
+
+  static SignalProtocolStore newStore() {
+    return new InMemorySignalProtocolStore(KeyHelper.generateIdentityKeyPair(),
+                                           KeyHelper.generateRegistrationId(false));
+  }
+
+  /**
+   * Generates a one-time and a signed prekey, stores both in the owner's store, and
+   * returns the bundle a remote party would fetch from the server.
+   */
+  static PreKeyBundle newPreKeyBundle(SignalProtocolStore owner, int preKeyId) throws Exception {
+    ECKeyPair preKeyPair            = Curve.generateKeyPair();
+    ECKeyPair signedPreKeyPair      = Curve.generateKeyPair();
+    byte[]    signedPreKeySignature = Curve.calculateSignature(owner.getIdentityKeyPair().getPrivateKey(),
+                                                               signedPreKeyPair.getPublicKey().serialize());
+
+    owner.storePreKey(preKeyId, new PreKeyRecord(preKeyId, preKeyPair));
+    owner.storeSignedPreKey(SIGNED_PRE_KEY_ID, new SignedPreKeyRecord(SIGNED_PRE_KEY_ID, System.currentTimeMillis(),
+                                                                      signedPreKeyPair, signedPreKeySignature));
+
+    return new PreKeyBundle(owner.getLocalRegistrationId(), 1,
+                            preKeyId, preKeyPair.getPublicKey(),
+                            SIGNED_PRE_KEY_ID, signedPreKeyPair.getPublicKey(),
+                            signedPreKeySignature,
+                            owner.getIdentityKeyPair().getPublicKey());
+  }
+
+  /**
+   * Builds a session from Alice to Bob and completes one round trip over it, so that
+   * both sides have acknowledged the session and exchange plain {@link SignalMessage}s.
+   */
+  static void establish(SignalProtocolStore aliceStore, SignalProtocolStore bobStore) throws Exception {
+    establish(aliceStore, bobStore, BOB_ADDRESS);
+  }
+
+  /**
+   * As {@link #establish(SignalProtocolStore, SignalProtocolStore)}, with Bob at the given address.
+   */
+  static void establish(SignalProtocolStore aliceStore, SignalProtocolStore bobStore,
+                        SignalProtocolAddress bobAddress)
+      throws Exception
+  {
+    new SessionBuilder(aliceStore, bobAddress).process(newPreKeyBundle(bobStore, 31337));
+
+    SessionCipher aliceCipher = new SessionCipher(aliceStore, bobAddress);
+    SessionCipher bobCipher   = new SessionCipher(bobStore, ALICE_ADDRESS);
+
+    CiphertextMessage hello = aliceCipher.encrypt("hello".getBytes());
+    bobCipher.decrypt(new PreKeySignalMessage(hello.serialize()));
+
+    CiphertextMessage reply = bobCipher.encrypt("reply".getBytes());
+    aliceCipher.decrypt(new SignalMessage(reply.serialize()));
+  }
+}
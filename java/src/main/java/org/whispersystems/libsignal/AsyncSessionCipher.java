@@ -0,0 +1,288 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal;
+
+import org.whispersystems.libsignal.async.AsyncFunction;
+import org.whispersystems.libsignal.async.AsyncSignalProtocolStore;
+import org.whispersystems.libsignal.async.FutureListener;
+import org.whispersystems.libsignal.async.Futures;
+import org.whispersystems.libsignal.async.KeyedSequencer;
+import org.whispersystems.libsignal.async.ListenableFuture;
+import org.whispersystems.libsignal.ecc.ECKeyPair;
+import org.whispersystems.libsignal.metrics.ProtocolMetrics;
+import org.whispersystems.libsignal.metrics.ProtocolMetricsProvider;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import org.whispersystems.libsignal.protocol.PreKeySignalMessage;
+import org.whispersystems.libsignal.protocol.SignalMessage;
+import org.whispersystems.libsignal.state.IdentityKeyStore;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SessionState;
+import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+import org.whispersystems.libsignal.util.guava.Optional;
+
+import java.util.concurrent.Callable;
+
+/**
+ * The asynchronous counterpart of {@link SessionCipher}, for stores that perform I/O
+ * without blocking the calling thread.
+ *
+ * Operations on the session with a remote address run one at a time, in the order they
+ * were submitted, across all instances of this class.  No thread is blocked and no monitor
+ * is held while a store call is outstanding: each step runs on the thread that completed
+ * the store call before it.  These operations are not serialized against those of the
+ * blocking {@link SessionCipher}, so a session must not be used through both at once.
+ *
+ * The returned futures fail with the same exceptions the blocking methods throw.
+ */
+public class AsyncSessionCipher {
+
+  private static final KeyedSequencer<SignalProtocolAddress> SEQUENCER = new KeyedSequencer<>();
+
+  private final AsyncSignalProtocolStore store;
+  private final SignalProtocolAddress    remoteAddress;
+
+  public AsyncSessionCipher(AsyncSignalProtocolStore store, SignalProtocolAddress remoteAddress) {
+    this.store         = store;
+    this.remoteAddress = remoteAddress;
+  }
+
+  /**
+   * Encrypt a message.
+   *
+   * @see SessionCipher#encrypt(byte[])
+   */
+  public ListenableFuture<CiphertextMessage> encrypt(final byte[] paddedMessage) {
+    return instrument(ProtocolMetrics.ENCRYPT, System.nanoTime(), SEQUENCER.submit(remoteAddress, new Callable<ListenableFuture<CiphertextMessage>>() {
+      @Override
+      public ListenableFuture<CiphertextMessage> call() {
+        return Futures.transform(store.loadSession(remoteAddress), new AsyncFunction<SessionRecord, CiphertextMessage>() {
+          @Override
+          public ListenableFuture<CiphertextMessage> apply(final SessionRecord sessionRecord) {
+            SessionState            sessionState = sessionRecord.getSessionState();
+            final CiphertextMessage message      = SessionCipher.encrypt(sessionState, paddedMessage);
+            final IdentityKey       identityKey  = sessionState.getRemoteIdentityKey();
+
+            return Futures.transform(checkTrusted(identityKey, IdentityKeyStore.Direction.SENDING), new AsyncFunction<Void, CiphertextMessage>() {
+              @Override
+              public ListenableFuture<CiphertextMessage> apply(Void trusted) {
+                return Futures.transform(commit(sessionRecord, identityKey, null, null, null), message);
+              }
+            });
+          }
+        });
+      }
+    }));
+  }
+
+  /**
+   * Decrypt a message.
+   *
+   * @see SessionCipher#decrypt(PreKeySignalMessage)
+   */
+  public ListenableFuture<byte[]> decrypt(PreKeySignalMessage ciphertext) {
+    return decrypt(ciphertext, new SessionCipher.NullDecryptionCallback());
+  }
+
+  /**
+   * Decrypt a message.
+   *
+   * @see SessionCipher#decrypt(PreKeySignalMessage, DecryptionCallback)
+   */
+  public ListenableFuture<byte[]> decrypt(final PreKeySignalMessage ciphertext, final DecryptionCallback callback) {
+    return instrument(ProtocolMetrics.DECRYPT_PRE_KEY, System.nanoTime(), SEQUENCER.submit(remoteAddress, new Callable<ListenableFuture<byte[]>>() {
+      @Override
+      public ListenableFuture<byte[]> call() {
+        return Futures.transform(store.loadSession(remoteAddress), new AsyncFunction<SessionRecord, byte[]>() {
+          @Override
+          public ListenableFuture<byte[]> apply(final SessionRecord sessionRecord) {
+            return Futures.transform(checkTrusted(ciphertext.getIdentityKey(), IdentityKeyStore.Direction.RECEIVING), new AsyncFunction<Void, byte[]>() {
+              @Override
+              public ListenableFuture<byte[]> apply(Void trusted) {
+                return Futures.transform(buildSession(sessionRecord, ciphertext), new AsyncFunction<Optional<Integer>, byte[]>() {
+                  @Override
+                  public ListenableFuture<byte[]> apply(Optional<Integer> unsignedPreKeyId) throws Exception {
+                    byte[] plaintext = SessionCipher.decrypt(sessionRecord, ciphertext.getWhisperMessage(), null, remoteAddress);
+                    return checkTrustedAndCommit(sessionRecord, ciphertext.getIdentityKey(), plaintext, callback, unsignedPreKeyId.orNull());
+                  }
+                });
+              }
+            });
+          }
+        });
+      }
+    }));
+  }
+
+  /**
+   * Decrypt a message.
+   *
+   * @see SessionCipher#decrypt(SignalMessage)
+   */
+  public ListenableFuture<byte[]> decrypt(SignalMessage ciphertext) {
+    return decrypt(ciphertext, new SessionCipher.NullDecryptionCallback());
+  }
+
+  /**
+   * Decrypt a message.
+   *
+   * @see SessionCipher#decrypt(SignalMessage, DecryptionCallback)
+   */
+  public ListenableFuture<byte[]> decrypt(final SignalMessage ciphertext, final DecryptionCallback callback) {
+    return instrument(ProtocolMetrics.DECRYPT, System.nanoTime(), SEQUENCER.submit(remoteAddress, new Callable<ListenableFuture<byte[]>>() {
+      @Override
+      public ListenableFuture<byte[]> call() {
+        return Futures.transform(store.containsSession(remoteAddress), new AsyncFunction<Boolean, byte[]>() {
+          @Override
+          public ListenableFuture<byte[]> apply(Boolean containsSession) throws NoSessionException {
+            if (!containsSession) {
+              throw new NoSessionException("No session for: " + remoteAddress);
+            }
+
+            return Futures.transform(store.loadSession(remoteAddress), new AsyncFunction<SessionRecord, byte[]>() {
+              @Override
+              public ListenableFuture<byte[]> apply(SessionRecord sessionRecord) throws Exception {
+                byte[] plaintext = SessionCipher.decrypt(sessionRecord, ciphertext, null, remoteAddress);
+                return checkTrustedAndCommit(sessionRecord, sessionRecord.getSessionState().getRemoteIdentityKey(),
+                                             plaintext, callback, null);
+              }
+            });
+          }
+        });
+      }
+    }));
+  }
+
+  /**
+   * Initializes a session from a prekey message, as {@link SessionBuilder} does, once the
+   * local keys it refers to have been loaded.
+   */
+  private ListenableFuture<Optional<Integer>> buildSession(final SessionRecord sessionRecord,
+                                                           final PreKeySignalMessage message)
+  {
+    if (sessionRecord.hasSessionState(message.getMessageVersion(), message.getBaseKey().serialize())) {
+      return Futures.immediate(Optional.<Integer>absent());
+    }
+
+    return Futures.transform(store.getIdentityKeyPair(), new AsyncFunction<IdentityKeyPair, Optional<Integer>>() {
+      @Override
+      public ListenableFuture<Optional<Integer>> apply(final IdentityKeyPair identityKeyPair) {
+        return Futures.transform(store.getLocalRegistrationId(), new AsyncFunction<Integer, Optional<Integer>>() {
+          @Override
+          public ListenableFuture<Optional<Integer>> apply(final Integer localRegistrationId) {
+            return Futures.transform(store.loadSignedPreKey(message.getSignedPreKeyId()), new AsyncFunction<SignedPreKeyRecord, Optional<Integer>>() {
+              @Override
+              public ListenableFuture<Optional<Integer>> apply(final SignedPreKeyRecord signedPreKey) {
+                return Futures.transform(loadOneTimePreKey(message), new AsyncFunction<Optional<ECKeyPair>, Optional<Integer>>() {
+                  @Override
+                  public ListenableFuture<Optional<Integer>> apply(Optional<ECKeyPair> oneTimePreKey) throws InvalidKeyException {
+                    return Futures.immediate(SessionBuilder.initializeSession(sessionRecord, message, identityKeyPair,
+                                                                              localRegistrationId, signedPreKey.getKeyPair(),
+                                                                              oneTimePreKey));
+                  }
+                });
+              }
+            });
+          }
+        });
+      }
+    });
+  }
+
+  private ListenableFuture<Optional<ECKeyPair>> loadOneTimePreKey(PreKeySignalMessage message) {
+    if (!message.getPreKeyId().isPresent()) {
+      return Futures.immediate(Optional.<ECKeyPair>absent());
+    }
+
+    return Futures.transform(store.loadPreKey(message.getPreKeyId().get()), new AsyncFunction<PreKeyRecord, Optional<ECKeyPair>>() {
+      @Override
+      public ListenableFuture<Optional<ECKeyPair>> apply(PreKeyRecord preKey) {
+        return Futures.immediate(Optional.of(preKey.getKeyPair()));
+      }
+    });
+  }
+
+  /**
+   * Checks that the identity of the state that decrypted a message is trusted, then commits.
+   */
+  private ListenableFuture<byte[]> checkTrustedAndCommit(final SessionRecord sessionRecord, final IdentityKey identityKey,
+                                                         final byte[] plaintext, final DecryptionCallback callback,
+                                                         final Integer unsignedPreKeyId)
+  {
+    IdentityKey decryptingIdentity = sessionRecord.getSessionState().getRemoteIdentityKey();
+
+    return Futures.transform(checkTrusted(decryptingIdentity, IdentityKeyStore.Direction.RECEIVING), new AsyncFunction<Void, byte[]>() {
+      @Override
+      public ListenableFuture<byte[]> apply(Void trusted) {
+        return Futures.transform(commit(sessionRecord, identityKey, plaintext, callback, unsignedPreKeyId), plaintext);
+      }
+    });
+  }
+
+  private ListenableFuture<Void> checkTrusted(final IdentityKey identityKey, IdentityKeyStore.Direction direction) {
+    return Futures.transform(store.isTrustedIdentity(remoteAddress, identityKey, direction), new AsyncFunction<Boolean, Void>() {
+      @Override
+      public ListenableFuture<Void> apply(Boolean trusted) throws UntrustedIdentityException {
+        if (!trusted) {
+          throw new UntrustedIdentityException(remoteAddress.getName(), identityKey);
+        }
+
+        return Futures.immediate(null);
+      }
+    });
+  }
+
+  /**
+   * Saves the remote identity, hands any plaintext to the callback, stores the session and
+   * then removes the prekey it consumed, in the same order as {@link SessionCipher}.
+   */
+  private ListenableFuture<Void> commit(final SessionRecord sessionRecord, IdentityKey identityKey,
+                                        final byte[] plaintext, final DecryptionCallback callback,
+                                        final Integer unsignedPreKeyId)
+  {
+    return Futures.transform(store.saveIdentity(remoteAddress, identityKey), new AsyncFunction<Boolean, Void>() {
+      @Override
+      public ListenableFuture<Void> apply(Boolean changed) {
+        if (callback != null) {
+          callback.handlePlaintext(plaintext);
+        }
+
+        ListenableFuture<Void> stored = store.storeSession(remoteAddress, sessionRecord);
+
+        if (unsignedPreKeyId != null) {
+          stored = Futures.transform(stored, new AsyncFunction<Void, Void>() {
+            @Override
+            public ListenableFuture<Void> apply(Void ignored) {
+              return store.removePreKey(unsignedPreKeyId);
+            }
+          });
+        }
+
+        return stored;
+      }
+    });
+  }
+
+  private static <T> ListenableFuture<T> instrument(final int operation, final long start, ListenableFuture<T> future) {
+    future.addListener(new FutureListener<T>() {
+      @Override
+      public void onSuccess(T result) {
+        ProtocolMetricsProvider.getProvider().recordLatency(operation, System.nanoTime() - start);
+      }
+
+      @Override
+      public void onFailure(Throwable throwable) {
+        if (throwable instanceof Exception) {
+          SessionCipher.recordFailure(operation, (Exception) throwable);
+        }
+
+        ProtocolMetricsProvider.getProvider().recordLatency(operation, System.nanoTime() - start);
+      }
+    });
+
+    return future;
+  }
+}
@@ -0,0 +1,455 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal;
+
+import org.whispersystems.libsignal.metrics.MeteredStores;
+import org.whispersystems.libsignal.metrics.ProtocolMetrics;
+import org.whispersystems.libsignal.metrics.ProtocolMetricsProvider;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import org.whispersystems.libsignal.protocol.PreKeySignalMessage;
+import org.whispersystems.libsignal.protocol.SignalMessage;
+import org.whispersystems.libsignal.state.IdentityKeyStore;
+import org.whispersystems.libsignal.state.PreKeyStore;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SessionStore;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+import org.whispersystems.libsignal.state.SignedPreKeyStore;
+import org.whispersystems.libsignal.util.guava.Optional;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Performs {@link SessionCipher} operations on many sessions at once.
+ *
+ * Session records are loaded and committed in bulk (using {@link BatchSessionStore}
+ * when the supplied SessionStore supports it), and the per-sender decryption work is run
+ * on a caller-supplied {@link Executor}.  The same per-address ordering guarantees as
+ * {@link SessionCipher} apply.
+ *
+ * Encryption runs on the calling thread.  It holds the session lock of every recipient
+ * at once, and waiting on the executor while holding them could deadlock against
+ * decryption tasks that are queued on the same executor and waiting for those locks.
+ */
+public class BatchSessionCipher {
+
+  private final SessionStore      sessionStore;
+  private final PreKeyStore       preKeyStore;
+  private final SignedPreKeyStore signedPreKeyStore;
+  private final IdentityKeyStore  identityKeyStore;
+  private final Executor          executor;
+
+  /**
+   * Construct a BatchSessionCipher.
+   *
+   * @param executor The executor that per-sender decrypt work is run on.
+   */
+  public BatchSessionCipher(SessionStore sessionStore, PreKeyStore preKeyStore,
+                            SignedPreKeyStore signedPreKeyStore, IdentityKeyStore identityKeyStore,
+                            Executor executor)
+  {
+    this.sessionStore      = sessionStore;
+    this.preKeyStore       = preKeyStore;
+    this.signedPreKeyStore = signedPreKeyStore;
+    this.identityKeyStore  = identityKeyStore;
+    this.executor          = executor;
+  }
+
+  public BatchSessionCipher(SignalProtocolStore store, Executor executor) {
+    this(store, store, store, store, executor);
+  }
+
+  /**
+   * Construct a BatchSessionCipher that runs all work on the calling thread.
+   */
+  public BatchSessionCipher(SignalProtocolStore store) {
+    this(store, new DirectExecutor());
+  }
+
+  /**
+   * Encrypt the same message to a set of recipients.
+   *
+   * Either every session is advanced and committed, or (if any recipient's identity is
+   * untrusted) none are.
+   *
+   * Each recipient is reported to {@link ProtocolMetrics} as one encryption, taking an
+   * equal share of the whole call's time.
+   *
+   * @param  remoteAddresses The recipient+device tuples to encrypt to.  Each must have an
+   *                         established session.
+   * @param  paddedMessage   The plaintext message bytes, optionally padded to a constant multiple.
+   * @return The ciphertext message for each recipient+device tuple, in the order given.
+   * @throws UntrustedIdentityException if any recipient's identity key is untrusted.
+   */
+  public Map<SignalProtocolAddress, CiphertextMessage> encrypt(Collection<SignalProtocolAddress> remoteAddresses,
+                                                               byte[] paddedMessage)
+      throws UntrustedIdentityException
+  {
+    long                       start     = System.nanoTime();
+    Set<SignalProtocolAddress> addresses = new LinkedHashSet<>(remoteAddresses);
+    List<Lock>                 locks     = SessionCipher.getSessionLocks(addresses);
+
+    lockAll(locks);
+
+    try {
+      Map<SignalProtocolAddress, SessionRecord> records = MeteredStores.loadSessions(sessionStore, addresses);
+
+      for (SignalProtocolAddress address : addresses) {
+        IdentityKey remoteIdentityKey = records.get(address).getSessionState().getRemoteIdentityKey();
+
+        if (!identityKeyStore.isTrustedIdentity(address, remoteIdentityKey, IdentityKeyStore.Direction.SENDING)) {
+          throw new UntrustedIdentityException(address.getName(), remoteIdentityKey);
+        }
+      }
+
+      Map<SignalProtocolAddress, CiphertextMessage> results = new LinkedHashMap<>();
+
+      for (SignalProtocolAddress address : addresses) {
+        results.put(address, SessionCipher.encrypt(records.get(address).getSessionState(), paddedMessage));
+      }
+
+      for (SignalProtocolAddress address : addresses) {
+        identityKeyStore.saveIdentity(address, records.get(address).getSessionState().getRemoteIdentityKey());
+      }
+
+      MeteredStores.storeSessions(sessionStore, records);
+
+      return results;
+    } finally {
+      unlockAll(locks);
+      recordShares(ProtocolMetrics.ENCRYPT, System.nanoTime() - start, addresses.size());
+    }
+  }
+
+  /**
+   * Decrypt a batch of received messages.
+   *
+   * Messages are grouped by sender.  Each sender's session record is loaded once, the
+   * sender's messages are decrypted against it in the order given, and the record is
+   * committed once after the group has been processed.  Different senders are processed
+   * in parallel on the executor.
+   *
+   * As with {@link SessionCipher}, each envelope's {@link DecryptionCallback} is triggered
+   * after its message is decrypted, but before the session state that decrypted it has
+   * been committed to the session store.
+   *
+   * Each message is reported to {@link ProtocolMetrics} as one decryption, taking the time
+   * spent on it plus an equal share of the time spent loading and storing its sender's
+   * session record.
+   *
+   * A message that fails to decrypt leaves the session state unchanged, and does not
+   * prevent the remaining messages in the batch from being processed.  The same is true
+   * of a callback that throws a RuntimeException: the message's changes to the session
+   * state are discarded, and the callback's exception is reported in the message's result,
+   * just as {@link SessionCipher} would not commit a message whose callback threw.
+   *
+   * @param  envelopes The received messages, in the order they were received.
+   * @return A result for each envelope, in the order given.
+   */
+  public List<Result> decrypt(List<Envelope> envelopes) {
+    Map<SignalProtocolAddress, List<Envelope>> groups    = new LinkedHashMap<>();
+    Map<SignalProtocolAddress, List<Integer>>  positions = new HashMap<>();
+
+    for (int i=0;i<envelopes.size();i++) {
+      Envelope       envelope = envelopes.get(i);
+      List<Envelope> group    = groups.get(envelope.getSender());
+
+      if (group == null) {
+        group = new LinkedList<>();
+        groups.put(envelope.getSender(), group);
+        positions.put(envelope.getSender(), new LinkedList<Integer>());
+      }
+
+      group.add(envelope);
+      positions.get(envelope.getSender()).add(i);
+    }
+
+    Map<SignalProtocolAddress, FutureTask<List<Result>>> tasks = new LinkedHashMap<>();
+
+    for (final Map.Entry<SignalProtocolAddress, List<Envelope>> group : groups.entrySet()) {
+      FutureTask<List<Result>> task = new FutureTask<>(new Callable<List<Result>>() {
+        @Override
+        public List<Result> call() {
+          return decrypt(group.getKey(), group.getValue());
+        }
+      });
+
+      tasks.put(group.getKey(), task);
+      executor.execute(task);
+    }
+
+    Result[] ordered = new Result[envelopes.size()];
+
+    for (Map.Entry<SignalProtocolAddress, FutureTask<List<Result>>> task : tasks.entrySet()) {
+      Iterator<Integer> position = positions.get(task.getKey()).iterator();
+
+      for (Result result : getUninterruptibly(task.getValue())) {
+        ordered[position.next()] = result;
+      }
+    }
+
+    return Arrays.asList(ordered);
+  }
+
+  private List<Result> decrypt(SignalProtocolAddress remoteAddress, List<Envelope> envelopes) {
+    Lock lock = SessionCipher.getSessionLock(remoteAddress);
+    lock.lock();
+
+    long         start   = System.nanoTime();
+    long[]       elapsed = new long[envelopes.size()];
+    List<Result> results = new ArrayList<>(envelopes.size());
+
+    try {
+      SessionBuilder sessionBuilder  = new SessionBuilder(sessionStore, preKeyStore, signedPreKeyStore,
+                                                          identityKeyStore, remoteAddress);
+      boolean        hasSession      = sessionStore.containsSession(remoteAddress);
+      SessionRecord  sessionRecord   = MeteredStores.loadSession(sessionStore, remoteAddress);
+      List<Integer>  unsignedPreKeys = new LinkedList<>();
+      boolean        modified        = false;
+
+      for (Envelope envelope : envelopes) {
+        long                     envelopeStart    = System.nanoTime();
+        SessionRecord            snapshot         = null;
+        SessionRecord.Checkpoint checkpoint       = null;
+        Optional<Integer>        unsignedPreKeyId = Optional.absent();
+        byte[]                   plaintext;
+
+        try {
+          if (envelope.getMessage() instanceof PreKeySignalMessage) {
+            PreKeySignalMessage message = (PreKeySignalMessage) envelope.getMessage();
+
+            snapshot         = new SessionRecord(sessionRecord);
+            unsignedPreKeyId = sessionBuilder.process(sessionRecord, message);
+            plaintext        = SessionCipher.decrypt(sessionRecord, message.getWhisperMessage(),
+                                                     identityKeyStore, remoteAddress);
+          } else {
+            if (!hasSession) {
+              throw new NoSessionException("No session for: " + remoteAddress);
+            }
+
+            checkpoint = sessionRecord.checkpoint();
+            plaintext  = SessionCipher.decrypt(sessionRecord, (SignalMessage) envelope.getMessage(),
+                                               identityKeyStore, remoteAddress);
+
+            identityKeyStore.saveIdentity(remoteAddress, sessionRecord.getSessionState().getRemoteIdentityKey());
+          }
+        } catch (InvalidMessageException | DuplicateMessageException | LegacyMessageException |
+                 InvalidKeyIdException | InvalidKeyException | UntrustedIdentityException |
+                 NoSessionException e)
+        {
+          SessionCipher.recordFailure(envelope.getMessage() instanceof PreKeySignalMessage ? ProtocolMetrics.DECRYPT_PRE_KEY :
+                                                                                            ProtocolMetrics.DECRYPT, e);
+          if (snapshot != null) sessionRecord = snapshot;
+          elapsed[results.size()] = System.nanoTime() - envelopeStart;
+          results.add(new Result(envelope, null, e));
+          continue;
+        }
+
+        try {
+          envelope.getCallback().handlePlaintext(plaintext);
+        } catch (RuntimeException e) {
+          if (snapshot != null) sessionRecord = snapshot;
+          else                  sessionRecord.restore(checkpoint);
+
+          elapsed[results.size()] = System.nanoTime() - envelopeStart;
+          results.add(new Result(envelope, null, e));
+          continue;
+        }
+
+        if (unsignedPreKeyId.isPresent()) {
+          unsignedPreKeys.add(unsignedPreKeyId.get());
+        }
+
+        if (envelope.getMessage() instanceof PreKeySignalMessage) {
+          hasSession = true;
+        }
+
+        elapsed[results.size()] = System.nanoTime() - envelopeStart;
+        results.add(new Result(envelope, plaintext, null));
+        modified = true;
+      }
+
+      if (modified) {
+        MeteredStores.storeSession(sessionStore, remoteAddress, sessionRecord);
+
+        for (int unsignedPreKeyId : unsignedPreKeys) {
+          preKeyStore.removePreKey(unsignedPreKeyId);
+        }
+      }
+
+      return results;
+    } finally {
+      lock.unlock();
+      recordLatencies(results, elapsed, System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Reports each decrypted message's latency: the time spent on the message itself, plus
+   * an equal share of the rest of the group's time.
+   */
+  private static void recordLatencies(List<Result> results, long[] elapsed, long total) {
+    if (results.isEmpty()) {
+      return;
+    }
+
+    long shared = total;
+
+    for (int i=0;i<results.size();i++) {
+      shared -= elapsed[i];
+    }
+
+    shared /= results.size();
+
+    for (int i=0;i<results.size();i++) {
+      int operation = results.get(i).getEnvelope().getMessage() instanceof PreKeySignalMessage ? ProtocolMetrics.DECRYPT_PRE_KEY :
+                                                                                                 ProtocolMetrics.DECRYPT;
+
+      ProtocolMetricsProvider.getProvider().recordLatency(operation, elapsed[i] + shared);
+    }
+  }
+
+  private static void recordShares(int operation, long total, int count) {
+    for (int i=0;i<count;i++) {
+      ProtocolMetricsProvider.getProvider().recordLatency(operation, total / count);
+    }
+  }
+
+  private static void lockAll(List<Lock> locks) {
+    for (Lock lock : locks) {
+      lock.lock();
+    }
+  }
+
+  private static void unlockAll(List<Lock> locks) {
+    for (int i=locks.size()-1;i>=0;i--) {
+      locks.get(i).unlock();
+    }
+  }
+
+  private static <T> T getUninterruptibly(FutureTask<T> task) {
+    boolean interrupted = false;
+
+    try {
+      while (true) {
+        try {
+          return task.get();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+          if (e.getCause() instanceof Error)            throw (Error) e.getCause();
+          throw new AssertionError(e);
+        }
+      }
+    } finally {
+      if (interrupted) Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * A received message, along with the address of its sender.
+   */
+  public static class Envelope {
+
+    private final SignalProtocolAddress sender;
+    private final CiphertextMessage     message;
+    private final DecryptionCallback    callback;
+
+    /**
+     * @param sender   The address the message was received from.
+     * @param message  A {@link SignalMessage} or {@link PreKeySignalMessage}.
+     * @param callback A callback that is triggered after the message is decrypted, but
+     *                 before the updated session state has been committed to the session DB.
+     */
+    public Envelope(SignalProtocolAddress sender, CiphertextMessage message, DecryptionCallback callback) {
+      if (!(message instanceof SignalMessage) && !(message instanceof PreKeySignalMessage)) {
+        throw new IllegalArgumentException("Unsupported message type: " + message.getType());
+      }
+
+      this.sender   = sender;
+      this.message  = message;
+      this.callback = callback;
+    }
+
+    public Envelope(SignalProtocolAddress sender, CiphertextMessage message) {
+      this(sender, message, new SessionCipher.NullDecryptionCallback());
+    }
+
+    public SignalProtocolAddress getSender() {
+      return sender;
+    }
+
+    public CiphertextMessage getMessage() {
+      return message;
+    }
+
+    public DecryptionCallback getCallback() {
+      return callback;
+    }
+  }
+
+  /**
+   * The outcome of decrypting a single {@link Envelope}.
+   */
+  public static class Result {
+
+    private final Envelope  envelope;
+    private final byte[]    plaintext;
+    private final Exception exception;
+
+    private Result(Envelope envelope, byte[] plaintext, Exception exception) {
+      this.envelope  = envelope;
+      this.plaintext = plaintext;
+      this.exception = exception;
+    }
+
+    public Envelope getEnvelope() {
+      return envelope;
+    }
+
+    public boolean isSuccess() {
+      return exception == null;
+    }
+
+    /**
+     * @return The plaintext, or null if the message could not be decrypted.
+     */
+    public byte[] getPlaintext() {
+      return plaintext;
+    }
+
+    /**
+     * @return The reason the message could not be decrypted, or null if it was decrypted.
+     *         One of the exceptions thrown by {@link SessionCipher}'s decrypt methods,
+     *         or the RuntimeException thrown by the envelope's {@link DecryptionCallback}.
+     */
+    public Exception getException() {
+      return exception;
+    }
+  }
+
+  private static class DirectExecutor implements Executor {
+    @Override
+    public void execute(Runnable command) {
+      command.run();
+    }
+  }
+}
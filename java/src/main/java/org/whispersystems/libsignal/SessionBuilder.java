@@ -10,6 +10,9 @@ import org.whispersystems.libsignal.ecc.Curve;
 import org.whispersystems.libsignal.ecc.ECKeyPair;
 import org.whispersystems.libsignal.ecc.ECPublicKey;
 import org.whispersystems.libsignal.logging.Log;
+import org.whispersystems.libsignal.metrics.MeteredStores;
+import org.whispersystems.libsignal.metrics.ProtocolMetrics;
+import org.whispersystems.libsignal.metrics.ProtocolMetricsProvider;
 import org.whispersystems.libsignal.protocol.PreKeySignalMessage;
 import org.whispersystems.libsignal.protocol.SignalMessage;
 import org.whispersystems.libsignal.ratchet.AliceSignalProtocolParameters;
@@ -25,6 +28,8 @@ import org.whispersystems.libsignal.state.SignedPreKeyStore;
 import org.whispersystems.libsignal.util.Medium;
 import org.whispersystems.libsignal.util.guava.Optional;
 
+import java.util.concurrent.locks.Lock;
+
 /**
  * SessionBuilder is responsible for setting up encrypted sessions.
  * Once a session has been established, {@link org.whispersystems.libsignal.SessionCipher}
@@ -120,27 +125,43 @@ public class SessionBuilder {
       return Optional.absent();
     }
 
-    ECKeyPair ourSignedPreKey = signedPreKeyStore.loadSignedPreKey(message.getSignedPreKeyId()).getKeyPair();
+    ECKeyPair           ourSignedPreKey  = signedPreKeyStore.loadSignedPreKey(message.getSignedPreKeyId()).getKeyPair();
+    Optional<ECKeyPair> ourOneTimePreKey = Optional.absent();
+
+    if (message.getPreKeyId().isPresent()) {
+      ourOneTimePreKey = Optional.of(preKeyStore.loadPreKey(message.getPreKeyId().get()).getKeyPair());
+    }
+
+    return initializeSession(sessionRecord, message, identityKeyStore.getIdentityKeyPair(),
+                             identityKeyStore.getLocalRegistrationId(), ourSignedPreKey, ourOneTimePreKey);
+  }
 
+  /**
+   * Initialize a new current session state from a received {@link PreKeySignalMessage}, once
+   * the local keys it refers to have been loaded.  The record must not already contain a
+   * session for the message's base key.
+   *
+   * @return The ID of the one-time prekey the session used, which the caller should remove.
+   */
+  static Optional<Integer> initializeSession(SessionRecord sessionRecord, PreKeySignalMessage message,
+                                             IdentityKeyPair ourIdentityKey, int localRegistrationId,
+                                             ECKeyPair ourSignedPreKey, Optional<ECKeyPair> ourOneTimePreKey)
+      throws InvalidKeyException
+  {
     BobSignalProtocolParameters.Builder parameters = BobSignalProtocolParameters.newBuilder();
 
     parameters.setTheirBaseKey(message.getBaseKey())
               .setTheirIdentityKey(message.getIdentityKey())
-              .setOurIdentityKey(identityKeyStore.getIdentityKeyPair())
+              .setOurIdentityKey(ourIdentityKey)
               .setOurSignedPreKey(ourSignedPreKey)
-              .setOurRatchetKey(ourSignedPreKey);
-
-    if (message.getPreKeyId().isPresent()) {
-      parameters.setOurOneTimePreKey(Optional.of(preKeyStore.loadPreKey(message.getPreKeyId().get()).getKeyPair()));
-    } else {
-      parameters.setOurOneTimePreKey(Optional.<ECKeyPair>absent());
-    }
+              .setOurRatchetKey(ourSignedPreKey)
+              .setOurOneTimePreKey(ourOneTimePreKey);
 
     if (!sessionRecord.isFresh()) sessionRecord.archiveCurrentState();
 
     RatchetingSession.initializeSession(sessionRecord.getSessionState(), parameters.create());
 
-    sessionRecord.getSessionState().setLocalRegistrationId(identityKeyStore.getLocalRegistrationId());
+    sessionRecord.getSessionState().setLocalRegistrationId(localRegistrationId);
     sessionRecord.getSessionState().setRemoteRegistrationId(message.getRegistrationId());
     sessionRecord.getSessionState().setAliceBaseKey(message.getBaseKey().serialize());
 
@@ -163,7 +184,11 @@ public class SessionBuilder {
    *                                                                  trusted.
    */
   public void process(PreKeyBundle preKey) throws InvalidKeyException, UntrustedIdentityException {
-    synchronized (SessionCipher.SESSION_LOCK) {
+    long start = System.nanoTime();
+    Lock lock  = SessionCipher.getSessionLock(remoteAddress);
+    lock.lock();
+
+    try {
       if (!identityKeyStore.isTrustedIdentity(remoteAddress, preKey.getIdentityKey(), IdentityKeyStore.Direction.SENDING)) {
         throw new UntrustedIdentityException(remoteAddress.getName(), preKey.getIdentityKey());
       }
@@ -180,7 +205,7 @@ public class SessionBuilder {
         throw new InvalidKeyException("No signed prekey!");
       }
 
-      SessionRecord         sessionRecord        = sessionStore.loadSession(remoteAddress);
+      SessionRecord         sessionRecord        = MeteredStores.loadSession(sessionStore, remoteAddress);
       ECKeyPair             ourBaseKey           = Curve.generateKeyPair();
       ECPublicKey           theirSignedPreKey    = preKey.getSignedPreKey();
       Optional<ECPublicKey> theirOneTimePreKey   = Optional.fromNullable(preKey.getPreKey());
@@ -206,7 +231,10 @@ public class SessionBuilder {
       sessionRecord.getSessionState().setAliceBaseKey(ourBaseKey.getPublicKey().serialize());
 
       identityKeyStore.saveIdentity(remoteAddress, preKey.getIdentityKey());
-      sessionStore.storeSession(remoteAddress, sessionRecord);
+      MeteredStores.storeSession(sessionStore, remoteAddress, sessionRecord);
+    } finally {
+      lock.unlock();
+      ProtocolMetricsProvider.getProvider().recordLatency(ProtocolMetrics.PROCESS_PRE_KEY_BUNDLE, System.nanoTime() - start);
     }
   }
 
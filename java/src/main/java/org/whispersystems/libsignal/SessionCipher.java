@@ -8,9 +8,14 @@ package org.whispersystems.libsignal;
 import org.whispersystems.libsignal.ecc.Curve;
 import org.whispersystems.libsignal.ecc.ECKeyPair;
 import org.whispersystems.libsignal.ecc.ECPublicKey;
+import org.whispersystems.libsignal.metrics.MeteredStores;
+import org.whispersystems.libsignal.metrics.ProtocolMetrics;
+import org.whispersystems.libsignal.metrics.ProtocolMetricsProvider;
 import org.whispersystems.libsignal.protocol.CiphertextMessage;
 import org.whispersystems.libsignal.protocol.PreKeySignalMessage;
 import org.whispersystems.libsignal.protocol.SignalMessage;
+import org.whispersystems.libsignal.protocol.SignalMessageInputStream;
+import org.whispersystems.libsignal.protocol.SignalMessageOutputStream;
 import org.whispersystems.libsignal.ratchet.ChainKey;
 import org.whispersystems.libsignal.ratchet.MessageKeys;
 import org.whispersystems.libsignal.ratchet.RootKey;
@@ -22,19 +27,28 @@ import org.whispersystems.libsignal.state.SessionState;
 import org.whispersystems.libsignal.state.SessionStore;
 import org.whispersystems.libsignal.state.SignedPreKeyStore;
 import org.whispersystems.libsignal.util.ByteUtil;
+import org.whispersystems.libsignal.util.CryptoPrimitives;
 import org.whispersystems.libsignal.util.Pair;
+import org.whispersystems.libsignal.util.StripedLock;
 import org.whispersystems.libsignal.util.guava.Optional;
 
-import java.security.InvalidAlgorithmParameterException;
-import java.security.NoSuchAlgorithmException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.locks.Lock;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -46,13 +60,28 @@ import static org.whispersystems.libsignal.state.SessionState.UnacknowledgedPreK
  * Once a session has been established with {@link SessionBuilder},
  * this class can be used for all encrypt/decrypt operations within
  * that session.
+ * <p>
+ * Operations on a session are serialized per remote address, while operations on
+ * different addresses may run concurrently.  The stores supplied to a SessionCipher
+ * must therefore be safe for use from multiple threads.
  *
  * @author Moxie Marlinspike
  */
 public class SessionCipher {
 
+  /**
+   * @deprecated Session operations are no longer serialized on a single global monitor.
+   *             Use {@link #getSessionLock(SignalProtocolAddress)} to coordinate with
+   *             operations on a specific session.
+   */
+  @Deprecated
   public static final Object SESSION_LOCK = new Object();
 
+  private static final StripedLock<SignalProtocolAddress> SESSION_LOCKS = new StripedLock<>(StripedLock.defaultStripeCount());
+
+  private static final int MAX_FUTURE_MESSAGES = 2000;
+  private static final int STREAM_BUFFER_SIZE  = 8192;
+
   private final SessionStore          sessionStore;
   private final IdentityKeyStore      identityKeyStore;
   private final SessionBuilder        sessionBuilder;
@@ -90,44 +119,175 @@ public class SessionCipher {
    * @return A ciphertext message encrypted to the recipient+device tuple.
    */
   public CiphertextMessage encrypt(byte[] paddedMessage) throws UntrustedIdentityException {
-    synchronized (SESSION_LOCK) {
-      SessionRecord sessionRecord   = sessionStore.loadSession(remoteAddress);
-      SessionState  sessionState    = sessionRecord.getSessionState();
-      ChainKey      chainKey        = sessionState.getSenderChainKey();
-      MessageKeys   messageKeys     = chainKey.getMessageKeys();
-      ECPublicKey   senderEphemeral = sessionState.getSenderRatchetKey();
-      int           previousCounter = sessionState.getPreviousCounter();
-      int           sessionVersion  = sessionState.getSessionVersion();
-
-      byte[]            ciphertextBody    = getCiphertext(messageKeys, paddedMessage);
-      CiphertextMessage ciphertextMessage = new SignalMessage(sessionVersion, messageKeys.getMacKey(),
-                                                              senderEphemeral, chainKey.getIndex(),
-                                                              previousCounter, ciphertextBody,
-                                                              sessionState.getLocalIdentityKey(),
-                                                              sessionState.getRemoteIdentityKey());
+    long start = System.nanoTime();
+    Lock lock  = getSessionLock(remoteAddress);
+    lock.lock();
 
-      if (sessionState.hasUnacknowledgedPreKeyMessage()) {
-        UnacknowledgedPreKeyMessageItems items = sessionState.getUnacknowledgedPreKeyMessageItems();
-        int localRegistrationId = sessionState.getLocalRegistrationId();
+    try {
+      SessionRecord     sessionRecord     = MeteredStores.loadSession(sessionStore, remoteAddress);
+      SessionState      sessionState      = sessionRecord.getSessionState();
+      CiphertextMessage ciphertextMessage = encrypt(sessionState, paddedMessage);
 
-        ciphertextMessage = new PreKeySignalMessage(sessionVersion, localRegistrationId, items.getPreKeyId(),
-                                                    items.getSignedPreKeyId(), items.getBaseKey(),
-                                                    sessionState.getLocalIdentityKey(),
-                                                    (SignalMessage) ciphertextMessage);
+      if (!identityKeyStore.isTrustedIdentity(remoteAddress, sessionState.getRemoteIdentityKey(), IdentityKeyStore.Direction.SENDING)) {
+        throw new UntrustedIdentityException(remoteAddress.getName(), sessionState.getRemoteIdentityKey());
       }
 
-      sessionState.setSenderChainKey(chainKey.getNextChainKey());
+      identityKeyStore.saveIdentity(remoteAddress, sessionState.getRemoteIdentityKey());
+      MeteredStores.storeSession(sessionStore, remoteAddress, sessionRecord);
+      return ciphertextMessage;
+    } finally {
+      lock.unlock();
+      ProtocolMetricsProvider.getProvider().recordLatency(ProtocolMetrics.ENCRYPT, System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Encrypt a message read from a stream, writing the serialized ciphertext message to
+   * another.  Only one block of the message is held in memory at a time, and the bytes
+   * written are identical to the serialization of the message {@link #encrypt(byte[])}
+   * would return.
+   *
+   * The message key is committed to the session before the message is streamed, so a
+   * failure part way through never causes a message key to be reused.  The streaming
+   * itself runs without holding the session lock.
+   *
+   * @param  paddedMessage The stream to read the plaintext message from.
+   * @param  length The number of plaintext bytes to read from the stream.
+   * @param  ciphertext The stream to write the serialized ciphertext message to.
+   * @return The {@link CiphertextMessage} type of the message written.
+   * @throws IOException if either stream fails, or the plaintext stream ends early.
+   */
+  public int encrypt(InputStream paddedMessage, long length, OutputStream ciphertext)
+      throws UntrustedIdentityException, IOException
+  {
+    long start = System.nanoTime();
+
+    try {
+      return encryptStream(paddedMessage, length, ciphertext);
+    } finally {
+      ProtocolMetricsProvider.getProvider().recordLatency(ProtocolMetrics.ENCRYPT, System.nanoTime() - start);
+    }
+  }
+
+  private int encryptStream(InputStream paddedMessage, long length, OutputStream ciphertext)
+      throws UntrustedIdentityException, IOException
+  {
+    Lock                      lock = getSessionLock(remoteAddress);
+    SignalMessageOutputStream output;
+    MessageKeys               messageKeys;
+    int                       type;
+
+    lock.lock();
+
+    try {
+      SessionRecord sessionRecord    = MeteredStores.loadSession(sessionStore, remoteAddress);
+      SessionState  sessionState     = sessionRecord.getSessionState();
+      ChainKey      chainKey         = sessionState.getSenderChainKey();
+      long          ciphertextLength = (length / 16 + 1) * 16;
 
       if (!identityKeyStore.isTrustedIdentity(remoteAddress, sessionState.getRemoteIdentityKey(), IdentityKeyStore.Direction.SENDING)) {
         throw new UntrustedIdentityException(remoteAddress.getName(), sessionState.getRemoteIdentityKey());
       }
 
+      messageKeys = chainKey.getMessageKeys();
+
+      if (sessionState.hasUnacknowledgedPreKeyMessage()) {
+        UnacknowledgedPreKeyMessageItems items = sessionState.getUnacknowledgedPreKeyMessageItems();
+
+        output = new SignalMessageOutputStream(ciphertext, sessionState.getSessionVersion(),
+                                               sessionState.getLocalRegistrationId(), items.getPreKeyId(),
+                                               items.getSignedPreKeyId(), items.getBaseKey(),
+                                               messageKeys.getMacKey(), sessionState.getSenderRatchetKey(),
+                                               chainKey.getIndex(), sessionState.getPreviousCounter(),
+                                               ciphertextLength, sessionState.getLocalIdentityKey(),
+                                               sessionState.getRemoteIdentityKey());
+        type   = CiphertextMessage.PREKEY_TYPE;
+      } else {
+        output = new SignalMessageOutputStream(ciphertext, sessionState.getSessionVersion(),
+                                               messageKeys.getMacKey(), sessionState.getSenderRatchetKey(),
+                                               chainKey.getIndex(), sessionState.getPreviousCounter(),
+                                               ciphertextLength, sessionState.getLocalIdentityKey(),
+                                               sessionState.getRemoteIdentityKey());
+        type   = CiphertextMessage.WHISPER_TYPE;
+      }
+
+      sessionState.setSenderChainKey(chainKey.getNextChainKey());
+
       identityKeyStore.saveIdentity(remoteAddress, sessionState.getRemoteIdentityKey());
-      sessionStore.storeSession(remoteAddress, sessionRecord);
-      return ciphertextMessage;
+      MeteredStores.storeSession(sessionStore, remoteAddress, sessionRecord);
+    } finally {
+      lock.unlock();
+    }
+
+    try {
+      Cipher cipher = CryptoPrimitives.newAesCbcCipher(Cipher.ENCRYPT_MODE, messageKeys.getCipherKey(), messageKeys.getIv());
+      byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+      byte[] block  = new byte[cipher.getOutputSize(buffer.length)];
+
+      for (long remaining = length; remaining > 0; ) {
+        int read = paddedMessage.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+
+        if (read == -1) {
+          throw new EOFException("Plaintext ended " + remaining + " bytes early");
+        }
+
+        output.write(block, 0, cipher.update(buffer, 0, read, block));
+        remaining -= read;
+      }
+
+      output.write(block, 0, cipher.doFinal(block, 0));
+      output.finish();
+
+      return type;
+    } catch (ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+      throw new AssertionError(e);
     }
   }
 
+  /**
+   * Encrypt a message read from a channel, writing the serialized ciphertext message to
+   * another.
+   *
+   * @see #encrypt(InputStream, long, OutputStream)
+   */
+  public int encrypt(ReadableByteChannel paddedMessage, long length, WritableByteChannel ciphertext)
+      throws UntrustedIdentityException, IOException
+  {
+    return encrypt(Channels.newInputStream(paddedMessage), length, Channels.newOutputStream(ciphertext));
+  }
+
+  /**
+   * Encrypt a message with a session state, advancing its sending chain.
+   */
+  static CiphertextMessage encrypt(SessionState sessionState, byte[] paddedMessage) {
+    ChainKey      chainKey        = sessionState.getSenderChainKey();
+    MessageKeys   messageKeys     = chainKey.getMessageKeys();
+    ECPublicKey   senderEphemeral = sessionState.getSenderRatchetKey();
+    int           previousCounter = sessionState.getPreviousCounter();
+    int           sessionVersion  = sessionState.getSessionVersion();
+
+    byte[]            ciphertextBody    = getCiphertext(messageKeys, paddedMessage);
+    CiphertextMessage ciphertextMessage = new SignalMessage(sessionVersion, messageKeys.getMacKey(),
+                                                            senderEphemeral, chainKey.getIndex(),
+                                                            previousCounter, ciphertextBody,
+                                                            sessionState.getLocalIdentityKey(),
+                                                            sessionState.getRemoteIdentityKey());
+
+    if (sessionState.hasUnacknowledgedPreKeyMessage()) {
+      UnacknowledgedPreKeyMessageItems items = sessionState.getUnacknowledgedPreKeyMessageItems();
+      int localRegistrationId = sessionState.getLocalRegistrationId();
+
+      ciphertextMessage = new PreKeySignalMessage(sessionVersion, localRegistrationId, items.getPreKeyId(),
+                                                  items.getSignedPreKeyId(), items.getBaseKey(),
+                                                  sessionState.getLocalIdentityKey(),
+                                                  (SignalMessage) ciphertextMessage);
+    }
+
+    sessionState.setSenderChainKey(chainKey.getNextChainKey());
+
+    return ciphertextMessage;
+  }
+
   /**
    * Decrypt a message.
    *
@@ -175,20 +335,31 @@ public class SessionCipher {
       throws DuplicateMessageException, LegacyMessageException, InvalidMessageException,
              InvalidKeyIdException, InvalidKeyException, UntrustedIdentityException
   {
-    synchronized (SESSION_LOCK) {
-      SessionRecord     sessionRecord    = sessionStore.loadSession(remoteAddress);
+    long start = System.nanoTime();
+    Lock lock  = getSessionLock(remoteAddress);
+    lock.lock();
+
+    try {
+      SessionRecord     sessionRecord    = MeteredStores.loadSession(sessionStore, remoteAddress);
       Optional<Integer> unsignedPreKeyId = sessionBuilder.process(sessionRecord, ciphertext);
-      byte[]            plaintext        = decrypt(sessionRecord, ciphertext.getWhisperMessage());
+      byte[]            plaintext        = decrypt(sessionRecord, ciphertext.getWhisperMessage(),
+                                                   identityKeyStore, remoteAddress);
 
       callback.handlePlaintext(plaintext);
 
-      sessionStore.storeSession(remoteAddress, sessionRecord);
+      MeteredStores.storeSession(sessionStore, remoteAddress, sessionRecord);
 
       if (unsignedPreKeyId.isPresent()) {
         preKeyStore.removePreKey(unsignedPreKeyId.get());
       }
 
       return plaintext;
+    } catch (DuplicateMessageException | InvalidMessageException e) {
+      recordFailure(ProtocolMetrics.DECRYPT_PRE_KEY, e);
+      throw e;
+    } finally {
+      lock.unlock();
+      ProtocolMetricsProvider.getProvider().recordLatency(ProtocolMetrics.DECRYPT_PRE_KEY, System.nanoTime() - start);
     }
   }
 
@@ -233,65 +404,224 @@ public class SessionCipher {
       throws InvalidMessageException, DuplicateMessageException, LegacyMessageException,
              NoSessionException, UntrustedIdentityException
   {
-    synchronized (SESSION_LOCK) {
+    long start = System.nanoTime();
+    Lock lock  = getSessionLock(remoteAddress);
+    lock.lock();
 
+    try {
       if (!sessionStore.containsSession(remoteAddress)) {
         throw new NoSessionException("No session for: " + remoteAddress);
       }
 
-      SessionRecord sessionRecord = sessionStore.loadSession(remoteAddress);
-      byte[]        plaintext     = decrypt(sessionRecord, ciphertext);
-
-      if (!identityKeyStore.isTrustedIdentity(remoteAddress, sessionRecord.getSessionState().getRemoteIdentityKey(), IdentityKeyStore.Direction.RECEIVING)) {
-        throw new UntrustedIdentityException(remoteAddress.getName(), sessionRecord.getSessionState().getRemoteIdentityKey());
-      }
+      SessionRecord sessionRecord = MeteredStores.loadSession(sessionStore, remoteAddress);
+      byte[]        plaintext     = decrypt(sessionRecord, ciphertext, identityKeyStore, remoteAddress);
 
       identityKeyStore.saveIdentity(remoteAddress, sessionRecord.getSessionState().getRemoteIdentityKey());
 
       callback.handlePlaintext(plaintext);
 
-      sessionStore.storeSession(remoteAddress, sessionRecord);
+      MeteredStores.storeSession(sessionStore, remoteAddress, sessionRecord);
 
       return plaintext;
+    } catch (DuplicateMessageException | InvalidMessageException e) {
+      recordFailure(ProtocolMetrics.DECRYPT, e);
+      throw e;
+    } finally {
+      lock.unlock();
+      ProtocolMetricsProvider.getProvider().recordLatency(ProtocolMetrics.DECRYPT, System.nanoTime() - start);
     }
   }
 
-  private byte[] decrypt(SessionRecord sessionRecord, SignalMessage ciphertext)
-      throws DuplicateMessageException, LegacyMessageException, InvalidMessageException
+  /**
+   * Decrypt a serialized {@link SignalMessage} read from a stream, writing the plaintext
+   * to another.  Only one block of the message is held in memory at a time.
+   *
+   * <b>Plaintext is unverified until this returns.</b>  The MAC is only checked once the
+   * whole message has been read, so all but the final block of plaintext is written before
+   * the message is authenticated.  If this throws, everything written to the plaintext
+   * stream must be discarded.  The session is only updated once the message has been
+   * authenticated.
+   *
+   * The message is decrypted with the same session states {@link #decrypt(SignalMessage)}
+   * would use.  A state that is already receiving on the message's ratchet key is the only
+   * one that can decrypt it, so the message is streamed through that state, as it is through
+   * the current state when no archived state could derive a receiving chain for it.  When
+   * more than one state could derive one, which only happens for the first message of a
+   * ratchet step, the message is read into memory and decrypted whole, and its plaintext is
+   * only written once it has been authenticated.
+   *
+   * A {@link PreKeySignalMessage} carries fields that are needed to decrypt it after
+   * its ciphertext, so it can't be streamed, and must be decrypted whole.
+   *
+   * @param  ciphertext The stream to read the serialized message from.  It must end with the message.
+   * @param  plaintext The stream to write the plaintext to.
+   * @throws InvalidMessageException if the input is not valid ciphertext.
+   * @throws DuplicateMessageException if the input is a message that has already been received.
+   * @throws LegacyMessageException if the input is a message formatted by a protocol version that
+   *                                is no longer supported.
+   * @throws NoSessionException if there is no established session for this contact.
+   * @throws IOException if either stream fails.
+   */
+  public void decrypt(InputStream ciphertext, OutputStream plaintext)
+      throws InvalidMessageException, DuplicateMessageException, LegacyMessageException,
+             NoSessionException, UntrustedIdentityException, IOException
   {
-    synchronized (SESSION_LOCK) {
-      Iterator<SessionState> previousStates = sessionRecord.getPreviousSessionStates().iterator();
-      List<Exception>        exceptions     = new LinkedList<>();
+    long start = System.nanoTime();
+    Lock lock  = getSessionLock(remoteAddress);
+    lock.lock();
 
-      try {
-        SessionState sessionState = new SessionState(sessionRecord.getSessionState());
-        byte[]       plaintext    = decrypt(sessionState, ciphertext);
+    try {
+      if (!sessionStore.containsSession(remoteAddress)) {
+        throw new NoSessionException("No session for: " + remoteAddress);
+      }
+
+      SignalMessageInputStream message       = new SignalMessageInputStream(ciphertext);
+      SessionRecord            sessionRecord = MeteredStores.loadSession(sessionStore, remoteAddress);
+      SessionState             sessionState  = new SessionState(sessionRecord.getSessionState());
+      Iterator<SessionState>   previousState = sessionRecord.getPreviousSessionStateCandidates(message.getMessageVersion(),
+                                                                                               message.getSenderRatchetKey());
+      boolean                  promoted      = false;
+
+      if (!sessionState.hasReceiverChain(message.getSenderRatchetKey()) && previousState.hasNext()) {
+        SessionState candidate = previousState.next();
+
+        if (!candidate.hasReceiverChain(message.getSenderRatchetKey())) {
+          byte[] verified = decrypt(sessionRecord, message.readMessage(), identityKeyStore, remoteAddress);
 
+          plaintext.write(verified);
+
+          identityKeyStore.saveIdentity(remoteAddress, sessionRecord.getSessionState().getRemoteIdentityKey());
+          MeteredStores.storeSession(sessionStore, remoteAddress, sessionRecord);
+          return;
+        }
+
+        sessionState = new SessionState(candidate);
+        promoted     = true;
+      }
+
+      decrypt(sessionState, message, plaintext);
+      checkTrusted(identityKeyStore, remoteAddress, sessionState);
+
+      if (promoted) {
+        previousState.remove();
+        sessionRecord.promoteState(sessionState);
+        ProtocolMetricsProvider.getProvider().recordArchivedStateFallback(1);
+      } else {
         sessionRecord.setState(sessionState);
+      }
+
+      identityKeyStore.saveIdentity(remoteAddress, sessionState.getRemoteIdentityKey());
+      MeteredStores.storeSession(sessionStore, remoteAddress, sessionRecord);
+    } catch (DuplicateMessageException | InvalidMessageException e) {
+      recordFailure(ProtocolMetrics.DECRYPT, e);
+      throw e;
+    } finally {
+      lock.unlock();
+      ProtocolMetricsProvider.getProvider().recordLatency(ProtocolMetrics.DECRYPT, System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Decrypt a serialized {@link SignalMessage} read from a channel, writing the plaintext
+   * to another.
+   *
+   * @see #decrypt(InputStream, OutputStream)
+   */
+  public void decrypt(ReadableByteChannel ciphertext, WritableByteChannel plaintext)
+      throws InvalidMessageException, DuplicateMessageException, LegacyMessageException,
+             NoSessionException, UntrustedIdentityException, IOException
+  {
+    decrypt(Channels.newInputStream(ciphertext), Channels.newOutputStream(plaintext));
+  }
+
+  /**
+   * Decrypt a message against a session record.  The session state that decrypted the
+   * message is only committed to the record if the remote identity it belongs to is trusted.
+   *
+   * If the current state can't decrypt the message, only those archived states that could
+   * are tried: states that already have a receiving chain for the message's ratchet key,
+   * then states that could derive one.  Deriving states can't be narrowed down further,
+   * since the remote party may resume any archived session with a ratchet step (after a
+   * repeated simultaneous initiate, for instance).  They are skipped when the message's
+   * counter is too far ahead for a new chain, and each one that fails costs a single key
+   * agreement, because the sending half of the ratchet step is deferred until the message
+   * has been authenticated.
+   *
+   * A null identity store skips the trust check.  The caller must then check the remote
+   * identity of the record's current state before persisting the record.
+   */
+  static byte[] decrypt(SessionRecord sessionRecord, SignalMessage ciphertext,
+                        IdentityKeyStore identityKeyStore, SignalProtocolAddress remoteAddress)
+      throws DuplicateMessageException, LegacyMessageException, InvalidMessageException,
+             UntrustedIdentityException
+  {
+    List<Exception> exceptions = new LinkedList<>();
+
+    try {
+      SessionState sessionState = new SessionState(sessionRecord.getSessionState());
+      byte[]       plaintext    = decrypt(sessionState, ciphertext);
+
+      checkTrusted(identityKeyStore, remoteAddress, sessionState);
+      sessionRecord.setState(sessionState);
+      return plaintext;
+    } catch (InvalidMessageException e) {
+      exceptions.add(e);
+    }
+
+    Iterator<SessionState> previousStates = sessionRecord.getPreviousSessionStateCandidates(ciphertext.getMessageVersion(),
+                                                                                            ciphertext.getSenderRatchetKey());
+
+    int statesTried = 0;
+
+    while (previousStates.hasNext()) {
+      SessionState previousState = previousStates.next();
+
+      if (!previousState.hasReceiverChain(ciphertext.getSenderRatchetKey()) &&
+          ciphertext.getCounter() > MAX_FUTURE_MESSAGES)
+      {
+        continue;
+      }
+
+      statesTried++;
+
+      try {
+        SessionState promotedState = new SessionState(previousState);
+        byte[]       plaintext     = decrypt(promotedState, ciphertext);
+
+        checkTrusted(identityKeyStore, remoteAddress, promotedState);
+        previousStates.remove();
+        sessionRecord.promoteState(promotedState);
+        ProtocolMetricsProvider.getProvider().recordArchivedStateFallback(statesTried);
+
         return plaintext;
       } catch (InvalidMessageException e) {
         exceptions.add(e);
       }
+    }
 
-      while (previousStates.hasNext()) {
-        try {
-          SessionState promotedState = new SessionState(previousStates.next());
-          byte[]       plaintext     = decrypt(promotedState, ciphertext);
-
-          previousStates.remove();
-          sessionRecord.promoteState(promotedState);
+    throw new InvalidMessageException("No valid sessions.", exceptions);
+  }
 
-          return plaintext;
-        } catch (InvalidMessageException e) {
-          exceptions.add(e);
-        }
-      }
+  /**
+   * Reports a failed decryption of the given kind to the installed {@link ProtocolMetrics}.
+   */
+  static void recordFailure(int operation, Exception e) {
+    if      (e instanceof DuplicateMessageException) ProtocolMetricsProvider.getProvider().recordDuplicateMessage(operation);
+    else if (e instanceof InvalidMessageException)   ProtocolMetricsProvider.getProvider().recordInvalidMessage(operation);
+  }
 
-      throw new InvalidMessageException("No valid sessions.", exceptions);
+  private static void checkTrusted(IdentityKeyStore identityKeyStore, SignalProtocolAddress remoteAddress,
+                                   SessionState sessionState)
+      throws UntrustedIdentityException
+  {
+    if (identityKeyStore != null &&
+        !identityKeyStore.isTrustedIdentity(remoteAddress, sessionState.getRemoteIdentityKey(), IdentityKeyStore.Direction.RECEIVING))
+    {
+      throw new UntrustedIdentityException(remoteAddress.getName(), sessionState.getRemoteIdentityKey());
     }
   }
 
-  private byte[] decrypt(SessionState sessionState, SignalMessage ciphertextMessage)
+  private static byte[] decrypt(SessionState sessionState, SignalMessage ciphertextMessage)
       throws InvalidMessageException, DuplicateMessageException, LegacyMessageException
   {
     if (!sessionState.hasSenderChain()) {
@@ -304,69 +634,173 @@ public class SessionCipher {
                                                       sessionState.getSessionVersion()));
     }
 
-    ECPublicKey    theirEphemeral    = ciphertextMessage.getSenderRatchetKey();
-    int            counter           = ciphertextMessage.getCounter();
-    ChainKey       chainKey          = getOrCreateChainKey(sessionState, theirEphemeral);
-    MessageKeys    messageKeys       = getOrCreateMessageKeys(sessionState, theirEphemeral,
-                                                              chainKey, counter);
+    ECPublicKey             theirEphemeral = ciphertextMessage.getSenderRatchetKey();
+    int                     counter        = ciphertextMessage.getCounter();
+    Pair<RootKey, ChainKey> receiverChain  = getOrCreateReceiverChain(sessionState, theirEphemeral);
+    MessageKeys             messageKeys    = getOrCreateMessageKeys(sessionState, theirEphemeral,
+                                                                    receiverChain.second(), counter);
 
     ciphertextMessage.verifyMac(sessionState.getRemoteIdentityKey(),
                                 sessionState.getLocalIdentityKey(),
                                 messageKeys.getMacKey());
 
-    byte[] plaintext = getPlaintext(messageKeys, ciphertextMessage.getBody());
+    completeRatchetStep(sessionState, theirEphemeral, receiverChain.first());
+
+    byte[] plaintext = getPlaintext(messageKeys, ciphertextMessage.getBodyBuffer());
 
     sessionState.clearUnacknowledgedPreKeyMessage();
 
     return plaintext;
   }
 
+  private static void decrypt(SessionState sessionState, SignalMessageInputStream message, OutputStream plaintext)
+      throws InvalidMessageException, DuplicateMessageException, IOException
+  {
+    if (!sessionState.hasSenderChain()) {
+      throw new InvalidMessageException("Uninitialized session!");
+    }
+
+    if (message.getMessageVersion() != sessionState.getSessionVersion()) {
+      throw new InvalidMessageException(String.format("Message version %d, but session version %d",
+                                                      message.getMessageVersion(),
+                                                      sessionState.getSessionVersion()));
+    }
+
+    ECPublicKey             theirEphemeral = message.getSenderRatchetKey();
+    Pair<RootKey, ChainKey> receiverChain  = getOrCreateReceiverChain(sessionState, theirEphemeral);
+    MessageKeys             messageKeys    = getOrCreateMessageKeys(sessionState, theirEphemeral,
+                                                                    receiverChain.second(), message.getCounter());
+
+    message.setMacKey(sessionState.getRemoteIdentityKey(),
+                      sessionState.getLocalIdentityKey(),
+                      messageKeys.getMacKey());
+
+    try {
+      Cipher cipher = CryptoPrimitives.newAesCbcCipher(Cipher.DECRYPT_MODE, messageKeys.getCipherKey(), messageKeys.getIv());
+      byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+      byte[] block  = new byte[cipher.getOutputSize(buffer.length)];
+      int    read;
+
+      while ((read = message.read(buffer)) != -1) {
+        plaintext.write(block, 0, cipher.update(buffer, 0, read, block));
+      }
+
+      message.verifyMac();
+      completeRatchetStep(sessionState, theirEphemeral, receiverChain.first());
+      plaintext.write(block, 0, cipher.doFinal(block, 0));
+    } catch (EOFException | IllegalBlockSizeException | BadPaddingException e) {
+      throw new InvalidMessageException(e);
+    } catch (ShortBufferException e) {
+      throw new AssertionError(e);
+    }
+
+    sessionState.clearUnacknowledgedPreKeyMessage();
+  }
+
   public int getRemoteRegistrationId() {
-    synchronized (SESSION_LOCK) {
-      SessionRecord record = sessionStore.loadSession(remoteAddress);
+    Lock lock = getSessionLock(remoteAddress);
+    lock.lock();
+
+    try {
+      SessionRecord record = MeteredStores.loadSession(sessionStore, remoteAddress);
       return record.getSessionState().getRemoteRegistrationId();
+    } finally {
+      lock.unlock();
     }
   }
 
   public int getSessionVersion() {
-    synchronized (SESSION_LOCK) {
+    Lock lock = getSessionLock(remoteAddress);
+    lock.lock();
+
+    try {
       if (!sessionStore.containsSession(remoteAddress)) {
         throw new IllegalStateException(String.format("No session for (%s)!", remoteAddress));
       }
 
-      SessionRecord record = sessionStore.loadSession(remoteAddress);
+      SessionRecord record = MeteredStores.loadSession(sessionStore, remoteAddress);
       return record.getSessionState().getSessionVersion();
+    } finally {
+      lock.unlock();
     }
   }
 
-  private ChainKey getOrCreateChainKey(SessionState sessionState, ECPublicKey theirEphemeral)
+  /**
+   * Returns the lock that serializes all session operations for a remote address.
+   * Operations on different addresses generally do not contend with each other.
+   *
+   * @param remoteAddress The remote address.
+   * @return The lock guarding sessions with that address.
+   */
+  public static Lock getSessionLock(SignalProtocolAddress remoteAddress) {
+    return SESSION_LOCKS.get(remoteAddress);
+  }
+
+  /**
+   * @return The distinct session locks for a set of addresses, in acquisition order.
+   */
+  static List<Lock> getSessionLocks(Iterable<SignalProtocolAddress> remoteAddresses) {
+    return SESSION_LOCKS.getAll(remoteAddresses);
+  }
+
+  /**
+   * Returns the receiving chain for a ratchet key.  If the state has none yet, one is derived
+   * and added, and the root key it was derived with is returned alongside it.  The ratchet
+   * step is only completed with {@link #completeRatchetStep} once a message on the new chain
+   * has been authenticated, so a state that fails to decrypt a message costs one key agreement
+   * rather than a key generation and two.
+   *
+   * @return The root key for completing the ratchet step, or null if the chain already
+   *         existed, and the receiving chain key.
+   */
+  private static Pair<RootKey, ChainKey> getOrCreateReceiverChain(SessionState sessionState, ECPublicKey theirEphemeral)
       throws InvalidMessageException
   {
     try {
       if (sessionState.hasReceiverChain(theirEphemeral)) {
-        return sessionState.getReceiverChainKey(theirEphemeral);
+        return new Pair<>(null, sessionState.getReceiverChainKey(theirEphemeral));
       } else {
-        RootKey                 rootKey         = sessionState.getRootKey();
-        ECKeyPair               ourEphemeral    = sessionState.getSenderRatchetKeyPair();
-        Pair<RootKey, ChainKey> receiverChain   = rootKey.createChain(theirEphemeral, ourEphemeral);
-        ECKeyPair               ourNewEphemeral = Curve.generateKeyPair();
-        Pair<RootKey, ChainKey> senderChain     = receiverChain.first().createChain(theirEphemeral, ourNewEphemeral);
+        RootKey                 rootKey       = sessionState.getRootKey();
+        ECKeyPair               ourEphemeral  = sessionState.getSenderRatchetKeyPair();
+        Pair<RootKey, ChainKey> receiverChain = rootKey.createChain(theirEphemeral, ourEphemeral);
 
-        sessionState.setRootKey(senderChain.first());
         sessionState.addReceiverChain(theirEphemeral, receiverChain.second());
-        sessionState.setPreviousCounter(Math.max(sessionState.getSenderChainKey().getIndex()-1, 0));
-        sessionState.setSenderChain(ourNewEphemeral, senderChain.second());
 
-        return receiverChain.second();
+        return receiverChain;
       }
     } catch (InvalidKeyException e) {
       throw new InvalidMessageException(e);
     }
   }
 
-  private MessageKeys getOrCreateMessageKeys(SessionState sessionState,
-                                             ECPublicKey theirEphemeral,
-                                             ChainKey chainKey, int counter)
+  /**
+   * Starts a new sending chain from the root key a new receiving chain was derived with.
+   *
+   * @param rootKey The root key returned by {@link #getOrCreateReceiverChain}, or null if
+   *                no receiving chain was derived.
+   */
+  private static void completeRatchetStep(SessionState sessionState, ECPublicKey theirEphemeral, RootKey rootKey)
+      throws InvalidMessageException
+  {
+    if (rootKey == null) {
+      return;
+    }
+
+    try {
+      ECKeyPair               ourNewEphemeral = Curve.generateKeyPair();
+      Pair<RootKey, ChainKey> senderChain     = rootKey.createChain(theirEphemeral, ourNewEphemeral);
+
+      sessionState.setRootKey(senderChain.first());
+      sessionState.setPreviousCounter(Math.max(sessionState.getSenderChainKey().getIndex()-1, 0));
+      sessionState.setSenderChain(ourNewEphemeral, senderChain.second());
+    } catch (InvalidKeyException e) {
+      throw new InvalidMessageException(e);
+    }
+  }
+
+  private static MessageKeys getOrCreateMessageKeys(SessionState sessionState,
+                                                    ECPublicKey theirEphemeral,
+                                                    ChainKey chainKey, int counter)
       throws InvalidMessageException, DuplicateMessageException
   {
     if (chainKey.getIndex() > counter) {
@@ -378,21 +812,27 @@ public class SessionCipher {
       }
     }
 
-    if (counter - chainKey.getIndex() > 2000) {
+    if (counter - chainKey.getIndex() > MAX_FUTURE_MESSAGES) {
       throw new InvalidMessageException("Over 2000 messages into the future!");
     }
 
+    if (counter > chainKey.getIndex()) {
+      ProtocolMetricsProvider.getProvider().recordSkippedMessageKeys(ProtocolMetrics.DECRYPT, counter - chainKey.getIndex());
+    }
+
+    byte[] seed = new byte[ChainKey.SEED_LENGTH];
+
     while (chainKey.getIndex() < counter) {
-      MessageKeys messageKeys = chainKey.getMessageKeys();
-      sessionState.setMessageKeys(theirEphemeral, messageKeys);
-      chainKey = chainKey.getNextChainKey();
+      ChainKey next = chainKey.getNextChainKey(seed);
+      sessionState.setMessageKeys(theirEphemeral, chainKey.getMessageKeys(seed));
+      chainKey = next;
     }
 
-    sessionState.setReceiverChainKey(theirEphemeral, chainKey.getNextChainKey());
-    return chainKey.getMessageKeys();
+    sessionState.setReceiverChainKey(theirEphemeral, chainKey.getNextChainKey(seed));
+    return chainKey.getMessageKeys(seed);
   }
 
-  private byte[] getCiphertext(MessageKeys messageKeys, byte[] plaintext) {
+  private static byte[] getCiphertext(MessageKeys messageKeys, byte[] plaintext) {
     try {
       Cipher cipher = getCipher(Cipher.ENCRYPT_MODE, messageKeys.getCipherKey(), messageKeys.getIv());
       return cipher.doFinal(plaintext);
@@ -401,30 +841,22 @@ public class SessionCipher {
     }
   }
 
-  private byte[] getPlaintext(MessageKeys messageKeys, byte[] cipherText)
+  private static byte[] getPlaintext(MessageKeys messageKeys, ByteBuffer cipherText)
       throws InvalidMessageException
   {
     try {
       Cipher cipher = getCipher(Cipher.DECRYPT_MODE, messageKeys.getCipherKey(), messageKeys.getIv());
-      return cipher.doFinal(cipherText);
+      return cipher.doFinal(cipherText.array(), cipherText.arrayOffset() + cipherText.position(), cipherText.remaining());
     } catch (IllegalBlockSizeException | BadPaddingException e) {
       throw new InvalidMessageException(e);
     }
   }
 
-  private Cipher getCipher(int mode, SecretKeySpec key, IvParameterSpec iv) {
-    try {
-      Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      cipher.init(mode, key, iv);
-      return cipher;
-    } catch (NoSuchAlgorithmException | NoSuchPaddingException | java.security.InvalidKeyException |
-             InvalidAlgorithmParameterException e)
-    {
-      throw new AssertionError(e);
-    }
+  private static Cipher getCipher(int mode, SecretKeySpec key, IvParameterSpec iv) {
+    return CryptoPrimitives.getAesCbcCipher(mode, key, iv);
   }
 
-  private static class NullDecryptionCallback implements DecryptionCallback {
+  static class NullDecryptionCallback implements DecryptionCallback {
     @Override
     public void handlePlaintext(byte[] plaintext) {}
   }
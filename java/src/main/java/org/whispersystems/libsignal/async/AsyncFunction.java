@@ -0,0 +1,16 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.async;
+
+/**
+ * The next step of an asynchronous operation, given the result of the previous one.
+ *
+ * @see Futures#transform(ListenableFuture, AsyncFunction)
+ */
+public interface AsyncFunction<I, O> {
+
+  public ListenableFuture<O> apply(I input) throws Exception;
+}
@@ -0,0 +1,28 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.async;
+
+import org.whispersystems.libsignal.IdentityKey;
+import org.whispersystems.libsignal.IdentityKeyPair;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.state.IdentityKeyStore;
+
+/**
+ * The asynchronous counterpart of {@link IdentityKeyStore}.
+ */
+public interface AsyncIdentityKeyStore {
+
+  public ListenableFuture<IdentityKeyPair> getIdentityKeyPair();
+
+  public ListenableFuture<Integer> getLocalRegistrationId();
+
+  public ListenableFuture<Boolean> saveIdentity(SignalProtocolAddress address, IdentityKey identityKey);
+
+  public ListenableFuture<Boolean> isTrustedIdentity(SignalProtocolAddress address, IdentityKey identityKey,
+                                                     IdentityKeyStore.Direction direction);
+
+  public ListenableFuture<IdentityKey> getIdentity(SignalProtocolAddress address);
+}
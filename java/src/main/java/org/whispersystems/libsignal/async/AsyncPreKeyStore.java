@@ -0,0 +1,24 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.async;
+
+import org.whispersystems.libsignal.state.PreKeyRecord;
+
+/**
+ * The asynchronous counterpart of {@link org.whispersystems.libsignal.state.PreKeyStore}.
+ * {@link #loadPreKey(int)} fails with an {@link org.whispersystems.libsignal.InvalidKeyIdException}
+ * when there is no such prekey.
+ */
+public interface AsyncPreKeyStore {
+
+  public ListenableFuture<PreKeyRecord> loadPreKey(int preKeyId);
+
+  public ListenableFuture<Void> storePreKey(int preKeyId, PreKeyRecord record);
+
+  public ListenableFuture<Boolean> containsPreKey(int preKeyId);
+
+  public ListenableFuture<Void> removePreKey(int preKeyId);
+}
@@ -0,0 +1,19 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.async;
+
+import org.whispersystems.libsignal.groups.SenderKeyName;
+import org.whispersystems.libsignal.groups.state.SenderKeyRecord;
+
+/**
+ * The asynchronous counterpart of {@link org.whispersystems.libsignal.groups.state.SenderKeyStore}.
+ */
+public interface AsyncSenderKeyStore {
+
+  public ListenableFuture<Void> storeSenderKey(SenderKeyName senderKeyName, SenderKeyRecord record);
+
+  public ListenableFuture<SenderKeyRecord> loadSenderKey(SenderKeyName senderKeyName);
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.async;
+
+import org.whispersystems.libsignal.groups.SenderKeyName;
+import org.whispersystems.libsignal.groups.state.SenderKeyRecord;
+import org.whispersystems.libsignal.groups.state.SenderKeyStore;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+/**
+ * Exposes a blocking {@link SenderKeyStore} through the asynchronous store interface, by
+ * running each call on an executor.
+ */
+public class AsyncSenderKeyStoreAdapter implements AsyncSenderKeyStore {
+
+  private final SenderKeyStore senderKeyStore;
+  private final Executor       executor;
+
+  public AsyncSenderKeyStoreAdapter(SenderKeyStore senderKeyStore, Executor executor) {
+    this.senderKeyStore = senderKeyStore;
+    this.executor       = executor;
+  }
+
+  @Override
+  public ListenableFuture<Void> storeSenderKey(final SenderKeyName senderKeyName, final SenderKeyRecord record) {
+    return Futures.submit(executor, new Callable<Void>() {
+      @Override
+      public Void call() {
+        senderKeyStore.storeSenderKey(senderKeyName, record);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<SenderKeyRecord> loadSenderKey(final SenderKeyName senderKeyName) {
+    return Futures.submit(executor, new Callable<SenderKeyRecord>() {
+      @Override
+      public SenderKeyRecord call() {
+        return senderKeyStore.loadSenderKey(senderKeyName);
+      }
+    });
+  }
+}
@@ -0,0 +1,31 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.async;
+
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.state.SessionRecord;
+
+import java.util.List;
+
+/**
+ * The asynchronous counterpart of {@link org.whispersystems.libsignal.state.SessionStore}.
+ * Each method has the same contract as its blocking equivalent, with the result delivered
+ * through the returned future.
+ */
+public interface AsyncSessionStore {
+
+  public ListenableFuture<SessionRecord> loadSession(SignalProtocolAddress address);
+
+  public ListenableFuture<List<Integer>> getSubDeviceSessions(String name);
+
+  public ListenableFuture<Void> storeSession(SignalProtocolAddress address, SessionRecord record);
+
+  public ListenableFuture<Boolean> containsSession(SignalProtocolAddress address);
+
+  public ListenableFuture<Void> deleteSession(SignalProtocolAddress address);
+
+  public ListenableFuture<Void> deleteAllSessions(String name);
+}
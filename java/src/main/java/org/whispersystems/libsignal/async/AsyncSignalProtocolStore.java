@@ -0,0 +1,11 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.async;
+
+public interface AsyncSignalProtocolStore
+    extends AsyncIdentityKeyStore, AsyncPreKeyStore, AsyncSessionStore, AsyncSignedPreKeyStore
+{
+}
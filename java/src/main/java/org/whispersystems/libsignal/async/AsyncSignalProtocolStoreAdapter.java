@@ -0,0 +1,260 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.async;
+
+import org.whispersystems.libsignal.IdentityKey;
+import org.whispersystems.libsignal.IdentityKeyPair;
+import org.whispersystems.libsignal.InvalidKeyIdException;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.state.IdentityKeyStore;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.PreKeyStore;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SessionStore;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+import org.whispersystems.libsignal.state.SignedPreKeyStore;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+/**
+ * Exposes blocking stores through the asynchronous store interface, by running each call
+ * on an executor.  The executor determines how many store calls may be in flight at once.
+ */
+public class AsyncSignalProtocolStoreAdapter implements AsyncSignalProtocolStore {
+
+  private final IdentityKeyStore  identityKeyStore;
+  private final PreKeyStore       preKeyStore;
+  private final SessionStore      sessionStore;
+  private final SignedPreKeyStore signedPreKeyStore;
+  private final Executor          executor;
+
+  public AsyncSignalProtocolStoreAdapter(IdentityKeyStore identityKeyStore, PreKeyStore preKeyStore,
+                                         SessionStore sessionStore, SignedPreKeyStore signedPreKeyStore,
+                                         Executor executor)
+  {
+    this.identityKeyStore  = identityKeyStore;
+    this.preKeyStore       = preKeyStore;
+    this.sessionStore      = sessionStore;
+    this.signedPreKeyStore = signedPreKeyStore;
+    this.executor          = executor;
+  }
+
+  public AsyncSignalProtocolStoreAdapter(SignalProtocolStore store, Executor executor) {
+    this(store, store, store, store, executor);
+  }
+
+  @Override
+  public ListenableFuture<IdentityKeyPair> getIdentityKeyPair() {
+    return Futures.submit(executor, new Callable<IdentityKeyPair>() {
+      @Override
+      public IdentityKeyPair call() {
+        return identityKeyStore.getIdentityKeyPair();
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<Integer> getLocalRegistrationId() {
+    return Futures.submit(executor, new Callable<Integer>() {
+      @Override
+      public Integer call() {
+        return identityKeyStore.getLocalRegistrationId();
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<Boolean> saveIdentity(final SignalProtocolAddress address, final IdentityKey identityKey) {
+    return Futures.submit(executor, new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return identityKeyStore.saveIdentity(address, identityKey);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<Boolean> isTrustedIdentity(final SignalProtocolAddress address, final IdentityKey identityKey,
+                                                     final IdentityKeyStore.Direction direction)
+  {
+    return Futures.submit(executor, new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return identityKeyStore.isTrustedIdentity(address, identityKey, direction);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<IdentityKey> getIdentity(final SignalProtocolAddress address) {
+    return Futures.submit(executor, new Callable<IdentityKey>() {
+      @Override
+      public IdentityKey call() {
+        return identityKeyStore.getIdentity(address);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<PreKeyRecord> loadPreKey(final int preKeyId) {
+    return Futures.submit(executor, new Callable<PreKeyRecord>() {
+      @Override
+      public PreKeyRecord call() throws InvalidKeyIdException {
+        return preKeyStore.loadPreKey(preKeyId);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<Void> storePreKey(final int preKeyId, final PreKeyRecord record) {
+    return Futures.submit(executor, new Callable<Void>() {
+      @Override
+      public Void call() {
+        preKeyStore.storePreKey(preKeyId, record);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<Boolean> containsPreKey(final int preKeyId) {
+    return Futures.submit(executor, new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return preKeyStore.containsPreKey(preKeyId);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<Void> removePreKey(final int preKeyId) {
+    return Futures.submit(executor, new Callable<Void>() {
+      @Override
+      public Void call() {
+        preKeyStore.removePreKey(preKeyId);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<SessionRecord> loadSession(final SignalProtocolAddress address) {
+    return Futures.submit(executor, new Callable<SessionRecord>() {
+      @Override
+      public SessionRecord call() {
+        return sessionStore.loadSession(address);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<List<Integer>> getSubDeviceSessions(final String name) {
+    return Futures.submit(executor, new Callable<List<Integer>>() {
+      @Override
+      public List<Integer> call() {
+        return sessionStore.getSubDeviceSessions(name);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<Void> storeSession(final SignalProtocolAddress address, final SessionRecord record) {
+    return Futures.submit(executor, new Callable<Void>() {
+      @Override
+      public Void call() {
+        sessionStore.storeSession(address, record);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<Boolean> containsSession(final SignalProtocolAddress address) {
+    return Futures.submit(executor, new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return sessionStore.containsSession(address);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<Void> deleteSession(final SignalProtocolAddress address) {
+    return Futures.submit(executor, new Callable<Void>() {
+      @Override
+      public Void call() {
+        sessionStore.deleteSession(address);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<Void> deleteAllSessions(final String name) {
+    return Futures.submit(executor, new Callable<Void>() {
+      @Override
+      public Void call() {
+        sessionStore.deleteAllSessions(name);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<SignedPreKeyRecord> loadSignedPreKey(final int signedPreKeyId) {
+    return Futures.submit(executor, new Callable<SignedPreKeyRecord>() {
+      @Override
+      public SignedPreKeyRecord call() throws InvalidKeyIdException {
+        return signedPreKeyStore.loadSignedPreKey(signedPreKeyId);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<List<SignedPreKeyRecord>> loadSignedPreKeys() {
+    return Futures.submit(executor, new Callable<List<SignedPreKeyRecord>>() {
+      @Override
+      public List<SignedPreKeyRecord> call() {
+        return signedPreKeyStore.loadSignedPreKeys();
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<Void> storeSignedPreKey(final int signedPreKeyId, final SignedPreKeyRecord record) {
+    return Futures.submit(executor, new Callable<Void>() {
+      @Override
+      public Void call() {
+        signedPreKeyStore.storeSignedPreKey(signedPreKeyId, record);
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<Boolean> containsSignedPreKey(final int signedPreKeyId) {
+    return Futures.submit(executor, new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return signedPreKeyStore.containsSignedPreKey(signedPreKeyId);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<Void> removeSignedPreKey(final int signedPreKeyId) {
+    return Futures.submit(executor, new Callable<Void>() {
+      @Override
+      public Void call() {
+        signedPreKeyStore.removeSignedPreKey(signedPreKeyId);
+        return null;
+      }
+    });
+  }
+}
@@ -0,0 +1,28 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.async;
+
+import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+
+import java.util.List;
+
+/**
+ * The asynchronous counterpart of {@link org.whispersystems.libsignal.state.SignedPreKeyStore}.
+ * {@link #loadSignedPreKey(int)} fails with an {@link org.whispersystems.libsignal.InvalidKeyIdException}
+ * when there is no such signed prekey.
+ */
+public interface AsyncSignedPreKeyStore {
+
+  public ListenableFuture<SignedPreKeyRecord> loadSignedPreKey(int signedPreKeyId);
+
+  public ListenableFuture<List<SignedPreKeyRecord>> loadSignedPreKeys();
+
+  public ListenableFuture<Void> storeSignedPreKey(int signedPreKeyId, SignedPreKeyRecord record);
+
+  public ListenableFuture<Boolean> containsSignedPreKey(int signedPreKeyId);
+
+  public ListenableFuture<Void> removeSignedPreKey(int signedPreKeyId);
+}
@@ -0,0 +1,16 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.async;
+
+public interface FutureListener<T> {
+
+  public void onSuccess(T result);
+
+  /**
+   * @param throwable The exception the operation failed with, unwrapped.
+   */
+  public void onFailure(Throwable throwable);
+}
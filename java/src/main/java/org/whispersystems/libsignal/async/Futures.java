@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.async;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+public final class Futures {
+
+  private Futures() {}
+
+  public static <T> ListenableFuture<T> immediate(T result) {
+    SettableFuture<T> future = new SettableFuture<>();
+    future.set(result);
+    return future;
+  }
+
+  public static <T> ListenableFuture<T> immediateFailed(Throwable exception) {
+    SettableFuture<T> future = new SettableFuture<>();
+    future.setException(exception);
+    return future;
+  }
+
+  /**
+   * Runs a blocking task on an executor.
+   */
+  public static <T> ListenableFuture<T> submit(Executor executor, final Callable<T> task) {
+    final SettableFuture<T> future = new SettableFuture<>();
+
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          future.set(task.call());
+        } catch (Throwable t) {
+          future.setException(t);
+        }
+      }
+    });
+
+    return future;
+  }
+
+  /**
+   * Chains an asynchronous step onto a future.  If the input fails, or the function throws,
+   * the returned future fails with the same exception and the function is not called.
+   */
+  public static <I, O> ListenableFuture<O> transform(ListenableFuture<I> input,
+                                                     final AsyncFunction<? super I, ? extends O> function)
+  {
+    final SettableFuture<O> output = new SettableFuture<>();
+
+    input.addListener(new FutureListener<I>() {
+      @Override
+      public void onSuccess(I result) {
+        try {
+          forward(function.apply(result), output);
+        } catch (Exception e) {
+          output.setException(e);
+        }
+      }
+
+      @Override
+      public void onFailure(Throwable throwable) {
+        output.setException(throwable);
+      }
+    });
+
+    return output;
+  }
+
+  /**
+   * @return A future that completes with the given result once the input succeeds.
+   */
+  public static <T> ListenableFuture<T> transform(ListenableFuture<?> input, final T result) {
+    return transform(input, new AsyncFunction<Object, T>() {
+      @Override
+      public ListenableFuture<T> apply(Object ignored) {
+        return immediate(result);
+      }
+    });
+  }
+
+  static <T> void forward(ListenableFuture<? extends T> from, final SettableFuture<T> to) {
+    from.addListener(new FutureListener<T>() {
+      @Override
+      public void onSuccess(T result) {
+        to.set(result);
+      }
+
+      @Override
+      public void onFailure(Throwable throwable) {
+        to.setException(throwable);
+      }
+    });
+  }
+}
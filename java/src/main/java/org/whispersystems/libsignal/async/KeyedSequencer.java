@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.async;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+
+/**
+ * Runs asynchronous operations one at a time per key, in submission order, without
+ * blocking a thread while an operation is outstanding.
+ *
+ * An operation starts when the future of the previous operation for the same key completes,
+ * whether it succeeded or failed.  Operations on different keys are independent.  The
+ * internal monitor only guards the table of pending operations, and is never held while an
+ * operation runs.
+ *
+ * Operations are started from a per-thread work loop rather than from inside the completion
+ * of the operation before them, so a long queue of operations that complete synchronously
+ * runs in constant stack depth.
+ */
+public class KeyedSequencer<K> {
+
+  private static final ThreadLocal<Queue<Runnable>> READY = new ThreadLocal<>();
+
+  private final Map<K, Queue<Runnable>> waiting = new HashMap<>();
+
+  public <T> ListenableFuture<T> submit(final K key, final Callable<ListenableFuture<T>> operation) {
+    final SettableFuture<T> result = new SettableFuture<>();
+    final boolean           idle;
+
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        start(operation, result);
+      }
+    };
+
+    result.addListener(new FutureListener<T>() {
+      @Override
+      public void onSuccess(T ignored) {
+        startNext(key);
+      }
+
+      @Override
+      public void onFailure(Throwable throwable) {
+        startNext(key);
+      }
+    });
+
+    synchronized (waiting) {
+      Queue<Runnable> queue = waiting.get(key);
+
+      if (queue == null) {
+        waiting.put(key, new LinkedList<Runnable>());
+        idle = true;
+      } else {
+        queue.add(task);
+        idle = false;
+      }
+    }
+
+    if (idle) {
+      run(task);
+    }
+
+    return result;
+  }
+
+  /**
+   * @return The number of keys with an operation outstanding.
+   */
+  public int getPendingKeyCount() {
+    synchronized (waiting) {
+      return waiting.size();
+    }
+  }
+
+  private void startNext(K key) {
+    Runnable next;
+
+    synchronized (waiting) {
+      Queue<Runnable> queue = waiting.get(key);
+
+      next = queue.poll();
+      if (next == null) waiting.remove(key);
+    }
+
+    if (next != null) {
+      run(next);
+    }
+  }
+
+  /**
+   * Runs a task, or if this thread is already running one further up the stack, queues it
+   * to run once that one returns.
+   */
+  private static void run(Runnable task) {
+    Queue<Runnable> ready = READY.get();
+
+    if (ready != null) {
+      ready.add(task);
+      return;
+    }
+
+    ready = new LinkedList<>();
+    READY.set(ready);
+
+    try {
+      while (task != null) {
+        task.run();
+        task = ready.poll();
+      }
+    } finally {
+      READY.remove();
+    }
+  }
+
+  private static <T> void start(Callable<ListenableFuture<T>> operation, SettableFuture<T> result) {
+    try {
+      Futures.forward(operation.call(), result);
+    } catch (Throwable t) {
+      result.setException(t);
+    }
+  }
+}
@@ -0,0 +1,22 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.async;
+
+import java.util.concurrent.Future;
+
+/**
+ * A {@link Future} that notifies listeners when it completes.
+ *
+ * @param <T> The result type.
+ */
+public interface ListenableFuture<T> extends Future<T> {
+
+  /**
+   * Registers a listener, which is called exactly once: immediately on the calling thread
+   * if the future has already completed, or otherwise on the thread that completes it.
+   */
+  public void addListener(FutureListener<? super T> listener);
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.async;
+
+import org.whispersystems.libsignal.logging.Log;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A {@link ListenableFuture} that is completed explicitly, by whoever produces its result.
+ * It can't be cancelled.
+ *
+ * Listeners run on the thread that completes the future, or on the thread adding them if it
+ * is already complete.  A listener that throws is logged, and doesn't affect the other
+ * listeners or the caller completing the future.
+ */
+public class SettableFuture<T> implements ListenableFuture<T> {
+
+  private static final String TAG = SettableFuture.class.getSimpleName();
+
+  private final List<FutureListener<? super T>> listeners = new LinkedList<>();
+
+  private boolean   completed;
+  private T         result;
+  private Throwable exception;
+
+  /**
+   * @return true if this call completed the future, false if it was already complete.
+   */
+  public boolean set(T result) {
+    return complete(result, null);
+  }
+
+  /**
+   * @return true if this call completed the future, false if it was already complete.
+   */
+  public boolean setException(Throwable exception) {
+    if (exception == null) {
+      throw new NullPointerException();
+    }
+
+    return complete(null, exception);
+  }
+
+  @Override
+  public void addListener(FutureListener<? super T> listener) {
+    synchronized (this) {
+      if (!completed) {
+        listeners.add(listener);
+        return;
+      }
+    }
+
+    notifyListener(listener);
+  }
+
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    return false;
+  }
+
+  @Override
+  public boolean isCancelled() {
+    return false;
+  }
+
+  @Override
+  public synchronized boolean isDone() {
+    return completed;
+  }
+
+  @Override
+  public synchronized T get() throws InterruptedException, ExecutionException {
+    while (!completed) {
+      wait();
+    }
+
+    return getResult();
+  }
+
+  @Override
+  public synchronized T get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException
+  {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+    while (!completed) {
+      long remaining = deadline - System.nanoTime();
+
+      if (remaining <= 0) {
+        throw new TimeoutException();
+      }
+
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+
+    return getResult();
+  }
+
+  private boolean complete(T result, Throwable exception) {
+    List<FutureListener<? super T>> pending;
+
+    synchronized (this) {
+      if (completed) {
+        return false;
+      }
+
+      this.completed = true;
+      this.result    = result;
+      this.exception = exception;
+
+      pending = new LinkedList<>(listeners);
+      listeners.clear();
+      notifyAll();
+    }
+
+    for (FutureListener<? super T> listener : pending) {
+      notifyListener(listener);
+    }
+
+    return true;
+  }
+
+  private T getResult() throws ExecutionException {
+    if (exception != null) {
+      throw new ExecutionException(exception);
+    }
+
+    return result;
+  }
+
+  private void notifyListener(FutureListener<? super T> listener) {
+    T         result;
+    Throwable exception;
+
+    synchronized (this) {
+      result    = this.result;
+      exception = this.exception;
+    }
+
+    try {
+      if (exception != null) listener.onFailure(exception);
+      else                   listener.onSuccess(result);
+    } catch (Throwable t) {
+      Log.w(TAG, "Future listener failed", t);
+    }
+  }
+}
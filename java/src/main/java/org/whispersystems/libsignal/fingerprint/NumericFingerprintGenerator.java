@@ -7,11 +7,11 @@ package org.whispersystems.libsignal.fingerprint;
 
 import org.whispersystems.libsignal.IdentityKey;
 import org.whispersystems.libsignal.util.ByteUtil;
+import org.whispersystems.libsignal.util.CryptoPrimitives;
 import org.whispersystems.libsignal.util.IdentityKeyComparator;
 
 import java.io.ByteArrayOutputStream;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
@@ -102,21 +102,17 @@ public class NumericFingerprintGenerator implements FingerprintGenerator {
   }
 
   private byte[] getFingerprint(int iterations, byte[] stableIdentifier, List<IdentityKey> unsortedIdentityKeys) {
-    try {
-      MessageDigest digest    = MessageDigest.getInstance("SHA-512");
-      byte[]        publicKey = getLogicalKeyBytes(unsortedIdentityKeys);
-      byte[]        hash      = ByteUtil.combine(ByteUtil.shortToByteArray(FINGERPRINT_VERSION),
-                                                 publicKey, stableIdentifier);
-
-      for (int i=0;i<iterations;i++) {
-        digest.update(hash);
-        hash = digest.digest(publicKey);
-      }
-
-      return hash;
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
+    MessageDigest digest    = CryptoPrimitives.getSha512();
+    byte[]        publicKey = getLogicalKeyBytes(unsortedIdentityKeys);
+    byte[]        hash      = ByteUtil.combine(ByteUtil.shortToByteArray(FINGERPRINT_VERSION),
+                                               publicKey, stableIdentifier);
+
+    for (int i=0;i<iterations;i++) {
+      digest.update(hash);
+      hash = digest.digest(publicKey);
     }
+
+    return hash;
   }
 
   private byte[] getLogicalKeyBytes(List<IdentityKey> identityKeys) {
@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.groups;
+
+import org.whispersystems.libsignal.DecryptionCallback;
+import org.whispersystems.libsignal.InvalidKeyIdException;
+import org.whispersystems.libsignal.NoSessionException;
+import org.whispersystems.libsignal.async.AsyncFunction;
+import org.whispersystems.libsignal.async.AsyncSenderKeyStore;
+import org.whispersystems.libsignal.async.FutureListener;
+import org.whispersystems.libsignal.async.Futures;
+import org.whispersystems.libsignal.async.KeyedSequencer;
+import org.whispersystems.libsignal.async.ListenableFuture;
+import org.whispersystems.libsignal.groups.state.SenderKeyRecord;
+import org.whispersystems.libsignal.metrics.ProtocolMetrics;
+import org.whispersystems.libsignal.metrics.ProtocolMetricsProvider;
+
+import java.util.concurrent.Callable;
+
+/**
+ * The asynchronous counterpart of {@link GroupCipher}.
+ *
+ * Operations on a sender key run one at a time, in the order they were submitted, across
+ * all instances of this class, without blocking a thread or holding a monitor while a store
+ * call is outstanding.  They are not serialized against the blocking {@link GroupCipher},
+ * so a sender key must not be used through both at once.
+ */
+public class AsyncGroupCipher {
+
+  private static final KeyedSequencer<SenderKeyName> SEQUENCER = new KeyedSequencer<>();
+
+  private final AsyncSenderKeyStore senderKeyStore;
+  private final SenderKeyName       senderKeyId;
+
+  public AsyncGroupCipher(AsyncSenderKeyStore senderKeyStore, SenderKeyName senderKeyId) {
+    this.senderKeyStore = senderKeyStore;
+    this.senderKeyId    = senderKeyId;
+  }
+
+  /**
+   * Encrypt a message.
+   *
+   * @see GroupCipher#encrypt(byte[])
+   */
+  public ListenableFuture<byte[]> encrypt(final byte[] paddedPlaintext) {
+    return instrument(ProtocolMetrics.GROUP_ENCRYPT, System.nanoTime(), SEQUENCER.submit(senderKeyId, new Callable<ListenableFuture<byte[]>>() {
+      @Override
+      public ListenableFuture<byte[]> call() {
+        return Futures.transform(senderKeyStore.loadSenderKey(senderKeyId), new AsyncFunction<SenderKeyRecord, byte[]>() {
+          @Override
+          public ListenableFuture<byte[]> apply(SenderKeyRecord record) throws NoSessionException {
+            try {
+              byte[] ciphertext = GroupCipher.encrypt(record, paddedPlaintext);
+              return Futures.transform(senderKeyStore.storeSenderKey(senderKeyId, record), ciphertext);
+            } catch (InvalidKeyIdException e) {
+              throw new NoSessionException(e);
+            }
+          }
+        });
+      }
+    }));
+  }
+
+  /**
+   * Decrypt a SenderKey group message.
+   *
+   * @see GroupCipher#decrypt(byte[])
+   */
+  public ListenableFuture<byte[]> decrypt(byte[] senderKeyMessageBytes) {
+    return decrypt(senderKeyMessageBytes, new GroupCipher.NullDecryptionCallback());
+  }
+
+  /**
+   * Decrypt a SenderKey group message.
+   *
+   * @see GroupCipher#decrypt(byte[], DecryptionCallback)
+   */
+  public ListenableFuture<byte[]> decrypt(final byte[] senderKeyMessageBytes, final DecryptionCallback callback) {
+    return instrument(ProtocolMetrics.GROUP_DECRYPT, System.nanoTime(), SEQUENCER.submit(senderKeyId, new Callable<ListenableFuture<byte[]>>() {
+      @Override
+      public ListenableFuture<byte[]> call() {
+        return Futures.transform(senderKeyStore.loadSenderKey(senderKeyId), new AsyncFunction<SenderKeyRecord, byte[]>() {
+          @Override
+          public ListenableFuture<byte[]> apply(SenderKeyRecord record) throws Exception {
+            if (record.isEmpty()) {
+              throw new NoSessionException("No sender key for: " + senderKeyId);
+            }
+
+            byte[] plaintext = GroupCipher.decrypt(record, senderKeyMessageBytes);
+
+            callback.handlePlaintext(plaintext);
+
+            return Futures.transform(senderKeyStore.storeSenderKey(senderKeyId, record), plaintext);
+          }
+        });
+      }
+    }));
+  }
+
+  private static <T> ListenableFuture<T> instrument(final int operation, final long start, ListenableFuture<T> future) {
+    future.addListener(new FutureListener<T>() {
+      @Override
+      public void onSuccess(T result) {
+        ProtocolMetricsProvider.getProvider().recordLatency(operation, System.nanoTime() - start);
+      }
+
+      @Override
+      public void onFailure(Throwable throwable) {
+        ProtocolMetricsProvider.getProvider().recordLatency(operation, System.nanoTime() - start);
+      }
+    });
+
+    return future;
+  }
+}
@@ -11,20 +11,27 @@ import org.whispersystems.libsignal.InvalidKeyIdException;
 import org.whispersystems.libsignal.InvalidMessageException;
 import org.whispersystems.libsignal.LegacyMessageException;
 import org.whispersystems.libsignal.NoSessionException;
+import org.whispersystems.libsignal.ecc.ECPrivateKey;
 import org.whispersystems.libsignal.groups.ratchet.SenderChainKey;
 import org.whispersystems.libsignal.groups.ratchet.SenderMessageKey;
 import org.whispersystems.libsignal.groups.state.SenderKeyRecord;
 import org.whispersystems.libsignal.groups.state.SenderKeyState;
 import org.whispersystems.libsignal.groups.state.SenderKeyStore;
+import org.whispersystems.libsignal.metrics.MeteredStores;
+import org.whispersystems.libsignal.metrics.ProtocolMetrics;
+import org.whispersystems.libsignal.metrics.ProtocolMetricsProvider;
 import org.whispersystems.libsignal.protocol.SenderKeyMessage;
+import org.whispersystems.libsignal.util.CryptoPrimitives;
+import org.whispersystems.libsignal.util.StripedLock;
 
-import java.security.InvalidAlgorithmParameterException;
-import java.security.NoSuchAlgorithmException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Lock;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -40,7 +47,7 @@ import javax.crypto.spec.SecretKeySpec;
  */
 public class GroupCipher {
 
-  static final Object LOCK = new Object();
+  private static final StripedLock<SenderKeyName> SENDER_KEY_LOCKS = new StripedLock<>(StripedLock.defaultStripeCount());
 
   private final SenderKeyStore senderKeyStore;
   private final SenderKeyName senderKeyId;
@@ -58,26 +65,23 @@ public class GroupCipher {
    * @throws NoSessionException
    */
   public byte[] encrypt(byte[] paddedPlaintext) throws NoSessionException {
-    synchronized (LOCK) {
-      try {
-        SenderKeyRecord  record         = senderKeyStore.loadSenderKey(senderKeyId);
-        SenderKeyState   senderKeyState = record.getSenderKeyState();
-        SenderMessageKey senderKey      = senderKeyState.getSenderChainKey().getSenderMessageKey();
-        byte[]           ciphertext     = getCipherText(senderKey.getIv(), senderKey.getCipherKey(), paddedPlaintext);
+    long start = System.nanoTime();
 
-        SenderKeyMessage senderKeyMessage = new SenderKeyMessage(senderKeyState.getKeyId(),
-                                                                 senderKey.getIteration(),
-                                                                 ciphertext,
-                                                                 senderKeyState.getSigningKeyPrivate());
+    Lock lock = getSenderKeyLock(senderKeyId);
+    lock.lock();
 
-        senderKeyState.setSenderChainKey(senderKeyState.getSenderChainKey().getNext());
+    try {
+      SenderKeyRecord record     = MeteredStores.loadSenderKey(senderKeyStore, senderKeyId);
+      byte[]          ciphertext = encrypt(record, paddedPlaintext);
 
-        senderKeyStore.storeSenderKey(senderKeyId, record);
+      MeteredStores.storeSenderKey(senderKeyStore, senderKeyId, record);
 
-        return senderKeyMessage.serialize();
-      } catch (InvalidKeyIdException e) {
-        throw new NoSessionException(e);
-      }
+      return ciphertext;
+    } catch (InvalidKeyIdException e) {
+      throw new NoSessionException(e);
+    } finally {
+      lock.unlock();
+      ProtocolMetricsProvider.getProvider().recordLatency(ProtocolMetrics.GROUP_ENCRYPT, System.nanoTime() - start);
     }
   }
 
@@ -115,35 +119,263 @@ public class GroupCipher {
       throws LegacyMessageException, InvalidMessageException, DuplicateMessageException,
              NoSessionException
   {
-    synchronized (LOCK) {
-      try {
-        SenderKeyRecord record = senderKeyStore.loadSenderKey(senderKeyId);
+    long start = System.nanoTime();
+
+    Lock lock = getSenderKeyLock(senderKeyId);
+    lock.lock();
+
+    try {
+      SenderKeyRecord record = MeteredStores.loadSenderKey(senderKeyStore, senderKeyId);
+
+      if (record.isEmpty()) {
+        throw new NoSessionException("No sender key for: " + senderKeyId);
+      }
+
+      byte[] plaintext = decrypt(record, senderKeyMessageBytes);
+
+      callback.handlePlaintext(plaintext);
+
+      MeteredStores.storeSenderKey(senderKeyStore, senderKeyId, record);
+
+      return plaintext;
+    } finally {
+      lock.unlock();
+      ProtocolMetricsProvider.getProvider().recordLatency(ProtocolMetrics.GROUP_DECRYPT, System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Encrypt a message from a buffer into another, either of which may be direct.  The
+   * ciphertext is written straight into the destination; only the signed portion of the
+   * message is copied to the heap, since signing requires it.
+   *
+   * @param paddedPlaintext The plaintext message bytes, optionally padded.  All remaining bytes are consumed.
+   * @param ciphertext The buffer to write the serialized message to, at its position.
+   * @return The length of the serialized message.
+   * @throws java.nio.BufferOverflowException If the destination has fewer than
+   *         {@link #getMaxCiphertextLength(int)} bytes remaining.  Nothing is consumed or written.
+   * @throws NoSessionException
+   */
+  public int encrypt(ByteBuffer paddedPlaintext, ByteBuffer ciphertext) throws NoSessionException {
+    long start = System.nanoTime();
 
-        if (record.isEmpty()) {
-          throw new NoSessionException("No sender key for: " + senderKeyId);
-        }
+    Lock lock = getSenderKeyLock(senderKeyId);
+    lock.lock();
 
-        SenderKeyMessage senderKeyMessage = new SenderKeyMessage(senderKeyMessageBytes);
-        SenderKeyState   senderKeyState   = record.getSenderKeyState(senderKeyMessage.getKeyId());
+    try {
+      SenderKeyRecord record = MeteredStores.loadSenderKey(senderKeyStore, senderKeyId);
+      int             length = encrypt(record, paddedPlaintext, ciphertext);
 
-        senderKeyMessage.verifySignature(senderKeyState.getSigningKeyPublic());
+      MeteredStores.storeSenderKey(senderKeyStore, senderKeyId, record);
 
-        SenderMessageKey senderKey = getSenderKey(senderKeyState, senderKeyMessage.getIteration());
+      return length;
+    } catch (InvalidKeyIdException e) {
+      throw new NoSessionException(e);
+    } finally {
+      lock.unlock();
+      ProtocolMetricsProvider.getProvider().recordLatency(ProtocolMetrics.GROUP_ENCRYPT, System.nanoTime() - start);
+    }
+  }
 
-        byte[] plaintext = getPlainText(senderKey.getIv(), senderKey.getCipherKey(), senderKeyMessage.getCipherText());
+  /**
+   * Decrypt a SenderKey group message from a buffer into another, either of which may be
+   * direct.  The plaintext is decrypted straight from the message's bytes; only the
+   * signed portion of the message is copied to the heap, since verifying requires it.
+   *
+   * @param senderKeyMessage The received ciphertext.  All remaining bytes are consumed.
+   * @param plaintext The buffer to write the plaintext to, at its position.  It must
+   *                  have at least as many bytes remaining as the message.
+   * @return The length of the plaintext.
+   * @throws LegacyMessageException
+   * @throws InvalidMessageException
+   * @throws DuplicateMessageException
+   */
+  public int decrypt(ByteBuffer senderKeyMessage, ByteBuffer plaintext)
+      throws LegacyMessageException, DuplicateMessageException, InvalidMessageException, NoSessionException
+  {
+    long start = System.nanoTime();
 
-        callback.handlePlaintext(plaintext);
+    Lock lock = getSenderKeyLock(senderKeyId);
+    lock.lock();
 
-        senderKeyStore.storeSenderKey(senderKeyId, record);
+    try {
+      SenderKeyRecord record = MeteredStores.loadSenderKey(senderKeyStore, senderKeyId);
 
-        return plaintext;
-      } catch (org.whispersystems.libsignal.InvalidKeyException | InvalidKeyIdException e) {
-        throw new InvalidMessageException(e);
+      if (record.isEmpty()) {
+        throw new NoSessionException("No sender key for: " + senderKeyId);
       }
+
+      int length = decrypt(record, senderKeyMessage, plaintext);
+
+      MeteredStores.storeSenderKey(senderKeyStore, senderKeyId, record);
+
+      return length;
+    } finally {
+      lock.unlock();
+      ProtocolMetricsProvider.getProvider().recordLatency(ProtocolMetrics.GROUP_DECRYPT, System.nanoTime() - start);
     }
   }
 
-  private SenderMessageKey getSenderKey(SenderKeyState senderKeyState, int iteration)
+  /**
+   * @param paddedPlaintextLength The length of a plaintext message.
+   * @return The most bytes {@link #encrypt(ByteBuffer, ByteBuffer)} can write for it.
+   */
+  public static int getMaxCiphertextLength(int paddedPlaintextLength) {
+    // -1 has the longest uint32 encoding, so it bounds any key id and iteration.
+    return SenderKeyMessage.getSerializedLength(-1, -1, getCiphertextLength(paddedPlaintextLength));
+  }
+
+  /**
+   * Returns the lock that serializes all operations on a sender key, here and in
+   * {@link GroupSessionBuilder}.  Operations on different sender keys generally do not
+   * contend with each other.
+   *
+   * @param senderKeyName The (groupId, senderId, deviceId) tuple.
+   * @return The lock guarding that sender key.
+   */
+  public static Lock getSenderKeyLock(SenderKeyName senderKeyName) {
+    return SENDER_KEY_LOCKS.get(senderKeyName);
+  }
+
+  /**
+   * Encrypt a message with the current state of a sender key record, advancing its chain.
+   */
+  static byte[] encrypt(SenderKeyRecord record, byte[] paddedPlaintext) throws InvalidKeyIdException {
+    SenderKeyState senderKeyState = record.getSenderKeyState();
+    SenderChainKey senderChainKey = senderKeyState.getSenderChainKey();
+    byte[]         ciphertext     = encrypt(senderKeyState.getKeyId(), senderChainKey.getSenderMessageKey(),
+                                            senderKeyState.getSigningKeyPrivate(), paddedPlaintext);
+
+    senderKeyState.setSenderChainKey(senderChainKey.getNext());
+    return ciphertext;
+  }
+
+  /**
+   * Encrypt a message from a buffer with the current state of a sender key record,
+   * advancing its chain.
+   */
+  static int encrypt(SenderKeyRecord record, ByteBuffer paddedPlaintext, ByteBuffer ciphertext)
+      throws InvalidKeyIdException
+  {
+    SenderKeyState senderKeyState = record.getSenderKeyState();
+    SenderChainKey senderChainKey = senderKeyState.getSenderChainKey();
+    int            length         = encrypt(senderKeyState.getKeyId(), senderChainKey.getSenderMessageKey(),
+                                            senderKeyState.getSigningKeyPrivate(), paddedPlaintext, ciphertext);
+
+    senderKeyState.setSenderChainKey(senderChainKey.getNext());
+    return length;
+  }
+
+  /**
+   * Encrypt a message with a single message key.  No chain is advanced.
+   */
+  static byte[] encrypt(int keyId, SenderMessageKey senderKey, ECPrivateKey signingKey, byte[] paddedPlaintext) {
+    byte[] serialized = new byte[SenderKeyMessage.getSerializedLength(keyId, senderKey.getIteration(),
+                                                                      getCiphertextLength(paddedPlaintext.length))];
+
+    encrypt(keyId, senderKey, signingKey, ByteBuffer.wrap(paddedPlaintext), ByteBuffer.wrap(serialized));
+
+    return serialized;
+  }
+
+  /**
+   * Encrypt a message from a buffer with a single message key.  No chain is advanced.
+   */
+  static int encrypt(int keyId, SenderMessageKey senderKey, ECPrivateKey signingKey,
+                     ByteBuffer paddedPlaintext, ByteBuffer ciphertext)
+  {
+    try {
+      int start = ciphertext.position();
+
+      SenderKeyMessage.writeHeader(ciphertext, keyId, senderKey.getIteration(),
+                                   getCiphertextLength(paddedPlaintext.remaining()));
+
+      getCipher(Cipher.ENCRYPT_MODE, senderKey).doFinal(paddedPlaintext, ciphertext);
+
+      SenderKeyMessage.writeSignature(ciphertext, start, signingKey);
+
+      return ciphertext.position() - start;
+    } catch (ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Decrypt a message against a non-empty sender key record, updating the record.
+   */
+  static byte[] decrypt(SenderKeyRecord record, byte[] senderKeyMessageBytes)
+      throws LegacyMessageException, InvalidMessageException, DuplicateMessageException
+  {
+    try {
+      SenderKeyMessage senderKeyMessage = new SenderKeyMessage(senderKeyMessageBytes);
+      SenderMessageKey senderKey        = getSenderKey(record, senderKeyMessage);
+      ByteBuffer       ciphertext       = senderKeyMessage.getCipherTextBuffer();
+
+      return getCipher(Cipher.DECRYPT_MODE, senderKey).doFinal(ciphertext.array(),
+                                                               ciphertext.arrayOffset() + ciphertext.position(),
+                                                               ciphertext.remaining());
+    } catch (IllegalBlockSizeException | BadPaddingException e) {
+      throw recordFailure(new InvalidMessageException(e));
+    } catch (InvalidMessageException e) {
+      throw recordFailure(e);
+    } catch (DuplicateMessageException e) {
+      throw recordFailure(e);
+    }
+  }
+
+  /**
+   * Decrypt a message from a buffer against a non-empty sender key record, updating the record.
+   */
+  static int decrypt(SenderKeyRecord record, ByteBuffer senderKeyMessageBytes, ByteBuffer plaintext)
+      throws LegacyMessageException, InvalidMessageException, DuplicateMessageException
+  {
+    try {
+      SenderKeyMessage senderKeyMessage = new SenderKeyMessage(senderKeyMessageBytes);
+      ByteBuffer       ciphertext       = senderKeyMessage.getCipherTextBuffer();
+
+      if (plaintext.remaining() < ciphertext.remaining()) {
+        throw new BufferOverflowException();
+      }
+
+      SenderMessageKey senderKey = getSenderKey(record, senderKeyMessage);
+      int              length    = getCipher(Cipher.DECRYPT_MODE, senderKey).doFinal(ciphertext, plaintext);
+
+      senderKeyMessageBytes.position(senderKeyMessageBytes.limit());
+
+      return length;
+    } catch (IllegalBlockSizeException | BadPaddingException e) {
+      throw recordFailure(new InvalidMessageException(e));
+    } catch (ShortBufferException e) {
+      throw new AssertionError(e);
+    } catch (InvalidMessageException e) {
+      throw recordFailure(e);
+    } catch (DuplicateMessageException e) {
+      throw recordFailure(e);
+    }
+  }
+
+  private static SenderMessageKey getSenderKey(SenderKeyRecord record, SenderKeyMessage senderKeyMessage)
+      throws InvalidMessageException, DuplicateMessageException
+  {
+    try {
+      SenderKeyState senderKeyState = record.getSenderKeyState(senderKeyMessage.getKeyId());
+
+      senderKeyMessage.verifySignature(senderKeyState.getSigningKeyPublic());
+
+      return getSenderKey(senderKeyState, senderKeyMessage.getIteration());
+    } catch (org.whispersystems.libsignal.InvalidKeyException | InvalidKeyIdException e) {
+      throw new InvalidMessageException(e);
+    }
+  }
+
+  private static <E extends Exception> E recordFailure(E e) {
+    if (e instanceof DuplicateMessageException) ProtocolMetricsProvider.getProvider().recordDuplicateMessage(ProtocolMetrics.GROUP_DECRYPT);
+    else                                        ProtocolMetricsProvider.getProvider().recordInvalidMessage(ProtocolMetrics.GROUP_DECRYPT);
+
+    return e;
+  }
+
+  private static SenderMessageKey getSenderKey(SenderKeyState senderKeyState, int iteration)
       throws DuplicateMessageException, InvalidMessageException
   {
     SenderChainKey senderChainKey = senderKeyState.getSenderChainKey();
@@ -161,50 +393,35 @@ public class GroupCipher {
       throw new InvalidMessageException("Over 2000 messages into the future!");
     }
 
-    while (senderChainKey.getIteration() < iteration) {
-      senderKeyState.addSenderMessageKey(senderChainKey.getSenderMessageKey());
-      senderChainKey = senderChainKey.getNext();
+    if (iteration > senderChainKey.getIteration()) {
+      ProtocolMetricsProvider.getProvider().recordSkippedMessageKeys(ProtocolMetrics.GROUP_DECRYPT,
+                                                                     iteration - senderChainKey.getIteration());
     }
 
-    senderKeyState.setSenderChainKey(senderChainKey.getNext());
-    return senderChainKey.getSenderMessageKey();
-  }
+    byte[] seed = new byte[SenderChainKey.SEED_LENGTH];
 
-  private byte[] getPlainText(byte[] iv, byte[] key, byte[] ciphertext)
-      throws InvalidMessageException
-  {
-    try {
-      IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-      Cipher          cipher          = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    while (senderChainKey.getIteration() < iteration) {
+      SenderChainKey next = senderChainKey.getNext(seed);
+      senderKeyState.addSenderMessageKey(senderChainKey.getIteration(), seed);
+      senderChainKey = next;
+    }
 
-      cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), ivParameterSpec);
+    seed = new byte[SenderChainKey.SEED_LENGTH];
+    senderKeyState.setSenderChainKey(senderChainKey.getNext(seed));
 
-      return cipher.doFinal(ciphertext);
-    } catch (NoSuchAlgorithmException | NoSuchPaddingException | java.security.InvalidKeyException |
-             InvalidAlgorithmParameterException e)
-    {
-      throw new AssertionError(e);
-    } catch (IllegalBlockSizeException | BadPaddingException e) {
-      throw new InvalidMessageException(e);
-    }
+    return new SenderMessageKey(iteration, seed);
   }
 
-  private byte[] getCipherText(byte[] iv, byte[] key, byte[] plaintext) {
-    try {
-      IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-      Cipher          cipher          = Cipher.getInstance("AES/CBC/PKCS5Padding");
-
-      cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), ivParameterSpec);
+  private static Cipher getCipher(int mode, SenderMessageKey senderKey) {
+    return CryptoPrimitives.getAesCbcCipher(mode, new SecretKeySpec(senderKey.getCipherKey(), "AES"),
+                                            new IvParameterSpec(senderKey.getIv()));
+  }
 
-      return cipher.doFinal(plaintext);
-    } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidAlgorithmParameterException |
-             IllegalBlockSizeException | BadPaddingException | java.security.InvalidKeyException e)
-    {
-      throw new AssertionError(e);
-    }
+  private static int getCiphertextLength(int plaintextLength) {
+    return (plaintextLength / 16 + 1) * 16;
   }
 
-  private static class NullDecryptionCallback implements DecryptionCallback {
+  static class NullDecryptionCallback implements DecryptionCallback {
     @Override
     public void handlePlaintext(byte[] plaintext) {}
   }
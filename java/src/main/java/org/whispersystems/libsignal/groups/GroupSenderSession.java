@@ -0,0 +1,246 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.groups;
+
+import org.whispersystems.libsignal.InvalidKeyException;
+import org.whispersystems.libsignal.InvalidKeyIdException;
+import org.whispersystems.libsignal.NoSessionException;
+import org.whispersystems.libsignal.ecc.ECPrivateKey;
+import org.whispersystems.libsignal.groups.ratchet.SenderChainKey;
+import org.whispersystems.libsignal.groups.ratchet.SenderMessageKey;
+import org.whispersystems.libsignal.groups.state.SenderKeyRecord;
+import org.whispersystems.libsignal.groups.state.SenderKeyState;
+import org.whispersystems.libsignal.groups.state.SenderKeyStore;
+import org.whispersystems.libsignal.metrics.MeteredStores;
+import org.whispersystems.libsignal.metrics.ProtocolMetrics;
+import org.whispersystems.libsignal.metrics.ProtocolMetricsProvider;
+import org.whispersystems.libsignal.protocol.SenderKeyDistributionMessage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A long-lived sending session for one of our own sender keys, for senders that encrypt
+ * to a group at a high rate.
+ *
+ * Where {@link GroupCipher#encrypt(byte[])} loads, decodes and stores the sender key for
+ * every message, a session loads it once, keeps the decoded signing key and the current
+ * chain in memory, and only goes back to the {@link SenderKeyStore} to checkpoint.
+ *
+ * Checkpoints reserve chain positions ahead of use: before the message at an iteration
+ * is encrypted, the store already holds a chain at least one iteration past it.  The
+ * store is written once per checkpoint interval, with the chain that many iterations
+ * ahead.  If the process dies without closing the session, the next user of the sender
+ * key resumes from the reserved position, skipping at most an interval of iterations
+ * (which receivers tolerate) but never reusing a message key.  {@link #close()} stores
+ * the exact position.
+ *
+ * While a session is open it owns the sender key: the key must not be used to encrypt
+ * through {@link GroupCipher} or another session at the same time.  Distribution
+ * messages for members joining meanwhile should come from
+ * {@link #getSenderKeyDistributionMessage()}, since the stored chain may be ahead of the
+ * messages still to be sent.  A session may be shared between threads.
+ */
+public class GroupSenderSession implements Closeable {
+
+  public static final int DEFAULT_CHECKPOINT_INTERVAL = 100;
+
+  private static final int MAX_CHECKPOINT_INTERVAL = 2000;
+
+  private final SenderKeyStore  senderKeyStore;
+  private final SenderKeyName   senderKeyId;
+  private final int             checkpointInterval;
+  private final SenderKeyRecord record;
+  private final SenderKeyState  state;
+  private final ECPrivateKey    signingKey;
+
+  private int     reservedIteration;
+  private boolean closed;
+
+  /**
+   * Open a session that checkpoints every {@link #DEFAULT_CHECKPOINT_INTERVAL} messages.
+   *
+   * @param senderKeyStore The store holding the sender key.
+   * @param senderKeyId The (groupId, senderId, deviceId) tuple.  In this case, 'senderId' should be the caller.
+   * @throws NoSessionException If no sender key has been created.
+   */
+  public GroupSenderSession(SenderKeyStore senderKeyStore, SenderKeyName senderKeyId)
+      throws NoSessionException
+  {
+    this(senderKeyStore, senderKeyId, DEFAULT_CHECKPOINT_INTERVAL);
+  }
+
+  /**
+   * Open a session.
+   *
+   * @param senderKeyStore The store holding the sender key.
+   * @param senderKeyId The (groupId, senderId, deviceId) tuple.  In this case, 'senderId' should be the caller.
+   * @param checkpointInterval The number of messages between checkpoints, and so the most
+   *                           iterations receivers may have to skip if the session is lost.
+   *                           At most 2000.
+   * @throws NoSessionException If no sender key has been created.
+   */
+  public GroupSenderSession(SenderKeyStore senderKeyStore, SenderKeyName senderKeyId, int checkpointInterval)
+      throws NoSessionException
+  {
+    if (checkpointInterval < 1 || checkpointInterval > MAX_CHECKPOINT_INTERVAL) {
+      throw new IllegalArgumentException("Bad checkpoint interval: " + checkpointInterval);
+    }
+
+    Lock lock = GroupCipher.getSenderKeyLock(senderKeyId);
+    lock.lock();
+
+    try {
+      this.senderKeyStore     = senderKeyStore;
+      this.senderKeyId        = senderKeyId;
+      this.checkpointInterval = checkpointInterval;
+      this.record             = MeteredStores.loadSenderKey(senderKeyStore, senderKeyId);
+      this.state              = record.getSenderKeyState();
+      this.signingKey         = state.getSigningKeyPrivate();
+      this.reservedIteration  = state.getSenderChainKey().getIteration();
+    } catch (InvalidKeyIdException e) {
+      throw new NoSessionException(e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Encrypt a message.
+   *
+   * @param paddedPlaintext The plaintext message bytes, optionally padded.
+   * @return Ciphertext.
+   */
+  public synchronized byte[] encrypt(byte[] paddedPlaintext) {
+    long start = System.nanoTime();
+
+    try {
+      SenderMessageKey senderKey = nextSenderKey();
+      return GroupCipher.encrypt(state.getKeyId(), senderKey, signingKey, paddedPlaintext);
+    } finally {
+      ProtocolMetricsProvider.getProvider().recordLatency(ProtocolMetrics.GROUP_ENCRYPT, System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Encrypt a message from a buffer into another, either of which may be direct.
+   *
+   * @param paddedPlaintext The plaintext message bytes, optionally padded.  All remaining bytes are consumed.
+   * @param ciphertext The buffer to write the serialized message to, at its position.
+   * @return The length of the serialized message.
+   * @throws BufferOverflowException If the destination has fewer than
+   *         {@link GroupCipher#getMaxCiphertextLength(int)} bytes remaining.  Nothing is
+   *         consumed or written, and no message key is used.
+   */
+  public synchronized int encrypt(ByteBuffer paddedPlaintext, ByteBuffer ciphertext) {
+    long start = System.nanoTime();
+
+    try {
+      if (ciphertext.remaining() < GroupCipher.getMaxCiphertextLength(paddedPlaintext.remaining())) {
+        throw new BufferOverflowException();
+      }
+
+      SenderMessageKey senderKey = nextSenderKey();
+      return GroupCipher.encrypt(state.getKeyId(), senderKey, signingKey, paddedPlaintext, ciphertext);
+    } finally {
+      ProtocolMetricsProvider.getProvider().recordLatency(ProtocolMetrics.GROUP_ENCRYPT, System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * @return A SenderKeyDistributionMessage for the session's current chain position, to be
+   *         individually distributed to members joining the group while it is open.
+   */
+  public synchronized SenderKeyDistributionMessage getSenderKeyDistributionMessage() {
+    try {
+      SenderChainKey senderChainKey = state.getSenderChainKey();
+
+      return new SenderKeyDistributionMessage(state.getKeyId(),
+                                              senderChainKey.getIteration(),
+                                              senderChainKey.getSeed(),
+                                              state.getSigningKeyPublic());
+    } catch (InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Stores the exact chain position now.  Until the next message, the store holds no
+   * reservation ahead of it.
+   */
+  public synchronized void checkpoint() {
+    checkClosed();
+    store(state.getSenderChainKey());
+    reservedIteration = state.getSenderChainKey().getIteration();
+  }
+
+  /**
+   * Checkpoints the exact chain position and closes the session.  Closing a closed
+   * session has no effect.
+   */
+  @Override
+  public synchronized void close() {
+    if (!closed) {
+      checkpoint();
+      closed = true;
+    }
+  }
+
+  private SenderMessageKey nextSenderKey() {
+    checkClosed();
+
+    SenderChainKey senderChainKey = state.getSenderChainKey();
+
+    if (senderChainKey.getIteration() >= reservedIteration) {
+      reserve(senderChainKey);
+    }
+
+    byte[] seed = new byte[SenderChainKey.SEED_LENGTH];
+    state.setSenderChainKey(senderChainKey.getNext(seed));
+
+    return new SenderMessageKey(senderChainKey.getIteration(), seed);
+  }
+
+  private void reserve(SenderChainKey senderChainKey) {
+    byte[]         seed     = new byte[SenderChainKey.SEED_LENGTH];
+    SenderChainKey reserved = senderChainKey;
+
+    for (int i=0;i<checkpointInterval;i++) {
+      reserved = reserved.getNext(seed);
+    }
+
+    store(reserved);
+    reservedIteration = reserved.getIteration();
+  }
+
+  /**
+   * Stores a copy of the record with the given chain, leaving the in-memory chain alone.
+   */
+  private void store(SenderChainKey senderChainKey) {
+    Lock lock = GroupCipher.getSenderKeyLock(senderKeyId);
+    lock.lock();
+
+    try {
+      SenderKeyRecord checkpoint = new SenderKeyRecord(record.serialize());
+
+      checkpoint.getSenderKeyState(state.getKeyId()).setSenderChainKey(senderChainKey);
+      MeteredStores.storeSenderKey(senderKeyStore, senderKeyId, checkpoint);
+    } catch (IOException | InvalidKeyIdException e) {
+      throw new AssertionError(e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void checkClosed() {
+    if (closed) {
+      throw new IllegalStateException("Session closed: " + senderKeyId);
+    }
+  }
+}
@@ -10,9 +10,12 @@ import org.whispersystems.libsignal.InvalidKeyIdException;
 import org.whispersystems.libsignal.groups.state.SenderKeyRecord;
 import org.whispersystems.libsignal.groups.state.SenderKeyState;
 import org.whispersystems.libsignal.groups.state.SenderKeyStore;
+import org.whispersystems.libsignal.metrics.MeteredStores;
 import org.whispersystems.libsignal.protocol.SenderKeyDistributionMessage;
 import org.whispersystems.libsignal.util.KeyHelper;
 
+import java.util.concurrent.locks.Lock;
+
 /**
  * GroupSessionBuilder is responsible for setting up group SenderKey encrypted sessions.
  *
@@ -44,13 +47,18 @@ public class GroupSessionBuilder {
    * @param senderKeyDistributionMessage A received SenderKeyDistributionMessage.
    */
   public void process(SenderKeyName senderKeyName, SenderKeyDistributionMessage senderKeyDistributionMessage) {
-    synchronized (GroupCipher.LOCK) {
-      SenderKeyRecord senderKeyRecord = senderKeyStore.loadSenderKey(senderKeyName);
+    Lock lock = GroupCipher.getSenderKeyLock(senderKeyName);
+    lock.lock();
+
+    try {
+      SenderKeyRecord senderKeyRecord = MeteredStores.loadSenderKey(senderKeyStore, senderKeyName);
       senderKeyRecord.addSenderKeyState(senderKeyDistributionMessage.getId(),
                                         senderKeyDistributionMessage.getIteration(),
                                         senderKeyDistributionMessage.getChainKey(),
                                         senderKeyDistributionMessage.getSignatureKey());
-      senderKeyStore.storeSenderKey(senderKeyName, senderKeyRecord);
+      MeteredStores.storeSenderKey(senderKeyStore, senderKeyName, senderKeyRecord);
+    } finally {
+      lock.unlock();
     }
   }
 
@@ -61,28 +69,31 @@ public class GroupSessionBuilder {
    * @return A SenderKeyDistributionMessage that is individually distributed to each member of the group.
    */
   public SenderKeyDistributionMessage create(SenderKeyName senderKeyName) {
-    synchronized (GroupCipher.LOCK) {
-      try {
-        SenderKeyRecord senderKeyRecord = senderKeyStore.loadSenderKey(senderKeyName);
+    Lock lock = GroupCipher.getSenderKeyLock(senderKeyName);
+    lock.lock();
 
-        if (senderKeyRecord.isEmpty()) {
-          senderKeyRecord.setSenderKeyState(KeyHelper.generateSenderKeyId(),
-                                            0,
-                                            KeyHelper.generateSenderKey(),
-                                            KeyHelper.generateSenderSigningKey());
-          senderKeyStore.storeSenderKey(senderKeyName, senderKeyRecord);
-        }
+    try {
+      SenderKeyRecord senderKeyRecord = MeteredStores.loadSenderKey(senderKeyStore, senderKeyName);
 
-        SenderKeyState state = senderKeyRecord.getSenderKeyState();
+      if (senderKeyRecord.isEmpty()) {
+        senderKeyRecord.setSenderKeyState(KeyHelper.generateSenderKeyId(),
+                                          0,
+                                          KeyHelper.generateSenderKey(),
+                                          KeyHelper.generateSenderSigningKey());
+        MeteredStores.storeSenderKey(senderKeyStore, senderKeyName, senderKeyRecord);
+      }
 
-        return new SenderKeyDistributionMessage(state.getKeyId(),
-                                                state.getSenderChainKey().getIteration(),
-                                                state.getSenderChainKey().getSeed(),
-                                                state.getSigningKeyPublic());
+      SenderKeyState state = senderKeyRecord.getSenderKeyState();
 
-      } catch (InvalidKeyIdException | InvalidKeyException e) {
-        throw new AssertionError(e);
-      }
+      return new SenderKeyDistributionMessage(state.getKeyId(),
+                                              state.getSenderChainKey().getIteration(),
+                                              state.getSenderChainKey().getSeed(),
+                                              state.getSigningKeyPublic());
+
+    } catch (InvalidKeyIdException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    } finally {
+      lock.unlock();
     }
   }
 }
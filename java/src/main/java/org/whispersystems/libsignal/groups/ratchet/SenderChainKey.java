@@ -5,11 +5,10 @@
  */
 package org.whispersystems.libsignal.groups.ratchet;
 
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import org.whispersystems.libsignal.util.CryptoPrimitives;
 
 import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
+import javax.crypto.ShortBufferException;
 
 /**
  * Each SenderKey is a "chain" of keys, each derived from the previous.
@@ -23,6 +22,8 @@ import javax.crypto.spec.SecretKeySpec;
  */
 public class SenderChainKey {
 
+  public static final int SEED_LENGTH = 32;
+
   private static final byte[] MESSAGE_KEY_SEED = {0x01};
   private static final byte[] CHAIN_KEY_SEED   = {0x02};
 
@@ -46,19 +47,36 @@ public class SenderChainKey {
     return new SenderChainKey(iteration + 1, getDerivative(CHAIN_KEY_SEED, chainKey));
   }
 
+  /**
+   * Derives the next chain key and this iteration's message key seed together, from one
+   * keyed Mac.  Stepping over skipped iterations this way costs one key setup per
+   * iteration, and no message key derivation until a skipped key is used.
+   *
+   * @param messageKeySeed A buffer of {@link #SEED_LENGTH} bytes to receive the message key seed.
+   * @return The next chain key.
+   */
+  public SenderChainKey getNext(byte[] messageKeySeed) {
+    try {
+      Mac    mac     = CryptoPrimitives.getHmacSha256(chainKey);
+      byte[] nextKey = new byte[SEED_LENGTH];
+
+      mac.update(MESSAGE_KEY_SEED);
+      mac.doFinal(messageKeySeed, 0);
+      mac.update(CHAIN_KEY_SEED);
+      mac.doFinal(nextKey, 0);
+
+      return new SenderChainKey(iteration + 1, nextKey);
+    } catch (ShortBufferException e) {
+      throw new AssertionError(e);
+    }
+  }
+
   public byte[] getSeed() {
     return chainKey;
   }
 
   private byte[] getDerivative(byte[] seed, byte[] key) {
-    try {
-      Mac mac = Mac.getInstance("HmacSHA256");
-      mac.init(new SecretKeySpec(key, "HmacSHA256"));
-
-      return mac.doFinal(seed);
-    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
-      throw new AssertionError(e);
-    }
+    return CryptoPrimitives.getHmacSha256(key).doFinal(seed);
   }
 
 }
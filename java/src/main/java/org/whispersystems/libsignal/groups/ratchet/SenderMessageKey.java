@@ -13,23 +13,23 @@ import org.whispersystems.libsignal.util.ByteUtil;
  * The final symmetric material (IV and Cipher Key) used for encrypting
  * individual SenderKey messages.
  *
+ * Only the seed is stored, which is all a skipped key's storage needs.  The IV and
+ * cipher key are derived from it on first access and cached.
+ *
  * @author Moxie Marlinspike
  */
 public class SenderMessageKey {
 
+  private static final byte[] INFO = "WhisperGroup".getBytes();
+
   private final int    iteration;
-  private final byte[] iv;
-  private final byte[] cipherKey;
   private final byte[] seed;
 
-  public SenderMessageKey(int iteration, byte[] seed) {
-    byte[] derivative = new HKDFv3().deriveSecrets(seed, "WhisperGroup".getBytes(), 48);
-    byte[][] parts    = ByteUtil.split(derivative, 16, 32);
+  private volatile byte[][] material;
 
+  public SenderMessageKey(int iteration, byte[] seed) {
     this.iteration = iteration;
     this.seed      = seed;
-    this.iv        = parts[0];
-    this.cipherKey = parts[1];
   }
 
   public int getIteration() {
@@ -37,14 +37,27 @@ public class SenderMessageKey {
   }
 
   public byte[] getIv() {
-    return iv;
+    return getMaterial()[0];
   }
 
   public byte[] getCipherKey() {
-    return cipherKey;
+    return getMaterial()[1];
   }
 
   public byte[] getSeed() {
     return seed;
   }
+
+  private byte[][] getMaterial() {
+    byte[][] material = this.material;
+
+    if (material == null) {
+      byte[] derivative = new HKDFv3().deriveSecrets(seed, INFO, 48);
+
+      material      = ByteUtil.split(derivative, 16, 32);
+      this.material = material;
+    }
+
+    return material;
+  }
 }
@@ -14,24 +14,30 @@ import org.whispersystems.libsignal.ecc.ECPrivateKey;
 import org.whispersystems.libsignal.ecc.ECPublicKey;
 import org.whispersystems.libsignal.groups.ratchet.SenderChainKey;
 import org.whispersystems.libsignal.groups.ratchet.SenderMessageKey;
+import org.whispersystems.libsignal.util.IntLinkedHashMap;
 import org.whispersystems.libsignal.util.guava.Optional;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
-
 import static org.whispersystems.libsignal.state.StorageProtos.SenderKeyStateStructure;
 
 /**
  * Represents the state of an individual SenderKey ratchet.
  *
+ * The state is held as a mutable model rather than as a protobuf, so advancing the chain
+ * or adding and removing a skipped message key changes one field in place.  Skipped
+ * message keys are indexed by iteration.  The protobuf is only built by
+ * {@link #getStructure()}, when the state is stored.
+ *
  * @author Moxie Marlinspike
  */
 public class SenderKeyState {
 
   private static final int MAX_MESSAGE_KEYS = 2000;
 
-  private SenderKeyStateStructure senderKeyStateStructure;
+  private final int                                                        keyId;
+  private final byte[]                                                     signingKeyPublic;
+  private final byte[]                                                     signingKeyPrivate;
+  private final IntLinkedHashMap<SenderKeyStateStructure.SenderMessageKey> senderMessageKeys;
+  private       SenderChainKey                                             senderChainKey;
 
   public SenderKeyState(int id, int iteration, byte[] chainKey, ECPublicKey signatureKey) {
     this(id, iteration, chainKey, signatureKey, Optional.<ECPrivateKey>absent());
@@ -45,109 +51,79 @@ public class SenderKeyState {
                         ECPublicKey signatureKeyPublic,
                         Optional<ECPrivateKey> signatureKeyPrivate)
   {
-    SenderKeyStateStructure.SenderChainKey senderChainKeyStructure =
-        SenderKeyStateStructure.SenderChainKey.newBuilder()
-                                              .setIteration(iteration)
-                                              .setSeed(ByteString.copyFrom(chainKey))
-                                              .build();
-
-    SenderKeyStateStructure.SenderSigningKey.Builder signingKeyStructure =
-        SenderKeyStateStructure.SenderSigningKey.newBuilder()
-                                                .setPublic(ByteString.copyFrom(signatureKeyPublic.serialize()));
-
-    if (signatureKeyPrivate.isPresent()) {
-      signingKeyStructure.setPrivate(ByteString.copyFrom(signatureKeyPrivate.get().serialize()));
-    }
-
-    this.senderKeyStateStructure = SenderKeyStateStructure.newBuilder()
-                                                          .setSenderKeyId(id)
-                                                          .setSenderChainKey(senderChainKeyStructure)
-                                                          .setSenderSigningKey(signingKeyStructure)
-                                                          .build();
+    this.keyId             = id;
+    this.senderChainKey    = new SenderChainKey(iteration, chainKey);
+    this.signingKeyPublic  = signatureKeyPublic.serialize();
+    this.signingKeyPrivate = signatureKeyPrivate.isPresent() ? signatureKeyPrivate.get().serialize() : null;
+    this.senderMessageKeys = new IntLinkedHashMap<>();
   }
 
   public SenderKeyState(SenderKeyStateStructure senderKeyStateStructure) {
-    this.senderKeyStateStructure = senderKeyStateStructure;
+    SenderKeyStateStructure.SenderSigningKey signingKey = senderKeyStateStructure.getSenderSigningKey();
+
+    this.keyId             = senderKeyStateStructure.getSenderKeyId();
+    this.senderChainKey    = new SenderChainKey(senderKeyStateStructure.getSenderChainKey().getIteration(),
+                                                senderKeyStateStructure.getSenderChainKey().getSeed().toByteArray());
+    this.signingKeyPublic  = signingKey.getPublic().toByteArray();
+    this.signingKeyPrivate = signingKey.hasPrivate() ? signingKey.getPrivate().toByteArray() : null;
+    this.senderMessageKeys = new IntLinkedHashMap<>(senderKeyStateStructure.getSenderMessageKeysCount());
+
+    for (SenderKeyStateStructure.SenderMessageKey senderMessageKey : senderKeyStateStructure.getSenderMessageKeysList()) {
+      senderMessageKeys.put(senderMessageKey.getIteration(), senderMessageKey);
+    }
   }
 
   public int getKeyId() {
-    return senderKeyStateStructure.getSenderKeyId();
+    return keyId;
   }
 
   public SenderChainKey getSenderChainKey() {
-    return new SenderChainKey(senderKeyStateStructure.getSenderChainKey().getIteration(),
-                              senderKeyStateStructure.getSenderChainKey().getSeed().toByteArray());
+    return senderChainKey;
   }
 
   public void setSenderChainKey(SenderChainKey chainKey) {
-    SenderKeyStateStructure.SenderChainKey senderChainKeyStructure =
-        SenderKeyStateStructure.SenderChainKey.newBuilder()
-                                              .setIteration(chainKey.getIteration())
-                                              .setSeed(ByteString.copyFrom(chainKey.getSeed()))
-                                              .build();
-
-    this.senderKeyStateStructure = senderKeyStateStructure.toBuilder()
-                                                          .setSenderChainKey(senderChainKeyStructure)
-                                                          .build();
+    this.senderChainKey = chainKey;
   }
 
   public ECPublicKey getSigningKeyPublic() throws InvalidKeyException {
-    return Curve.decodePoint(senderKeyStateStructure.getSenderSigningKey()
-                                                    .getPublic()
-                                                    .toByteArray(), 0);
+    return Curve.decodePoint(signingKeyPublic, 0);
   }
 
   public ECPrivateKey getSigningKeyPrivate() {
-    return Curve.decodePrivatePoint(senderKeyStateStructure.getSenderSigningKey()
-                                                           .getPrivate().toByteArray());
+    return Curve.decodePrivatePoint(signingKeyPrivate != null ? signingKeyPrivate : new byte[0]);
   }
 
   public boolean hasSenderMessageKey(int iteration) {
-    for (SenderKeyStateStructure.SenderMessageKey senderMessageKey : senderKeyStateStructure.getSenderMessageKeysList()) {
-      if (senderMessageKey.getIteration() == iteration) return true;
-    }
-
-    return false;
+    return senderMessageKeys.containsKey(iteration);
   }
 
   public void addSenderMessageKey(SenderMessageKey senderMessageKey) {
+    addSenderMessageKey(senderMessageKey.getIteration(), senderMessageKey.getSeed());
+  }
+
+  /**
+   * Stores a skipped message key by its seed alone, so its IV and cipher key are only
+   * derived if it is used.
+   *
+   * @param iteration The iteration of the skipped message key.
+   * @param seed The message key seed, which is copied.
+   */
+  public void addSenderMessageKey(int iteration, byte[] seed) {
     SenderKeyStateStructure.SenderMessageKey senderMessageKeyStructure =
         SenderKeyStateStructure.SenderMessageKey.newBuilder()
-                                                .setIteration(senderMessageKey.getIteration())
-                                                .setSeed(ByteString.copyFrom(senderMessageKey.getSeed()))
+                                                .setIteration(iteration)
+                                                .setSeed(ByteString.copyFrom(seed))
                                                 .build();
 
-    SenderKeyStateStructure.Builder builder = this.senderKeyStateStructure.toBuilder();
-
-    builder.addSenderMessageKeys(senderMessageKeyStructure);
+    senderMessageKeys.put(iteration, senderMessageKeyStructure);
 
-    if (builder.getSenderMessageKeysCount() > MAX_MESSAGE_KEYS) {
-      builder.removeSenderMessageKeys(0);
+    if (senderMessageKeys.size() > MAX_MESSAGE_KEYS) {
+      senderMessageKeys.removeEldest();
     }
-
-    this.senderKeyStateStructure = builder.build();
   }
 
   public SenderMessageKey removeSenderMessageKey(int iteration) {
-    List<SenderKeyStateStructure.SenderMessageKey>     keys     = new LinkedList<>(senderKeyStateStructure.getSenderMessageKeysList());
-    Iterator<SenderKeyStateStructure.SenderMessageKey> iterator = keys.iterator();
-
-    SenderKeyStateStructure.SenderMessageKey result = null;
-
-    while (iterator.hasNext()) {
-      SenderKeyStateStructure.SenderMessageKey senderMessageKey = iterator.next();
-
-      if (senderMessageKey.getIteration() == iteration) {
-        result = senderMessageKey;
-        iterator.remove();
-        break;
-      }
-    }
-
-    this.senderKeyStateStructure = this.senderKeyStateStructure.toBuilder()
-                                                               .clearSenderMessageKeys()
-                                                               .addAllSenderMessageKeys(keys)
-                                                               .build();
+    SenderKeyStateStructure.SenderMessageKey result = senderMessageKeys.remove(iteration);
 
     if (result != null) {
       return new SenderMessageKey(result.getIteration(), result.getSeed().toByteArray());
@@ -157,6 +133,29 @@ public class SenderKeyState {
   }
 
   public SenderKeyStateStructure getStructure() {
-    return senderKeyStateStructure;
+    SenderKeyStateStructure.SenderChainKey senderChainKeyStructure =
+        SenderKeyStateStructure.SenderChainKey.newBuilder()
+                                              .setIteration(senderChainKey.getIteration())
+                                              .setSeed(ByteString.copyFrom(senderChainKey.getSeed()))
+                                              .build();
+
+    SenderKeyStateStructure.SenderSigningKey.Builder signingKeyStructure =
+        SenderKeyStateStructure.SenderSigningKey.newBuilder()
+                                                .setPublic(ByteString.copyFrom(signingKeyPublic));
+
+    if (signingKeyPrivate != null) {
+      signingKeyStructure.setPrivate(ByteString.copyFrom(signingKeyPrivate));
+    }
+
+    SenderKeyStateStructure.Builder builder = SenderKeyStateStructure.newBuilder()
+                                                                     .setSenderKeyId(keyId)
+                                                                     .setSenderChainKey(senderChainKeyStructure)
+                                                                     .setSenderSigningKey(signingKeyStructure);
+
+    for (SenderKeyStateStructure.SenderMessageKey senderMessageKey : senderMessageKeys) {
+      builder.addSenderMessageKeys(senderMessageKey);
+    }
+
+    return builder.build();
   }
 }
@@ -6,16 +6,22 @@
 
 package org.whispersystems.libsignal.kdf;
 
-import java.io.ByteArrayOutputStream;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import org.whispersystems.libsignal.util.CryptoPrimitives;
 
 import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
+import javax.crypto.ShortBufferException;
 
 public abstract class HKDF {
 
-  private static final int HASH_OUTPUT_SIZE  = 32;
+  private static final int    HASH_OUTPUT_SIZE = 32;
+  private static final byte[] ZERO_SALT        = new byte[HASH_OUTPUT_SIZE];
+
+  private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[HASH_OUTPUT_SIZE * 2];
+    }
+  };
 
   public static HKDF createFor(int messageVersion) {
     switch (messageVersion) {
@@ -26,53 +32,92 @@ public abstract class HKDF {
   }
 
   public byte[] deriveSecrets(byte[] inputKeyMaterial, byte[] info, int outputLength) {
-    byte[] salt = new byte[HASH_OUTPUT_SIZE];
-    return deriveSecrets(inputKeyMaterial, salt, info, outputLength);
+    return deriveSecrets(inputKeyMaterial, ZERO_SALT, info, outputLength);
   }
 
   public byte[] deriveSecrets(byte[] inputKeyMaterial, byte[] salt, byte[] info, int outputLength) {
-    byte[] prk = extract(salt, inputKeyMaterial);
-    return expand(prk, info, outputLength);
+    byte[] output = new byte[outputLength];
+    deriveSecrets(inputKeyMaterial, salt, info, output, 0, outputLength);
+    return output;
+  }
+
+  /**
+   * Derives key material with an all-zero salt, writing it into a caller-supplied buffer.
+   *
+   * @param inputKeyMaterial The input key material.
+   * @param info The context info, or null.
+   * @param output The buffer to write the derived key material into.
+   * @param offset The offset in the buffer to start writing at.
+   * @param outputLength The number of bytes to derive.
+   */
+  public void deriveSecrets(byte[] inputKeyMaterial, byte[] info, byte[] output, int offset, int outputLength) {
+    deriveSecrets(inputKeyMaterial, ZERO_SALT, info, output, offset, outputLength);
+  }
+
+  /**
+   * Derives key material, writing it into a caller-supplied buffer.  Apart from the
+   * key objects the JCA requires, this allocates nothing.
+   *
+   * @param inputKeyMaterial The input key material.
+   * @param salt The salt.
+   * @param info The context info, or null.
+   * @param output The buffer to write the derived key material into.
+   * @param offset The offset in the buffer to start writing at.
+   * @param outputLength The number of bytes to derive.
+   */
+  public void deriveSecrets(byte[] inputKeyMaterial, byte[] salt, byte[] info,
+                            byte[] output, int offset, int outputLength)
+  {
+    if (offset < 0 || outputLength < 0 || offset + outputLength > output.length) {
+      throw new IndexOutOfBoundsException("Output buffer too small: " + output.length + ", " + offset + ", " + outputLength);
+    }
+
+    byte[] scratch = SCRATCH.get();
+
+    extract(salt, inputKeyMaterial, scratch);
+    expand(scratch, info, output, offset, outputLength);
   }
 
-  private byte[] extract(byte[] salt, byte[] inputKeyMaterial) {
+  private void extract(byte[] salt, byte[] inputKeyMaterial, byte[] scratch) {
     try {
-      Mac mac = Mac.getInstance("HmacSHA256");
-      mac.init(new SecretKeySpec(salt, "HmacSHA256"));
-      return mac.doFinal(inputKeyMaterial);
-    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      Mac mac = CryptoPrimitives.getHmacSha256(salt);
+      mac.update(inputKeyMaterial);
+      mac.doFinal(scratch, 0);
+    } catch (ShortBufferException e) {
       throw new AssertionError(e);
     }
   }
 
-  private byte[] expand(byte[] prk, byte[] info, int outputSize) {
+  /**
+   * Expands the PRK held in the first half of the scratch buffer, using the second half
+   * to hold each block of output.
+   */
+  private void expand(byte[] scratch, byte[] info, byte[] output, int offset, int outputLength) {
     try {
-      int                   iterations     = (int) Math.ceil((double) outputSize / (double) HASH_OUTPUT_SIZE);
-      byte[]                mixin          = new byte[0];
-      ByteArrayOutputStream results        = new ByteArrayOutputStream();
-      int                   remainingBytes = outputSize;
+      Mac mac            = CryptoPrimitives.getHmacSha256(scratch, 0, HASH_OUTPUT_SIZE);
+      int iterations     = (outputLength + HASH_OUTPUT_SIZE - 1) / HASH_OUTPUT_SIZE;
+      int remainingBytes = outputLength;
 
-      for (int i= getIterationStartOffset();i<iterations + getIterationStartOffset();i++) {
-        Mac mac = Mac.getInstance("HmacSHA256");
-        mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+      for (int i=0;i<iterations;i++) {
+        if (i > 0) {
+          mac.update(scratch, HASH_OUTPUT_SIZE, HASH_OUTPUT_SIZE);
+        }
 
-        mac.update(mixin);
         if (info != null) {
           mac.update(info);
         }
-        mac.update((byte)i);
 
-        byte[] stepResult = mac.doFinal();
-        int    stepSize   = Math.min(remainingBytes, stepResult.length);
+        mac.update((byte)(i + getIterationStartOffset()));
+        mac.doFinal(scratch, HASH_OUTPUT_SIZE);
+
+        int stepSize = Math.min(remainingBytes, HASH_OUTPUT_SIZE);
 
-        results.write(stepResult, 0, stepSize);
+        System.arraycopy(scratch, HASH_OUTPUT_SIZE, output, offset, stepSize);
 
-        mixin          = stepResult;
+        offset         += stepSize;
         remainingBytes -= stepSize;
       }
-
-      return results.toByteArray();
-    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+    } catch (ShortBufferException e) {
       throw new AssertionError(e);
     }
   }
@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link ProtocolMetrics} that aggregates everything in memory: a latency histogram
+ * and counters per operation.  Clients can install one and export its values periodically.
+ */
+public class HistogramProtocolMetrics implements ProtocolMetrics {
+
+  private final LatencyHistogram[] latencies              = new LatencyHistogram[OPERATION_COUNT];
+  private final AtomicLongArray    skippedMessageKeys     = new AtomicLongArray(OPERATION_COUNT);
+  private final AtomicLongArray    duplicateMessages      = new AtomicLongArray(OPERATION_COUNT);
+  private final AtomicLongArray    invalidMessages        = new AtomicLongArray(OPERATION_COUNT);
+  private final AtomicLong         archivedStateFallbacks = new AtomicLong();
+  private final AtomicLong         archivedStatesTried    = new AtomicLong();
+
+  public HistogramProtocolMetrics() {
+    for (int i=0;i<OPERATION_COUNT;i++) {
+      latencies[i] = new LatencyHistogram();
+    }
+  }
+
+  @Override
+  public void recordLatency(int operation, long nanos) {
+    latencies[operation].record(nanos);
+  }
+
+  @Override
+  public void recordSkippedMessageKeys(int operation, int count) {
+    skippedMessageKeys.addAndGet(operation, count);
+  }
+
+  @Override
+  public void recordArchivedStateFallback(int statesTried) {
+    archivedStateFallbacks.incrementAndGet();
+    archivedStatesTried.addAndGet(statesTried);
+  }
+
+  @Override
+  public void recordDuplicateMessage(int operation) {
+    duplicateMessages.incrementAndGet(operation);
+  }
+
+  @Override
+  public void recordInvalidMessage(int operation) {
+    invalidMessages.incrementAndGet(operation);
+  }
+
+  public LatencyHistogram getLatency(int operation) {
+    return latencies[operation];
+  }
+
+  public long getSkippedMessageKeys(int operation) {
+    return skippedMessageKeys.get(operation);
+  }
+
+  public long getDuplicateMessages(int operation) {
+    return duplicateMessages.get(operation);
+  }
+
+  public long getInvalidMessages(int operation) {
+    return invalidMessages.get(operation);
+  }
+
+  public long getArchivedStateFallbacks() {
+    return archivedStateFallbacks.get();
+  }
+
+  public long getArchivedStatesTried() {
+    return archivedStatesTried.get();
+  }
+}
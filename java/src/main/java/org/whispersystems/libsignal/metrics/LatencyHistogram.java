@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations with power-of-two bucket boundaries.
+ *
+ * Bucket 0 counts zero durations, and bucket i counts durations in [2^(i-1), 2^i)
+ * nanoseconds.  Recording never allocates.
+ */
+public class LatencyHistogram {
+
+  public static final int BUCKET_COUNT = 65;
+
+  private final AtomicLongArray buckets    = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong      count      = new AtomicLong();
+  private final AtomicLong      totalNanos = new AtomicLong();
+
+  public void record(long nanos) {
+    if (nanos < 0) nanos = 0;
+
+    buckets.incrementAndGet(bucketFor(nanos));
+    count.incrementAndGet();
+    totalNanos.addAndGet(nanos);
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getTotalNanos() {
+    return totalNanos.get();
+  }
+
+  public long getBucketCount(int bucket) {
+    return buckets.get(bucket);
+  }
+
+  /**
+   * @return The exclusive upper bound, in nanoseconds, of the durations counted by a bucket.
+   */
+  public static long getBucketUpperBound(int bucket) {
+    return bucket >= 63 ? Long.MAX_VALUE : 1L << bucket;
+  }
+
+  /**
+   * @param percentile A value in (0, 100].
+   * @return An upper bound on the given percentile of recorded durations, or 0 if none
+   *         have been recorded.
+   */
+  public long getPercentile(double percentile) {
+    long[] snapshot = new long[BUCKET_COUNT];
+    long   total    = 0;
+
+    for (int i=0;i<BUCKET_COUNT;i++) {
+      snapshot[i] = buckets.get(i);
+      total      += snapshot[i];
+    }
+
+    long rank = (long)Math.ceil(total * percentile / 100);
+    long seen = 0;
+
+    for (int i=0;i<BUCKET_COUNT;i++) {
+      seen += snapshot[i];
+
+      if (seen >= rank && seen > 0) {
+        return getBucketUpperBound(i);
+      }
+    }
+
+    return 0;
+  }
+
+  private static int bucketFor(long nanos) {
+    return 64 - Long.numberOfLeadingZeros(nanos);
+  }
+}
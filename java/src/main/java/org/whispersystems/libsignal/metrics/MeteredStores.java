@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.metrics;
+
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.groups.SenderKeyName;
+import org.whispersystems.libsignal.groups.state.SenderKeyRecord;
+import org.whispersystems.libsignal.groups.state.SenderKeyStore;
+import org.whispersystems.libsignal.state.BatchSessionStore;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SessionStore;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Store calls made by the protocol, timed and reported to the installed {@link ProtocolMetrics}.
+ */
+public final class MeteredStores {
+
+  private MeteredStores() {}
+
+  public static SessionRecord loadSession(SessionStore store, SignalProtocolAddress address) {
+    long start = System.nanoTime();
+
+    try {
+      return store.loadSession(address);
+    } finally {
+      ProtocolMetricsProvider.getProvider().recordLatency(ProtocolMetrics.LOAD_SESSION, System.nanoTime() - start);
+    }
+  }
+
+  public static void storeSession(SessionStore store, SignalProtocolAddress address, SessionRecord record) {
+    long start = System.nanoTime();
+
+    try {
+      store.storeSession(address, record);
+    } finally {
+      ProtocolMetricsProvider.getProvider().recordLatency(ProtocolMetrics.STORE_SESSION, System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Loads several sessions, in one call if the store is a {@link BatchSessionStore}.  Each
+   * session is reported as one load, taking an equal share of the time.
+   */
+  public static Map<SignalProtocolAddress, SessionRecord> loadSessions(SessionStore store,
+                                                                       Collection<SignalProtocolAddress> addresses)
+  {
+    if (!(store instanceof BatchSessionStore)) {
+      Map<SignalProtocolAddress, SessionRecord> records = new HashMap<>();
+
+      for (SignalProtocolAddress address : addresses) {
+        records.put(address, loadSession(store, address));
+      }
+
+      return records;
+    }
+
+    long start = System.nanoTime();
+
+    try {
+      return ((BatchSessionStore) store).loadSessions(addresses);
+    } finally {
+      recordShares(ProtocolMetrics.LOAD_SESSION, System.nanoTime() - start, addresses.size());
+    }
+  }
+
+  /**
+   * Stores several sessions, in one call if the store is a {@link BatchSessionStore}.  Each
+   * session is reported as one store, taking an equal share of the time.
+   */
+  public static void storeSessions(SessionStore store, Map<SignalProtocolAddress, SessionRecord> records) {
+    if (!(store instanceof BatchSessionStore)) {
+      for (Map.Entry<SignalProtocolAddress, SessionRecord> record : records.entrySet()) {
+        storeSession(store, record.getKey(), record.getValue());
+      }
+
+      return;
+    }
+
+    long start = System.nanoTime();
+
+    try {
+      ((BatchSessionStore) store).storeSessions(records);
+    } finally {
+      recordShares(ProtocolMetrics.STORE_SESSION, System.nanoTime() - start, records.size());
+    }
+  }
+
+  public static SenderKeyRecord loadSenderKey(SenderKeyStore store, SenderKeyName senderKeyName) {
+    long start = System.nanoTime();
+
+    try {
+      return store.loadSenderKey(senderKeyName);
+    } finally {
+      ProtocolMetricsProvider.getProvider().recordLatency(ProtocolMetrics.LOAD_SENDER_KEY, System.nanoTime() - start);
+    }
+  }
+
+  public static void storeSenderKey(SenderKeyStore store, SenderKeyName senderKeyName, SenderKeyRecord record) {
+    long start = System.nanoTime();
+
+    try {
+      store.storeSenderKey(senderKeyName, record);
+    } finally {
+      ProtocolMetricsProvider.getProvider().recordLatency(ProtocolMetrics.STORE_SENDER_KEY, System.nanoTime() - start);
+    }
+  }
+
+  private static void recordShares(int operation, long nanos, int count) {
+    for (int i=0;i<count;i++) {
+      ProtocolMetricsProvider.getProvider().recordLatency(operation, nanos / count);
+    }
+  }
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.metrics;
+
+/**
+ * Receives measurements from protocol operations.  Install an implementation with
+ * {@link ProtocolMetricsProvider#setProvider(ProtocolMetrics)}.
+ *
+ * Methods are called synchronously on the thread performing the operation, often while it
+ * holds a session lock, so implementations must be thread safe and should not block.
+ */
+public interface ProtocolMetrics {
+
+  public static final int ENCRYPT                = 0;
+  public static final int DECRYPT                = 1;
+  public static final int DECRYPT_PRE_KEY        = 2;
+  public static final int PROCESS_PRE_KEY_BUNDLE = 3;
+  public static final int GROUP_ENCRYPT          = 4;
+  public static final int GROUP_DECRYPT          = 5;
+  public static final int LOAD_SESSION           = 6;
+  public static final int STORE_SESSION          = 7;
+  public static final int LOAD_SENDER_KEY        = 8;
+  public static final int STORE_SENDER_KEY       = 9;
+
+  public static final int OPERATION_COUNT        = 10;
+
+  /**
+   * @param operation The operation, one of the constants above.
+   * @param nanos How long it took, including time spent waiting for the session lock.
+   */
+  public void recordLatency(int operation, long nanos);
+
+  /**
+   * Called when a message arrives ahead of its chain, and message keys for the messages
+   * it skipped over are derived and stored.
+   *
+   * @param operation {@link #DECRYPT} or {@link #GROUP_DECRYPT}.
+   * @param count The number of message keys derived.
+   */
+  public void recordSkippedMessageKeys(int operation, int count);
+
+  /**
+   * Called when a message could not be decrypted with the current session state, but was
+   * decrypted with an archived one.
+   *
+   * @param statesTried The number of archived states attempted, including the one that succeeded.
+   */
+  public void recordArchivedStateFallback(int statesTried);
+
+  /**
+   * @param operation The decrypt operation that threw a {@link org.whispersystems.libsignal.DuplicateMessageException}.
+   */
+  public void recordDuplicateMessage(int operation);
+
+  /**
+   * @param operation The decrypt operation that threw an {@link org.whispersystems.libsignal.InvalidMessageException}.
+   */
+  public void recordInvalidMessage(int operation);
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.metrics;
+
+public class ProtocolMetricsProvider {
+
+  private static final ProtocolMetrics NO_OP = new NoOpProtocolMetrics();
+
+  private static volatile ProtocolMetrics provider = NO_OP;
+
+  /**
+   * @return The installed metrics implementation, or one that discards everything.  Never null.
+   */
+  public static ProtocolMetrics getProvider() {
+    return provider;
+  }
+
+  /**
+   * @param provider The metrics implementation to report to, or null to stop reporting.
+   */
+  public static void setProvider(ProtocolMetrics provider) {
+    ProtocolMetricsProvider.provider = provider != null ? provider : NO_OP;
+  }
+
+  private static class NoOpProtocolMetrics implements ProtocolMetrics {
+    @Override
+    public void recordLatency(int operation, long nanos) {}
+
+    @Override
+    public void recordSkippedMessageKeys(int operation, int count) {}
+
+    @Override
+    public void recordArchivedStateFallback(int statesTried) {}
+
+    @Override
+    public void recordDuplicateMessage(int operation) {}
+
+    @Override
+    public void recordInvalidMessage(int operation) {}
+  }
+}
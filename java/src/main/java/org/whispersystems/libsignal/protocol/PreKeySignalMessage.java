@@ -5,22 +5,45 @@
  */
 package org.whispersystems.libsignal.protocol;
 
-import com.google.protobuf.ByteString;
-import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
 
 import org.whispersystems.libsignal.IdentityKey;
 import org.whispersystems.libsignal.InvalidKeyException;
 import org.whispersystems.libsignal.InvalidMessageException;
 import org.whispersystems.libsignal.InvalidVersionException;
 import org.whispersystems.libsignal.LegacyMessageException;
-import org.whispersystems.libsignal.ecc.Curve;
 import org.whispersystems.libsignal.ecc.ECPublicKey;
 import org.whispersystems.libsignal.util.ByteUtil;
 import org.whispersystems.libsignal.util.guava.Optional;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
+/**
+ * The first message of a session.
+ *
+ * As with {@link SignalMessage}, parsing views the wire bytes in place, and the embedded
+ * {@link SignalMessage} is a view over the same buffer.
+ */
 public class PreKeySignalMessage implements CiphertextMessage {
 
+  static final int PRE_KEY_ID_FIELD        = 1;
+  static final int BASE_KEY_FIELD          = 2;
+  static final int IDENTITY_KEY_FIELD      = 3;
+  static final int MESSAGE_FIELD           = 4;
+  static final int REGISTRATION_ID_FIELD   = 5;
+  static final int SIGNED_PRE_KEY_ID_FIELD = 6;
+
+  static final int PRE_KEY_ID_TAG        = tag(PRE_KEY_ID_FIELD, WireFormat.WIRETYPE_VARINT);
+  static final int BASE_KEY_TAG          = tag(BASE_KEY_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+  static final int IDENTITY_KEY_TAG      = tag(IDENTITY_KEY_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+  static final int MESSAGE_TAG           = tag(MESSAGE_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+  static final int REGISTRATION_ID_TAG   = tag(REGISTRATION_ID_FIELD, WireFormat.WIRETYPE_VARINT);
+  static final int SIGNED_PRE_KEY_ID_TAG = tag(SIGNED_PRE_KEY_ID_FIELD, WireFormat.WIRETYPE_VARINT);
+
   private final int               version;
   private final int               registrationId;
   private final Optional<Integer> preKeyId;
@@ -28,13 +51,41 @@ public class PreKeySignalMessage implements CiphertextMessage {
   private final ECPublicKey       baseKey;
   private final IdentityKey       identityKey;
   private final SignalMessage     message;
-  private final byte[]            serialized;
+  private final byte[]            buffer;
+  private final int               offset;
+  private final int               length;
+
+  private byte[] serialized;
 
   public PreKeySignalMessage(byte[] serialized)
       throws InvalidMessageException, InvalidVersionException
+  {
+    this(serialized, 0, serialized.length);
+  }
+
+  /**
+   * Parses a message from a buffer without copying it.  Only a heap buffer with an
+   * accessible array can be viewed in place; the remaining bytes of any other buffer
+   * are copied once.  The buffer's position is not changed.
+   */
+  public PreKeySignalMessage(ByteBuffer serialized)
+      throws InvalidMessageException, InvalidVersionException
+  {
+    this(SignalMessage.arrayOf(serialized), SignalMessage.arrayOffsetOf(serialized), serialized.remaining());
+  }
+
+  /**
+   * Parses a message from a region of a buffer without copying it.
+   */
+  public PreKeySignalMessage(byte[] buffer, int offset, int length)
+      throws InvalidMessageException, InvalidVersionException
   {
     try {
-      this.version = ByteUtil.highBitsToInt(serialized[0]);
+      if (length < 1) {
+        throw new InvalidMessageException("Empty message.");
+      }
+
+      this.version = ByteUtil.highBitsToInt(buffer[offset]);
 
       if (this.version > CiphertextMessage.CURRENT_VERSION) {
         throw new InvalidVersionException("Unknown version: " + this.version);
@@ -44,26 +95,65 @@ public class PreKeySignalMessage implements CiphertextMessage {
         throw new LegacyMessageException("Legacy version: " + this.version);
       }
 
-      SignalProtos.PreKeySignalMessage preKeyWhisperMessage
-          = SignalProtos.PreKeySignalMessage.parseFrom(ByteString.copyFrom(serialized, 1,
-                                                                           serialized.length-1));
+      CodedInputStream input              = CodedInputStream.newInstance(buffer, offset + 1, length - 1);
+      int              registrationId     = 0;
+      Integer          preKeyId           = null;
+      boolean          hasSignedPreKeyId  = false;
+      int              signedPreKeyId     = -1;
+      int              baseKeyOffset      = -1;
+      int              baseKeyLength      = 0;
+      int              identityKeyOffset  = -1;
+      int              identityKeyLength  = 0;
+      int              messageOffset      = -1;
+      int              messageLength      = 0;
 
-      if (!preKeyWhisperMessage.hasSignedPreKeyId()  ||
-          !preKeyWhisperMessage.hasBaseKey()         ||
-          !preKeyWhisperMessage.hasIdentityKey()     ||
-          !preKeyWhisperMessage.hasMessage())
+      while (true) {
+        int tag = input.readTag();
+
+        if (tag == 0) {
+          break;
+        } else if (tag == PRE_KEY_ID_TAG) {
+          preKeyId = input.readUInt32();
+        } else if (tag == BASE_KEY_TAG) {
+          baseKeyLength = input.readRawVarint32();
+          baseKeyOffset = offset + 1 + input.getTotalBytesRead();
+          input.skipRawBytes(baseKeyLength);
+        } else if (tag == IDENTITY_KEY_TAG) {
+          identityKeyLength = input.readRawVarint32();
+          identityKeyOffset = offset + 1 + input.getTotalBytesRead();
+          input.skipRawBytes(identityKeyLength);
+        } else if (tag == MESSAGE_TAG) {
+          messageLength = input.readRawVarint32();
+          messageOffset = offset + 1 + input.getTotalBytesRead();
+          input.skipRawBytes(messageLength);
+        } else if (tag == REGISTRATION_ID_TAG) {
+          registrationId = input.readUInt32();
+        } else if (tag == SIGNED_PRE_KEY_ID_TAG) {
+          signedPreKeyId    = input.readUInt32();
+          hasSignedPreKeyId = true;
+        } else if (!input.skipField(tag)) {
+          break;
+        }
+      }
+
+      if (!hasSignedPreKeyId      ||
+          baseKeyOffset == -1     ||
+          identityKeyOffset == -1 ||
+          messageOffset == -1)
       {
         throw new InvalidMessageException("Incomplete message.");
       }
 
-      this.serialized     = serialized;
-      this.registrationId = preKeyWhisperMessage.getRegistrationId();
-      this.preKeyId       = preKeyWhisperMessage.hasPreKeyId() ? Optional.of(preKeyWhisperMessage.getPreKeyId()) : Optional.<Integer>absent();
-      this.signedPreKeyId = preKeyWhisperMessage.hasSignedPreKeyId() ? preKeyWhisperMessage.getSignedPreKeyId() : -1;
-      this.baseKey        = Curve.decodePoint(preKeyWhisperMessage.getBaseKey().toByteArray(), 0);
-      this.identityKey    = new IdentityKey(Curve.decodePoint(preKeyWhisperMessage.getIdentityKey().toByteArray(), 0));
-      this.message        = new SignalMessage(preKeyWhisperMessage.getMessage().toByteArray());
-    } catch (InvalidProtocolBufferException | InvalidKeyException | LegacyMessageException e) {
+      this.buffer         = buffer;
+      this.offset         = offset;
+      this.length         = length;
+      this.registrationId = registrationId;
+      this.preKeyId       = Optional.fromNullable(preKeyId);
+      this.signedPreKeyId = signedPreKeyId;
+      this.baseKey        = SignalMessage.decodePoint(buffer, baseKeyOffset, baseKeyLength);
+      this.identityKey    = new IdentityKey(SignalMessage.decodePoint(buffer, identityKeyOffset, identityKeyLength));
+      this.message        = new SignalMessage(buffer, messageOffset, messageLength);
+    } catch (IOException | InvalidKeyException | LegacyMessageException e) {
       throw new InvalidMessageException(e);
     }
   }
@@ -80,22 +170,43 @@ public class PreKeySignalMessage implements CiphertextMessage {
     this.identityKey    = identityKey;
     this.message        = message;
 
-    SignalProtos.PreKeySignalMessage.Builder builder =
-        SignalProtos.PreKeySignalMessage.newBuilder()
-                                        .setSignedPreKeyId(signedPreKeyId)
-                                        .setBaseKey(ByteString.copyFrom(baseKey.serialize()))
-                                        .setIdentityKey(ByteString.copyFrom(identityKey.serialize()))
-                                        .setMessage(ByteString.copyFrom(message.serialize()))
-                                        .setRegistrationId(registrationId);
+    try {
+      byte[] baseKeyBytes     = baseKey.serialize();
+      byte[] identityKeyBytes = identityKey.serialize();
+      byte[] messageBytes     = message.serialize();
+      int    messageLength    = CodedOutputStream.computeByteArraySize(BASE_KEY_FIELD, baseKeyBytes)         +
+                                CodedOutputStream.computeByteArraySize(IDENTITY_KEY_FIELD, identityKeyBytes) +
+                                CodedOutputStream.computeByteArraySize(MESSAGE_FIELD, messageBytes)          +
+                                CodedOutputStream.computeUInt32Size(REGISTRATION_ID_FIELD, registrationId)   +
+                                CodedOutputStream.computeUInt32Size(SIGNED_PRE_KEY_ID_FIELD, signedPreKeyId);
+
+      if (preKeyId.isPresent()) {
+        messageLength += CodedOutputStream.computeUInt32Size(PRE_KEY_ID_FIELD, preKeyId.get());
+      }
 
-    if (preKeyId.isPresent()) {
-      builder.setPreKeyId(preKeyId.get());
-    }
+      byte[]            serialized = new byte[1 + messageLength];
+      CodedOutputStream output     = CodedOutputStream.newInstance(serialized, 1, messageLength);
 
-    byte[] versionBytes = {ByteUtil.intsToByteHighAndLow(this.version, CURRENT_VERSION)};
-    byte[] messageBytes = builder.build().toByteArray();
+      serialized[0] = ByteUtil.intsToByteHighAndLow(this.version, CURRENT_VERSION);
 
-    this.serialized = ByteUtil.combine(versionBytes, messageBytes);
+      if (preKeyId.isPresent()) {
+        output.writeUInt32(PRE_KEY_ID_FIELD, preKeyId.get());
+      }
+
+      output.writeByteArray(BASE_KEY_FIELD, baseKeyBytes);
+      output.writeByteArray(IDENTITY_KEY_FIELD, identityKeyBytes);
+      output.writeByteArray(MESSAGE_FIELD, messageBytes);
+      output.writeUInt32(REGISTRATION_ID_FIELD, registrationId);
+      output.writeUInt32(SIGNED_PRE_KEY_ID_FIELD, signedPreKeyId);
+      output.checkNoSpaceLeft();
+
+      this.buffer     = serialized;
+      this.offset     = 0;
+      this.length     = serialized.length;
+      this.serialized = serialized;
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
   }
 
   public int getMessageVersion() {
@@ -128,6 +239,11 @@ public class PreKeySignalMessage implements CiphertextMessage {
 
   @Override
   public byte[] serialize() {
+    if (serialized == null) {
+      if (offset == 0 && length == buffer.length) serialized = buffer;
+      else                                        serialized = Arrays.copyOfRange(buffer, offset, offset + length);
+    }
+
     return serialized;
   }
 
@@ -136,4 +252,8 @@ public class PreKeySignalMessage implements CiphertextMessage {
     return CiphertextMessage.PREKEY_TYPE;
   }
 
+  private static int tag(int fieldNumber, int wireType) {
+    return (fieldNumber << 3) | wireType;
+  }
+
 }
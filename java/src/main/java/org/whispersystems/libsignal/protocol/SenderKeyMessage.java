@@ -5,8 +5,8 @@
  */
 package org.whispersystems.libsignal.protocol;
 
-import com.google.protobuf.ByteString;
-import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
 
 import org.whispersystems.libsignal.InvalidKeyException;
 import org.whispersystems.libsignal.InvalidMessageException;
@@ -16,67 +16,127 @@ import org.whispersystems.libsignal.ecc.ECPrivateKey;
 import org.whispersystems.libsignal.ecc.ECPublicKey;
 import org.whispersystems.libsignal.util.ByteUtil;
 
-import java.text.ParseException;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 
+/**
+ * A group message.
+ *
+ * The message is a view over its wire bytes, which may be held in a heap or a direct
+ * {@link ByteBuffer}: parsing records where the ciphertext lies rather than copying it
+ * out.  The buffer must not be modified while the message is in use.
+ *
+ * Signing and verifying are the exception.  The curve25519 implementation only accepts
+ * whole arrays, so the signed portion of the message is copied to the heap for each.
+ */
 public class SenderKeyMessage implements CiphertextMessage {
 
   private static final int SIGNATURE_LENGTH = 64;
 
+  private static final int ID_FIELD         = 1;
+  private static final int ITERATION_FIELD  = 2;
+  private static final int CIPHERTEXT_FIELD = 3;
+
+  private static final int ID_TAG         = tag(ID_FIELD, WireFormat.WIRETYPE_VARINT);
+  private static final int ITERATION_TAG  = tag(ITERATION_FIELD, WireFormat.WIRETYPE_VARINT);
+  private static final int CIPHERTEXT_TAG = tag(CIPHERTEXT_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+
   private final int         messageVersion;
   private final int         keyId;
   private final int         iteration;
-  private final byte[]      ciphertext;
-  private final byte[]      serialized;
+  private final ByteBuffer  buffer;
+  private final int         ciphertextOffset;
+  private final int         ciphertextLength;
+
+  private byte[] ciphertext;
+  private byte[] serialized;
 
   public SenderKeyMessage(byte[] serialized) throws InvalidMessageException, LegacyMessageException {
-    try {
-      byte[][] messageParts = ByteUtil.split(serialized, 1, serialized.length - 1 - SIGNATURE_LENGTH, SIGNATURE_LENGTH);
-      byte     version      = messageParts[0][0];
-      byte[]   message      = messageParts[1];
-      byte[]   signature    = messageParts[2];
+    this(ByteBuffer.wrap(serialized));
+  }
 
-      if (ByteUtil.highBitsToInt(version) < 3) {
-        throw new LegacyMessageException("Legacy message: " + ByteUtil.highBitsToInt(version));
-      }
+  /**
+   * Parses a message from the remaining bytes of a buffer, without copying them.  The
+   * buffer's position is not changed.
+   */
+  public SenderKeyMessage(ByteBuffer serialized) throws InvalidMessageException, LegacyMessageException {
+    ByteBuffer buffer = serialized.slice();
+    int        length = buffer.remaining();
 
-      if (ByteUtil.highBitsToInt(version) > CURRENT_VERSION) {
-        throw new InvalidMessageException("Unknown version: " + ByteUtil.highBitsToInt(version));
-      }
+    if (length < 1 + SIGNATURE_LENGTH) {
+      throw new InvalidMessageException("Message too short: " + length);
+    }
+
+    byte version = buffer.get(0);
+
+    if (ByteUtil.highBitsToInt(version) < 3) {
+      throw new LegacyMessageException("Legacy message: " + ByteUtil.highBitsToInt(version));
+    }
+
+    if (ByteUtil.highBitsToInt(version) > CURRENT_VERSION) {
+      throw new InvalidMessageException("Unknown version: " + ByteUtil.highBitsToInt(version));
+    }
 
-      SignalProtos.SenderKeyMessage senderKeyMessage = SignalProtos.SenderKeyMessage.parseFrom(message);
+    ByteBuffer input            = buffer.duplicate();
+    boolean    hasId            = false;
+    boolean    hasIteration     = false;
+    int        keyId            = 0;
+    int        iteration        = 0;
+    int        ciphertextOffset = -1;
+    int        ciphertextLength = 0;
 
-      if (!senderKeyMessage.hasId() ||
-          !senderKeyMessage.hasIteration() ||
-          !senderKeyMessage.hasCiphertext())
-      {
-        throw new InvalidMessageException("Incomplete message.");
+    input.limit(length - SIGNATURE_LENGTH).position(1);
+
+    while (input.hasRemaining()) {
+      int tag = (int)readVarint(input);
+
+      if (tag == ID_TAG) {
+        keyId = (int)readVarint(input);
+        hasId = true;
+      } else if (tag == ITERATION_TAG) {
+        iteration    = (int)readVarint(input);
+        hasIteration = true;
+      } else if (tag == CIPHERTEXT_TAG) {
+        ciphertextLength = readLength(input);
+        ciphertextOffset = input.position();
+        skip(input, ciphertextLength);
+      } else {
+        skipField(input, tag);
       }
+    }
 
-      this.serialized     = serialized;
-      this.messageVersion = ByteUtil.highBitsToInt(version);
-      this.keyId          = senderKeyMessage.getId();
-      this.iteration      = senderKeyMessage.getIteration();
-      this.ciphertext     = senderKeyMessage.getCiphertext().toByteArray();
-    } catch (InvalidProtocolBufferException | ParseException e) {
-      throw new InvalidMessageException(e);
+    if (!hasId || !hasIteration || ciphertextOffset == -1) {
+      throw new InvalidMessageException("Incomplete message.");
     }
+
+    this.buffer           = buffer;
+    this.messageVersion   = ByteUtil.highBitsToInt(version);
+    this.keyId            = keyId;
+    this.iteration        = iteration;
+    this.ciphertextOffset = ciphertextOffset;
+    this.ciphertextLength = ciphertextLength;
   }
 
   public SenderKeyMessage(int keyId, int iteration, byte[] ciphertext, ECPrivateKey signatureKey) {
-    byte[] version = {ByteUtil.intsToByteHighAndLow(CURRENT_VERSION, CURRENT_VERSION)};
-    byte[] message = SignalProtos.SenderKeyMessage.newBuilder()
-                                                  .setId(keyId)
-                                                  .setIteration(iteration)
-                                                  .setCiphertext(ByteString.copyFrom(ciphertext))
-                                                  .build().toByteArray();
+    byte[]     serialized  = new byte[getSerializedLength(keyId, iteration, ciphertext.length)];
+    ByteBuffer destination = ByteBuffer.wrap(serialized);
+
+    writeHeader(destination, keyId, iteration, ciphertext.length);
 
-    byte[] signature = getSignature(signatureKey, ByteUtil.combine(version, message));
+    int ciphertextOffset = destination.position();
 
-    this.serialized       = ByteUtil.combine(version, message, signature);
+    destination.put(ciphertext);
+    writeSignature(destination, 0, signatureKey);
+
+    this.buffer           = ByteBuffer.wrap(serialized);
+    this.serialized       = serialized;
     this.messageVersion   = CURRENT_VERSION;
     this.keyId            = keyId;
     this.iteration        = iteration;
     this.ciphertext       = ciphertext;
+    this.ciphertextOffset = ciphertextOffset;
+    this.ciphertextLength = ciphertext.length;
   }
 
   public int getKeyId() {
@@ -88,16 +148,40 @@ public class SenderKeyMessage implements CiphertextMessage {
   }
 
   public byte[] getCipherText() {
+    if (ciphertext == null) {
+      ciphertext = new byte[ciphertextLength];
+      getCipherTextBuffer().get(ciphertext);
+    }
+
     return ciphertext;
   }
 
+  /**
+   * @return A view of the ciphertext within the message's wire bytes, which must not be modified.
+   */
+  public ByteBuffer getCipherTextBuffer() {
+    ByteBuffer view = buffer.duplicate();
+    view.limit(ciphertextOffset + ciphertextLength).position(ciphertextOffset);
+
+    return view.slice();
+  }
+
+  /**
+   * Verifies the message's signature.  The signed portion of the message is copied to the
+   * heap to do so.
+   */
   public void verifySignature(ECPublicKey signatureKey)
       throws InvalidMessageException
   {
     try {
-      byte[][] parts    = ByteUtil.split(serialized, serialized.length - SIGNATURE_LENGTH, SIGNATURE_LENGTH);
+      byte[]     message   = new byte[buffer.limit() - SIGNATURE_LENGTH];
+      byte[]     signature = new byte[SIGNATURE_LENGTH];
+      ByteBuffer view      = buffer.duplicate();
 
-      if (!Curve.verifySignature(signatureKey, parts[0], parts[1])) {
+      view.position(0);
+      view.get(message).get(signature);
+
+      if (!Curve.verifySignature(signatureKey, message, signature)) {
         throw new InvalidMessageException("Invalid signature!");
       }
 
@@ -106,16 +190,19 @@ public class SenderKeyMessage implements CiphertextMessage {
     }
   }
 
-  private byte[] getSignature(ECPrivateKey signatureKey, byte[] serialized) {
-    try {
-      return Curve.calculateSignature(signatureKey, serialized);
-    } catch (InvalidKeyException e) {
-      throw new AssertionError(e);
-    }
-  }
-
   @Override
   public byte[] serialize() {
+    if (serialized == null) {
+      if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.limit() == buffer.array().length) {
+        serialized = buffer.array();
+      } else {
+        serialized = new byte[buffer.limit()];
+        ByteBuffer view = buffer.duplicate();
+        view.position(0);
+        view.get(serialized);
+      }
+    }
+
     return serialized;
   }
 
@@ -123,4 +210,123 @@ public class SenderKeyMessage implements CiphertextMessage {
   public int getType() {
     return CiphertextMessage.SENDERKEY_TYPE;
   }
+
+  /**
+   * @return The length of a serialized message carrying a ciphertext of the given length.
+   */
+  public static int getSerializedLength(int keyId, int iteration, int ciphertextLength) {
+    return getHeaderLength(keyId, iteration, ciphertextLength) + ciphertextLength + SIGNATURE_LENGTH;
+  }
+
+  /**
+   * Writes the version and fields of a message up to its ciphertext at the buffer's
+   * position, leaving the position where the ciphertext belongs.  Together with
+   * {@link #writeSignature}, this serializes a message around ciphertext written directly
+   * into the buffer.
+   *
+   * @throws BufferOverflowException If the buffer can't hold the whole message.
+   */
+  public static void writeHeader(ByteBuffer destination, int keyId, int iteration, int ciphertextLength) {
+    if (destination.remaining() < getSerializedLength(keyId, iteration, ciphertextLength)) {
+      throw new BufferOverflowException();
+    }
+
+    try {
+      byte[]            header = new byte[getHeaderLength(keyId, iteration, ciphertextLength)];
+      CodedOutputStream output = CodedOutputStream.newInstance(header, 1, header.length - 1);
+
+      header[0] = ByteUtil.intsToByteHighAndLow(CURRENT_VERSION, CURRENT_VERSION);
+
+      output.writeUInt32(ID_FIELD, keyId);
+      output.writeUInt32(ITERATION_FIELD, iteration);
+      output.writeTag(CIPHERTEXT_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+      output.writeUInt32NoTag(ciphertextLength);
+      output.checkNoSpaceLeft();
+
+      destination.put(header);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Signs the message that starts at the given offset in the buffer and ends at its
+   * position, and appends the signature.  The signed portion of the message is copied
+   * to the heap to do so.
+   */
+  public static void writeSignature(ByteBuffer destination, int offset, ECPrivateKey signatureKey) {
+    try {
+      byte[]     message = new byte[destination.position() - offset];
+      ByteBuffer view    = destination.duplicate();
+
+      view.position(offset);
+      view.get(message);
+
+      destination.put(Curve.calculateSignature(signatureKey, message));
+    } catch (InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static int getHeaderLength(int keyId, int iteration, int ciphertextLength) {
+    return 1 + CodedOutputStream.computeUInt32Size(ID_FIELD, keyId)            +
+           CodedOutputStream.computeUInt32Size(ITERATION_FIELD, iteration)     +
+           CodedOutputStream.computeTagSize(CIPHERTEXT_FIELD)                  +
+           CodedOutputStream.computeUInt32SizeNoTag(ciphertextLength);
+  }
+
+  private static long readVarint(ByteBuffer input) throws InvalidMessageException {
+    long result = 0;
+
+    for (int shift=0;shift<64;shift+=7) {
+      if (!input.hasRemaining()) {
+        throw new InvalidMessageException("Truncated message");
+      }
+
+      int value = input.get();
+      result |= (long)(value & 0x7F) << shift;
+
+      if ((value & 0x80) == 0) {
+        return result;
+      }
+    }
+
+    throw new InvalidMessageException("Malformed varint");
+  }
+
+  private static int readLength(ByteBuffer input) throws InvalidMessageException {
+    long length = readVarint(input);
+
+    if (length < 0 || length > input.remaining()) {
+      throw new InvalidMessageException("Bad field length: " + length);
+    }
+
+    return (int)length;
+  }
+
+  private static void skip(ByteBuffer input, int length) throws InvalidMessageException {
+    if (length > input.remaining()) {
+      throw new InvalidMessageException("Truncated message");
+    }
+
+    input.position(input.position() + length);
+  }
+
+  private static void skipField(ByteBuffer input, int tag) throws InvalidMessageException {
+    if (WireFormat.getTagFieldNumber(tag) == 0) {
+      throw new InvalidMessageException("Invalid tag: " + tag);
+    }
+
+    switch (WireFormat.getTagWireType(tag)) {
+      case WireFormat.WIRETYPE_VARINT:           readVarint(input);             break;
+      case WireFormat.WIRETYPE_FIXED64:          skip(input, 8);                break;
+      case WireFormat.WIRETYPE_FIXED32:          skip(input, 4);                break;
+      case WireFormat.WIRETYPE_LENGTH_DELIMITED: skip(input, readLength(input)); break;
+      default: throw new InvalidMessageException("Unsupported wire type: " + tag);
+    }
+  }
+
+  private static int tag(int fieldNumber, int wireType) {
+    return (fieldNumber << 3) | wireType;
+  }
 }
@@ -5,8 +5,9 @@
  */
 package org.whispersystems.libsignal.protocol;
 
-import com.google.protobuf.ByteString;
-import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
 
 import org.whispersystems.libsignal.IdentityKey;
 import org.whispersystems.libsignal.InvalidKeyException;
@@ -15,31 +16,75 @@ import org.whispersystems.libsignal.LegacyMessageException;
 import org.whispersystems.libsignal.ecc.Curve;
 import org.whispersystems.libsignal.ecc.ECPublicKey;
 import org.whispersystems.libsignal.util.ByteUtil;
+import org.whispersystems.libsignal.util.CryptoPrimitives;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.text.ParseException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 
+/**
+ * A message in an established session.
+ *
+ * The message is a view over its wire bytes: parsing records where the ratchet key and
+ * ciphertext lie rather than copying them out, and the MAC is computed over the buffer in
+ * place.  A message parsed from part of a larger buffer keeps a reference to that buffer,
+ * which must not be modified while the message is in use.
+ */
 public class SignalMessage implements CiphertextMessage {
 
-  private static final int MAC_LENGTH = 8;
+  static final int MAC_LENGTH = 8;
+
+  static final int RATCHET_KEY_FIELD      = 1;
+  static final int COUNTER_FIELD          = 2;
+  static final int PREVIOUS_COUNTER_FIELD = 3;
+  static final int CIPHERTEXT_FIELD       = 4;
+
+  static final int RATCHET_KEY_TAG      = tag(RATCHET_KEY_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+  static final int COUNTER_TAG          = tag(COUNTER_FIELD, WireFormat.WIRETYPE_VARINT);
+  static final int PREVIOUS_COUNTER_TAG = tag(PREVIOUS_COUNTER_FIELD, WireFormat.WIRETYPE_VARINT);
+  static final int CIPHERTEXT_TAG       = tag(CIPHERTEXT_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED);
 
   private final int         messageVersion;
   private final ECPublicKey senderRatchetKey;
   private final int         counter;
   private final int         previousCounter;
-  private final byte[]      ciphertext;
-  private final byte[]      serialized;
+  private final byte[]      buffer;
+  private final int         offset;
+  private final int         length;
+  private final int         bodyOffset;
+  private final int         bodyLength;
+
+  private byte[] ciphertext;
+  private byte[] serialized;
 
   public SignalMessage(byte[] serialized) throws InvalidMessageException, LegacyMessageException {
+    this(serialized, 0, serialized.length);
+  }
+
+  /**
+   * Parses a message from a buffer without copying it.  Only a heap buffer with an
+   * accessible array can be viewed in place; the remaining bytes of any other buffer
+   * are copied once.  The buffer's position is not changed.
+   */
+  public SignalMessage(ByteBuffer serialized) throws InvalidMessageException, LegacyMessageException {
+    this(arrayOf(serialized), arrayOffsetOf(serialized), serialized.remaining());
+  }
+
+  /**
+   * Parses a message from a region of a buffer without copying it.
+   */
+  public SignalMessage(byte[] buffer, int offset, int length)
+      throws InvalidMessageException, LegacyMessageException
+  {
     try {
-      byte[][] messageParts = ByteUtil.split(serialized, 1, serialized.length - 1 - MAC_LENGTH, MAC_LENGTH);
-      byte     version      = messageParts[0][0];
-      byte[]   message      = messageParts[1];
-      byte[]   mac          = messageParts[2];
+      if (length < 1 + MAC_LENGTH) {
+        throw new InvalidMessageException("Message too short: " + length);
+      }
+
+      byte version = buffer[offset];
 
       if (ByteUtil.highBitsToInt(version) < CURRENT_VERSION) {
         throw new LegacyMessageException("Legacy message: " + ByteUtil.highBitsToInt(version));
@@ -49,22 +94,52 @@ public class SignalMessage implements CiphertextMessage {
         throw new InvalidMessageException("Unknown version: " + ByteUtil.highBitsToInt(version));
       }
 
-      SignalProtos.SignalMessage whisperMessage = SignalProtos.SignalMessage.parseFrom(message);
+      CodedInputStream input            = CodedInputStream.newInstance(buffer, offset + 1, length - 1 - MAC_LENGTH);
+      int              ratchetKeyOffset = -1;
+      int              ratchetKeyLength = 0;
+      int              bodyOffset       = -1;
+      int              bodyLength       = 0;
+      boolean          hasCounter       = false;
+      int              counter          = 0;
+      int              previousCounter  = 0;
+
+      while (true) {
+        int tag = input.readTag();
+
+        if (tag == 0) {
+          break;
+        } else if (tag == RATCHET_KEY_TAG) {
+          ratchetKeyLength = input.readRawVarint32();
+          ratchetKeyOffset = offset + 1 + input.getTotalBytesRead();
+          input.skipRawBytes(ratchetKeyLength);
+        } else if (tag == COUNTER_TAG) {
+          counter    = input.readUInt32();
+          hasCounter = true;
+        } else if (tag == PREVIOUS_COUNTER_TAG) {
+          previousCounter = input.readUInt32();
+        } else if (tag == CIPHERTEXT_TAG) {
+          bodyLength = input.readRawVarint32();
+          bodyOffset = offset + 1 + input.getTotalBytesRead();
+          input.skipRawBytes(bodyLength);
+        } else if (!input.skipField(tag)) {
+          break;
+        }
+      }
 
-      if (!whisperMessage.hasCiphertext() ||
-          !whisperMessage.hasCounter() ||
-          !whisperMessage.hasRatchetKey())
-      {
+      if (bodyOffset == -1 || !hasCounter || ratchetKeyOffset == -1) {
         throw new InvalidMessageException("Incomplete message.");
       }
 
-      this.serialized       = serialized;
-      this.senderRatchetKey = Curve.decodePoint(whisperMessage.getRatchetKey().toByteArray(), 0);
+      this.buffer           = buffer;
+      this.offset           = offset;
+      this.length           = length;
+      this.senderRatchetKey = decodePoint(buffer, ratchetKeyOffset, ratchetKeyLength);
       this.messageVersion   = ByteUtil.highBitsToInt(version);
-      this.counter          = whisperMessage.getCounter();
-      this.previousCounter  = whisperMessage.getPreviousCounter();
-      this.ciphertext       = whisperMessage.getCiphertext().toByteArray();
-    } catch (InvalidProtocolBufferException | InvalidKeyException | ParseException e) {
+      this.counter          = counter;
+      this.previousCounter  = previousCounter;
+      this.bodyOffset       = bodyOffset;
+      this.bodyLength       = bodyLength;
+    } catch (IOException | InvalidKeyException e) {
       throw new InvalidMessageException(e);
     }
   }
@@ -74,22 +149,40 @@ public class SignalMessage implements CiphertextMessage {
                        IdentityKey senderIdentityKey,
                        IdentityKey receiverIdentityKey)
   {
-    byte[] version = {ByteUtil.intsToByteHighAndLow(messageVersion, CURRENT_VERSION)};
-    byte[] message = SignalProtos.SignalMessage.newBuilder()
-                                               .setRatchetKey(ByteString.copyFrom(senderRatchetKey.serialize()))
-                                               .setCounter(counter)
-                                               .setPreviousCounter(previousCounter)
-                                               .setCiphertext(ByteString.copyFrom(ciphertext))
-                                               .build().toByteArray();
+    try {
+      byte[] ratchetKey    = senderRatchetKey.serialize();
+      int    messageLength = CodedOutputStream.computeByteArraySize(RATCHET_KEY_FIELD, ratchetKey)  +
+                             CodedOutputStream.computeUInt32Size(COUNTER_FIELD, counter)             +
+                             CodedOutputStream.computeUInt32Size(PREVIOUS_COUNTER_FIELD, previousCounter) +
+                             CodedOutputStream.computeByteArraySize(CIPHERTEXT_FIELD, ciphertext);
+      byte[]            serialized = new byte[1 + messageLength + MAC_LENGTH];
+      CodedOutputStream output     = CodedOutputStream.newInstance(serialized, 1, messageLength);
 
-    byte[] mac     = getMac(senderIdentityKey, receiverIdentityKey, macKey, ByteUtil.combine(version, message));
+      serialized[0] = ByteUtil.intsToByteHighAndLow(messageVersion, CURRENT_VERSION);
 
-    this.serialized       = ByteUtil.combine(version, message, mac);
-    this.senderRatchetKey = senderRatchetKey;
-    this.counter          = counter;
-    this.previousCounter  = previousCounter;
-    this.ciphertext       = ciphertext;
-    this.messageVersion   = messageVersion;
+      output.writeByteArray(RATCHET_KEY_FIELD, ratchetKey);
+      output.writeUInt32(COUNTER_FIELD, counter);
+      output.writeUInt32(PREVIOUS_COUNTER_FIELD, previousCounter);
+      output.writeByteArray(CIPHERTEXT_FIELD, ciphertext);
+      output.checkNoSpaceLeft();
+
+      byte[] mac = getMac(senderIdentityKey, receiverIdentityKey, macKey, serialized, 0, 1 + messageLength);
+      System.arraycopy(mac, 0, serialized, 1 + messageLength, MAC_LENGTH);
+
+      this.buffer           = serialized;
+      this.offset           = 0;
+      this.length           = serialized.length;
+      this.serialized       = serialized;
+      this.senderRatchetKey = senderRatchetKey;
+      this.counter          = counter;
+      this.previousCounter  = previousCounter;
+      this.ciphertext       = ciphertext;
+      this.bodyOffset       = 1 + messageLength - ciphertext.length;
+      this.bodyLength       = ciphertext.length;
+      this.messageVersion   = messageVersion;
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
   }
 
   public ECPublicKey getSenderRatchetKey()  {
@@ -105,41 +198,53 @@ public class SignalMessage implements CiphertextMessage {
   }
 
   public byte[] getBody() {
+    if (ciphertext == null) {
+      ciphertext = Arrays.copyOfRange(buffer, bodyOffset, bodyOffset + bodyLength);
+    }
+
     return ciphertext;
   }
 
+  /**
+   * @return A view of the ciphertext within the message's wire bytes.  The view shares
+   *         the message's backing array, and must not be modified.
+   */
+  public ByteBuffer getBodyBuffer() {
+    return ByteBuffer.wrap(buffer, bodyOffset, bodyLength).slice();
+  }
+
   public void verifyMac(IdentityKey senderIdentityKey, IdentityKey receiverIdentityKey, SecretKeySpec macKey)
       throws InvalidMessageException
   {
-    byte[][] parts    = ByteUtil.split(serialized, serialized.length - MAC_LENGTH, MAC_LENGTH);
-    byte[]   ourMac   = getMac(senderIdentityKey, receiverIdentityKey, macKey, parts[0]);
-    byte[]   theirMac = parts[1];
+    int    macOffset = offset + length - MAC_LENGTH;
+    byte[] ourMac    = getMac(senderIdentityKey, receiverIdentityKey, macKey, buffer, offset, length - MAC_LENGTH);
 
-    if (!MessageDigest.isEqual(ourMac, theirMac)) {
+    if (!ByteUtil.isEqual(ourMac, 0, buffer, macOffset, MAC_LENGTH)) {
       throw new InvalidMessageException("Bad Mac!");
     }
   }
 
   private byte[] getMac(IdentityKey senderIdentityKey,
                         IdentityKey receiverIdentityKey,
-                        SecretKeySpec macKey, byte[] serialized)
+                        SecretKeySpec macKey, byte[] serialized,
+                        int offset, int length)
   {
-    try {
-      Mac mac = Mac.getInstance("HmacSHA256");
-      mac.init(macKey);
+    Mac mac = CryptoPrimitives.getHmacSha256(macKey);
 
-      mac.update(senderIdentityKey.getPublicKey().serialize());
-      mac.update(receiverIdentityKey.getPublicKey().serialize());
+    mac.update(senderIdentityKey.getPublicKey().serialize());
+    mac.update(receiverIdentityKey.getPublicKey().serialize());
+    mac.update(serialized, offset, length);
 
-      byte[] fullMac = mac.doFinal(serialized);
-      return ByteUtil.trim(fullMac, MAC_LENGTH);
-    } catch (NoSuchAlgorithmException | java.security.InvalidKeyException e) {
-      throw new AssertionError(e);
-    }
+    return mac.doFinal();
   }
 
   @Override
   public byte[] serialize() {
+    if (serialized == null) {
+      if (offset == 0 && length == buffer.length) serialized = buffer;
+      else                                        serialized = Arrays.copyOfRange(buffer, offset, offset + length);
+    }
+
     return serialized;
   }
 
@@ -153,4 +258,31 @@ public class SignalMessage implements CiphertextMessage {
         ByteUtil.highBitsToInt(message[0]) != CiphertextMessage.CURRENT_VERSION;
   }
 
+  static ECPublicKey decodePoint(byte[] buffer, int offset, int length) throws InvalidKeyException {
+    if (length < 1 + 32) {
+      return Curve.decodePoint(Arrays.copyOfRange(buffer, offset, offset + length), 0);
+    }
+
+    return Curve.decodePoint(buffer, offset);
+  }
+
+  static byte[] arrayOf(ByteBuffer buffer) {
+    if (buffer.hasArray()) {
+      return buffer.array();
+    }
+
+    byte[] copy = new byte[buffer.remaining()];
+    buffer.duplicate().get(copy);
+
+    return copy;
+  }
+
+  static int arrayOffsetOf(ByteBuffer buffer) {
+    return buffer.hasArray() ? buffer.arrayOffset() + buffer.position() : 0;
+  }
+
+  private static int tag(int fieldNumber, int wireType) {
+    return (fieldNumber << 3) | wireType;
+  }
+
 }
@@ -0,0 +1,288 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.protocol;
+
+import com.google.protobuf.WireFormat;
+
+import org.whispersystems.libsignal.IdentityKey;
+import org.whispersystems.libsignal.InvalidKeyException;
+import org.whispersystems.libsignal.InvalidMessageException;
+import org.whispersystems.libsignal.LegacyMessageException;
+import org.whispersystems.libsignal.ecc.ECPublicKey;
+import org.whispersystems.libsignal.util.ByteUtil;
+import org.whispersystems.libsignal.util.CryptoPrimitives;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Reads a serialized {@link SignalMessage} incrementally.
+ *
+ * The header is parsed on construction.  Once the MAC key for the message is known
+ * and set with {@link #setMacKey}, the ciphertext is read through this stream, after
+ * which {@link #verifyMac()} reads and checks the MAC.  Alternatively, the rest of the
+ * message can be read into memory with {@link #readMessage()}.  The underlying stream must
+ * end with the message.
+ *
+ * Only messages whose ciphertext is the last field can be read this way, which is
+ * how every Signal Protocol implementation serializes them.
+ */
+public class SignalMessageInputStream extends InputStream {
+
+  private static final int MAX_FIELD_LENGTH = 1024;
+
+  private final InputStream           in;
+  private final ByteArrayOutputStream header = new ByteArrayOutputStream();
+  private final int                   messageVersion;
+  private final ECPublicKey           senderRatchetKey;
+  private final int                   counter;
+
+  private long remaining;
+  private Mac  mac;
+
+  public SignalMessageInputStream(InputStream in)
+      throws IOException, InvalidMessageException, LegacyMessageException
+  {
+    this.in = in;
+
+    int version = ByteUtil.highBitsToInt((byte)readHeaderByte());
+
+    if (version < CiphertextMessage.CURRENT_VERSION) {
+      throw new LegacyMessageException("Legacy message: " + version);
+    }
+
+    if (version > CiphertextMessage.CURRENT_VERSION) {
+      throw new InvalidMessageException("Unknown version: " + version);
+    }
+
+    byte[]  ratchetKey = null;
+    boolean hasCounter = false;
+    int     counter    = 0;
+
+    while (true) {
+      int tag = readHeaderVarint32();
+
+      if (tag == SignalMessage.RATCHET_KEY_TAG) {
+        ratchetKey = readHeaderBytes(readHeaderLength());
+      } else if (tag == SignalMessage.COUNTER_TAG) {
+        counter    = readHeaderVarint32();
+        hasCounter = true;
+      } else if (tag == SignalMessage.CIPHERTEXT_TAG) {
+        remaining = readHeaderVarint32() & 0xFFFFFFFFL;
+        break;
+      } else {
+        skipHeaderField(tag);
+      }
+    }
+
+    if (ratchetKey == null || !hasCounter) {
+      throw new InvalidMessageException("Incomplete message.");
+    }
+
+    try {
+      this.messageVersion   = version;
+      this.senderRatchetKey = SignalMessage.decodePoint(ratchetKey, 0, ratchetKey.length);
+      this.counter          = counter;
+    } catch (InvalidKeyException e) {
+      throw new InvalidMessageException(e);
+    }
+  }
+
+  public int getMessageVersion() {
+    return messageVersion;
+  }
+
+  public ECPublicKey getSenderRatchetKey() {
+    return senderRatchetKey;
+  }
+
+  public int getCounter() {
+    return counter;
+  }
+
+  /**
+   * Sets the key the message is authenticated with.  This must be called before the
+   * ciphertext is read.
+   */
+  public void setMacKey(IdentityKey senderIdentityKey, IdentityKey receiverIdentityKey, SecretKeySpec macKey) {
+    mac = CryptoPrimitives.newHmacSha256(macKey);
+    mac.update(senderIdentityKey.getPublicKey().serialize());
+    mac.update(receiverIdentityKey.getPublicKey().serialize());
+    mac.update(header.toByteArray());
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] buffer = new byte[1];
+    return read(buffer, 0, 1) == -1 ? -1 : buffer[0] & 0xFF;
+  }
+
+  /**
+   * Reads ciphertext.  The ciphertext is unauthenticated until {@link #verifyMac()}
+   * succeeds.
+   *
+   * @throws EOFException If the underlying stream ends within the ciphertext.
+   */
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if (mac == null) {
+      throw new IllegalStateException("No MAC key set");
+    }
+
+    if (remaining == 0) {
+      return -1;
+    }
+
+    int read = in.read(buffer, offset, (int)Math.min(length, remaining));
+
+    if (read == -1) {
+      throw new EOFException("Truncated message");
+    }
+
+    mac.update(buffer, offset, read);
+    remaining -= read;
+
+    return read;
+  }
+
+  /**
+   * Reads the MAC that follows the ciphertext, and checks it against the message.
+   *
+   * @throws InvalidMessageException If the MAC doesn't match, or the underlying stream
+   *                                 doesn't end with it.
+   */
+  public void verifyMac() throws IOException, InvalidMessageException {
+    if (mac == null || remaining != 0) {
+      throw new IllegalStateException("Ciphertext not read");
+    }
+
+    byte[] theirMac = new byte[SignalMessage.MAC_LENGTH];
+
+    for (int offset = 0; offset < theirMac.length; ) {
+      int read = in.read(theirMac, offset, theirMac.length - offset);
+
+      if (read == -1) {
+        throw new InvalidMessageException("Truncated message");
+      }
+
+      offset += read;
+    }
+
+    if (!ByteUtil.isEqual(mac.doFinal(), 0, theirMac, 0, SignalMessage.MAC_LENGTH)) {
+      throw new InvalidMessageException("Bad Mac!");
+    }
+
+    if (in.read() != -1) {
+      throw new InvalidMessageException("Trailing data after MAC");
+    }
+  }
+
+  /**
+   * Reads the rest of the message into memory, for a message that has to be decrypted
+   * whole.  This is instead of setting a MAC key and reading the ciphertext.
+   *
+   * @return The whole message.
+   * @throws InvalidMessageException If the underlying stream doesn't end with the message.
+   */
+  public SignalMessage readMessage() throws IOException, InvalidMessageException, LegacyMessageException {
+    if (mac != null) {
+      throw new IllegalStateException("Ciphertext already being read");
+    }
+
+    ByteArrayOutputStream message = new ByteArrayOutputStream();
+    byte[]                buffer  = new byte[4096];
+
+    header.writeTo(message);
+
+    for (long left = remaining + SignalMessage.MAC_LENGTH; left > 0; ) {
+      int read = in.read(buffer, 0, (int)Math.min(buffer.length, left));
+
+      if (read == -1) {
+        throw new InvalidMessageException("Truncated message");
+      }
+
+      message.write(buffer, 0, read);
+      left -= read;
+    }
+
+    if (in.read() != -1) {
+      throw new InvalidMessageException("Trailing data after MAC");
+    }
+
+    remaining = 0;
+
+    return new SignalMessage(message.toByteArray());
+  }
+
+  private int readHeaderByte() throws IOException, InvalidMessageException {
+    int value = in.read();
+
+    if (value == -1) {
+      throw new InvalidMessageException("Truncated message");
+    }
+
+    header.write(value);
+    return value;
+  }
+
+  private long readHeaderVarint64() throws IOException, InvalidMessageException {
+    long result = 0;
+
+    for (int shift=0;shift<64;shift+=7) {
+      int value = readHeaderByte();
+      result |= (long)(value & 0x7F) << shift;
+
+      if ((value & 0x80) == 0) {
+        return result;
+      }
+    }
+
+    throw new InvalidMessageException("Malformed varint");
+  }
+
+  private int readHeaderVarint32() throws IOException, InvalidMessageException {
+    return (int)readHeaderVarint64();
+  }
+
+  private int readHeaderLength() throws IOException, InvalidMessageException {
+    long length = readHeaderVarint64();
+
+    if (length < 0 || length > MAX_FIELD_LENGTH) {
+      throw new InvalidMessageException("Bad field length: " + length);
+    }
+
+    return (int)length;
+  }
+
+  private byte[] readHeaderBytes(int length) throws IOException, InvalidMessageException {
+    byte[] bytes = new byte[length];
+
+    for (int i=0;i<length;i++) {
+      bytes[i] = (byte)readHeaderByte();
+    }
+
+    return bytes;
+  }
+
+  private void skipHeaderField(int tag) throws IOException, InvalidMessageException {
+    if (WireFormat.getTagFieldNumber(tag) == 0) {
+      throw new InvalidMessageException("Invalid tag: " + tag);
+    }
+
+    switch (WireFormat.getTagWireType(tag)) {
+      case WireFormat.WIRETYPE_VARINT:           readHeaderVarint64();                break;
+      case WireFormat.WIRETYPE_FIXED64:          readHeaderBytes(8);                  break;
+      case WireFormat.WIRETYPE_FIXED32:          readHeaderBytes(4);                  break;
+      case WireFormat.WIRETYPE_LENGTH_DELIMITED: readHeaderBytes(readHeaderLength()); break;
+      default: throw new InvalidMessageException("Incomplete message.");
+    }
+  }
+}
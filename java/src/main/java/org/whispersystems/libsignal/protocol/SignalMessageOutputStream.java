@@ -0,0 +1,232 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.protocol;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+
+import org.whispersystems.libsignal.IdentityKey;
+import org.whispersystems.libsignal.ecc.ECPublicKey;
+import org.whispersystems.libsignal.util.ByteUtil;
+import org.whispersystems.libsignal.util.CryptoPrimitives;
+import org.whispersystems.libsignal.util.guava.Optional;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Writes a {@link SignalMessage}, or a {@link PreKeySignalMessage} wrapping one, whose
+ * ciphertext is supplied incrementally.
+ *
+ * The ciphertext length is declared up front, so the header is written on construction
+ * and each ciphertext write passes straight through to the underlying stream.
+ * {@link #finish()} appends the MAC.  The bytes written are identical to the
+ * serialization of the equivalent message built in memory.
+ */
+public class SignalMessageOutputStream extends OutputStream {
+
+  private final OutputStream out;
+  private final Mac          mac;
+  private final long         ciphertextLength;
+  private final byte[]       trailer;
+
+  private long    written;
+  private boolean finished;
+
+  /**
+   * Starts a {@link SignalMessage}.
+   */
+  public SignalMessageOutputStream(OutputStream out, int messageVersion, SecretKeySpec macKey,
+                                   ECPublicKey senderRatchetKey, int counter, int previousCounter,
+                                   long ciphertextLength,
+                                   IdentityKey senderIdentityKey,
+                                   IdentityKey receiverIdentityKey)
+      throws IOException
+  {
+    this(out, new byte[0],
+         getHeader(messageVersion, senderRatchetKey, counter, previousCounter, ciphertextLength),
+         new byte[0], macKey, ciphertextLength, senderIdentityKey, receiverIdentityKey);
+  }
+
+  /**
+   * Starts a {@link PreKeySignalMessage} wrapping a {@link SignalMessage}, identified
+   * with the sender's identity key.
+   */
+  public SignalMessageOutputStream(OutputStream out, int messageVersion, int registrationId,
+                                   Optional<Integer> preKeyId, int signedPreKeyId, ECPublicKey baseKey,
+                                   SecretKeySpec macKey, ECPublicKey senderRatchetKey,
+                                   int counter, int previousCounter, long ciphertextLength,
+                                   IdentityKey senderIdentityKey,
+                                   IdentityKey receiverIdentityKey)
+      throws IOException
+  {
+    this(out,
+         getPreKeyHeader(messageVersion, preKeyId, baseKey, senderIdentityKey,
+                         getHeader(messageVersion, senderRatchetKey, counter, previousCounter, ciphertextLength).length +
+                         ciphertextLength + SignalMessage.MAC_LENGTH),
+         getHeader(messageVersion, senderRatchetKey, counter, previousCounter, ciphertextLength),
+         getPreKeyTrailer(registrationId, signedPreKeyId),
+         macKey, ciphertextLength, senderIdentityKey, receiverIdentityKey);
+  }
+
+  private SignalMessageOutputStream(OutputStream out, byte[] preKeyHeader, byte[] header,
+                                    byte[] preKeyTrailer, SecretKeySpec macKey, long ciphertextLength,
+                                    IdentityKey senderIdentityKey,
+                                    IdentityKey receiverIdentityKey)
+      throws IOException
+  {
+    this.out              = out;
+    this.mac              = CryptoPrimitives.newHmacSha256(macKey);
+    this.ciphertextLength = ciphertextLength;
+    this.trailer          = preKeyTrailer;
+
+    mac.update(senderIdentityKey.getPublicKey().serialize());
+    mac.update(receiverIdentityKey.getPublicKey().serialize());
+    mac.update(header);
+
+    out.write(preKeyHeader);
+    out.write(header);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte)b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int length) throws IOException {
+    if (finished) {
+      throw new IOException("Message already finished");
+    }
+
+    if (length > ciphertextLength - written) {
+      throw new IOException("Ciphertext exceeds declared length: " + ciphertextLength);
+    }
+
+    mac.update(buffer, offset, length);
+    out.write(buffer, offset, length);
+    written += length;
+  }
+
+  /**
+   * Writes the MAC, completing the message, without closing the underlying stream.
+   *
+   * @throws IOException If less ciphertext than declared was written.
+   */
+  public void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+
+    if (written != ciphertextLength) {
+      throw new IOException("Ciphertext is shorter than declared length: " + written + " < " + ciphertextLength);
+    }
+
+    out.write(mac.doFinal(), 0, SignalMessage.MAC_LENGTH);
+    out.write(trailer);
+    finished = true;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      finish();
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * @return The version byte and protobuf fields that precede the ciphertext.
+   */
+  private static byte[] getHeader(int messageVersion, ECPublicKey senderRatchetKey, int counter,
+                                  int previousCounter, long ciphertextLength)
+      throws IOException
+  {
+    byte[] ratchetKey   = senderRatchetKey.serialize();
+    int    headerLength = 1 + CodedOutputStream.computeByteArraySize(SignalMessage.RATCHET_KEY_FIELD, ratchetKey) +
+                          CodedOutputStream.computeUInt32Size(SignalMessage.COUNTER_FIELD, counter)                    +
+                          CodedOutputStream.computeUInt32Size(SignalMessage.PREVIOUS_COUNTER_FIELD, previousCounter)   +
+                          CodedOutputStream.computeTagSize(SignalMessage.CIPHERTEXT_FIELD)                             +
+                          CodedOutputStream.computeUInt32SizeNoTag(checkLength(ciphertextLength));
+
+    byte[]            header = new byte[headerLength];
+    CodedOutputStream output = CodedOutputStream.newInstance(header, 1, headerLength - 1);
+
+    header[0] = ByteUtil.intsToByteHighAndLow(messageVersion, CiphertextMessage.CURRENT_VERSION);
+
+    output.writeByteArray(SignalMessage.RATCHET_KEY_FIELD, ratchetKey);
+    output.writeUInt32(SignalMessage.COUNTER_FIELD, counter);
+    output.writeUInt32(SignalMessage.PREVIOUS_COUNTER_FIELD, previousCounter);
+    output.writeTag(SignalMessage.CIPHERTEXT_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    output.writeUInt32NoTag((int)ciphertextLength);
+    output.checkNoSpaceLeft();
+
+    return header;
+  }
+
+  private static byte[] getPreKeyHeader(int messageVersion, Optional<Integer> preKeyId, ECPublicKey baseKey,
+                                        IdentityKey identityKey, long signalMessageLength)
+      throws IOException
+  {
+    int    messageLength    = checkLength(signalMessageLength);
+    byte[] baseKeyBytes     = baseKey.serialize();
+    byte[] identityKeyBytes = identityKey.serialize();
+    int    headerLength     = 1 + CodedOutputStream.computeByteArraySize(PreKeySignalMessage.BASE_KEY_FIELD, baseKeyBytes) +
+                              CodedOutputStream.computeByteArraySize(PreKeySignalMessage.IDENTITY_KEY_FIELD, identityKeyBytes) +
+                              CodedOutputStream.computeTagSize(PreKeySignalMessage.MESSAGE_FIELD)                              +
+                              CodedOutputStream.computeUInt32SizeNoTag(messageLength);
+
+    if (preKeyId.isPresent()) {
+      headerLength += CodedOutputStream.computeUInt32Size(PreKeySignalMessage.PRE_KEY_ID_FIELD, preKeyId.get());
+    }
+
+    byte[]            header = new byte[headerLength];
+    CodedOutputStream output = CodedOutputStream.newInstance(header, 1, headerLength - 1);
+
+    header[0] = ByteUtil.intsToByteHighAndLow(messageVersion, CiphertextMessage.CURRENT_VERSION);
+
+    if (preKeyId.isPresent()) {
+      output.writeUInt32(PreKeySignalMessage.PRE_KEY_ID_FIELD, preKeyId.get());
+    }
+
+    output.writeByteArray(PreKeySignalMessage.BASE_KEY_FIELD, baseKeyBytes);
+    output.writeByteArray(PreKeySignalMessage.IDENTITY_KEY_FIELD, identityKeyBytes);
+    output.writeTag(PreKeySignalMessage.MESSAGE_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    output.writeUInt32NoTag(messageLength);
+    output.checkNoSpaceLeft();
+
+    return header;
+  }
+
+  private static byte[] getPreKeyTrailer(int registrationId, int signedPreKeyId) throws IOException {
+    byte[]            trailer = new byte[CodedOutputStream.computeUInt32Size(PreKeySignalMessage.REGISTRATION_ID_FIELD, registrationId) +
+                                         CodedOutputStream.computeUInt32Size(PreKeySignalMessage.SIGNED_PRE_KEY_ID_FIELD, signedPreKeyId)];
+    CodedOutputStream output  = CodedOutputStream.newInstance(trailer);
+
+    output.writeUInt32(PreKeySignalMessage.REGISTRATION_ID_FIELD, registrationId);
+    output.writeUInt32(PreKeySignalMessage.SIGNED_PRE_KEY_ID_FIELD, signedPreKeyId);
+    output.checkNoSpaceLeft();
+
+    return trailer;
+  }
+
+  private static int checkLength(long length) {
+    if (length < 0 || length > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Bad message length: " + length);
+    }
+
+    return (int)length;
+  }
+}
@@ -16,6 +16,8 @@ import org.whispersystems.libsignal.util.Pair;
 
 public class RootKey {
 
+  private static final byte[] RATCHET_INFO = "WhisperRatchet".getBytes();
+
   private final HKDF   kdf;
   private final byte[] key;
 
@@ -31,9 +33,12 @@ public class RootKey {
   public Pair<RootKey, ChainKey> createChain(ECPublicKey theirRatchetKey, ECKeyPair ourRatchetKey)
       throws InvalidKeyException
   {
-    byte[]             sharedSecret       = Curve.calculateAgreement(theirRatchetKey, ourRatchetKey.getPrivateKey());
-    byte[]             derivedSecretBytes = kdf.deriveSecrets(sharedSecret, key, "WhisperRatchet".getBytes(), DerivedRootSecrets.SIZE);
-    DerivedRootSecrets derivedSecrets     = new DerivedRootSecrets(derivedSecretBytes);
+    byte[] sharedSecret       = Curve.calculateAgreement(theirRatchetKey, ourRatchetKey.getPrivateKey());
+    byte[] derivedSecretBytes = new byte[DerivedRootSecrets.SIZE];
+
+    kdf.deriveSecrets(sharedSecret, key, RATCHET_INFO, derivedSecretBytes, 0, DerivedRootSecrets.SIZE);
+
+    DerivedRootSecrets derivedSecrets = new DerivedRootSecrets(derivedSecretBytes);
 
     RootKey  newRootKey  = new RootKey(kdf, derivedSecrets.getRootKey());
     ChainKey newChainKey = new ChainKey(kdf, derivedSecrets.getChainKey(), 0);
@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.state;
+
+import org.whispersystems.libsignal.SignalProtocolAddress;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * An optional extension of {@link SessionStore} for stores that can load and
+ * commit many sessions in a single round trip.
+ *
+ * {@link org.whispersystems.libsignal.BatchSessionCipher} uses these methods when
+ * the supplied SessionStore implements this interface, and falls back to individual
+ * calls otherwise.
+ */
+public interface BatchSessionStore extends SessionStore {
+
+  /**
+   * Returns copies of the {@link SessionRecord}s for a set of recipientId + deviceId tuples.
+   * The same copy semantics apply as for {@link SessionStore#loadSession(SignalProtocolAddress)}.
+   *
+   * @param addresses The names and device IDs of the remote clients.
+   * @return A map containing a SessionRecord for every requested address, with a new
+   *         SessionRecord for any address that does not currently have one.
+   */
+  public Map<SignalProtocolAddress, SessionRecord> loadSessions(Collection<SignalProtocolAddress> addresses);
+
+  /**
+   * Commit to storage the {@link SessionRecord}s for a set of recipientId + deviceId tuples.
+   *
+   * @param records The current SessionRecords, keyed by remote address.
+   */
+  public void storeSessions(Map<SignalProtocolAddress, SessionRecord> records);
+
+}
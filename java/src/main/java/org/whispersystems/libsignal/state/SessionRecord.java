@@ -5,26 +5,67 @@
  */
 package org.whispersystems.libsignal.state;
 
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+
+import org.whispersystems.libsignal.ecc.ECPublicKey;
+import org.whispersystems.libsignal.logging.Log;
+import org.whispersystems.libsignal.state.StorageProtos.SessionStructure.Chain;
+import org.whispersystems.libsignal.util.guava.Optional;
+
 import java.io.IOException;
+import java.util.AbstractSequentialList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.NoSuchElementException;
 
-import static org.whispersystems.libsignal.state.StorageProtos.RecordStructure;
 import static org.whispersystems.libsignal.state.StorageProtos.SessionStructure;
 
 /**
  * A SessionRecord encapsulates the state of an ongoing session.
  *
+ * Archived ("previous") session states are kept in their serialized form until something
+ * asks for them, and are written back out verbatim if they were never parsed.  An archived
+ * state that fails to parse is never replaced: its original bytes are kept and written back
+ * out as they are.
+ *
+ * A record that was loaded from storage can usually be persisted incrementally: when only the
+ * current state's chains have advanced, {@link #serializeChanges(Object)} returns a small
+ * change set that a store can append after the record it already holds, instead of rewriting
+ * the whole record.  The store identifies what it holds with a token of its own, passed to
+ * {@link #markPersisted(Object)} when it loads or writes a record, so a change set is only
+ * ever produced relative to the exact contents the store has.
+ * {@link #SessionRecord(byte[], List)} loads a record from a full serialization followed by
+ * its change sets, and {@link #compact(byte[], List)} folds change sets back into a full
+ * serialization.
+ *
  * @author Moxie Marlinspike
  */
 public class SessionRecord {
 
+  private static final String TAG = SessionRecord.class.getSimpleName();
+
   private static final int ARCHIVED_STATES_MAX_LENGTH = 40;
 
-  private SessionState             sessionState   = new SessionState();
-  private LinkedList<SessionState> previousStates = new LinkedList<>();
-  private boolean                  fresh          = false;
+  private static final int CURRENT_SESSION_FIELD   = 1;
+  private static final int PREVIOUS_SESSIONS_FIELD = 2;
+
+  private static final int CURRENT_SESSION_TAG   = tag(CURRENT_SESSION_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+  private static final int PREVIOUS_SESSIONS_TAG = tag(PREVIOUS_SESSIONS_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+
+  private SessionState              sessionState   = new SessionState();
+  private LinkedList<ArchivedState> previousStates = new LinkedList<>();
+  private boolean                   fresh          = false;
+
+  private Object                    persistedToken;
+  private Object                    persistedLineage;
+  private boolean                   archiveChanged;
+  private boolean                   archiveShared;
 
   public SessionRecord() {
     this.fresh = true;
@@ -35,16 +76,78 @@ public class SessionRecord {
     this.fresh        = false;
   }
 
+  /**
+   * Deep copy a record.  Archived states that have not been parsed share their immutable
+   * serialized form with the original, so this is much cheaper than a serialize and parse.
+   */
+  public SessionRecord(SessionRecord copy) {
+    this.sessionState     = new SessionState(copy.sessionState);
+    this.fresh            = copy.fresh;
+    this.persistedToken   = copy.persistedToken;
+    this.persistedLineage = copy.persistedLineage;
+    this.archiveChanged   = copy.archiveChanged;
+
+    for (ArchivedState previousState : copy.previousStates) {
+      this.previousStates.add(new ArchivedState(previousState));
+    }
+  }
+
   public SessionRecord(byte[] serialized) throws IOException {
-    RecordStructure record = RecordStructure.parseFrom(serialized);
-    this.sessionState = new SessionState(record.getCurrentSession());
+    CodedInputStream input          = CodedInputStream.newInstance(serialized);
+    SessionStructure currentSession = null;
+
+    while (true) {
+      int tag = input.readTag();
+
+      if (tag == 0) {
+        break;
+      }
+
+      if (tag == CURRENT_SESSION_TAG) {
+        SessionStructure structure = SessionStructure.parseFrom(input.readBytes());
+
+        if (currentSession == null) currentSession = structure;
+        else                        currentSession = currentSession.toBuilder().mergeFrom(structure).build();
+      } else if (tag == PREVIOUS_SESSIONS_TAG) {
+        previousStates.add(new ArchivedState(input.readBytes()));
+      } else if (!input.skipField(tag)) {
+        break;
+      }
+    }
+
+    this.sessionState = new SessionState(currentSession != null ? currentSession : SessionStructure.getDefaultInstance());
     this.fresh        = false;
+  }
 
-    for (SessionStructure previousStructure : record.getPreviousSessionsList()) {
-      previousStates.add(new SessionState(previousStructure));
+  /**
+   * Loads a record that was persisted incrementally.
+   *
+   * @param serialized A full serialization of the record.
+   * @param changes The change sets that were persisted after it, oldest first.
+   * @throws IOException If the record or a change set is malformed, or a change set does
+   *                     not apply to the record.
+   */
+  public SessionRecord(byte[] serialized, List<byte[]> changes) throws IOException {
+    this(serialized);
+
+    for (byte[] change : changes) {
+      sessionState.applyChanges(change);
     }
   }
 
+  /**
+   * Folds change sets into the record they were persisted after.
+   *
+   * @param serialized A full serialization of the record.
+   * @param changes The change sets that were persisted after it, oldest first.
+   * @return A full serialization of the resulting record.
+   * @throws IOException If the record or a change set is malformed, or a change set does
+   *                     not apply to the record.
+   */
+  public static byte[] compact(byte[] serialized, List<byte[]> changes) throws IOException {
+    return new SessionRecord(serialized, changes).serialize();
+  }
+
   public boolean hasSessionState(int version, byte[] aliceBaseKey) {
     if (sessionState.getSessionVersion() == version &&
         Arrays.equals(aliceBaseKey, sessionState.getAliceBaseKey()))
@@ -52,7 +155,7 @@ public class SessionRecord {
       return true;
     }
 
-    for (SessionState state : previousStates) {
+    for (ArchivedState state : previousStates) {
       if (state.getSessionVersion() == version &&
           Arrays.equals(aliceBaseKey, state.getAliceBaseKey()))
       {
@@ -63,19 +166,121 @@ public class SessionRecord {
     return false;
   }
 
+  /**
+   * Returns the archived states that could decrypt a message carrying the given version
+   * and sender ratchet key, in the order they should be tried.  States that already hold
+   * a receiving chain for the ratchet key come first, followed by states that have a
+   * sending chain to derive a new receiving chain from.  Any of the latter may be the one
+   * the remote party resumed with a ratchet step, so none of them can be ruled out without
+   * trying it.  Archived states that can't
+   * possibly decrypt the message are skipped without being parsed, and states that fail
+   * to parse are skipped.
+   *
+   * Removing a state through the returned iterator removes it from this record.
+   *
+   * @param version The message version.
+   * @param senderRatchetKey The sender ratchet key carried by the message.
+   * @return An iterator over the candidate states.
+   */
+  public Iterator<SessionState> getPreviousSessionStateCandidates(int version, ECPublicKey senderRatchetKey) {
+    byte[]              serializedRatchetKey = senderRatchetKey.serialize();
+    List<ArchivedState> matching             = new LinkedList<>();
+    List<ArchivedState> deriving             = new LinkedList<>();
+
+    for (ArchivedState state : previousStates) {
+      if (state.getSessionVersion() != version || !state.hasSenderChain()) {
+        continue;
+      }
+
+      if (state.hasReceiverChain(senderRatchetKey, serializedRatchetKey)) matching.add(state);
+      else                                                                 deriving.add(state);
+    }
+
+    matching.addAll(deriving);
+
+    final Iterator<ArchivedState> candidates = matching.iterator();
+
+    return new Iterator<SessionState>() {
+      private ArchivedState current;
+      private ArchivedState next;
+
+      @Override
+      public boolean hasNext() {
+        while (next == null && candidates.hasNext()) {
+          ArchivedState candidate = candidates.next();
+
+          try {
+            candidate.getState();
+            next = candidate;
+          } catch (IOException e) {
+            Log.w(TAG, "Skipping corrupt archived session state", e);
+          }
+        }
+
+        return next != null;
+      }
+
+      @Override
+      public SessionState next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+
+        current = next;
+        next    = null;
+
+        return getState(current);
+      }
+
+      @Override
+      public void remove() {
+        if (current == null) {
+          throw new IllegalStateException();
+        }
+
+        Iterator<ArchivedState> iterator = getArchiveForUpdate().iterator();
+
+        while (iterator.hasNext()) {
+          if (iterator.next() == current) {
+            iterator.remove();
+            break;
+          }
+        }
+
+        current        = null;
+        archiveChanged = true;
+      }
+    };
+  }
+
   public SessionState getSessionState() {
     return sessionState;
   }
 
   /**
-   * @return the list of all currently maintained "previous" session states.
+   * @return the list of all currently maintained "previous" session states.  Each
+   * state is parsed the first time it is accessed through this list, and accessing one
+   * that fails to parse throws an {@link IllegalStateException}.
    */
   public List<SessionState> getPreviousSessionStates() {
-    return previousStates;
+    return new AbstractSequentialList<SessionState>() {
+      @Override
+      public ListIterator<SessionState> listIterator(int index) {
+        return new ArchivedStateIterator(getArchiveForUpdate().listIterator(index));
+      }
+
+      @Override
+      public int size() {
+        return previousStates.size();
+      }
+    };
   }
 
   public void removePreviousSessionStates() {
-    previousStates.clear();
+    if (!previousStates.isEmpty()) {
+      getArchiveForUpdate().clear();
+      archiveChanged = true;
+    }
   }
 
   public boolean isFresh() {
@@ -92,8 +297,11 @@ public class SessionRecord {
   }
 
   public void promoteState(SessionState promotedState) {
-    this.previousStates.addFirst(sessionState);
-    this.sessionState = promotedState;
+    LinkedList<ArchivedState> previousStates = getArchiveForUpdate();
+
+    previousStates.addFirst(new ArchivedState(sessionState));
+    this.sessionState   = promotedState;
+    this.archiveChanged = true;
 
     if (previousStates.size() > ARCHIVED_STATES_MAX_LENGTH) {
       previousStates.removeLast();
@@ -104,22 +312,395 @@ public class SessionRecord {
     this.sessionState = sessionState;
   }
 
+  /**
+   * Captures which states this record holds, so that an operation that replaces them
+   * can be undone with {@link #restore(Checkpoint)}.
+   *
+   * No state is copied, so this only undoes operations that swap in new states rather than
+   * modifying the captured ones, as decrypting a {@link org.whispersystems.libsignal.protocol.SignalMessage}
+   * does.  The list of archived states is copied only if it is changed afterwards.
+   *
+   * @return A checkpoint of the current and archived states.
+   */
+  public Checkpoint checkpoint() {
+    this.archiveShared = true;
+    return new Checkpoint(sessionState, previousStates, archiveChanged);
+  }
+
+  /**
+   * Returns this record to the current and archived states it held at a checkpoint.
+   *
+   * @param checkpoint A checkpoint of this record, taken since the record was last stored.
+   */
+  public void restore(Checkpoint checkpoint) {
+    this.sessionState   = checkpoint.sessionState;
+    this.previousStates = checkpoint.previousStates;
+    this.archiveChanged = checkpoint.archiveChanged;
+    this.archiveShared  = true;
+  }
+
+  private LinkedList<ArchivedState> getArchiveForUpdate() {
+    if (archiveShared) {
+      previousStates = new LinkedList<>(previousStates);
+      archiveShared  = false;
+    }
+
+    return previousStates;
+  }
+
+  /**
+   * Serializes the changes made to this record since it was marked as persisted under the
+   * given token, for a store to append after the record it holds under that token.
+   *
+   * Change sets are only available while every modification is an advance of the current
+   * state's chain keys, or the addition or removal of skipped message keys.  Anything else,
+   * such as a ratchet step, a new session, or a change to the archived states, requires the
+   * record to be written in full with {@link #serialize()}.  So does a record that was
+   * never marked as persisted under the token, such as one parsed from a serialization or
+   * loaded from an older version of the store's contents.
+   *
+   * @param token The store's token for the contents it currently holds.
+   * @return The serialized change set, or absent if the record must be written in full.
+   */
+  public Optional<byte[]> serializeChanges(Object token) {
+    if (token == null                                 ||
+        persistedToken != token                       ||
+        persistedLineage != sessionState.getLineage() ||
+        archiveChanged                                ||
+        !sessionState.hasSerializableChanges())
+    {
+      return Optional.absent();
+    }
+
+    for (ArchivedState previousState : previousStates) {
+      if (previousState.isModified()) {
+        return Optional.absent();
+      }
+    }
+
+    return Optional.of(sessionState.serializeChanges());
+  }
+
+  /**
+   * Marks the current contents of this record as persisted under a token, so that
+   * {@link #serializeChanges(Object)} with the same token only includes changes made from
+   * now on.  Stores should call this when they load a record, and after writing either a
+   * full serialization or a change set, with a token that identifies exactly the contents
+   * they then hold: a new one for every write.
+   *
+   * @param token The store's token for the contents it now holds.
+   */
+  public void markPersisted(Object token) {
+    this.persistedToken   = token;
+    this.persistedLineage = sessionState.getLineage();
+    this.archiveChanged   = false;
+
+    sessionState.clearChanges();
+
+    for (ArchivedState previousState : previousStates) {
+      previousState.clearChanges();
+    }
+  }
+
   /**
    * @return a serialized version of the current SessionRecord.
    */
   public byte[] serialize() {
-    List<SessionStructure> previousStructures = new LinkedList<>();
+    try {
+      SessionStructure currentSession     = sessionState.getStructure();
+      ByteString[]     previousStructures = new ByteString[previousStates.size()];
+      int              size               = CodedOutputStream.computeMessageSize(CURRENT_SESSION_FIELD, currentSession);
+      int              index              = 0;
+
+      for (ArchivedState previousState : previousStates) {
+        previousStructures[index] = previousState.toByteString();
+        size += CodedOutputStream.computeBytesSize(PREVIOUS_SESSIONS_FIELD, previousStructures[index]);
+        index++;
+      }
 
-    for (SessionState previousState : previousStates) {
-      previousStructures.add(previousState.getStructure());
+      byte[]            serialized = new byte[size];
+      CodedOutputStream output     = CodedOutputStream.newInstance(serialized);
+
+      output.writeMessage(CURRENT_SESSION_FIELD, currentSession);
+
+      for (ByteString previousStructure : previousStructures) {
+        output.writeBytes(PREVIOUS_SESSIONS_FIELD, previousStructure);
+      }
+
+      output.checkNoSpaceLeft();
+
+      return serialized;
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static int tag(int fieldNumber, int wireType) {
+    return (fieldNumber << 3) | wireType;
+  }
+
+  private static SessionState getState(ArchivedState archivedState) {
+    try {
+      return archivedState.getState();
+    } catch (IOException e) {
+      throw new IllegalStateException("Corrupt archived session state", e);
+    }
+  }
+
+  /**
+   * The states a record held at some point.  See {@link #checkpoint()}.
+   */
+  public static final class Checkpoint {
+    private final SessionState              sessionState;
+    private final LinkedList<ArchivedState> previousStates;
+    private final boolean                   archiveChanged;
+
+    private Checkpoint(SessionState sessionState, LinkedList<ArchivedState> previousStates, boolean archiveChanged) {
+      this.sessionState   = sessionState;
+      this.previousStates = previousStates;
+      this.archiveChanged = archiveChanged;
+    }
+  }
+
+  /**
+   * An archived session state, held either as its serialized bytes or, once something
+   * has asked for it, as a parsed {@link SessionState}.
+   */
+  private static class ArchivedState {
+
+    private static final int SESSION_VERSION_TAG    = tag(SessionStructure.SESSIONVERSION_FIELD_NUMBER,
+                                                         WireFormat.WIRETYPE_VARINT);
+    private static final int ALICE_BASE_KEY_TAG     = tag(SessionStructure.ALICEBASEKEY_FIELD_NUMBER,
+                                                         WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int SENDER_CHAIN_TAG       = tag(SessionStructure.SENDERCHAIN_FIELD_NUMBER,
+                                                         WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int RECEIVER_CHAINS_TAG    = tag(SessionStructure.RECEIVERCHAINS_FIELD_NUMBER,
+                                                         WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int SENDER_RATCHET_KEY_TAG = tag(Chain.SENDERRATCHETKEY_FIELD_NUMBER,
+                                                         WireFormat.WIRETYPE_LENGTH_DELIMITED);
+
+    private ByteString   serialized;
+    private SessionState state;
+
+    private boolean      peeked;
+    private int          sessionVersion;
+    private byte[]       aliceBaseKey;
+    private boolean      hasSenderChain;
+    private List<byte[]> receiverRatchetKeys;
+
+    ArchivedState(ByteString serialized) {
+      this.serialized = serialized;
+    }
+
+    ArchivedState(SessionState state) {
+      this.state = state;
+    }
+
+    ArchivedState(ArchivedState copy) {
+      this.serialized          = copy.serialized;
+      this.state               = copy.state != null ? new SessionState(copy.state) : null;
+      this.peeked              = copy.peeked;
+      this.sessionVersion      = copy.sessionVersion;
+      this.aliceBaseKey        = copy.aliceBaseKey;
+      this.hasSenderChain      = copy.hasSenderChain;
+      this.receiverRatchetKeys = copy.receiverRatchetKeys;
+    }
+
+    /**
+     * @throws IOException If the serialized state is malformed, in which case it is kept
+     *                     as it is.
+     */
+    SessionState getState() throws IOException {
+      if (state == null) {
+        state = new SessionState(SessionStructure.parseFrom(serialized));
+        state.clearChanges();
+
+        serialized          = null;
+        aliceBaseKey        = null;
+        receiverRatchetKeys = null;
+      }
+
+      return state;
+    }
+
+    boolean isModified() {
+      return state != null && state.isModified();
+    }
+
+    void clearChanges() {
+      if (state != null) state.clearChanges();
+    }
+
+    int getSessionVersion() {
+      if (state != null) return state.getSessionVersion();
+
+      peek();
+      return sessionVersion;
+    }
+
+    byte[] getAliceBaseKey() {
+      if (state != null) return state.getAliceBaseKey();
+
+      peek();
+      return aliceBaseKey;
+    }
+
+    boolean hasSenderChain() {
+      if (state != null) return state.hasSenderChain();
+
+      peek();
+      return hasSenderChain;
+    }
+
+    boolean hasReceiverChain(ECPublicKey senderRatchetKey, byte[] serializedRatchetKey) {
+      if (state != null) return state.hasReceiverChain(senderRatchetKey);
+
+      peek();
+
+      for (byte[] receiverRatchetKey : receiverRatchetKeys) {
+        if (Arrays.equals(receiverRatchetKey, serializedRatchetKey)) {
+          return true;
+        }
+      }
+
+      return false;
+    }
+
+    /**
+     * @return The serialized state: the original bytes if it was never parsed, otherwise
+     * a fresh encoding of the (possibly modified) parsed state.
+     */
+    ByteString toByteString() {
+      if (state != null) return state.getStructure().toByteString();
+      else               return serialized;
+    }
+
+    /**
+     * Reads the version, base key, and chain ratchet keys out of the serialized state,
+     * skipping over everything else (including chain keys and message keys) without
+     * parsing it.
+     */
+    private void peek() {
+      if (peeked) {
+        return;
+      }
+
+      int          version      = 0;
+      byte[]       baseKey      = new byte[0];
+      boolean      senderChain  = false;
+      List<byte[]> receiverKeys = new LinkedList<>();
+
+      try {
+        CodedInputStream input = serialized.newCodedInput();
+
+        while (true) {
+          int tag = input.readTag();
+
+          if (tag == 0) {
+            break;
+          } else if (tag == SESSION_VERSION_TAG) {
+            version = input.readUInt32();
+          } else if (tag == ALICE_BASE_KEY_TAG) {
+            baseKey = input.readByteArray();
+          } else if (tag == SENDER_CHAIN_TAG) {
+            senderChain = true;
+            input.skipField(tag);
+          } else if (tag == RECEIVER_CHAINS_TAG) {
+            byte[] ratchetKey = peekRatchetKey(input);
+            if (ratchetKey != null) receiverKeys.add(ratchetKey);
+          } else if (!input.skipField(tag)) {
+            break;
+          }
+        }
+      } catch (IOException e) {
+        Log.w(TAG, e);
+      }
+
+      this.sessionVersion      = version == 0 ? 2 : version;
+      this.aliceBaseKey        = baseKey;
+      this.hasSenderChain      = senderChain;
+      this.receiverRatchetKeys = receiverKeys;
+      this.peeked              = true;
+    }
+
+    private static byte[] peekRatchetKey(CodedInputStream input) throws IOException {
+      int    limit      = input.pushLimit(input.readRawVarint32());
+      byte[] ratchetKey = null;
+
+      while (true) {
+        int tag = input.readTag();
+
+        if (tag == 0) {
+          break;
+        } else if (tag == SENDER_RATCHET_KEY_TAG) {
+          ratchetKey = input.readByteArray();
+        } else if (!input.skipField(tag)) {
+          break;
+        }
+      }
+
+      input.skipRawBytes(input.getBytesUntilLimit());
+      input.popLimit(limit);
+
+      return ratchetKey;
+    }
+  }
+
+  private class ArchivedStateIterator implements ListIterator<SessionState> {
+
+    private final ListIterator<ArchivedState> iterator;
+
+    ArchivedStateIterator(ListIterator<ArchivedState> iterator) {
+      this.iterator = iterator;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return iterator.hasNext();
     }
 
-    RecordStructure record = RecordStructure.newBuilder()
-                                            .setCurrentSession(sessionState.getStructure())
-                                            .addAllPreviousSessions(previousStructures)
-                                            .build();
+    @Override
+    public SessionState next() {
+      return getState(iterator.next());
+    }
+
+    @Override
+    public boolean hasPrevious() {
+      return iterator.hasPrevious();
+    }
 
-    return record.toByteArray();
+    @Override
+    public SessionState previous() {
+      return getState(iterator.previous());
+    }
+
+    @Override
+    public int nextIndex() {
+      return iterator.nextIndex();
+    }
+
+    @Override
+    public int previousIndex() {
+      return iterator.previousIndex();
+    }
+
+    @Override
+    public void remove() {
+      iterator.remove();
+      archiveChanged = true;
+    }
+
+    @Override
+    public void set(SessionState state) {
+      iterator.set(new ArchivedState(state));
+      archiveChanged = true;
+    }
+
+    @Override
+    public void add(SessionState state) {
+      iterator.add(new ArchivedState(state));
+      archiveChanged = true;
+    }
   }
 
 }
@@ -8,11 +8,15 @@ package org.whispersystems.libsignal.state;
 
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
 
 import org.whispersystems.libsignal.IdentityKey;
 import org.whispersystems.libsignal.IdentityKeyPair;
 import org.whispersystems.libsignal.InvalidKeyException;
 import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.DjbECPublicKey;
 import org.whispersystems.libsignal.ecc.ECKeyPair;
 import org.whispersystems.libsignal.ecc.ECPrivateKey;
 import org.whispersystems.libsignal.ecc.ECPublicKey;
@@ -24,11 +28,12 @@ import org.whispersystems.libsignal.ratchet.RootKey;
 import org.whispersystems.libsignal.state.StorageProtos.SessionStructure.Chain;
 import org.whispersystems.libsignal.state.StorageProtos.SessionStructure.PendingKeyExchange;
 import org.whispersystems.libsignal.state.StorageProtos.SessionStructure.PendingPreKey;
-import org.whispersystems.libsignal.util.Pair;
+import org.whispersystems.libsignal.util.IntLinkedHashMap;
 import org.whispersystems.libsignal.util.guava.Optional;
 
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import javax.crypto.spec.IvParameterSpec;
@@ -36,70 +41,164 @@ import javax.crypto.spec.SecretKeySpec;
 
 import static org.whispersystems.libsignal.state.StorageProtos.SessionStructure;
 
+/**
+ * The state of a single ratcheting session.
+ *
+ * A SessionState is a mutable, in-memory model of a {@link SessionStructure}.  Updates
+ * during encrypt and decrypt only touch the affected fields; the protobuf representation
+ * is only produced when the state is serialized.
+ *
+ * A state also tracks the changes made to it since it was last persisted.  As long as only
+ * chain keys have advanced and skipped message keys have been added or removed, those
+ * changes can be serialized on their own, as a small change set that is applied on top of
+ * the previously persisted state.  Any other modification requires the state to be written
+ * out in full.
+ */
 public class SessionState {
 
-  private static final int MAX_MESSAGE_KEYS = 2000;
-
-  private SessionStructure sessionStructure;
+  private static final int MAX_MESSAGE_KEYS    = 2000;
+  private static final int MAX_RECEIVER_CHAINS = 5;
+  private static final int MAX_CHANGES         = MAX_MESSAGE_KEYS;
+
+  private static final int ALICE_BASE_KEY_FIELD = 1;
+
+  private int                 sessionVersion;
+  private byte[]              localIdentityPublic;
+  private byte[]              remoteIdentityPublic;
+  private IdentityKey         localIdentityKey;
+  private IdentityKey         remoteIdentityKey;
+  private byte[]              rootKey;
+  private int                 previousCounter;
+  private SenderChain         senderChain;
+  private List<ReceiverChain> receiverChains;
+  private PendingKeyExchange  pendingKeyExchange;
+  private PendingPreKey       pendingPreKey;
+  private int                 remoteRegistrationId;
+  private int                 localRegistrationId;
+  private boolean             needsRefresh;
+  private byte[]              aliceBaseKey;
+
+  private ECPublicKey         lastRatchetKey;
+  private ReceiverChain       lastReceiverChain;
+
+  private Object              lineage          = new Object();
+  private boolean             structureChanged = true;
+  private List<Change>        changes          = new ArrayList<>();
 
   public SessionState() {
-    this.sessionStructure = SessionStructure.newBuilder().build();
+    this.receiverChains = new ArrayList<>(MAX_RECEIVER_CHAINS + 1);
   }
 
   public SessionState(SessionStructure sessionStructure) {
-    this.sessionStructure = sessionStructure;
+    this.sessionVersion       = sessionStructure.getSessionVersion();
+    this.localIdentityPublic  = sessionStructure.hasLocalIdentityPublic()  ? sessionStructure.getLocalIdentityPublic().toByteArray()  : null;
+    this.remoteIdentityPublic = sessionStructure.hasRemoteIdentityPublic() ? sessionStructure.getRemoteIdentityPublic().toByteArray() : null;
+    this.rootKey              = sessionStructure.hasRootKey()              ? sessionStructure.getRootKey().toByteArray()              : null;
+    this.previousCounter      = sessionStructure.getPreviousCounter();
+    this.senderChain          = sessionStructure.hasSenderChain()          ? new SenderChain(sessionStructure.getSenderChain(), getKdf()) : null;
+    this.receiverChains       = new ArrayList<>(MAX_RECEIVER_CHAINS + 1);
+    this.pendingKeyExchange   = sessionStructure.hasPendingKeyExchange()   ? sessionStructure.getPendingKeyExchange() : null;
+    this.pendingPreKey        = sessionStructure.hasPendingPreKey()        ? sessionStructure.getPendingPreKey()      : null;
+    this.remoteRegistrationId = sessionStructure.getRemoteRegistrationId();
+    this.localRegistrationId  = sessionStructure.getLocalRegistrationId();
+    this.needsRefresh         = sessionStructure.getNeedsRefresh();
+    this.aliceBaseKey         = sessionStructure.hasAliceBaseKey()         ? sessionStructure.getAliceBaseKey().toByteArray()         : null;
+
+    for (Chain receiverChain : sessionStructure.getReceiverChainsList()) {
+      this.receiverChains.add(new ReceiverChain(receiverChain, getKdf()));
+    }
   }
 
   public SessionState(SessionState copy) {
-    this.sessionStructure = copy.sessionStructure.toBuilder().build();
+    this.sessionVersion       = copy.sessionVersion;
+    this.localIdentityPublic  = copy.localIdentityPublic;
+    this.remoteIdentityPublic = copy.remoteIdentityPublic;
+    this.localIdentityKey     = copy.localIdentityKey;
+    this.remoteIdentityKey    = copy.remoteIdentityKey;
+    this.rootKey              = copy.rootKey;
+    this.previousCounter      = copy.previousCounter;
+    this.senderChain          = copy.senderChain;
+    this.receiverChains       = new ArrayList<>(MAX_RECEIVER_CHAINS + 1);
+    this.pendingKeyExchange   = copy.pendingKeyExchange;
+    this.pendingPreKey        = copy.pendingPreKey;
+    this.remoteRegistrationId = copy.remoteRegistrationId;
+    this.localRegistrationId  = copy.localRegistrationId;
+    this.needsRefresh         = copy.needsRefresh;
+    this.aliceBaseKey         = copy.aliceBaseKey;
+    this.lineage              = copy.lineage;
+    this.structureChanged     = copy.structureChanged;
+    this.changes              = new ArrayList<>(copy.changes);
+
+    for (ReceiverChain receiverChain : copy.receiverChains) {
+      this.receiverChains.add(new ReceiverChain(receiverChain));
+    }
   }
 
   public SessionStructure getStructure() {
-    return sessionStructure;
+    SessionStructure.Builder builder = SessionStructure.newBuilder();
+
+    if (sessionVersion != 0)          builder.setSessionVersion(sessionVersion);
+    if (localIdentityPublic != null)  builder.setLocalIdentityPublic(ByteString.copyFrom(localIdentityPublic));
+    if (remoteIdentityPublic != null) builder.setRemoteIdentityPublic(ByteString.copyFrom(remoteIdentityPublic));
+    if (rootKey != null)              builder.setRootKey(ByteString.copyFrom(rootKey));
+    if (previousCounter != 0)         builder.setPreviousCounter(previousCounter);
+    if (senderChain != null)          builder.setSenderChain(senderChain.getStructure());
+    if (pendingKeyExchange != null)   builder.setPendingKeyExchange(pendingKeyExchange);
+    if (pendingPreKey != null)        builder.setPendingPreKey(pendingPreKey);
+    if (remoteRegistrationId != 0)    builder.setRemoteRegistrationId(remoteRegistrationId);
+    if (localRegistrationId != 0)     builder.setLocalRegistrationId(localRegistrationId);
+    if (needsRefresh)                 builder.setNeedsRefresh(true);
+    if (aliceBaseKey != null)         builder.setAliceBaseKey(ByteString.copyFrom(aliceBaseKey));
+
+    for (ReceiverChain receiverChain : receiverChains) {
+      builder.addReceiverChains(receiverChain.getStructure());
+    }
+
+    return builder.build();
   }
 
   public byte[] getAliceBaseKey() {
-    return this.sessionStructure.getAliceBaseKey().toByteArray();
+    return aliceBaseKey != null ? aliceBaseKey.clone() : new byte[0];
   }
 
   public void setAliceBaseKey(byte[] aliceBaseKey) {
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setAliceBaseKey(ByteString.copyFrom(aliceBaseKey))
-                                                 .build();
+    this.aliceBaseKey = aliceBaseKey.clone();
+    structureChanged();
   }
 
   public void setSessionVersion(int version) {
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setSessionVersion(version)
-                                                 .build();
+    this.sessionVersion = version;
+    structureChanged();
   }
 
   public int getSessionVersion() {
-    int sessionVersion = this.sessionStructure.getSessionVersion();
-
     if (sessionVersion == 0) return 2;
     else                     return sessionVersion;
   }
 
   public void setRemoteIdentityKey(IdentityKey identityKey) {
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setRemoteIdentityPublic(ByteString.copyFrom(identityKey.serialize()))
-                                                 .build();
+    this.remoteIdentityPublic = identityKey.serialize();
+    this.remoteIdentityKey    = identityKey;
+    structureChanged();
   }
 
   public void setLocalIdentityKey(IdentityKey identityKey) {
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setLocalIdentityPublic(ByteString.copyFrom(identityKey.serialize()))
-                                                 .build();
+    this.localIdentityPublic = identityKey.serialize();
+    this.localIdentityKey    = identityKey;
+    structureChanged();
   }
 
   public IdentityKey getRemoteIdentityKey() {
     try {
-      if (!this.sessionStructure.hasRemoteIdentityPublic()) {
+      if (remoteIdentityPublic == null) {
         return null;
       }
 
-      return new IdentityKey(this.sessionStructure.getRemoteIdentityPublic().toByteArray(), 0);
+      if (remoteIdentityKey == null) {
+        remoteIdentityKey = new IdentityKey(remoteIdentityPublic, 0);
+      }
+
+      return remoteIdentityKey;
     } catch (InvalidKeyException e) {
       Log.w("SessionRecordV2", e);
       return null;
@@ -108,48 +207,56 @@ public class SessionState {
 
   public IdentityKey getLocalIdentityKey() {
     try {
-      return new IdentityKey(this.sessionStructure.getLocalIdentityPublic().toByteArray(), 0);
+      if (localIdentityKey == null) {
+        localIdentityKey = new IdentityKey(localIdentityPublic != null ? localIdentityPublic : new byte[0], 0);
+      }
+
+      return localIdentityKey;
     } catch (InvalidKeyException e) {
       throw new AssertionError(e);
     }
   }
 
   public int getPreviousCounter() {
-    return sessionStructure.getPreviousCounter();
+    return previousCounter;
   }
 
   public void setPreviousCounter(int previousCounter) {
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setPreviousCounter(previousCounter)
-                                                 .build();
+    this.previousCounter = previousCounter;
+    structureChanged();
   }
 
   public RootKey getRootKey() {
-    return new RootKey(HKDF.createFor(getSessionVersion()),
-                       this.sessionStructure.getRootKey().toByteArray());
+    return new RootKey(getKdf(), rootKey != null ? rootKey : new byte[0]);
   }
 
   public void setRootKey(RootKey rootKey) {
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setRootKey(ByteString.copyFrom(rootKey.getKeyBytes()))
-                                                 .build();
+    this.rootKey = rootKey.getKeyBytes();
+    structureChanged();
   }
 
   public ECPublicKey getSenderRatchetKey() {
     try {
-      return Curve.decodePoint(sessionStructure.getSenderChain().getSenderRatchetKey().toByteArray(), 0);
+      if (senderChain == null) {
+        return Curve.decodePoint(new byte[0], 0);
+      }
+
+      return senderChain.getRatchetKeyPair().getPublicKey();
     } catch (InvalidKeyException e) {
       throw new AssertionError(e);
     }
   }
 
   public ECKeyPair getSenderRatchetKeyPair() {
-    ECPublicKey  publicKey  = getSenderRatchetKey();
-    ECPrivateKey privateKey = Curve.decodePrivatePoint(sessionStructure.getSenderChain()
-                                                                       .getSenderRatchetKeyPrivate()
-                                                                       .toByteArray());
+    try {
+      if (senderChain == null) {
+        return new ECKeyPair(Curve.decodePoint(new byte[0], 0), Curve.decodePrivatePoint(new byte[0]));
+      }
 
-    return new ECKeyPair(publicKey, privateKey);
+      return senderChain.getRatchetKeyPair();
+    } catch (InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
   }
 
   public boolean hasReceiverChain(ECPublicKey senderEphemeral) {
@@ -157,189 +264,107 @@ public class SessionState {
   }
 
   public boolean hasSenderChain() {
-    return sessionStructure.hasSenderChain();
+    return senderChain != null;
   }
 
-  private Pair<Chain,Integer> getReceiverChain(ECPublicKey senderEphemeral) {
-    List<Chain> receiverChains = sessionStructure.getReceiverChainsList();
-    int         index          = 0;
-
-    for (Chain receiverChain : receiverChains) {
-      try {
-        ECPublicKey chainSenderRatchetKey = Curve.decodePoint(receiverChain.getSenderRatchetKey().toByteArray(), 0);
+  private ReceiverChain getReceiverChain(ECPublicKey senderEphemeral) {
+    if (senderEphemeral == lastRatchetKey) {
+      return lastReceiverChain;
+    }
 
-        if (chainSenderRatchetKey.equals(senderEphemeral)) {
-          return new Pair<>(receiverChain,index);
-        }
-      } catch (InvalidKeyException e) {
-        Log.w("SessionRecordV2", e);
+    for (ReceiverChain receiverChain : receiverChains) {
+      if (receiverChain.matches(senderEphemeral)) {
+        lastRatchetKey    = senderEphemeral;
+        lastReceiverChain = receiverChain;
+        return receiverChain;
       }
-
-      index++;
     }
 
     return null;
   }
 
   public ChainKey getReceiverChainKey(ECPublicKey senderEphemeral) {
-    Pair<Chain,Integer> receiverChainAndIndex = getReceiverChain(senderEphemeral);
-    Chain               receiverChain         = receiverChainAndIndex.first();
+    ReceiverChain receiverChain = getReceiverChain(senderEphemeral);
 
     if (receiverChain == null) {
       return null;
     } else {
-      return new ChainKey(HKDF.createFor(getSessionVersion()),
-                          receiverChain.getChainKey().getKey().toByteArray(),
-                          receiverChain.getChainKey().getIndex());
+      return receiverChain.chainKey;
     }
   }
 
   public void addReceiverChain(ECPublicKey senderRatchetKey, ChainKey chainKey) {
-    Chain.ChainKey chainKeyStructure = Chain.ChainKey.newBuilder()
-                                                     .setKey(ByteString.copyFrom(chainKey.getKey()))
-                                                     .setIndex(chainKey.getIndex())
-                                                     .build();
+    receiverChains.add(new ReceiverChain(senderRatchetKey.serialize(), chainKey));
+    structureChanged();
 
-    Chain chain = Chain.newBuilder()
-                       .setChainKey(chainKeyStructure)
-                       .setSenderRatchetKey(ByteString.copyFrom(senderRatchetKey.serialize()))
-                       .build();
-
-    this.sessionStructure = this.sessionStructure.toBuilder().addReceiverChains(chain).build();
-
-    if (this.sessionStructure.getReceiverChainsList().size() > 5) {
-      this.sessionStructure = this.sessionStructure.toBuilder()
-                                                   .removeReceiverChains(0)
-                                                   .build();
+    if (receiverChains.size() > MAX_RECEIVER_CHAINS) {
+      receiverChains.remove(0);
+      lastRatchetKey    = null;
+      lastReceiverChain = null;
     }
   }
 
   public void setSenderChain(ECKeyPair senderRatchetKeyPair, ChainKey chainKey) {
-    Chain.ChainKey chainKeyStructure = Chain.ChainKey.newBuilder()
-                                                     .setKey(ByteString.copyFrom(chainKey.getKey()))
-                                                     .setIndex(chainKey.getIndex())
-                                                     .build();
-
-    Chain senderChain = Chain.newBuilder()
-                             .setSenderRatchetKey(ByteString.copyFrom(senderRatchetKeyPair.getPublicKey().serialize()))
-                             .setSenderRatchetKeyPrivate(ByteString.copyFrom(senderRatchetKeyPair.getPrivateKey().serialize()))
-                             .setChainKey(chainKeyStructure)
-                             .build();
-
-    this.sessionStructure = this.sessionStructure.toBuilder().setSenderChain(senderChain).build();
+    this.senderChain = new SenderChain(senderRatchetKeyPair, chainKey);
+    structureChanged();
   }
 
   public ChainKey getSenderChainKey() {
-    Chain.ChainKey chainKeyStructure = sessionStructure.getSenderChain().getChainKey();
-    return new ChainKey(HKDF.createFor(getSessionVersion()),
-                        chainKeyStructure.getKey().toByteArray(), chainKeyStructure.getIndex());
+    if (senderChain == null) {
+      return new ChainKey(getKdf(), new byte[0], 0);
+    }
+
+    return senderChain.chainKey;
   }
 
 
   public void setSenderChainKey(ChainKey nextChainKey) {
-    Chain.ChainKey chainKey = Chain.ChainKey.newBuilder()
-                                            .setKey(ByteString.copyFrom(nextChainKey.getKey()))
-                                            .setIndex(nextChainKey.getIndex())
-                                            .build();
-
-    Chain chain = sessionStructure.getSenderChain().toBuilder()
-                                  .setChainKey(chainKey).build();
-
-    this.sessionStructure = this.sessionStructure.toBuilder().setSenderChain(chain).build();
+    this.senderChain = senderChain.withChainKey(nextChainKey);
+    recordChainKey(Change.SENDER_CHAIN_KEY, senderChain.ratchetKey, nextChainKey);
   }
 
   public boolean hasMessageKeys(ECPublicKey senderEphemeral, int counter) {
-    Pair<Chain,Integer> chainAndIndex = getReceiverChain(senderEphemeral);
-    Chain               chain         = chainAndIndex.first();
+    ReceiverChain chain = getReceiverChain(senderEphemeral);
 
     if (chain == null) {
       return false;
     }
 
-    List<Chain.MessageKey> messageKeyList = chain.getMessageKeysList();
-
-    for (Chain.MessageKey messageKey : messageKeyList) {
-      if (messageKey.getIndex() == counter) {
-        return true;
-      }
-    }
-
-    return false;
+    return chain.messageKeys.containsKey(counter);
   }
 
   public MessageKeys removeMessageKeys(ECPublicKey senderEphemeral, int counter) {
-    Pair<Chain,Integer> chainAndIndex = getReceiverChain(senderEphemeral);
-    Chain               chain         = chainAndIndex.first();
+    ReceiverChain chain = getReceiverChain(senderEphemeral);
 
     if (chain == null) {
       return null;
     }
 
-    List<Chain.MessageKey>     messageKeyList     = new LinkedList<>(chain.getMessageKeysList());
-    Iterator<Chain.MessageKey> messageKeyIterator = messageKeyList.iterator();
-    MessageKeys                result             = null;
-
-    while (messageKeyIterator.hasNext()) {
-      Chain.MessageKey messageKey = messageKeyIterator.next();
-
-      if (messageKey.getIndex() == counter) {
-        result = new MessageKeys(new SecretKeySpec(messageKey.getCipherKey().toByteArray(), "AES"),
-                                 new SecretKeySpec(messageKey.getMacKey().toByteArray(), "HmacSHA256"),
-                                 new IvParameterSpec(messageKey.getIv().toByteArray()),
-                                 messageKey.getIndex());
+    MessageKeys messageKeys = chain.messageKeys.remove(counter);
 
-        messageKeyIterator.remove();
-        break;
-      }
+    if (messageKeys != null) {
+      record(new Change(Change.MESSAGE_KEYS_REMOVED, chain.ratchetKey, null, null, counter));
     }
 
-    Chain updatedChain = chain.toBuilder().clearMessageKeys()
-                              .addAllMessageKeys(messageKeyList)
-                              .build();
-
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setReceiverChains(chainAndIndex.second(), updatedChain)
-                                                 .build();
-
-    return result;
+    return messageKeys;
   }
 
   public void setMessageKeys(ECPublicKey senderEphemeral, MessageKeys messageKeys) {
-    Pair<Chain,Integer> chainAndIndex       = getReceiverChain(senderEphemeral);
-    Chain               chain               = chainAndIndex.first();
-    Chain.MessageKey    messageKeyStructure = Chain.MessageKey.newBuilder()
-                                                              .setCipherKey(ByteString.copyFrom(messageKeys.getCipherKey().getEncoded()))
-                                                              .setMacKey(ByteString.copyFrom(messageKeys.getMacKey().getEncoded()))
-                                                              .setIndex(messageKeys.getCounter())
-                                                              .setIv(ByteString.copyFrom(messageKeys.getIv().getIV()))
-                                                              .build();
+    ReceiverChain chain = getReceiverChain(senderEphemeral);
 
-    Chain.Builder updatedChain = chain.toBuilder().addMessageKeys(messageKeyStructure);
+    chain.messageKeys.put(messageKeys.getCounter(), messageKeys);
+    record(new Change(Change.MESSAGE_KEYS_ADDED, chain.ratchetKey, null, messageKeys, 0));
 
-    if (updatedChain.getMessageKeysCount() > MAX_MESSAGE_KEYS) {
-      updatedChain.removeMessageKeys(0);
+    if (chain.messageKeys.size() > MAX_MESSAGE_KEYS) {
+      MessageKeys evicted = chain.messageKeys.removeEldest();
+      record(new Change(Change.MESSAGE_KEYS_REMOVED, chain.ratchetKey, null, null, evicted.getCounter()));
     }
-
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setReceiverChains(chainAndIndex.second(),
-                                                                    updatedChain.build())
-                                                 .build();
   }
 
   public void setReceiverChainKey(ECPublicKey senderEphemeral, ChainKey chainKey) {
-    Pair<Chain,Integer> chainAndIndex = getReceiverChain(senderEphemeral);
-    Chain               chain         = chainAndIndex.first();
-
-    Chain.ChainKey chainKeyStructure = Chain.ChainKey.newBuilder()
-                                                     .setKey(ByteString.copyFrom(chainKey.getKey()))
-                                                     .setIndex(chainKey.getIndex())
-                                                     .build();
-
-    Chain updatedChain = chain.toBuilder().setChainKey(chainKeyStructure).build();
-
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setReceiverChains(chainAndIndex.second(), updatedChain)
-                                                 .build();
+    ReceiverChain chain = getReceiverChain(senderEphemeral);
+    chain.chainKey = chainKey;
+    recordChainKey(Change.RECEIVER_CHAIN_KEY, chain.ratchetKey, chainKey);
   }
 
   public void setPendingKeyExchange(int sequence,
@@ -347,7 +372,7 @@ public class SessionState {
                                     ECKeyPair ourRatchetKey,
                                     IdentityKeyPair ourIdentityKey)
   {
-    PendingKeyExchange structure =
+    this.pendingKeyExchange =
         PendingKeyExchange.newBuilder()
                           .setSequence(sequence)
                           .setLocalBaseKey(ByteString.copyFrom(ourBaseKey.getPublicKey().serialize()))
@@ -358,50 +383,43 @@ public class SessionState {
                           .setLocalIdentityKeyPrivate(ByteString.copyFrom(ourIdentityKey.getPrivateKey().serialize()))
                           .build();
 
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setPendingKeyExchange(structure)
-                                                 .build();
+    structureChanged();
   }
 
   public int getPendingKeyExchangeSequence() {
-    return sessionStructure.getPendingKeyExchange().getSequence();
+    return getPendingKeyExchange().getSequence();
   }
 
   public ECKeyPair getPendingKeyExchangeBaseKey() throws InvalidKeyException {
-    ECPublicKey publicKey   = Curve.decodePoint(sessionStructure.getPendingKeyExchange()
-                                                                .getLocalBaseKey().toByteArray(), 0);
-
-    ECPrivateKey privateKey = Curve.decodePrivatePoint(sessionStructure.getPendingKeyExchange()
-                                                                       .getLocalBaseKeyPrivate()
-                                                                       .toByteArray());
+    ECPublicKey publicKey   = Curve.decodePoint(getPendingKeyExchange().getLocalBaseKey().toByteArray(), 0);
+    ECPrivateKey privateKey = Curve.decodePrivatePoint(getPendingKeyExchange().getLocalBaseKeyPrivate()
+                                                                              .toByteArray());
 
     return new ECKeyPair(publicKey, privateKey);
   }
 
   public ECKeyPair getPendingKeyExchangeRatchetKey() throws InvalidKeyException {
-    ECPublicKey publicKey   = Curve.decodePoint(sessionStructure.getPendingKeyExchange()
-                                                                .getLocalRatchetKey().toByteArray(), 0);
-
-    ECPrivateKey privateKey = Curve.decodePrivatePoint(sessionStructure.getPendingKeyExchange()
-                                                                       .getLocalRatchetKeyPrivate()
-                                                                       .toByteArray());
+    ECPublicKey publicKey   = Curve.decodePoint(getPendingKeyExchange().getLocalRatchetKey().toByteArray(), 0);
+    ECPrivateKey privateKey = Curve.decodePrivatePoint(getPendingKeyExchange().getLocalRatchetKeyPrivate()
+                                                                              .toByteArray());
 
     return new ECKeyPair(publicKey, privateKey);
   }
 
   public IdentityKeyPair getPendingKeyExchangeIdentityKey() throws InvalidKeyException {
-    IdentityKey publicKey = new IdentityKey(sessionStructure.getPendingKeyExchange()
-                                                            .getLocalIdentityKey().toByteArray(), 0);
-
-    ECPrivateKey privateKey = Curve.decodePrivatePoint(sessionStructure.getPendingKeyExchange()
-                                                                       .getLocalIdentityKeyPrivate()
-                                                                       .toByteArray());
+    IdentityKey publicKey   = new IdentityKey(getPendingKeyExchange().getLocalIdentityKey().toByteArray(), 0);
+    ECPrivateKey privateKey = Curve.decodePrivatePoint(getPendingKeyExchange().getLocalIdentityKeyPrivate()
+                                                                              .toByteArray());
 
     return new IdentityKeyPair(publicKey, privateKey);
   }
 
   public boolean hasPendingKeyExchange() {
-    return sessionStructure.hasPendingKeyExchange();
+    return pendingKeyExchange != null;
+  }
+
+  private PendingKeyExchange getPendingKeyExchange() {
+    return pendingKeyExchange != null ? pendingKeyExchange : PendingKeyExchange.getDefaultInstance();
   }
 
   public void setUnacknowledgedPreKeyMessage(Optional<Integer> preKeyId, int signedPreKeyId, ECPublicKey baseKey) {
@@ -413,64 +431,432 @@ public class SessionState {
       pending.setPreKeyId(preKeyId.get());
     }
 
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setPendingPreKey(pending.build())
-                                                 .build();
+    this.pendingPreKey = pending.build();
+    structureChanged();
   }
 
   public boolean hasUnacknowledgedPreKeyMessage() {
-    return this.sessionStructure.hasPendingPreKey();
+    return pendingPreKey != null;
   }
 
   public UnacknowledgedPreKeyMessageItems getUnacknowledgedPreKeyMessageItems() {
     try {
+      PendingPreKey     pending = pendingPreKey != null ? pendingPreKey : PendingPreKey.getDefaultInstance();
       Optional<Integer> preKeyId;
 
-      if (sessionStructure.getPendingPreKey().hasPreKeyId()) {
-        preKeyId = Optional.of(sessionStructure.getPendingPreKey().getPreKeyId());
+      if (pending.hasPreKeyId()) {
+        preKeyId = Optional.of(pending.getPreKeyId());
       } else {
         preKeyId = Optional.absent();
       }
 
       return
           new UnacknowledgedPreKeyMessageItems(preKeyId,
-                                               sessionStructure.getPendingPreKey().getSignedPreKeyId(),
-                                               Curve.decodePoint(sessionStructure.getPendingPreKey()
-                                                                                 .getBaseKey()
-                                                                                 .toByteArray(), 0));
+                                               pending.getSignedPreKeyId(),
+                                               Curve.decodePoint(pending.getBaseKey().toByteArray(), 0));
     } catch (InvalidKeyException e) {
       throw new AssertionError(e);
     }
   }
 
   public void clearUnacknowledgedPreKeyMessage() {
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .clearPendingPreKey()
-                                                 .build();
+    if (pendingPreKey != null) {
+      this.pendingPreKey = null;
+      structureChanged();
+    }
   }
 
   public void setRemoteRegistrationId(int registrationId) {
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setRemoteRegistrationId(registrationId)
-                                                 .build();
+    this.remoteRegistrationId = registrationId;
+    structureChanged();
   }
 
   public int getRemoteRegistrationId() {
-    return this.sessionStructure.getRemoteRegistrationId();
+    return remoteRegistrationId;
   }
 
   public void setLocalRegistrationId(int registrationId) {
-    this.sessionStructure = this.sessionStructure.toBuilder()
-                                                 .setLocalRegistrationId(registrationId)
-                                                 .build();
+    this.localRegistrationId = registrationId;
+    structureChanged();
   }
 
   public int getLocalRegistrationId() {
-    return this.sessionStructure.getLocalRegistrationId();
+    return localRegistrationId;
   }
 
   public byte[] serialize() {
-    return sessionStructure.toByteArray();
+    return getStructure().toByteArray();
+  }
+
+  /**
+   * @return An identity shared by this state and all of its copies, which is used to tell
+   *         whether a state derives from the one that was last persisted.
+   */
+  Object getLineage() {
+    return lineage;
+  }
+
+  /**
+   * @return Whether this state has been modified since it was last persisted.
+   */
+  boolean isModified() {
+    return structureChanged || !changes.isEmpty();
+  }
+
+  /**
+   * @return Whether the modifications since this state was last persisted can be expressed
+   *         as a change set.
+   */
+  boolean hasSerializableChanges() {
+    return !structureChanged;
+  }
+
+  /**
+   * Marks the current contents of this state as persisted.
+   */
+  void clearChanges() {
+    this.structureChanged = false;
+    this.changes.clear();
+  }
+
+  /**
+   * Serializes the changes made since this state was last persisted.  Consecutive message key
+   * changes on a chain are grouped together, and each change is stored as an absolute value
+   * (a chain key, or the presence or absence of a message key), so applying a change set
+   * more than once is harmless.
+   *
+   * @return The serialized change set.
+   */
+  byte[] serializeChanges() {
+    try {
+      List<Integer> fields = new ArrayList<>(changes.size());
+      List<Chain>   chains = new ArrayList<>(changes.size());
+      byte[]        base   = aliceBaseKey != null ? aliceBaseKey : new byte[0];
+      int           size   = CodedOutputStream.computeByteArraySize(ALICE_BASE_KEY_FIELD, base);
+
+      for (int i=0;i<changes.size();i++) {
+        Change        change  = changes.get(i);
+        Chain.Builder builder = Chain.newBuilder().setSenderRatchetKey(ByteString.copyFrom(change.ratchetKey));
+
+        if (change.chainKey != null) {
+          builder.setChainKey(getChainKeyStructure(change.chainKey));
+        } else {
+          builder.addMessageKeys(getMessageKeyStructure(change));
+
+          while (i + 1 < changes.size()                     &&
+                 changes.get(i + 1).type == change.type     &&
+                 changes.get(i + 1).ratchetKey == change.ratchetKey)
+          {
+            builder.addMessageKeys(getMessageKeyStructure(changes.get(++i)));
+          }
+        }
+
+        Chain chain = builder.build();
+
+        fields.add(change.type);
+        chains.add(chain);
+        size += CodedOutputStream.computeMessageSize(change.type, chain);
+      }
+
+      byte[]            serialized = new byte[size];
+      CodedOutputStream output     = CodedOutputStream.newInstance(serialized);
+
+      output.writeByteArray(ALICE_BASE_KEY_FIELD, base);
+
+      for (int i=0;i<chains.size();i++) {
+        output.writeMessage(fields.get(i), chains.get(i));
+      }
+
+      output.checkNoSpaceLeft();
+
+      return serialized;
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Applies a change set produced by {@link #serializeChanges()} to this state.
+   *
+   * @param serialized The serialized change set.
+   * @throws IOException If the change set is malformed, or was produced by a different session.
+   */
+  void applyChanges(byte[] serialized) throws IOException {
+    CodedInputStream input = CodedInputStream.newInstance(serialized);
+
+    while (true) {
+      int tag = input.readTag();
+
+      if (tag == 0) {
+        break;
+      }
+
+      int field = WireFormat.getTagFieldNumber(tag);
+
+      if (WireFormat.getTagWireType(tag) != WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+        if (!input.skipField(tag)) break;
+      } else if (field == ALICE_BASE_KEY_FIELD) {
+        if (!Arrays.equals(input.readByteArray(), aliceBaseKey != null ? aliceBaseKey : new byte[0])) {
+          throw new IOException("Change set belongs to a different session");
+        }
+      } else if (field >= Change.SENDER_CHAIN_KEY && field <= Change.MESSAGE_KEYS_REMOVED) {
+        applyChange(field, Chain.parseFrom(input.readBytes()));
+      } else if (!input.skipField(tag)) {
+        break;
+      }
+    }
+  }
+
+  private void applyChange(int type, Chain chain) throws IOException {
+    byte[] ratchetKey = chain.getSenderRatchetKey().toByteArray();
+
+    if (type == Change.SENDER_CHAIN_KEY) {
+      if (senderChain == null || !Arrays.equals(senderChain.ratchetKey, ratchetKey)) {
+        throw new IOException("Change set does not match the sending chain");
+      }
+
+      senderChain = senderChain.withChainKey(new ChainKey(getKdf(), chain.getChainKey().getKey().toByteArray(),
+                                                          chain.getChainKey().getIndex()));
+      return;
+    }
+
+    ReceiverChain receiverChain = null;
+
+    for (ReceiverChain candidate : receiverChains) {
+      if (Arrays.equals(candidate.ratchetKey, ratchetKey)) {
+        receiverChain = candidate;
+        break;
+      }
+    }
+
+    if (receiverChain == null) {
+      throw new IOException("Change set does not match any receiving chain");
+    }
+
+    if (type == Change.RECEIVER_CHAIN_KEY) {
+      receiverChain.chainKey = new ChainKey(getKdf(), chain.getChainKey().getKey().toByteArray(),
+                                            chain.getChainKey().getIndex());
+    } else if (type == Change.MESSAGE_KEYS_ADDED) {
+      for (Chain.MessageKey messageKey : chain.getMessageKeysList()) {
+        receiverChain.messageKeys.put(messageKey.getIndex(), getMessageKeys(messageKey));
+
+        if (receiverChain.messageKeys.size() > MAX_MESSAGE_KEYS) {
+          receiverChain.messageKeys.removeEldest();
+        }
+      }
+    } else {
+      for (Chain.MessageKey messageKey : chain.getMessageKeysList()) {
+        receiverChain.messageKeys.remove(messageKey.getIndex());
+      }
+    }
+  }
+
+  private void structureChanged() {
+    this.structureChanged = true;
+    this.changes.clear();
+  }
+
+  private void recordChainKey(int type, byte[] ratchetKey, ChainKey chainKey) {
+    if (structureChanged) {
+      return;
+    }
+
+    for (int i=0;i<changes.size();i++) {
+      if (changes.get(i).type == type && changes.get(i).ratchetKey == ratchetKey) {
+        changes.set(i, new Change(type, ratchetKey, chainKey, null, 0));
+        return;
+      }
+    }
+
+    record(new Change(type, ratchetKey, chainKey, null, 0));
+  }
+
+  private void record(Change change) {
+    if (structureChanged) {
+      return;
+    }
+
+    if (changes.size() >= MAX_CHANGES) {
+      structureChanged();
+      return;
+    }
+
+    changes.add(change);
+  }
+
+  private HKDF getKdf() {
+    return HKDF.createFor(getSessionVersion());
+  }
+
+  private static Chain.ChainKey getChainKeyStructure(ChainKey chainKey) {
+    return Chain.ChainKey.newBuilder()
+                         .setKey(ByteString.copyFrom(chainKey.getKey()))
+                         .setIndex(chainKey.getIndex())
+                         .build();
+  }
+
+  private static Chain.MessageKey getMessageKeyStructure(MessageKeys keys) {
+    return Chain.MessageKey.newBuilder()
+                           .setCipherKey(ByteString.copyFrom(keys.getCipherKey().getEncoded()))
+                           .setMacKey(ByteString.copyFrom(keys.getMacKey().getEncoded()))
+                           .setIndex(keys.getCounter())
+                           .setIv(ByteString.copyFrom(keys.getIv().getIV()))
+                           .build();
+  }
+
+  private static Chain.MessageKey getMessageKeyStructure(Change change) {
+    if (change.messageKeys != null) return getMessageKeyStructure(change.messageKeys);
+    else                            return Chain.MessageKey.newBuilder().setIndex(change.counter).build();
+  }
+
+  private static MessageKeys getMessageKeys(Chain.MessageKey messageKey) {
+    return new MessageKeys(new SecretKeySpec(messageKey.getCipherKey().toByteArray(), "AES"),
+                           new SecretKeySpec(messageKey.getMacKey().toByteArray(), "HmacSHA256"),
+                           new IvParameterSpec(messageKey.getIv().toByteArray()),
+                           messageKey.getIndex());
+  }
+
+  /**
+   * A single change that can be serialized on its own.  The type doubles as the field number
+   * the change is serialized under.
+   */
+  private static class Change {
+    static final int SENDER_CHAIN_KEY     = 2;
+    static final int RECEIVER_CHAIN_KEY   = 3;
+    static final int MESSAGE_KEYS_ADDED   = 4;
+    static final int MESSAGE_KEYS_REMOVED = 5;
+
+    private final int         type;
+    private final byte[]      ratchetKey;
+    private final ChainKey    chainKey;
+    private final MessageKeys messageKeys;
+    private final int         counter;
+
+    Change(int type, byte[] ratchetKey, ChainKey chainKey, MessageKeys messageKeys, int counter) {
+      this.type        = type;
+      this.ratchetKey  = ratchetKey;
+      this.chainKey    = chainKey;
+      this.messageKeys = messageKeys;
+      this.counter     = counter;
+    }
+  }
+
+  /**
+   * The sending chain.  Immutable, so that copies of a state can share it.
+   */
+  private static class SenderChain {
+    private final byte[]   ratchetKey;
+    private final byte[]   ratchetKeyPrivate;
+    private final ChainKey chainKey;
+
+    private ECKeyPair ratchetKeyPair;
+
+    SenderChain(ECKeyPair ratchetKeyPair, ChainKey chainKey) {
+      this.ratchetKey        = ratchetKeyPair.getPublicKey().serialize();
+      this.ratchetKeyPrivate = ratchetKeyPair.getPrivateKey().serialize();
+      this.ratchetKeyPair    = ratchetKeyPair;
+      this.chainKey          = chainKey;
+    }
+
+    SenderChain(Chain structure, HKDF kdf) {
+      this.ratchetKey        = structure.getSenderRatchetKey().toByteArray();
+      this.ratchetKeyPrivate = structure.getSenderRatchetKeyPrivate().toByteArray();
+      this.chainKey          = new ChainKey(kdf, structure.getChainKey().getKey().toByteArray(),
+                                            structure.getChainKey().getIndex());
+    }
+
+    private SenderChain(SenderChain base, ChainKey chainKey) {
+      this.ratchetKey        = base.ratchetKey;
+      this.ratchetKeyPrivate = base.ratchetKeyPrivate;
+      this.ratchetKeyPair    = base.ratchetKeyPair;
+      this.chainKey          = chainKey;
+    }
+
+    SenderChain withChainKey(ChainKey chainKey) {
+      return new SenderChain(this, chainKey);
+    }
+
+    ECKeyPair getRatchetKeyPair() throws InvalidKeyException {
+      if (ratchetKeyPair == null) {
+        ratchetKeyPair = new ECKeyPair(Curve.decodePoint(ratchetKey, 0),
+                                       Curve.decodePrivatePoint(ratchetKeyPrivate));
+      }
+
+      return ratchetKeyPair;
+    }
+
+    Chain getStructure() {
+      return Chain.newBuilder()
+                  .setSenderRatchetKey(ByteString.copyFrom(ratchetKey))
+                  .setSenderRatchetKeyPrivate(ByteString.copyFrom(ratchetKeyPrivate))
+                  .setChainKey(getChainKeyStructure(chainKey))
+                  .build();
+    }
+  }
+
+  /**
+   * A receiving chain and the message keys that were skipped on it, indexed by counter.
+   * Chains are matched against incoming ratchet keys by their serialized bytes, so looking
+   * one up never decodes a point.  The point bytes are also kept apart from the type byte,
+   * so that a {@link DjbECPublicKey}'s key can be compared with one Arrays.equals().
+   */
+  private static class ReceiverChain {
+    private final byte[]                        ratchetKey;
+    private final byte[]                        ratchetPoint;
+    private final IntLinkedHashMap<MessageKeys> messageKeys;
+    private       ChainKey                      chainKey;
+
+    ReceiverChain(byte[] ratchetKey, ChainKey chainKey) {
+      this.ratchetKey   = ratchetKey;
+      this.ratchetPoint = getPoint(ratchetKey);
+      this.chainKey     = chainKey;
+      this.messageKeys  = new IntLinkedHashMap<>();
+    }
+
+    ReceiverChain(Chain structure, HKDF kdf) {
+      this.ratchetKey   = structure.getSenderRatchetKey().toByteArray();
+      this.ratchetPoint = getPoint(ratchetKey);
+      this.chainKey     = new ChainKey(kdf, structure.getChainKey().getKey().toByteArray(),
+                                       structure.getChainKey().getIndex());
+      this.messageKeys  = new IntLinkedHashMap<>(structure.getMessageKeysCount());
+
+      for (Chain.MessageKey messageKey : structure.getMessageKeysList()) {
+        messageKeys.put(messageKey.getIndex(), getMessageKeys(messageKey));
+      }
+    }
+
+    ReceiverChain(ReceiverChain copy) {
+      this.ratchetKey   = copy.ratchetKey;
+      this.ratchetPoint = copy.ratchetPoint;
+      this.chainKey     = copy.chainKey;
+      this.messageKeys  = new IntLinkedHashMap<>(copy.messageKeys);
+    }
+
+    boolean matches(ECPublicKey key) {
+      if (key instanceof DjbECPublicKey) {
+        return ratchetKey.length > 0 && (ratchetKey[0] & 0xFF) == key.getType() &&
+               Arrays.equals(ratchetPoint, ((DjbECPublicKey) key).getPublicKey());
+      }
+
+      return Arrays.equals(ratchetKey, key.serialize());
+    }
+
+    private static byte[] getPoint(byte[] ratchetKey) {
+      if (ratchetKey.length == 0) return ratchetKey;
+      else                        return Arrays.copyOfRange(ratchetKey, 1, ratchetKey.length);
+    }
+
+    Chain getStructure() {
+      Chain.Builder builder = Chain.newBuilder()
+                                   .setSenderRatchetKey(ByteString.copyFrom(ratchetKey))
+                                   .setChainKey(getChainKeyStructure(chainKey));
+
+      for (MessageKeys keys : messageKeys) {
+        builder.addMessageKeys(getMessageKeyStructure(keys));
+      }
+
+      return builder.build();
+    }
   }
 
   public static class UnacknowledgedPreKeyMessageItems {
@@ -0,0 +1,379 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.state.impl;
+
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.logging.Log;
+import org.whispersystems.libsignal.state.BatchSessionStore;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SessionStore;
+import org.whispersystems.libsignal.util.StripedLock;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A write-behind cache in front of another {@link SessionStore}.
+ *
+ * Live {@link SessionRecord}s are kept in a bounded LRU cache, so a cache hit costs a deep
+ * copy of the record rather than a parse, and a store costs nothing until the record is
+ * flushed.  Stored records are marked dirty and written to the backing store in coalesced
+ * batches (only the latest record per address is written) when the number of dirty records
+ * reaches a threshold, on an optional fixed interval, and on {@link #flush()}.  Dirty records
+ * are never evicted before they have been written.
+ *
+ * <b>Durability:</b> a record is durable once it has been flushed, not when
+ * {@link #storeSession(SignalProtocolAddress, SessionRecord)} returns.  The ordering a
+ * {@link org.whispersystems.libsignal.DecryptionCallback} relies on still holds: plaintext
+ * persisted by the callback always reaches storage before the session state that decrypted
+ * it, so a crash can at worst cause a message to be decrypted again.  Flushes are serialized,
+ * so the backing store never sees an older record for an address after a newer one.  A crash
+ * does roll back sending chains to their last flushed state, so applications should call
+ * {@link #flush()} before handing ciphertext to the network if they can't tolerate a chain
+ * being reused after a crash.
+ *
+ * Records passed to storeSession are retained, and must not be modified by the caller
+ * afterwards.  A cached record is never modified once cached either: loads and flushes
+ * both work on copies of it.  Deletions are written through to the backing store
+ * immediately.
+ */
+public class CachingSessionStore implements BatchSessionStore {
+
+  private static final String TAG = CachingSessionStore.class.getSimpleName();
+
+  private final SessionStore                                backingStore;
+  private final int                                         capacity;
+  private final int                                         flushThreshold;
+  private final LinkedHashMap<SignalProtocolAddress, Entry> cache;
+  private final StripedLock<SignalProtocolAddress>          loadLocks = new StripedLock<>(StripedLock.defaultStripeCount());
+  private final Object                                      flushLock = new Object();
+
+  private int                dirtyCount;
+  private long               deletions;
+  private ScheduledFuture<?> scheduledFlush;
+
+  /**
+   * @param backingStore The store records are loaded from and flushed to.
+   * @param capacity The number of records to keep cached, not counting dirty records.
+   * @param flushThreshold The number of dirty records that triggers a flush, on the thread
+   *                       storing the record that reaches it.
+   */
+  public CachingSessionStore(SessionStore backingStore, int capacity, int flushThreshold) {
+    if (capacity < 1 || flushThreshold < 1) {
+      throw new IllegalArgumentException("Capacity and flush threshold must be positive");
+    }
+
+    this.backingStore   = backingStore;
+    this.capacity       = capacity;
+    this.flushThreshold = flushThreshold;
+    this.cache          = new LinkedHashMap<>(16, 0.75f, true);
+  }
+
+  /**
+   * Additionally flushes dirty records on a fixed interval, until {@link #close()}.
+   */
+  public CachingSessionStore(SessionStore backingStore, int capacity, int flushThreshold,
+                             ScheduledExecutorService scheduler, long flushInterval, TimeUnit unit)
+  {
+    this(backingStore, capacity, flushThreshold);
+
+    this.scheduledFlush = scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          flush();
+        } catch (RuntimeException e) {
+          Log.w(TAG, e);
+        }
+      }
+    }, flushInterval, flushInterval, unit);
+  }
+
+  @Override
+  public SessionRecord loadSession(SignalProtocolAddress address) {
+    SessionRecord cached = getCached(address);
+
+    if (cached != null) {
+      return cached;
+    }
+
+    Lock lock = loadLocks.get(address);
+    lock.lock();
+
+    try {
+      cached = getCached(address);
+
+      if (cached != null) {
+        return cached;
+      }
+
+      long generation;
+
+      synchronized (cache) {
+        generation = deletions;
+      }
+
+      SessionRecord record = backingStore.loadSession(address);
+
+      if (!record.isFresh()) {
+        synchronized (cache) {
+          if (deletions == generation) {
+            cache.put(address, new Entry(new SessionRecord(record), false));
+            evict();
+          }
+        }
+      }
+
+      return record;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Map<SignalProtocolAddress, SessionRecord> loadSessions(Collection<SignalProtocolAddress> addresses) {
+    Map<SignalProtocolAddress, SessionRecord> records = new HashMap<>();
+
+    for (SignalProtocolAddress address : addresses) {
+      records.put(address, loadSession(address));
+    }
+
+    return records;
+  }
+
+  @Override
+  public List<Integer> getSubDeviceSessions(String name) {
+    Set<Integer> deviceIds = new LinkedHashSet<>(backingStore.getSubDeviceSessions(name));
+
+    synchronized (cache) {
+      for (Map.Entry<SignalProtocolAddress, Entry> entry : cache.entrySet()) {
+        if (entry.getValue().dirty                  &&
+            entry.getKey().getName().equals(name) &&
+            entry.getKey().getDeviceId() != 1)
+        {
+          deviceIds.add(entry.getKey().getDeviceId());
+        }
+      }
+    }
+
+    return new LinkedList<>(deviceIds);
+  }
+
+  @Override
+  public void storeSession(SignalProtocolAddress address, SessionRecord record) {
+    Lock lock = loadLocks.get(address);
+    lock.lock();
+
+    try {
+      markDirty(address, record);
+    } finally {
+      lock.unlock();
+    }
+
+    flushIfNeeded();
+  }
+
+  @Override
+  public void storeSessions(Map<SignalProtocolAddress, SessionRecord> records) {
+    for (Map.Entry<SignalProtocolAddress, SessionRecord> record : records.entrySet()) {
+      Lock lock = loadLocks.get(record.getKey());
+      lock.lock();
+
+      try {
+        markDirty(record.getKey(), record.getValue());
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    flushIfNeeded();
+  }
+
+  @Override
+  public boolean containsSession(SignalProtocolAddress address) {
+    synchronized (cache) {
+      if (cache.containsKey(address)) {
+        return true;
+      }
+    }
+
+    return backingStore.containsSession(address);
+  }
+
+  /**
+   * Deletes the session from the backing store, and then from the cache.  A load that read
+   * the backing store before the deletion finished doesn't cache what it read.
+   */
+  @Override
+  public void deleteSession(SignalProtocolAddress address) {
+    synchronized (flushLock) {
+      backingStore.deleteSession(address);
+
+      synchronized (cache) {
+        Entry entry = cache.remove(address);
+        if (entry != null && entry.dirty) dirtyCount--;
+        deletions++;
+      }
+    }
+  }
+
+  @Override
+  public void deleteAllSessions(String name) {
+    synchronized (flushLock) {
+      backingStore.deleteAllSessions(name);
+
+      synchronized (cache) {
+        Iterator<Map.Entry<SignalProtocolAddress, Entry>> iterator = cache.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+          Map.Entry<SignalProtocolAddress, Entry> entry = iterator.next();
+
+          if (entry.getKey().getName().equals(name)) {
+            if (entry.getValue().dirty) dirtyCount--;
+            iterator.remove();
+          }
+        }
+
+        deletions++;
+      }
+    }
+  }
+
+  /**
+   * Writes copies of every dirty record to the backing store, as one batch if it is a
+   * {@link BatchSessionStore}.  Once written, a copy replaces the cached record, so that it
+   * carries whatever the backing store marked it with.  If the write fails, the records stay
+   * dirty and the exception is rethrown.
+   */
+  public void flush() {
+    synchronized (flushLock) {
+      Map<SignalProtocolAddress, Entry>         batch   = new LinkedHashMap<>();
+      Map<SignalProtocolAddress, SessionRecord> records = new LinkedHashMap<>();
+
+      synchronized (cache) {
+        for (Map.Entry<SignalProtocolAddress, Entry> entry : cache.entrySet()) {
+          if (entry.getValue().dirty) {
+            batch.put(entry.getKey(), entry.getValue());
+            records.put(entry.getKey(), new SessionRecord(entry.getValue().record));
+          }
+        }
+      }
+
+      if (batch.isEmpty()) {
+        return;
+      }
+
+      if (backingStore instanceof BatchSessionStore) {
+        ((BatchSessionStore) backingStore).storeSessions(records);
+      } else {
+        for (Map.Entry<SignalProtocolAddress, SessionRecord> record : records.entrySet()) {
+          backingStore.storeSession(record.getKey(), record.getValue());
+        }
+      }
+
+      synchronized (cache) {
+        for (Map.Entry<SignalProtocolAddress, Entry> written : batch.entrySet()) {
+          Entry current = cache.get(written.getKey());
+
+          if (current == written.getValue()) {
+            current.record = records.get(written.getKey());
+            current.dirty  = false;
+            dirtyCount--;
+          }
+        }
+
+        evict();
+      }
+    }
+  }
+
+  /**
+   * Stops any interval flushing, and flushes.
+   */
+  public void close() {
+    if (scheduledFlush != null) {
+      scheduledFlush.cancel(false);
+    }
+
+    flush();
+  }
+
+  /**
+   * @return The number of records stored but not yet flushed.
+   */
+  public int getDirtyCount() {
+    synchronized (cache) {
+      return dirtyCount;
+    }
+  }
+
+  private SessionRecord getCached(SignalProtocolAddress address) {
+    SessionRecord record;
+
+    synchronized (cache) {
+      Entry entry = cache.get(address);
+
+      if (entry == null) {
+        return null;
+      }
+
+      record = entry.record;
+    }
+
+    return new SessionRecord(record);
+  }
+
+  private void markDirty(SignalProtocolAddress address, SessionRecord record) {
+    synchronized (cache) {
+      Entry previous = cache.put(address, new Entry(record, true));
+
+      if (previous == null || !previous.dirty) {
+        dirtyCount++;
+      }
+    }
+  }
+
+  private void flushIfNeeded() {
+    if (getDirtyCount() >= flushThreshold) {
+      flush();
+    }
+  }
+
+  /**
+   * Drops least recently used clean records until the clean records fit in the capacity.
+   * Called holding the cache monitor.
+   */
+  private void evict() {
+    Iterator<Entry> entries = cache.values().iterator();
+
+    while (cache.size() - dirtyCount > capacity && entries.hasNext()) {
+      if (!entries.next().dirty) {
+        entries.remove();
+      }
+    }
+  }
+
+  private static class Entry {
+    private SessionRecord record;
+    private boolean       dirty;
+
+    private Entry(SessionRecord record, boolean dirty) {
+      this.record = record;
+      this.dirty  = dirty;
+    }
+  }
+}
@@ -0,0 +1,278 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.state.impl;
+
+import org.whispersystems.libsignal.IdentityKey;
+import org.whispersystems.libsignal.IdentityKeyPair;
+import org.whispersystems.libsignal.InvalidKeyIdException;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.state.BatchSessionStore;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An in-memory {@link SignalProtocolStore} that can be shared by many threads without
+ * a store-wide lock.
+ *
+ * Records are kept serialized in {@link ConcurrentHashMap}s, so loads and stores for
+ * different keys never contend.  Sessions are additionally indexed by name, which makes
+ * {@link #getSubDeviceSessions(String)} and {@link #deleteAllSessions(String)} proportional
+ * to the number of devices for that name rather than to the number of sessions held.
+ *
+ * Individual operations are atomic, but sequences of them are not: as with any store,
+ * callers are expected to serialize the load-modify-store cycle for a given address,
+ * which {@link org.whispersystems.libsignal.SessionCipher} already does.
+ */
+public class ConcurrentSignalProtocolStore implements SignalProtocolStore, BatchSessionStore {
+
+  private final ConcurrentMap<SignalProtocolAddress, byte[]>      sessions      = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Set<Integer>>               devices       = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Integer, byte[]>                    preKeys       = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Integer, byte[]>                    signedPreKeys = new ConcurrentHashMap<>();
+  private final ConcurrentMap<SignalProtocolAddress, IdentityKey> trustedKeys   = new ConcurrentHashMap<>();
+
+  private final IdentityKeyPair identityKeyPair;
+  private final int             localRegistrationId;
+
+  public ConcurrentSignalProtocolStore(IdentityKeyPair identityKeyPair, int localRegistrationId) {
+    this.identityKeyPair     = identityKeyPair;
+    this.localRegistrationId = localRegistrationId;
+  }
+
+  @Override
+  public IdentityKeyPair getIdentityKeyPair() {
+    return identityKeyPair;
+  }
+
+  @Override
+  public int getLocalRegistrationId() {
+    return localRegistrationId;
+  }
+
+  @Override
+  public boolean saveIdentity(SignalProtocolAddress address, IdentityKey identityKey) {
+    while (true) {
+      IdentityKey existing = trustedKeys.get(address);
+
+      if (identityKey.equals(existing)) {
+        return false;
+      }
+
+      if (existing == null ? trustedKeys.putIfAbsent(address, identityKey) == null
+                           : trustedKeys.replace(address, existing, identityKey))
+      {
+        return true;
+      }
+    }
+  }
+
+  @Override
+  public boolean isTrustedIdentity(SignalProtocolAddress address, IdentityKey identityKey, Direction direction) {
+    IdentityKey trusted = trustedKeys.get(address);
+    return (trusted == null || trusted.equals(identityKey));
+  }
+
+  @Override
+  public IdentityKey getIdentity(SignalProtocolAddress address) {
+    return trustedKeys.get(address);
+  }
+
+  @Override
+  public PreKeyRecord loadPreKey(int preKeyId) throws InvalidKeyIdException {
+    try {
+      byte[] serialized = preKeys.get(preKeyId);
+
+      if (serialized == null) {
+        throw new InvalidKeyIdException("No such prekeyrecord!");
+      }
+
+      return new PreKeyRecord(serialized);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public void storePreKey(int preKeyId, PreKeyRecord record) {
+    preKeys.put(preKeyId, record.serialize());
+  }
+
+  @Override
+  public boolean containsPreKey(int preKeyId) {
+    return preKeys.containsKey(preKeyId);
+  }
+
+  @Override
+  public void removePreKey(int preKeyId) {
+    preKeys.remove(preKeyId);
+  }
+
+  @Override
+  public SignedPreKeyRecord loadSignedPreKey(int signedPreKeyId) throws InvalidKeyIdException {
+    try {
+      byte[] serialized = signedPreKeys.get(signedPreKeyId);
+
+      if (serialized == null) {
+        throw new InvalidKeyIdException("No such signedprekeyrecord! " + signedPreKeyId);
+      }
+
+      return new SignedPreKeyRecord(serialized);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public List<SignedPreKeyRecord> loadSignedPreKeys() {
+    try {
+      List<SignedPreKeyRecord> results = new LinkedList<>();
+
+      for (byte[] serialized : signedPreKeys.values()) {
+        results.add(new SignedPreKeyRecord(serialized));
+      }
+
+      return results;
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public void storeSignedPreKey(int signedPreKeyId, SignedPreKeyRecord record) {
+    signedPreKeys.put(signedPreKeyId, record.serialize());
+  }
+
+  @Override
+  public boolean containsSignedPreKey(int signedPreKeyId) {
+    return signedPreKeys.containsKey(signedPreKeyId);
+  }
+
+  @Override
+  public void removeSignedPreKey(int signedPreKeyId) {
+    signedPreKeys.remove(signedPreKeyId);
+  }
+
+  @Override
+  public SessionRecord loadSession(SignalProtocolAddress address) {
+    try {
+      byte[] serialized = sessions.get(address);
+
+      if (serialized != null) return new SessionRecord(serialized);
+      else                    return new SessionRecord();
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public Map<SignalProtocolAddress, SessionRecord> loadSessions(Collection<SignalProtocolAddress> addresses) {
+    Map<SignalProtocolAddress, SessionRecord> records = new HashMap<>();
+
+    for (SignalProtocolAddress address : addresses) {
+      records.put(address, loadSession(address));
+    }
+
+    return records;
+  }
+
+  @Override
+  public List<Integer> getSubDeviceSessions(String name) {
+    List<Integer> deviceIds = new LinkedList<>();
+    Set<Integer>  indexed   = devices.get(name);
+
+    if (indexed != null) {
+      for (int deviceId : indexed) {
+        if (deviceId != 1 && sessions.containsKey(new SignalProtocolAddress(name, deviceId))) {
+          deviceIds.add(deviceId);
+        }
+      }
+    }
+
+    return deviceIds;
+  }
+
+  /**
+   * The session is written before it is indexed, and {@link #deleteSession} unindexes
+   * before it removes, so a session that exists is always indexed.  A racing store and
+   * delete can leave an index entry without a session; readers check for the session,
+   * and the next delete for that address clears it.
+   */
+  @Override
+  public void storeSession(SignalProtocolAddress address, SessionRecord record) {
+    sessions.put(address, record.serialize());
+    getDevices(address.getName()).add(address.getDeviceId());
+  }
+
+  @Override
+  public void storeSessions(Map<SignalProtocolAddress, SessionRecord> records) {
+    for (Map.Entry<SignalProtocolAddress, SessionRecord> record : records.entrySet()) {
+      storeSession(record.getKey(), record.getValue());
+    }
+  }
+
+  @Override
+  public boolean containsSession(SignalProtocolAddress address) {
+    return sessions.containsKey(address);
+  }
+
+  @Override
+  public void deleteSession(SignalProtocolAddress address) {
+    Set<Integer> indexed = devices.get(address.getName());
+
+    if (indexed != null) {
+      indexed.remove(address.getDeviceId());
+    }
+
+    sessions.remove(address);
+  }
+
+  @Override
+  public void deleteAllSessions(String name) {
+    Set<Integer> indexed = devices.get(name);
+
+    if (indexed != null) {
+      for (int deviceId : indexed) {
+        deleteSession(new SignalProtocolAddress(name, deviceId));
+      }
+    }
+  }
+
+  /**
+   * @return The number of sessions currently held.
+   */
+  public int getSessionCount() {
+    return sessions.size();
+  }
+
+  private Set<Integer> getDevices(String name) {
+    Set<Integer> indexed = devices.get(name);
+
+    if (indexed == null) {
+      Set<Integer> created = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+      indexed = devices.putIfAbsent(name, created);
+
+      if (indexed == null) {
+        indexed = created;
+      }
+    }
+
+    return indexed;
+  }
+}
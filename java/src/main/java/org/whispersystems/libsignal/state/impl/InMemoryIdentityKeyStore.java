@@ -36,7 +36,7 @@ public class InMemoryIdentityKeyStore implements IdentityKeyStore {
   }
 
   @Override
-  public boolean saveIdentity(SignalProtocolAddress address, IdentityKey identityKey) {
+  public synchronized boolean saveIdentity(SignalProtocolAddress address, IdentityKey identityKey) {
     IdentityKey existing = trustedKeys.get(address);
 
     if (!identityKey.equals(existing)) {
@@ -48,13 +48,13 @@ public class InMemoryIdentityKeyStore implements IdentityKeyStore {
   }
 
   @Override
-  public boolean isTrustedIdentity(SignalProtocolAddress address, IdentityKey identityKey, Direction direction) {
+  public synchronized boolean isTrustedIdentity(SignalProtocolAddress address, IdentityKey identityKey, Direction direction) {
     IdentityKey trusted = trustedKeys.get(address);
     return (trusted == null || trusted.equals(identityKey));
   }
 
   @Override
-  public IdentityKey getIdentity(SignalProtocolAddress address) {
+  public synchronized IdentityKey getIdentity(SignalProtocolAddress address) {
     return trustedKeys.get(address);
   }
 }
@@ -6,16 +6,18 @@
 package org.whispersystems.libsignal.state.impl;
 
 import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.state.BatchSessionStore;
 import org.whispersystems.libsignal.state.SessionRecord;
-import org.whispersystems.libsignal.state.SessionStore;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
-public class InMemorySessionStore implements SessionStore {
+public class InMemorySessionStore implements BatchSessionStore {
 
   private Map<SignalProtocolAddress, byte[]> sessions = new HashMap<>();
 
@@ -34,6 +36,17 @@ public class InMemorySessionStore implements SessionStore {
     }
   }
 
+  @Override
+  public synchronized Map<SignalProtocolAddress, SessionRecord> loadSessions(Collection<SignalProtocolAddress> addresses) {
+    Map<SignalProtocolAddress, SessionRecord> records = new HashMap<>();
+
+    for (SignalProtocolAddress address : addresses) {
+      records.put(address, loadSession(address));
+    }
+
+    return records;
+  }
+
   @Override
   public synchronized List<Integer> getSubDeviceSessions(String name) {
     List<Integer> deviceIds = new LinkedList<>();
@@ -54,6 +67,13 @@ public class InMemorySessionStore implements SessionStore {
     sessions.put(address, record.serialize());
   }
 
+  @Override
+  public synchronized void storeSessions(Map<SignalProtocolAddress, SessionRecord> records) {
+    for (Map.Entry<SignalProtocolAddress, SessionRecord> record : records.entrySet()) {
+      storeSession(record.getKey(), record.getValue());
+    }
+  }
+
   @Override
   public synchronized boolean containsSession(SignalProtocolAddress address) {
     return sessions.containsKey(address);
@@ -66,9 +86,11 @@ public class InMemorySessionStore implements SessionStore {
 
   @Override
   public synchronized void deleteAllSessions(String name) {
-    for (SignalProtocolAddress key : sessions.keySet()) {
-      if (key.getName().equals(name)) {
-        sessions.remove(key);
+    Iterator<SignalProtocolAddress> keys = sessions.keySet().iterator();
+
+    while (keys.hasNext()) {
+      if (keys.next().getName().equals(name)) {
+        keys.remove();
       }
     }
   }
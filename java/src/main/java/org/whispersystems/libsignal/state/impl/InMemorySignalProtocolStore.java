@@ -9,14 +9,17 @@ import org.whispersystems.libsignal.SignalProtocolAddress;
 import org.whispersystems.libsignal.IdentityKey;
 import org.whispersystems.libsignal.IdentityKeyPair;
 import org.whispersystems.libsignal.InvalidKeyIdException;
+import org.whispersystems.libsignal.state.BatchSessionStore;
 import org.whispersystems.libsignal.state.SignalProtocolStore;
 import org.whispersystems.libsignal.state.PreKeyRecord;
 import org.whispersystems.libsignal.state.SessionRecord;
 import org.whispersystems.libsignal.state.SignedPreKeyRecord;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
-public class InMemorySignalProtocolStore implements SignalProtocolStore {
+public class InMemorySignalProtocolStore implements SignalProtocolStore, BatchSessionStore {
 
   private final InMemoryPreKeyStore       preKeyStore       = new InMemoryPreKeyStore();
   private final InMemorySessionStore      sessionStore      = new InMemorySessionStore();
@@ -78,6 +81,11 @@ public class InMemorySignalProtocolStore implements SignalProtocolStore {
     return sessionStore.loadSession(address);
   }
 
+  @Override
+  public Map<SignalProtocolAddress, SessionRecord> loadSessions(Collection<SignalProtocolAddress> addresses) {
+    return sessionStore.loadSessions(addresses);
+  }
+
   @Override
   public List<Integer> getSubDeviceSessions(String name) {
     return sessionStore.getSubDeviceSessions(name);
@@ -88,6 +96,11 @@ public class InMemorySignalProtocolStore implements SignalProtocolStore {
     sessionStore.storeSession(address, record);
   }
 
+  @Override
+  public void storeSessions(Map<SignalProtocolAddress, SessionRecord> records) {
+    sessionStore.storeSessions(records);
+  }
+
   @Override
   public boolean containsSession(SignalProtocolAddress address) {
     return sessionStore.containsSession(address);
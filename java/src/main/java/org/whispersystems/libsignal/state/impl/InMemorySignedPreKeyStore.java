@@ -20,7 +20,7 @@ public class InMemorySignedPreKeyStore implements SignedPreKeyStore {
   private final Map<Integer, byte[]> store = new HashMap<>();
 
   @Override
-  public SignedPreKeyRecord loadSignedPreKey(int signedPreKeyId) throws InvalidKeyIdException {
+  public synchronized SignedPreKeyRecord loadSignedPreKey(int signedPreKeyId) throws InvalidKeyIdException {
     try {
       if (!store.containsKey(signedPreKeyId)) {
         throw new InvalidKeyIdException("No such signedprekeyrecord! " + signedPreKeyId);
@@ -33,7 +33,7 @@ public class InMemorySignedPreKeyStore implements SignedPreKeyStore {
   }
 
   @Override
-  public List<SignedPreKeyRecord> loadSignedPreKeys() {
+  public synchronized List<SignedPreKeyRecord> loadSignedPreKeys() {
     try {
       List<SignedPreKeyRecord> results = new LinkedList<>();
 
@@ -48,17 +48,17 @@ public class InMemorySignedPreKeyStore implements SignedPreKeyStore {
   }
 
   @Override
-  public void storeSignedPreKey(int signedPreKeyId, SignedPreKeyRecord record) {
+  public synchronized void storeSignedPreKey(int signedPreKeyId, SignedPreKeyRecord record) {
     store.put(signedPreKeyId, record.serialize());
   }
 
   @Override
-  public boolean containsSignedPreKey(int signedPreKeyId) {
+  public synchronized boolean containsSignedPreKey(int signedPreKeyId) {
     return store.containsKey(signedPreKeyId);
   }
 
   @Override
-  public void removeSignedPreKey(int signedPreKeyId) {
+  public synchronized void removeSignedPreKey(int signedPreKeyId) {
     store.remove(signedPreKeyId);
   }
 }
@@ -0,0 +1,627 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.state.impl;
+
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.state.BatchSessionStore;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.util.guava.Optional;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A durable {@link org.whispersystems.libsignal.state.SessionStore} kept in a single
+ * append-only log file, accessed through a memory mapping.
+ *
+ * Every store or delete appends one checksummed entry to the log, and an in-memory index maps
+ * each address to its latest entry, so a store costs one sequential write and a load costs
+ * one copy out of the mapping.  When a stored record was loaded from, or last written to,
+ * exactly the entry the store still holds for its address, only its change set from
+ * {@link SessionRecord#serializeChanges(Object)} is appended, up to a limit per address after
+ * which the full record is written again.  Each entry version has its own token, so a record
+ * parsed from elsewhere, or loaded before a later write, is always written in full.  The
+ * mapping is forced to disk (fsync) once every <tt>syncInterval</tt> entries, on
+ * {@link #sync()}, and on {@link #close()}.  When the log reaches the compaction threshold
+ * and more than half of it is superseded entries, the live entries are copied to a new log
+ * which atomically replaces the old one, with each record's change sets folded into it.
+ *
+ * <b>Durability:</b> entries appended since the last sync may be lost in a crash, which rolls
+ * the affected sessions back to their last synced state.  Applications that can't tolerate a
+ * sending chain being reused after a crash should use a sync interval of 1, or call
+ * {@link #sync()} before handing ciphertext to the network.  Torn or partially written
+ * entries are detected by their checksum when the log is opened, and discarded along with
+ * everything after them.
+ *
+ * The log is limited to 2GB by the size of a mapping, and compaction relies on renaming a
+ * file over an existing one, so this store is intended for POSIX filesystems.  I/O failures
+ * surface as {@link IllegalStateException}s, after which the store should be closed and
+ * re-opened.
+ */
+public class MappedSessionStore implements BatchSessionStore, Closeable {
+
+  private static final int     MAGIC        = 0x53534c47;
+  private static final int     VERSION      = 1;
+  private static final int     FILE_HEADER  = 8;
+  private static final int     ENTRY_HEADER = 8;
+  private static final int     MINIMUM_SIZE = 64 * 1024;
+  private static final byte    OP_STORE     = 1;
+  private static final byte    OP_DELETE    = 2;
+  private static final byte    OP_CHANGES   = 3;
+  private static final int     MAX_CHANGES  = 16;
+  private static final Charset UTF_8        = Charset.forName("UTF-8");
+
+  private static final int DEFAULT_SYNC_INTERVAL        = 1;
+  private static final int DEFAULT_COMPACTION_THRESHOLD = 4 * 1024 * 1024;
+
+  private final File   file;
+  private final int    syncInterval;
+  private final int    compactionThreshold;
+  private final CRC32  crc     = new CRC32();
+  private final byte[] scratch = new byte[4];
+
+  private Map<SignalProtocolAddress, Entry> index = new HashMap<>();
+  private RandomAccessFile                  randomAccessFile;
+  private MappedByteBuffer                  buffer;
+  private int                               writePosition;
+  private int                               liveBytes;
+  private int                               unsynced;
+  private boolean                           closed;
+
+  /**
+   * Opens or creates a log that syncs every entry, and compacts from 4MB.
+   *
+   * @param file The log file.
+   */
+  public MappedSessionStore(File file) throws IOException {
+    this(file, DEFAULT_SYNC_INTERVAL, DEFAULT_COMPACTION_THRESHOLD);
+  }
+
+  /**
+   * @param file The log file.
+   * @param syncInterval The number of appended entries between syncs.
+   * @param compactionThreshold The log size, in bytes, below which the log is never compacted.
+   */
+  public MappedSessionStore(File file, int syncInterval, int compactionThreshold) throws IOException {
+    if (syncInterval < 1 || compactionThreshold < 0) {
+      throw new IllegalArgumentException("Invalid sync interval or compaction threshold");
+    }
+
+    this.file                = file;
+    this.syncInterval        = syncInterval;
+    this.compactionThreshold = compactionThreshold;
+
+    open();
+  }
+
+  @Override
+  public synchronized SessionRecord loadSession(SignalProtocolAddress address) {
+    checkOpen();
+
+    Entry entry = index.get(address);
+
+    if (entry == null) {
+      return new SessionRecord();
+    }
+
+    try {
+      SessionRecord record;
+
+      if (entry.changes.isEmpty()) record = new SessionRecord(read(entry.record));
+      else                         record = new SessionRecord(read(entry.record), readChanges(entry));
+
+      record.markPersisted(entry.token);
+      return record;
+    } catch (IOException e) {
+      throw new IllegalStateException("Corrupt session entry for " + address, e);
+    }
+  }
+
+  @Override
+  public synchronized Map<SignalProtocolAddress, SessionRecord> loadSessions(Collection<SignalProtocolAddress> addresses) {
+    Map<SignalProtocolAddress, SessionRecord> records = new HashMap<>();
+
+    for (SignalProtocolAddress address : addresses) {
+      records.put(address, loadSession(address));
+    }
+
+    return records;
+  }
+
+  @Override
+  public synchronized List<Integer> getSubDeviceSessions(String name) {
+    checkOpen();
+
+    List<Integer> deviceIds = new LinkedList<>();
+
+    for (SignalProtocolAddress address : index.keySet()) {
+      if (address.getName().equals(name) &&
+          address.getDeviceId() != 1)
+      {
+        deviceIds.add(address.getDeviceId());
+      }
+    }
+
+    return deviceIds;
+  }
+
+  @Override
+  public synchronized void storeSession(SignalProtocolAddress address, SessionRecord record) {
+    checkOpen();
+    write(address, record);
+    maybeSync();
+    maybeCompact();
+  }
+
+  /**
+   * Appends all of the records, and then syncs at most once.
+   */
+  @Override
+  public synchronized void storeSessions(Map<SignalProtocolAddress, SessionRecord> records) {
+    checkOpen();
+
+    for (Map.Entry<SignalProtocolAddress, SessionRecord> record : records.entrySet()) {
+      write(record.getKey(), record.getValue());
+    }
+
+    maybeSync();
+    maybeCompact();
+  }
+
+  @Override
+  public synchronized boolean containsSession(SignalProtocolAddress address) {
+    checkOpen();
+    return index.containsKey(address);
+  }
+
+  @Override
+  public synchronized void deleteSession(SignalProtocolAddress address) {
+    checkOpen();
+
+    if (index.containsKey(address)) {
+      append(OP_DELETE, address, new byte[0]);
+      unindex(address);
+      maybeSync();
+      maybeCompact();
+    }
+  }
+
+  @Override
+  public synchronized void deleteAllSessions(String name) {
+    checkOpen();
+
+    List<SignalProtocolAddress> deleted = new LinkedList<>();
+
+    for (SignalProtocolAddress address : index.keySet()) {
+      if (address.getName().equals(name)) {
+        deleted.add(address);
+      }
+    }
+
+    for (SignalProtocolAddress address : deleted) {
+      append(OP_DELETE, address, new byte[0]);
+      unindex(address);
+    }
+
+    if (!deleted.isEmpty()) {
+      maybeSync();
+      maybeCompact();
+    }
+  }
+
+  /**
+   * Forces all appended entries to disk.
+   */
+  public synchronized void sync() {
+    checkOpen();
+
+    if (unsynced > 0) {
+      buffer.force();
+      unsynced = 0;
+    }
+  }
+
+  /**
+   * Rewrites the log with only its live entries, folding each record's change sets into it.
+   */
+  public synchronized void compact() {
+    checkOpen();
+
+    File compacted = new File(file.getPath() + ".compact");
+
+    try {
+      Map<SignalProtocolAddress, byte[]> folded = new HashMap<>();
+      long                               size   = FILE_HEADER;
+
+      for (Map.Entry<SignalProtocolAddress, Entry> entry : index.entrySet()) {
+        if (entry.getValue().changes.isEmpty()) {
+          size += entry.getValue().record.entryLength;
+        } else {
+          byte[] record = SessionRecord.compact(read(entry.getValue().record), readChanges(entry.getValue()));
+
+          folded.put(entry.getKey(), record);
+          size += entryLength(entry.getKey(), record);
+        }
+      }
+
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Compacted session log is too large: " + size);
+      }
+
+      RandomAccessFile output = new RandomAccessFile(compacted, "rw");
+
+      try {
+        output.setLength(0);
+
+        MappedByteBuffer target   = output.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, sizeFor((int) size));
+        int              position = FILE_HEADER;
+
+        target.putInt(0, MAGIC);
+        target.putInt(4, VERSION);
+
+        for (Map.Entry<SignalProtocolAddress, Entry> entry : index.entrySet()) {
+          byte[] record = folded.get(entry.getKey());
+
+          if (record != null) {
+            position += writeEntry(target, position, OP_STORE, entry.getKey(), record);
+          } else {
+            Location location = entry.getValue().record;
+            byte[]   copy     = new byte[location.entryLength];
+
+            buffer.position(location.entryOffset);
+            buffer.get(copy);
+            target.position(position);
+            target.put(copy);
+
+            position += location.entryLength;
+          }
+        }
+
+        target.force();
+      } finally {
+        output.close();
+      }
+
+      randomAccessFile.close();
+
+      if (!compacted.renameTo(file)) {
+        throw new IOException("Unable to replace " + file + " with " + compacted);
+      }
+
+      open();
+    } catch (IOException e) {
+      closed = true;
+      throw new IllegalStateException("Session log compaction failed", e);
+    }
+  }
+
+  /**
+   * @return The number of bytes of the log in use, including superseded entries.
+   */
+  public synchronized int getLogSize() {
+    return writePosition;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (!closed) {
+      sync();
+      closed = true;
+      randomAccessFile.close();
+    }
+  }
+
+  private void open() throws IOException {
+    this.randomAccessFile = new RandomAccessFile(file, "rw");
+
+    long length = randomAccessFile.length();
+
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException("Session log is too large: " + length);
+    }
+
+    this.buffer        = map(sizeFor((int) length));
+    this.index         = new HashMap<>();
+    this.writePosition = FILE_HEADER;
+    this.liveBytes     = 0;
+    this.unsynced      = 0;
+    this.closed        = false;
+
+    if (length == 0) {
+      buffer.putInt(0, MAGIC);
+      buffer.putInt(4, VERSION);
+      buffer.force();
+      return;
+    }
+
+    if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+      randomAccessFile.close();
+      throw new IOException("Not a session log: " + file);
+    }
+
+    recover();
+  }
+
+  /**
+   * Replays the log into the index, stopping at the first entry that is incomplete or fails
+   * its checksum, and clears everything after it so that a later append can't be followed
+   * by a stale entry.
+   */
+  private void recover() {
+    while (writePosition + ENTRY_HEADER <= buffer.capacity()) {
+      int length = buffer.getInt(writePosition);
+
+      if (length < 9 || length > buffer.capacity() - writePosition - ENTRY_HEADER) {
+        break;
+      }
+
+      byte[] body = new byte[length];
+      buffer.position(writePosition + ENTRY_HEADER);
+      buffer.get(body);
+
+      crc.reset();
+      crc.update(body, 0, body.length);
+
+      if ((int) crc.getValue() != buffer.getInt(writePosition + 4)) {
+        break;
+      }
+
+      byte op         = body[0];
+      int  deviceId   = getInt(body, 1);
+      int  nameLength = getInt(body, 5);
+
+      if (nameLength < 0 || nameLength > length - 9) {
+        break;
+      }
+
+      SignalProtocolAddress address = new SignalProtocolAddress(new String(body, 9, nameLength, UTF_8), deviceId);
+
+      Location location = new Location(writePosition, ENTRY_HEADER + length,
+                                       writePosition + ENTRY_HEADER + 9 + nameLength, length - 9 - nameLength);
+
+      if      (op == OP_STORE)   index(address, location);
+      else if (op == OP_CHANGES) indexChanges(address, location);
+      else                       unindex(address);
+
+      writePosition += ENTRY_HEADER + length;
+    }
+
+    byte[] zeros = new byte[4096];
+
+    for (int i=writePosition;i<buffer.capacity();i+=zeros.length) {
+      buffer.position(i);
+      buffer.put(zeros, 0, Math.min(zeros.length, buffer.capacity() - i));
+    }
+
+    buffer.force();
+  }
+
+  /**
+   * Appends the record's change set if it has one relative to the entry held for the
+   * address, and the address has room for it, and the full record otherwise.
+   */
+  private void write(SignalProtocolAddress address, SessionRecord record) {
+    Entry            entry   = index.get(address);
+    Optional<byte[]> changes = Optional.absent();
+
+    if (entry != null && entry.changes.size() < MAX_CHANGES) {
+      changes = record.serializeChanges(entry.token);
+    }
+
+    if (changes.isPresent() && entry.changesLength + changes.get().length < entry.record.recordLength) {
+      indexChanges(address, append(OP_CHANGES, address, changes.get()));
+    } else {
+      index(address, append(OP_STORE, address, record.serialize()));
+    }
+
+    record.markPersisted(index.get(address).token);
+  }
+
+  private Location append(byte op, SignalProtocolAddress address, byte[] payload) {
+    int entryOffset = writePosition;
+    int entryLength = entryLength(address, payload);
+
+    ensureCapacity((long) entryOffset + entryLength);
+    writeEntry(buffer, entryOffset, op, address, payload);
+
+    writePosition += entryLength;
+    unsynced++;
+
+    return new Location(entryOffset, entryLength, writePosition - payload.length, payload.length);
+  }
+
+  /**
+   * Writes an entry, with its length written last.
+   *
+   * @return The length of the entry.
+   */
+  private int writeEntry(MappedByteBuffer target, int entryOffset, byte op, SignalProtocolAddress address, byte[] payload) {
+    byte[] name   = address.getName().getBytes(UTF_8);
+    int    length = 9 + name.length + payload.length;
+
+    crc.reset();
+    crc.update(op);
+    updateCrc(address.getDeviceId());
+    updateCrc(name.length);
+    crc.update(name, 0, name.length);
+    crc.update(payload, 0, payload.length);
+
+    target.position(entryOffset + ENTRY_HEADER);
+    target.put(op);
+    target.putInt(address.getDeviceId());
+    target.putInt(name.length);
+    target.put(name);
+    target.put(payload);
+
+    target.putInt(entryOffset + 4, (int) crc.getValue());
+    target.putInt(entryOffset, length);
+
+    return ENTRY_HEADER + length;
+  }
+
+  private byte[] read(Location location) {
+    byte[] payload = new byte[location.recordLength];
+
+    buffer.position(location.recordOffset);
+    buffer.get(payload);
+
+    return payload;
+  }
+
+  private List<byte[]> readChanges(Entry entry) {
+    List<byte[]> changes = new ArrayList<>(entry.changes.size());
+
+    for (Location location : entry.changes) {
+      changes.add(read(location));
+    }
+
+    return changes;
+  }
+
+  private void index(SignalProtocolAddress address, Location location) {
+    Entry previous = index.put(address, new Entry(location));
+
+    liveBytes += location.entryLength;
+    if (previous != null) liveBytes -= previous.getLength();
+  }
+
+  private void indexChanges(SignalProtocolAddress address, Location location) {
+    Entry entry = index.get(address);
+
+    if (entry != null) {
+      entry.changes.add(location);
+      entry.changesLength += location.recordLength;
+      entry.token          = new Object();
+      liveBytes           += location.entryLength;
+    }
+  }
+
+  private void unindex(SignalProtocolAddress address) {
+    Entry previous = index.remove(address);
+    if (previous != null) liveBytes -= previous.getLength();
+  }
+
+  private void maybeSync() {
+    if (unsynced >= syncInterval) {
+      sync();
+    }
+  }
+
+  private void maybeCompact() {
+    if (writePosition >= compactionThreshold && writePosition - FILE_HEADER - liveBytes > liveBytes) {
+      sync();
+      compact();
+    }
+  }
+
+  private void ensureCapacity(long required) {
+    if (required <= buffer.capacity()) {
+      return;
+    }
+
+    if (required > Integer.MAX_VALUE) {
+      throw new IllegalStateException("Session log is full");
+    }
+
+    try {
+      buffer.force();
+      buffer = map(sizeFor((int) required));
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to grow session log", e);
+    }
+  }
+
+  private MappedByteBuffer map(int size) throws IOException {
+    return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("Session log is closed");
+    }
+  }
+
+  private void updateCrc(int value) {
+    scratch[0] = (byte) (value >>> 24);
+    scratch[1] = (byte) (value >>> 16);
+    scratch[2] = (byte) (value >>> 8);
+    scratch[3] = (byte) value;
+    crc.update(scratch, 0, 4);
+  }
+
+  private static int getInt(byte[] bytes, int offset) {
+    return (bytes[offset]     & 0xff) << 24 |
+           (bytes[offset + 1] & 0xff) << 16 |
+           (bytes[offset + 2] & 0xff) << 8  |
+           (bytes[offset + 3] & 0xff);
+  }
+
+  private static int entryLength(SignalProtocolAddress address, byte[] payload) {
+    return ENTRY_HEADER + 9 + address.getName().getBytes(UTF_8).length + payload.length;
+  }
+
+  private static int sizeFor(int required) {
+    long size = MINIMUM_SIZE;
+
+    while (size < required) {
+      size <<= 1;
+    }
+
+    return (int) Math.min(size, Integer.MAX_VALUE);
+  }
+
+  /**
+   * The latest full record for an address, and the change sets appended after it.  The
+   * token identifies this exact version of the entry, and is replaced whenever a change set
+   * is appended to it.
+   */
+  private static class Entry {
+    private final Location       record;
+    private final List<Location> changes = new ArrayList<>();
+    private       int            changesLength;
+    private       Object         token   = new Object();
+
+    private Entry(Location record) {
+      this.record = record;
+    }
+
+    private int getLength() {
+      int length = record.entryLength;
+
+      for (Location change : changes) {
+        length += change.entryLength;
+      }
+
+      return length;
+    }
+  }
+
+  private static class Location {
+    private final int entryOffset;
+    private final int entryLength;
+    private final int recordOffset;
+    private final int recordLength;
+
+    private Location(int entryOffset, int entryLength, int recordOffset, int recordLength) {
+      this.entryOffset  = entryOffset;
+      this.entryLength  = entryLength;
+      this.recordOffset = recordOffset;
+      this.recordLength = recordLength;
+    }
+  }
+}
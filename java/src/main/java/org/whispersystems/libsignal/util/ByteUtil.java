@@ -67,6 +67,19 @@ public class ByteUtil {
     return result;
   }
 
+  /**
+   * Compares two regions in time that depends only on their length.
+   */
+  public static boolean isEqual(byte[] first, int firstOffset, byte[] second, int secondOffset, int length) {
+    int result = 0;
+
+    for (int i=0;i<length;i++) {
+      result |= first[firstOffset + i] ^ second[secondOffset + i];
+    }
+
+    return result == 0;
+  }
+
   public static byte[] copyFrom(byte[] input) {
     byte[] output = new byte[input.length];
     System.arraycopy(input, 0, output, 0, output.length);
@@ -0,0 +1,160 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.util;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Per-thread, reusable JCA primitives.
+ *
+ * Looking up a provider implementation through getInstance() is expensive relative to
+ * the amount of data each protocol operation actually processes, so each thread keeps
+ * one instance of each primitive and re-initializes it for every use.
+ *
+ * An instance returned from this class belongs to the calling thread, and is only valid
+ * until the next call for the same primitive on that thread.  It must not be retained,
+ * shared with other threads, or used across a call that might itself use the primitive.
+ * Operations that span calls into caller code, like streaming, use the new* methods to
+ * get an instance of their own.
+ */
+public final class CryptoPrimitives {
+
+  private static final String HMAC_SHA256 = "HmacSHA256";
+  private static final String AES_CBC     = "AES/CBC/PKCS5Padding";
+  private static final String SHA512      = "SHA-512";
+
+  private static final ThreadLocal<Mac> MAC = new ThreadLocal<Mac>() {
+    @Override
+    protected Mac initialValue() {
+      try {
+        return Mac.getInstance(HMAC_SHA256);
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
+    }
+  };
+
+  private static final ThreadLocal<Cipher> CIPHER = new ThreadLocal<Cipher>() {
+    @Override
+    protected Cipher initialValue() {
+      try {
+        return Cipher.getInstance(AES_CBC);
+      } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+        throw new AssertionError(e);
+      }
+    }
+  };
+
+  private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance(SHA512);
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
+    }
+  };
+
+  private CryptoPrimitives() {}
+
+  /**
+   * @param key The raw HMAC key.
+   * @return This thread's HmacSHA256 instance, initialized with the key.
+   */
+  public static Mac getHmacSha256(byte[] key) {
+    return getHmacSha256(new SecretKeySpec(key, HMAC_SHA256));
+  }
+
+  /**
+   * @param key A buffer holding the raw HMAC key.
+   * @param offset The offset of the key in the buffer.
+   * @param length The length of the key.
+   * @return This thread's HmacSHA256 instance, initialized with the key.
+   */
+  public static Mac getHmacSha256(byte[] key, int offset, int length) {
+    return getHmacSha256(new SecretKeySpec(key, offset, length, HMAC_SHA256));
+  }
+
+  /**
+   * @param key The HMAC key.
+   * @return This thread's HmacSHA256 instance, initialized with the key.
+   */
+  public static Mac getHmacSha256(Key key) {
+    try {
+      Mac mac = MAC.get();
+      mac.init(key);
+      return mac;
+    } catch (InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * @param mode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}.
+   * @param key The AES key.
+   * @param iv The CBC initialization vector.
+   * @return This thread's AES/CBC/PKCS5Padding instance, initialized for the operation.
+   */
+  public static Cipher getAesCbcCipher(int mode, Key key, IvParameterSpec iv) {
+    try {
+      Cipher cipher = CIPHER.get();
+      cipher.init(mode, key, iv);
+      return cipher;
+    } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * @param key The HMAC key.
+   * @return A new HmacSHA256 instance, initialized with the key, that may be retained.
+   */
+  public static Mac newHmacSha256(Key key) {
+    try {
+      Mac mac = Mac.getInstance(HMAC_SHA256);
+      mac.init(key);
+      return mac;
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * @param mode {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}.
+   * @param key The AES key.
+   * @param iv The CBC initialization vector.
+   * @return A new AES/CBC/PKCS5Padding instance, initialized for the operation, that may be retained.
+   */
+  public static Cipher newAesCbcCipher(int mode, Key key, IvParameterSpec iv) {
+    try {
+      Cipher cipher = Cipher.getInstance(AES_CBC);
+      cipher.init(mode, key, iv);
+      return cipher;
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * @return This thread's SHA-512 instance, reset.
+   */
+  public static MessageDigest getSha512() {
+    MessageDigest digest = DIGEST.get();
+    digest.reset();
+    return digest;
+  }
+}
@@ -0,0 +1,282 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.util;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A map from primitive int keys to values, iterated in insertion order.
+ *
+ * Entries live in open-addressed arrays (linear probing, backward-shift deletion), and are
+ * threaded into a doubly-linked list by slot index.  Lookup, insertion, removal and
+ * eviction of the eldest entry are O(1), and none of them allocate unless the table grows.
+ *
+ * @param <V> The value type.  Null values are not permitted.
+ */
+public class IntLinkedHashMap<V> implements Iterable<V> {
+
+  private static final int MINIMUM_CAPACITY = 8;
+
+  private int[]    keys;
+  private Object[] values;
+  private int[]    before;
+  private int[]    after;
+  private int      mask;
+  private int      head = -1;
+  private int      tail = -1;
+  private int      size;
+
+  public IntLinkedHashMap() {
+    this(MINIMUM_CAPACITY / 2);
+  }
+
+  /**
+   * @param expectedSize The number of entries the map should hold without resizing.
+   */
+  public IntLinkedHashMap(int expectedSize) {
+    allocate(capacityFor(expectedSize));
+  }
+
+  public IntLinkedHashMap(IntLinkedHashMap<V> copy) {
+    this.keys   = copy.keys.clone();
+    this.values = copy.values.clone();
+    this.before = copy.before.clone();
+    this.after  = copy.after.clone();
+    this.mask   = copy.mask;
+    this.head   = copy.head;
+    this.tail   = copy.tail;
+    this.size   = copy.size;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public boolean containsKey(int key) {
+    return slotOf(key) >= 0;
+  }
+
+  public V get(int key) {
+    int slot = slotOf(key);
+    return slot >= 0 ? valueAt(slot) : null;
+  }
+
+  /**
+   * Associates a value with a key.  Replacing the value of an existing key does not
+   * change its position in the iteration order.
+   *
+   * @return The previous value for the key, or null.
+   */
+  public V put(int key, V value) {
+    if (value == null) {
+      throw new NullPointerException("Null values are not permitted");
+    }
+
+    int slot = indexFor(key);
+
+    while (values[slot] != null) {
+      if (keys[slot] == key) {
+        V previous = valueAt(slot);
+        values[slot] = value;
+        return previous;
+      }
+
+      slot = (slot + 1) & mask;
+    }
+
+    keys[slot]   = key;
+    values[slot] = value;
+    linkLast(slot);
+
+    if (++size * 2 > values.length) {
+      allocate(values.length * 2);
+    }
+
+    return null;
+  }
+
+  /**
+   * @return The removed value, or null if the key was not present.
+   */
+  public V remove(int key) {
+    int slot = slotOf(key);
+
+    if (slot < 0) {
+      return null;
+    }
+
+    V value = valueAt(slot);
+    removeSlot(slot);
+    return value;
+  }
+
+  /**
+   * @return The removed value of the least recently inserted entry, or null if empty.
+   */
+  public V removeEldest() {
+    if (head < 0) {
+      return null;
+    }
+
+    V value = valueAt(head);
+    removeSlot(head);
+    return value;
+  }
+
+  /**
+   * @return The values, in insertion order.  The iterator does not support removal.
+   */
+  @Override
+  public Iterator<V> iterator() {
+    return new Iterator<V>() {
+      private int next = head;
+
+      @Override
+      public boolean hasNext() {
+        return next >= 0;
+      }
+
+      @Override
+      public V next() {
+        if (next < 0) {
+          throw new NoSuchElementException();
+        }
+
+        V value = valueAt(next);
+        next = after[next];
+        return value;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  private int slotOf(int key) {
+    int slot = indexFor(key);
+
+    while (values[slot] != null) {
+      if (keys[slot] == key) {
+        return slot;
+      }
+
+      slot = (slot + 1) & mask;
+    }
+
+    return -1;
+  }
+
+  private void removeSlot(int slot) {
+    unlink(slot);
+    values[slot] = null;
+    size--;
+
+    int hole = slot;
+    int next = (slot + 1) & mask;
+
+    while (values[next] != null) {
+      int ideal = indexFor(keys[next]);
+
+      if (((next - ideal) & mask) >= ((next - hole) & mask)) {
+        moveSlot(next, hole);
+        hole = next;
+      }
+
+      next = (next + 1) & mask;
+    }
+  }
+
+  private void moveSlot(int from, int to) {
+    keys[to]   = keys[from];
+    values[to] = values[from];
+    before[to] = before[from];
+    after[to]  = after[from];
+
+    if (before[to] >= 0) after[before[to]] = to;
+    else                 head              = to;
+
+    if (after[to] >= 0) before[after[to]] = to;
+    else                tail              = to;
+
+    values[from] = null;
+  }
+
+  private void linkLast(int slot) {
+    before[slot] = tail;
+    after[slot]  = -1;
+
+    if (tail >= 0) after[tail] = slot;
+    else           head        = slot;
+
+    tail = slot;
+  }
+
+  private void unlink(int slot) {
+    if (before[slot] >= 0) after[before[slot]] = after[slot];
+    else                   head                = after[slot];
+
+    if (after[slot] >= 0) before[after[slot]] = before[slot];
+    else                  tail                = before[slot];
+  }
+
+  private void allocate(int capacity) {
+    int[]    oldKeys   = keys;
+    Object[] oldValues = values;
+    int[]    oldAfter  = after;
+    int      oldHead   = head;
+
+    this.keys   = new int[capacity];
+    this.values = new Object[capacity];
+    this.before = new int[capacity];
+    this.after  = new int[capacity];
+    this.mask   = capacity - 1;
+    this.head   = -1;
+    this.tail   = -1;
+
+    Arrays.fill(before, -1);
+    Arrays.fill(after, -1);
+
+    for (int i=oldHead;i>=0;i=oldAfter[i]) {
+      int slot = indexFor(oldKeys[i]);
+
+      while (values[slot] != null) {
+        slot = (slot + 1) & mask;
+      }
+
+      keys[slot]   = oldKeys[i];
+      values[slot] = oldValues[i];
+      linkLast(slot);
+    }
+  }
+
+  private int indexFor(int key) {
+    int hash = key * 0x9E3779B9;
+    return (hash ^ (hash >>> 16)) & mask;
+  }
+
+  @SuppressWarnings("unchecked")
+  private V valueAt(int slot) {
+    return (V) values[slot];
+  }
+
+  private static int capacityFor(int expectedSize) {
+    int capacity = MINIMUM_CAPACITY;
+
+    while (capacity < expectedSize * 2 + 1) {
+      capacity <<= 1;
+    }
+
+    return capacity;
+  }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2014-2016 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.libsignal.util;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of reentrant locks, indexed by key.
+ *
+ * Equal keys always map to the same lock, so operations on a single key are serialized,
+ * while operations on unrelated keys usually map to different stripes and can proceed
+ * in parallel.
+ *
+ * @param <K> The key type.  Keys must have a stable {@link Object#hashCode()}.
+ */
+public class StripedLock<K> {
+
+  private final ReentrantLock[] stripes;
+  private final int             mask;
+
+  /**
+   * @param minimumStripes The minimum number of stripes, rounded up to a power of two.
+   */
+  public StripedLock(int minimumStripes) {
+    int count = Integer.highestOneBit(Math.max(1, minimumStripes - 1)) << 1;
+
+    this.stripes = new ReentrantLock[count];
+    this.mask    = count - 1;
+
+    for (int i=0;i<stripes.length;i++) {
+      stripes[i] = new ReentrantLock();
+    }
+  }
+
+  /**
+   * @return A stripe count suitable for the number of processors on this machine.
+   */
+  public static int defaultStripeCount() {
+    return Math.max(16, Runtime.getRuntime().availableProcessors() * 8);
+  }
+
+  /**
+   * @param key The key to lock on.
+   * @return The lock guarding the key.
+   */
+  public Lock get(K key) {
+    return stripes[indexFor(key)];
+  }
+
+  /**
+   * Returns the distinct locks guarding a set of keys, in a globally consistent order.
+   * Acquiring them in the returned order (and releasing them in reverse) cannot deadlock
+   * against another caller doing the same.
+   *
+   * @param keys The keys to lock on.
+   * @return The ordered list of locks to acquire.
+   */
+  public List<Lock> getAll(Iterable<K> keys) {
+    BitSet indexes = new BitSet(stripes.length);
+
+    for (K key : keys) {
+      indexes.set(indexFor(key));
+    }
+
+    List<Lock> locks = new ArrayList<>(indexes.cardinality());
+
+    for (int i=indexes.nextSetBit(0);i>=0;i=indexes.nextSetBit(i+1)) {
+      locks.add(stripes[i]);
+    }
+
+    return locks;
+  }
+
+  private int indexFor(K key) {
+    int hash = key.hashCode();
+    hash ^= (hash >>> 16);
+    return hash & mask;
+  }
+}
@@ -0,0 +1,112 @@
+package org.whispersystems.libsignal;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.async.AsyncSignalProtocolStoreAdapter;
+import org.whispersystems.libsignal.async.ListenableFuture;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import org.whispersystems.libsignal.protocol.PreKeySignalMessage;
+import org.whispersystems.libsignal.protocol.SignalMessage;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class AsyncSessionCipherTest extends TestCase {
+
+  private static final SignalProtocolAddress ALICE_ADDRESS = new SignalProtocolAddress("+14151111111", 1);
+  private static final SignalProtocolAddress BOB_ADDRESS   = new SignalProtocolAddress("+14152222222", 1);
+
+  private ExecutorService executor;
+
+  @Override
+  public void setUp() {
+    executor = Executors.newFixedThreadPool(4);
+  }
+
+  @Override
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  public void testAsyncExchange() throws Exception {
+    SignalProtocolStore aliceStore  = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore bobStore    = new TestInMemorySignalProtocolStore();
+    SessionCipher       aliceCipher = new SessionCipher(aliceStore, BOB_ADDRESS);
+    AsyncSessionCipher  bobCipher   = new AsyncSessionCipher(new AsyncSignalProtocolStoreAdapter(bobStore, executor), ALICE_ADDRESS);
+
+    new SessionBuilder(aliceStore, BOB_ADDRESS).process(TestPreKeyBundles.createBundle(bobStore));
+
+    CiphertextMessage hello = aliceCipher.encrypt("hello".getBytes());
+    assertEquals(CiphertextMessage.PREKEY_TYPE, hello.getType());
+
+    byte[] plaintext = bobCipher.decrypt(new PreKeySignalMessage(hello.serialize())).get();
+
+    assertTrue(Arrays.equals("hello".getBytes(), plaintext));
+    assertFalse(bobStore.containsPreKey(31337));
+    assertTrue(bobStore.containsSession(ALICE_ADDRESS));
+
+    CiphertextMessage reply = bobCipher.encrypt("reply".getBytes()).get();
+    assertTrue(Arrays.equals("reply".getBytes(), aliceCipher.decrypt(new SignalMessage(reply.serialize()))));
+
+    CiphertextMessage followUp = aliceCipher.encrypt("follow up".getBytes());
+    assertTrue(Arrays.equals("follow up".getBytes(), bobCipher.decrypt(new SignalMessage(followUp.serialize())).get()));
+
+    try {
+      bobCipher.decrypt(new SignalMessage(followUp.serialize())).get();
+      fail("Decrypted duplicate");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof DuplicateMessageException);
+    }
+  }
+
+  public void testPerAddressOrdering() throws Exception {
+    SignalProtocolStore aliceStore  = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore bobStore    = new TestInMemorySignalProtocolStore();
+    AsyncSessionCipher  aliceCipher = new AsyncSessionCipher(new AsyncSignalProtocolStoreAdapter(aliceStore, executor), BOB_ADDRESS);
+    SessionCipher       bobCipher   = new SessionCipher(bobStore, ALICE_ADDRESS);
+
+    new SessionBuilder(aliceStore, BOB_ADDRESS).process(TestPreKeyBundles.createBundle(bobStore));
+    bobCipher.decrypt(new PreKeySignalMessage(aliceCipher.encrypt("hello".getBytes()).get().serialize()));
+    aliceCipher.decrypt(new SignalMessage(bobCipher.encrypt("reply".getBytes()).serialize())).get();
+
+    List<ListenableFuture<CiphertextMessage>> futures = new LinkedList<>();
+
+    for (int i=0;i<50;i++) {
+      futures.add(aliceCipher.encrypt(("message " + i).getBytes()));
+    }
+
+    int i = 0;
+
+    for (ListenableFuture<CiphertextMessage> future : futures) {
+      SignalMessage message = new SignalMessage(future.get().serialize());
+
+      assertEquals(i, message.getCounter());
+      assertTrue(Arrays.equals(("message " + i).getBytes(), bobCipher.decrypt(message)));
+      i++;
+    }
+  }
+
+  public void testNoSession() throws Exception {
+    AsyncSessionCipher cipher = new AsyncSessionCipher(new AsyncSignalProtocolStoreAdapter(new TestInMemorySignalProtocolStore(), executor),
+                                                       BOB_ADDRESS);
+
+    SignalProtocolStore aliceStore = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore bobStore   = new TestInMemorySignalProtocolStore();
+
+    new SessionBuilder(aliceStore, BOB_ADDRESS).process(TestPreKeyBundles.createBundle(bobStore));
+
+    PreKeySignalMessage message = new PreKeySignalMessage(new SessionCipher(aliceStore, BOB_ADDRESS).encrypt("hello".getBytes()).serialize());
+
+    try {
+      cipher.decrypt(message.getWhisperMessage()).get();
+      fail("Decrypted without a session");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof NoSessionException);
+    }
+  }
+}
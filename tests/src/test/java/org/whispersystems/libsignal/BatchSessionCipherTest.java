@@ -0,0 +1,453 @@
+package org.whispersystems.libsignal;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECKeyPair;
+import org.whispersystems.libsignal.metrics.HistogramProtocolMetrics;
+import org.whispersystems.libsignal.metrics.ProtocolMetrics;
+import org.whispersystems.libsignal.metrics.ProtocolMetricsProvider;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import org.whispersystems.libsignal.protocol.PreKeySignalMessage;
+import org.whispersystems.libsignal.protocol.SignalMessage;
+import org.whispersystems.libsignal.state.PreKeyBundle;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class BatchSessionCipherTest extends TestCase {
+
+  private static final SignalProtocolAddress ALICE_ADDRESS = new SignalProtocolAddress("+14151111111", 1);
+
+  public void testFanOutEncrypt() throws Exception {
+    SignalProtocolStore         aliceStore = new TestInMemorySignalProtocolStore();
+    List<SignalProtocolStore>   bobStores  = new LinkedList<>();
+    List<SignalProtocolAddress> addresses  = new LinkedList<>();
+
+    for (int i=0;i<10;i++) {
+      SignalProtocolAddress bobAddress = new SignalProtocolAddress("+14152222222", i + 1);
+      SignalProtocolStore   bobStore   = new TestInMemorySignalProtocolStore();
+
+      initializeSession(aliceStore, bobStore, bobAddress);
+
+      bobStores.add(bobStore);
+      addresses.add(bobAddress);
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    try {
+      BatchSessionCipher batchCipher = new BatchSessionCipher(aliceStore, executor);
+
+      for (int round=0;round<3;round++) {
+        byte[]                                        plaintext = ("round " + round).getBytes();
+        Map<SignalProtocolAddress, CiphertextMessage> messages  = batchCipher.encrypt(addresses, plaintext);
+
+        assertEquals(addresses.size(), messages.size());
+
+        for (int i=0;i<addresses.size();i++) {
+          CiphertextMessage message   = messages.get(addresses.get(i));
+          SessionCipher     bobCipher = new SessionCipher(bobStores.get(i), ALICE_ADDRESS);
+          byte[]            decrypted;
+
+          if (message.getType() == CiphertextMessage.PREKEY_TYPE) {
+            decrypted = bobCipher.decrypt(new PreKeySignalMessage(message.serialize()));
+          } else {
+            decrypted = bobCipher.decrypt(new SignalMessage(message.serialize()));
+          }
+
+          assertTrue(Arrays.equals(plaintext, decrypted));
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public void testUntrustedRecipientCommitsNothing() throws Exception {
+    SignalProtocolStore   aliceStore     = new TestInMemorySignalProtocolStore();
+    SignalProtocolAddress trustedAddress = new SignalProtocolAddress("+14152222222", 1);
+    SignalProtocolAddress changedAddress = new SignalProtocolAddress("+14153333333", 1);
+
+    initializeSession(aliceStore, new TestInMemorySignalProtocolStore(), trustedAddress);
+    initializeSession(aliceStore, new TestInMemorySignalProtocolStore(), changedAddress);
+
+    aliceStore.saveIdentity(changedAddress, new IdentityKey(Curve.generateKeyPair().getPublicKey()));
+
+    byte[] before = aliceStore.loadSession(trustedAddress).serialize();
+
+    try {
+      new BatchSessionCipher(aliceStore).encrypt(Arrays.asList(trustedAddress, changedAddress), "hi".getBytes());
+      throw new AssertionError("Should have failed!");
+    } catch (UntrustedIdentityException e) {
+      // good
+    }
+
+    assertTrue(Arrays.equals(before, aliceStore.loadSession(trustedAddress).serialize()));
+  }
+
+  public void testBatchDecrypt() throws Exception {
+    SignalProtocolStore   bobStore        = new TestInMemorySignalProtocolStore();
+    ECKeyPair             bobSignedPreKey = Curve.generateKeyPair();
+    byte[]                bobSignature    = Curve.calculateSignature(bobStore.getIdentityKeyPair().getPrivateKey(),
+                                                                     bobSignedPreKey.getPublicKey().serialize());
+    List<BatchSessionCipher.Envelope> envelopes  = new LinkedList<>();
+    List<byte[]>                      plaintexts = new LinkedList<>();
+    List<SignalProtocolStore>         senders    = new LinkedList<>();
+
+    bobStore.storeSignedPreKey(22, new SignedPreKeyRecord(22, System.currentTimeMillis(), bobSignedPreKey, bobSignature));
+
+    for (int i=0;i<4;i++) {
+      SignalProtocolStore   senderStore   = new TestInMemorySignalProtocolStore();
+      SignalProtocolAddress senderAddress = new SignalProtocolAddress("+1415333333" + i, 1);
+      SignalProtocolAddress bobAddress    = new SignalProtocolAddress("+14152222222", 1);
+      ECKeyPair             bobPreKey     = Curve.generateKeyPair();
+
+      bobStore.storePreKey(100 + i, new PreKeyRecord(100 + i, bobPreKey));
+
+      new SessionBuilder(senderStore, bobAddress).process(new PreKeyBundle(bobStore.getLocalRegistrationId(), 1,
+                                                                           100 + i, bobPreKey.getPublicKey(),
+                                                                           22, bobSignedPreKey.getPublicKey(),
+                                                                           bobSignature,
+                                                                           bobStore.getIdentityKeyPair().getPublicKey()));
+
+      SessionCipher senderCipher = new SessionCipher(senderStore, bobAddress);
+
+      for (int j=0;j<5;j++) {
+        byte[] plaintext = ("sender " + i + " message " + j).getBytes();
+        plaintexts.add(plaintext);
+        envelopes.add(new BatchSessionCipher.Envelope(senderAddress, new PreKeySignalMessage(senderCipher.encrypt(plaintext).serialize())));
+      }
+
+      senders.add(senderStore);
+    }
+
+    Collections.swap(envelopes, 2, 3);
+    Collections.swap(plaintexts, 2, 3);
+
+    envelopes.add(envelopes.get(7));
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    try {
+      List<BatchSessionCipher.Result> results = new BatchSessionCipher(bobStore, executor).decrypt(envelopes);
+
+      assertEquals(envelopes.size(), results.size());
+
+      for (int i=0;i<plaintexts.size();i++) {
+        assertTrue(results.get(i).isSuccess());
+        assertTrue(Arrays.equals(plaintexts.get(i), results.get(i).getPlaintext()));
+      }
+
+      assertFalse(results.get(results.size() - 1).isSuccess());
+      assertTrue(results.get(results.size() - 1).getException() instanceof DuplicateMessageException);
+
+      for (int i=0;i<4;i++) {
+        assertFalse(bobStore.containsPreKey(100 + i));
+      }
+
+      SessionCipher     bobCipher = new SessionCipher(bobStore, new SignalProtocolAddress("+14153333330", 1));
+      CiphertextMessage reply     = bobCipher.encrypt("reply".getBytes());
+      byte[]            received  = new SessionCipher(senders.get(0), new SignalProtocolAddress("+14152222222", 1))
+                                        .decrypt(new SignalMessage(reply.serialize()));
+
+      assertTrue(Arrays.equals("reply".getBytes(), received));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public void testThrowingCallbackDiscardsOnlyItsMessage() throws Exception {
+    SignalProtocolStore   bobStore     = new TestInMemorySignalProtocolStore();
+    SignalProtocolAddress bobAddress   = new SignalProtocolAddress("+14152222222", 1);
+    SignalProtocolAddress carolAddress = new SignalProtocolAddress("+14153333333", 1);
+    ECKeyPair             bobSignedKey = Curve.generateKeyPair();
+    byte[]                bobSignature = Curve.calculateSignature(bobStore.getIdentityKeyPair().getPrivateKey(),
+                                                                  bobSignedKey.getPublicKey().serialize());
+    ECKeyPair             alicePreKey  = Curve.generateKeyPair();
+    ECKeyPair             carolPreKey  = Curve.generateKeyPair();
+    SignalProtocolStore   aliceStore   = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore   carolStore   = new TestInMemorySignalProtocolStore();
+
+    bobStore.storeSignedPreKey(22, new SignedPreKeyRecord(22, System.currentTimeMillis(), bobSignedKey, bobSignature));
+    bobStore.storePreKey(100, new PreKeyRecord(100, alicePreKey));
+    bobStore.storePreKey(101, new PreKeyRecord(101, carolPreKey));
+
+    new SessionBuilder(aliceStore, bobAddress).process(new PreKeyBundle(bobStore.getLocalRegistrationId(), 1,
+                                                                        100, alicePreKey.getPublicKey(),
+                                                                        22, bobSignedKey.getPublicKey(), bobSignature,
+                                                                        bobStore.getIdentityKeyPair().getPublicKey()));
+    new SessionBuilder(carolStore, bobAddress).process(new PreKeyBundle(bobStore.getLocalRegistrationId(), 1,
+                                                                        101, carolPreKey.getPublicKey(),
+                                                                        22, bobSignedKey.getPublicKey(), bobSignature,
+                                                                        bobStore.getIdentityKeyPair().getPublicKey()));
+
+    SessionCipher           aliceCipher   = new SessionCipher(aliceStore, bobAddress);
+    List<CiphertextMessage> aliceMessages = new LinkedList<>();
+
+    for (int i=0;i<3;i++) {
+      aliceMessages.add(aliceCipher.encrypt(("alice " + i).getBytes()));
+    }
+
+    final RuntimeException            failure      = new IllegalStateException("callback failure");
+    CiphertextMessage                 carolMessage = new SessionCipher(carolStore, bobAddress).encrypt("carol".getBytes());
+    List<BatchSessionCipher.Envelope> envelopes    = new LinkedList<>();
+
+    envelopes.add(new BatchSessionCipher.Envelope(carolAddress, new PreKeySignalMessage(carolMessage.serialize())));
+    envelopes.add(new BatchSessionCipher.Envelope(ALICE_ADDRESS, new PreKeySignalMessage(aliceMessages.get(0).serialize())));
+    envelopes.add(new BatchSessionCipher.Envelope(ALICE_ADDRESS, new PreKeySignalMessage(aliceMessages.get(1).serialize()), new DecryptionCallback() {
+      @Override
+      public void handlePlaintext(byte[] plaintext) {
+        throw failure;
+      }
+    }));
+    envelopes.add(new BatchSessionCipher.Envelope(ALICE_ADDRESS, new PreKeySignalMessage(aliceMessages.get(2).serialize())));
+
+    List<BatchSessionCipher.Result> results = new BatchSessionCipher(bobStore).decrypt(envelopes);
+
+    assertTrue(results.get(0).isSuccess());
+    assertTrue(results.get(1).isSuccess());
+    assertFalse(results.get(2).isSuccess());
+    assertSame(failure, results.get(2).getException());
+    assertTrue(results.get(3).isSuccess());
+
+    SessionCipher bobCipher = new SessionCipher(bobStore, ALICE_ADDRESS);
+
+    assertTrue(Arrays.equals("alice 1".getBytes(), bobCipher.decrypt(new PreKeySignalMessage(aliceMessages.get(1).serialize()))));
+
+    try {
+      bobCipher.decrypt(new PreKeySignalMessage(aliceMessages.get(2).serialize()));
+      throw new AssertionError("Should have failed!");
+    } catch (DuplicateMessageException e) {
+      // good
+    }
+
+    try {
+      new SessionCipher(bobStore, carolAddress).decrypt(new PreKeySignalMessage(carolMessage.serialize()));
+      throw new AssertionError("Should have failed!");
+    } catch (DuplicateMessageException e) {
+      // good
+    }
+  }
+
+  public void testThrowingCallbackRestoresSignalMessageState() throws Exception {
+    SignalProtocolStore   aliceStore = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore   bobStore   = new TestInMemorySignalProtocolStore();
+    SignalProtocolAddress bobAddress = new SignalProtocolAddress("+14152222222", 1);
+
+    initializeSession(aliceStore, bobStore, bobAddress);
+
+    SessionCipher aliceCipher = new SessionCipher(aliceStore, bobAddress);
+    SessionCipher bobCipher   = new SessionCipher(bobStore, ALICE_ADDRESS);
+
+    bobCipher.decrypt(new PreKeySignalMessage(aliceCipher.encrypt("hello".getBytes()).serialize()));
+
+    List<SignalMessage> messages = new LinkedList<>();
+
+    for (int i=0;i<3;i++) {
+      messages.add(new SignalMessage(bobCipher.encrypt(("bob " + i).getBytes()).serialize()));
+    }
+
+    final RuntimeException            failure   = new IllegalStateException("callback failure");
+    List<BatchSessionCipher.Envelope> envelopes = new LinkedList<>();
+
+    envelopes.add(new BatchSessionCipher.Envelope(bobAddress, messages.get(0)));
+    envelopes.add(new BatchSessionCipher.Envelope(bobAddress, messages.get(1), new DecryptionCallback() {
+      @Override
+      public void handlePlaintext(byte[] plaintext) {
+        throw failure;
+      }
+    }));
+    envelopes.add(new BatchSessionCipher.Envelope(bobAddress, messages.get(2)));
+
+    List<BatchSessionCipher.Result> results = new BatchSessionCipher(aliceStore).decrypt(envelopes);
+
+    assertTrue(results.get(0).isSuccess());
+    assertSame(failure, results.get(1).getException());
+    assertTrue(results.get(2).isSuccess());
+
+    assertTrue(Arrays.equals("bob 1".getBytes(), aliceCipher.decrypt(messages.get(1))));
+
+    try {
+      aliceCipher.decrypt(messages.get(2));
+      throw new AssertionError("Should have failed!");
+    } catch (DuplicateMessageException e) {
+      // good
+    }
+  }
+
+  public void testBatchReportsMetrics() throws Exception {
+    SignalProtocolStore         aliceStore = new TestInMemorySignalProtocolStore();
+    List<SignalProtocolAddress> addresses  = new LinkedList<>();
+    List<SessionCipher>         bobCiphers = new LinkedList<>();
+
+    for (int i=0;i<3;i++) {
+      SignalProtocolAddress bobAddress = new SignalProtocolAddress("+14152222222", i + 1);
+      SignalProtocolStore   bobStore   = new TestInMemorySignalProtocolStore();
+
+      initializeSession(aliceStore, bobStore, bobAddress);
+
+      addresses.add(bobAddress);
+      bobCiphers.add(new SessionCipher(bobStore, ALICE_ADDRESS));
+    }
+
+    HistogramProtocolMetrics metrics = new HistogramProtocolMetrics();
+    ProtocolMetricsProvider.setProvider(metrics);
+
+    try {
+      BatchSessionCipher                            batchCipher = new BatchSessionCipher(aliceStore);
+      Map<SignalProtocolAddress, CiphertextMessage> messages    = batchCipher.encrypt(addresses, "hello".getBytes());
+
+      assertEquals(3, metrics.getLatency(ProtocolMetrics.ENCRYPT).getCount());
+      assertEquals(3, metrics.getLatency(ProtocolMetrics.LOAD_SESSION).getCount());
+      assertEquals(3, metrics.getLatency(ProtocolMetrics.STORE_SESSION).getCount());
+
+      List<BatchSessionCipher.Envelope> envelopes = new LinkedList<>();
+
+      for (int i=0;i<addresses.size();i++) {
+        bobCiphers.get(i).decrypt(new PreKeySignalMessage(messages.get(addresses.get(i)).serialize()));
+      }
+
+      for (int i=0;i<2;i++) {
+        envelopes.add(new BatchSessionCipher.Envelope(addresses.get(0), new SignalMessage(bobCiphers.get(0).encrypt("reply".getBytes()).serialize())));
+      }
+
+      envelopes.add(new BatchSessionCipher.Envelope(addresses.get(1), new SignalMessage(bobCiphers.get(1).encrypt("reply".getBytes()).serialize())));
+
+      long decrypts = metrics.getLatency(ProtocolMetrics.DECRYPT).getCount();
+      long loads    = metrics.getLatency(ProtocolMetrics.LOAD_SESSION).getCount();
+      long stores   = metrics.getLatency(ProtocolMetrics.STORE_SESSION).getCount();
+
+      for (BatchSessionCipher.Result result : batchCipher.decrypt(envelopes)) {
+        assertTrue(result.isSuccess());
+      }
+
+      assertEquals(decrypts + 3, metrics.getLatency(ProtocolMetrics.DECRYPT).getCount());
+      assertEquals(loads + 2, metrics.getLatency(ProtocolMetrics.LOAD_SESSION).getCount());
+      assertEquals(stores + 2, metrics.getLatency(ProtocolMetrics.STORE_SESSION).getCount());
+    } finally {
+      ProtocolMetricsProvider.setProvider(null);
+    }
+  }
+
+  public void testConcurrentEncryptAndDecryptOnSharedPool() throws Exception {
+    final SignalProtocolStore         aliceStore = new TestInMemorySignalProtocolStore();
+    final List<SignalProtocolAddress> addresses  = new LinkedList<>();
+    final List<List<SignalMessage>>   replies    = new LinkedList<>();
+    final int                         rounds     = 50;
+
+    for (int i=0;i<8;i++) {
+      SignalProtocolAddress bobAddress = new SignalProtocolAddress("+14152222222", i + 1);
+      SignalProtocolStore   bobStore   = new TestInMemorySignalProtocolStore();
+
+      initializeSession(aliceStore, bobStore, bobAddress);
+
+      SessionCipher       bobCipher = new SessionCipher(bobStore, ALICE_ADDRESS);
+      CiphertextMessage   hello     = new SessionCipher(aliceStore, bobAddress).encrypt("hello".getBytes());
+      List<SignalMessage> fromBob   = new LinkedList<>();
+
+      bobCipher.decrypt(new PreKeySignalMessage(hello.serialize()));
+
+      for (int j=0;j<rounds;j++) {
+        fromBob.add(new SignalMessage(bobCipher.encrypt(("reply " + j).getBytes()).serialize()));
+      }
+
+      addresses.add(bobAddress);
+      replies.add(fromBob);
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    try {
+      final BatchSessionCipher              batchCipher = new BatchSessionCipher(aliceStore, executor);
+      final AtomicReference<Throwable>      failure     = new AtomicReference<>();
+      final List<BatchSessionCipher.Result> results     = new LinkedList<>();
+
+      for (int round=0;round<rounds;round++) {
+        final List<BatchSessionCipher.Envelope> envelopes = new LinkedList<>();
+
+        for (int i=0;i<addresses.size();i++) {
+          envelopes.add(new BatchSessionCipher.Envelope(addresses.get(i), replies.get(i).get(round)));
+        }
+
+        Thread encrypter = new Thread() {
+          @Override
+          public void run() {
+            try {
+              batchCipher.encrypt(addresses, "message".getBytes());
+            } catch (Throwable t) {
+              failure.set(t);
+            }
+          }
+        };
+
+        Thread decrypter = new Thread() {
+          @Override
+          public void run() {
+            try {
+              results.addAll(batchCipher.decrypt(envelopes));
+            } catch (Throwable t) {
+              failure.set(t);
+            }
+          }
+        };
+
+        encrypter.setDaemon(true);
+        decrypter.setDaemon(true);
+        decrypter.start();
+        encrypter.start();
+        encrypter.join(10000);
+        decrypter.join(10000);
+
+        assertFalse("Batch encrypt and decrypt deadlocked", encrypter.isAlive() || decrypter.isAlive());
+        assertNull(failure.get());
+      }
+
+      assertEquals(rounds * addresses.size(), results.size());
+
+      for (BatchSessionCipher.Result result : results) {
+        assertTrue(result.isSuccess());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private void initializeSession(SignalProtocolStore aliceStore, SignalProtocolStore bobStore,
+                                 SignalProtocolAddress bobAddress)
+      throws InvalidKeyException, UntrustedIdentityException
+  {
+    ECKeyPair bobPreKeyPair            = Curve.generateKeyPair();
+    ECKeyPair bobSignedPreKeyPair      = Curve.generateKeyPair();
+    byte[]    bobSignedPreKeySignature = Curve.calculateSignature(bobStore.getIdentityKeyPair().getPrivateKey(),
+                                                                  bobSignedPreKeyPair.getPublicKey().serialize());
+
+    PreKeyBundle bobPreKey = new PreKeyBundle(bobStore.getLocalRegistrationId(), bobAddress.getDeviceId(),
+                                              31337, bobPreKeyPair.getPublicKey(),
+                                              22, bobSignedPreKeyPair.getPublicKey(),
+                                              bobSignedPreKeySignature,
+                                              bobStore.getIdentityKeyPair().getPublicKey());
+
+    bobStore.storePreKey(31337, new PreKeyRecord(bobPreKey.getPreKeyId(), bobPreKeyPair));
+    bobStore.storeSignedPreKey(22, new SignedPreKeyRecord(22, System.currentTimeMillis(), bobSignedPreKeyPair, bobSignedPreKeySignature));
+
+    new SessionBuilder(aliceStore, bobAddress).process(bobPreKey);
+  }
+}
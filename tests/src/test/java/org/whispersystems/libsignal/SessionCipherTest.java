@@ -69,6 +69,55 @@ public class SessionCipherTest extends TestCase {
     }
   }
 
+  public void testConcurrentSessions() throws Exception {
+    final SignalProtocolStore aliceStore = new TestInMemorySignalProtocolStore();
+    final SignalProtocolStore bobStore   = new TestInMemorySignalProtocolStore();
+    final List<Throwable>     failures   = Collections.synchronizedList(new LinkedList<Throwable>());
+    final int                 sessions   = 8;
+
+    for (int i=0;i<sessions;i++) {
+      SessionRecord aliceSessionRecord = new SessionRecord();
+      SessionRecord bobSessionRecord   = new SessionRecord();
+
+      initializeSessionsV3(aliceSessionRecord.getSessionState(), bobSessionRecord.getSessionState());
+
+      aliceStore.storeSession(new SignalProtocolAddress("+14159999999", i + 1), aliceSessionRecord);
+      bobStore.storeSession(new SignalProtocolAddress("+14158888888", i + 1), bobSessionRecord);
+    }
+
+    List<Thread> threads = new LinkedList<>();
+
+    for (int i=0;i<sessions;i++) {
+      final SessionCipher aliceCipher = new SessionCipher(aliceStore, new SignalProtocolAddress("+14159999999", i + 1));
+      final SessionCipher bobCipher   = new SessionCipher(bobStore, new SignalProtocolAddress("+14158888888", i + 1));
+
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int j=0;j<50;j++) {
+              byte[]            plaintext = ("message " + j).getBytes();
+              CiphertextMessage message   = aliceCipher.encrypt(plaintext);
+
+              assertTrue(Arrays.equals(plaintext, bobCipher.decrypt(new SignalMessage(message.serialize()))));
+
+              CiphertextMessage reply = bobCipher.encrypt(plaintext);
+
+              assertTrue(Arrays.equals(plaintext, aliceCipher.decrypt(new SignalMessage(reply.serialize()))));
+            }
+          } catch (Throwable t) {
+            failures.add(t);
+          }
+        }
+      });
+    }
+
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+
+    assertTrue(failures.toString(), failures.isEmpty());
+  }
+
   private void runInteraction(SessionRecord aliceSessionRecord, SessionRecord bobSessionRecord)
       throws DuplicateMessageException, LegacyMessageException, InvalidMessageException, NoSuchAlgorithmException, NoSessionException, UntrustedIdentityException {
     SignalProtocolStore aliceStore = new TestInMemorySignalProtocolStore();
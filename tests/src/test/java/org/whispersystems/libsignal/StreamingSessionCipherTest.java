@@ -0,0 +1,192 @@
+package org.whispersystems.libsignal;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECKeyPair;
+import org.whispersystems.libsignal.metrics.HistogramProtocolMetrics;
+import org.whispersystems.libsignal.metrics.ProtocolMetrics;
+import org.whispersystems.libsignal.metrics.ProtocolMetricsProvider;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import org.whispersystems.libsignal.protocol.PreKeySignalMessage;
+import org.whispersystems.libsignal.protocol.SignalMessage;
+import org.whispersystems.libsignal.state.PreKeyBundle;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.SessionState;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+
+public class StreamingSessionCipherTest extends TestCase {
+
+  private static final SignalProtocolAddress ALICE_ADDRESS = new SignalProtocolAddress("+14151111111", 1);
+  private static final SignalProtocolAddress BOB_ADDRESS   = new SignalProtocolAddress("+14152222222", 1);
+
+  private final SignalProtocolStore aliceStore  = new TestInMemorySignalProtocolStore();
+  private final SignalProtocolStore bobStore    = new TestInMemorySignalProtocolStore();
+  private final SessionCipher       aliceCipher = new SessionCipher(aliceStore, BOB_ADDRESS);
+  private final SessionCipher       bobCipher   = new SessionCipher(bobStore, ALICE_ADDRESS);
+
+  @Override
+  protected void setUp() throws Exception {
+    initializeSession();
+  }
+
+  public void testWireCompatibility() throws Exception {
+    byte[] first = "first".getBytes();
+
+    byte[] expected = expectedEncryption(first);
+    byte[] streamed = streamEncrypt(aliceCipher, first, CiphertextMessage.PREKEY_TYPE);
+
+    assertTrue(Arrays.equals(expected, streamed));
+    assertTrue(Arrays.equals(first, bobCipher.decrypt(new PreKeySignalMessage(streamed))));
+
+    byte[] reply = "reply".getBytes();
+
+    assertTrue(Arrays.equals(reply, streamDecrypt(aliceCipher, bobCipher.encrypt(reply).serialize())));
+
+    byte[] large = new byte[1024 * 1024 + 5];
+    new Random(1).nextBytes(large);
+
+    expected = expectedEncryption(large);
+    streamed = streamEncrypt(aliceCipher, large, CiphertextMessage.WHISPER_TYPE);
+
+    assertTrue(Arrays.equals(expected, streamed));
+    assertTrue(Arrays.equals(large, bobCipher.decrypt(new SignalMessage(streamed))));
+    assertTrue(Arrays.equals(large, streamDecrypt(aliceCipher, bobCipher.encrypt(large).serialize())));
+
+    ByteArrayOutputStream ciphertext = new ByteArrayOutputStream();
+    ByteArrayOutputStream plaintext  = new ByteArrayOutputStream();
+
+    aliceCipher.encrypt(Channels.newChannel(new ByteArrayInputStream(large)), large.length,
+                        Channels.newChannel(ciphertext));
+    bobCipher.decrypt(Channels.newChannel(new ByteArrayInputStream(ciphertext.toByteArray())),
+                      Channels.newChannel(plaintext));
+
+    assertTrue(Arrays.equals(large, plaintext.toByteArray()));
+  }
+
+  public void testInvalidStreamCommitsNothing() throws Exception {
+    bobCipher.decrypt(new PreKeySignalMessage(aliceCipher.encrypt("first".getBytes()).serialize()));
+    aliceCipher.decrypt(new SignalMessage(bobCipher.encrypt("reply".getBytes()).serialize()));
+
+    byte[] message   = new byte[100000];
+    byte[] encrypted = streamEncrypt(aliceCipher, message, CiphertextMessage.WHISPER_TYPE);
+    byte[] corrupted = encrypted.clone();
+
+    corrupted[encrypted.length / 2] ^= 1;
+
+    assertInvalid(corrupted);
+    assertInvalid(Arrays.copyOf(encrypted, encrypted.length - 1));
+    assertInvalid(Arrays.copyOf(encrypted, encrypted.length / 2));
+    assertInvalid(Arrays.copyOf(encrypted, encrypted.length + 1));
+
+    assertTrue(Arrays.equals(message, streamDecrypt(bobCipher, encrypted)));
+
+    try {
+      streamDecrypt(bobCipher, encrypted);
+      fail("Duplicate message decrypted");
+    } catch (DuplicateMessageException e) {
+      // good
+    }
+  }
+
+  public void testRatchetStepOnArchivedState() throws Exception {
+    bobCipher.decrypt(new PreKeySignalMessage(aliceCipher.encrypt("first".getBytes()).serialize()));
+    aliceCipher.decrypt(new SignalMessage(bobCipher.encrypt("reply".getBytes()).serialize()));
+    bobCipher.decrypt(new SignalMessage(aliceCipher.encrypt("second".getBytes()).serialize()));
+
+    initializeSession();
+
+    byte[] message = "on the archived session".getBytes();
+
+    assertTrue(Arrays.equals(message, streamDecrypt(aliceCipher, bobCipher.encrypt(message).serialize())));
+
+    CiphertextMessage response = aliceCipher.encrypt("response".getBytes());
+
+    assertEquals(CiphertextMessage.WHISPER_TYPE, response.getType());
+    assertTrue(Arrays.equals("response".getBytes(), bobCipher.decrypt(new SignalMessage(response.serialize()))));
+  }
+
+  public void testUntrustedEncryptRecordsLatency() throws Exception {
+    HistogramProtocolMetrics metrics = new HistogramProtocolMetrics();
+
+    aliceStore.saveIdentity(BOB_ADDRESS, new IdentityKey(Curve.generateKeyPair().getPublicKey()));
+    ProtocolMetricsProvider.setProvider(metrics);
+
+    try {
+      streamEncrypt(aliceCipher, "untrusted".getBytes(), CiphertextMessage.PREKEY_TYPE);
+      fail("Encrypted to an untrusted identity");
+    } catch (UntrustedIdentityException e) {
+      // good
+    } finally {
+      ProtocolMetricsProvider.setProvider(null);
+    }
+
+    assertEquals(1, metrics.getLatency(ProtocolMetrics.ENCRYPT).getCount());
+  }
+
+  public void testShortPlaintext() throws Exception {
+    try {
+      aliceCipher.encrypt(new ByteArrayInputStream(new byte[10]), 11, new ByteArrayOutputStream());
+      fail("Short plaintext encrypted");
+    } catch (EOFException e) {
+      // good
+    }
+
+    byte[] message = "after failure".getBytes();
+    assertTrue(Arrays.equals(message, bobCipher.decrypt(new PreKeySignalMessage(aliceCipher.encrypt(message).serialize()))));
+  }
+
+  private void assertInvalid(byte[] message) throws Exception {
+    try {
+      streamDecrypt(bobCipher, message);
+      fail("Invalid message decrypted");
+    } catch (InvalidMessageException e) {
+      // good
+    }
+  }
+
+  private byte[] expectedEncryption(byte[] plaintext) {
+    SessionState sessionState = new SessionState(aliceStore.loadSession(BOB_ADDRESS).getSessionState());
+    return SessionCipher.encrypt(sessionState, plaintext).serialize();
+  }
+
+  private byte[] streamEncrypt(SessionCipher cipher, byte[] plaintext, int expectedType) throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    int                   type   = cipher.encrypt(new ByteArrayInputStream(plaintext), plaintext.length, output);
+
+    assertEquals(expectedType, type);
+    return output.toByteArray();
+  }
+
+  private byte[] streamDecrypt(SessionCipher cipher, byte[] ciphertext) throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    cipher.decrypt(new ByteArrayInputStream(ciphertext), output);
+    return output.toByteArray();
+  }
+
+  private void initializeSession() throws Exception {
+    ECKeyPair bobPreKeyPair            = Curve.generateKeyPair();
+    ECKeyPair bobSignedPreKeyPair      = Curve.generateKeyPair();
+    byte[]    bobSignedPreKeySignature = Curve.calculateSignature(bobStore.getIdentityKeyPair().getPrivateKey(),
+                                                                  bobSignedPreKeyPair.getPublicKey().serialize());
+
+    PreKeyBundle bobPreKey = new PreKeyBundle(bobStore.getLocalRegistrationId(), 1,
+                                              31337, bobPreKeyPair.getPublicKey(),
+                                              22, bobSignedPreKeyPair.getPublicKey(),
+                                              bobSignedPreKeySignature,
+                                              bobStore.getIdentityKeyPair().getPublicKey());
+
+    bobStore.storePreKey(31337, new PreKeyRecord(bobPreKey.getPreKeyId(), bobPreKeyPair));
+    bobStore.storeSignedPreKey(22, new SignedPreKeyRecord(22, System.currentTimeMillis(), bobSignedPreKeyPair, bobSignedPreKeySignature));
+
+    new SessionBuilder(aliceStore, BOB_ADDRESS).process(bobPreKey);
+  }
+}
@@ -0,0 +1,31 @@
+package org.whispersystems.libsignal;
+
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECKeyPair;
+import org.whispersystems.libsignal.state.PreKeyBundle;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+
+public class TestPreKeyBundles {
+
+  public static PreKeyBundle createBundle(SignalProtocolStore store) throws InvalidKeyException {
+    return createBundle(store, 31337);
+  }
+
+  public static PreKeyBundle createBundle(SignalProtocolStore store, int preKeyId) throws InvalidKeyException {
+    ECKeyPair preKeyPair            = Curve.generateKeyPair();
+    ECKeyPair signedPreKeyPair      = Curve.generateKeyPair();
+    byte[]    signedPreKeySignature = Curve.calculateSignature(store.getIdentityKeyPair().getPrivateKey(),
+                                                               signedPreKeyPair.getPublicKey().serialize());
+
+    store.storePreKey(preKeyId, new PreKeyRecord(preKeyId, preKeyPair));
+    store.storeSignedPreKey(22, new SignedPreKeyRecord(22, System.currentTimeMillis(), signedPreKeyPair, signedPreKeySignature));
+
+    return new PreKeyBundle(store.getLocalRegistrationId(), 1,
+                            preKeyId, preKeyPair.getPublicKey(),
+                            22, signedPreKeyPair.getPublicKey(),
+                            signedPreKeySignature,
+                            store.getIdentityKeyPair().getPublicKey());
+  }
+}
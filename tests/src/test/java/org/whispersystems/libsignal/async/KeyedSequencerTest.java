@@ -0,0 +1,64 @@
+package org.whispersystems.libsignal.async;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+public class KeyedSequencerTest extends TestCase {
+
+  public void testThrowingListenerDoesNotWedgeKey() throws Exception {
+    KeyedSequencer<String>   sequencer = new KeyedSequencer<>();
+    SettableFuture<String>   slow      = new SettableFuture<>();
+    ListenableFuture<String> first     = sequencer.submit("alice", constant(slow));
+    ListenableFuture<String> second    = sequencer.submit("alice", constant(Futures.immediate("second")));
+
+    first.addListener(new FutureListener<String>() {
+      @Override
+      public void onSuccess(String result) {
+        throw new IllegalStateException("listener failure");
+      }
+
+      @Override
+      public void onFailure(Throwable throwable) {}
+    });
+
+    assertTrue(slow.set("first"));
+    assertEquals("first", first.get());
+    assertEquals("second", second.get());
+    assertEquals(0, sequencer.getPendingKeyCount());
+  }
+
+  public void testLongQueueCompletesWithoutRecursion() throws Exception {
+    KeyedSequencer<String>          sequencer = new KeyedSequencer<>();
+    SettableFuture<Integer>         slow      = new SettableFuture<>();
+    List<ListenableFuture<Integer>> results   = new ArrayList<>();
+
+    results.add(sequencer.submit("alice", constant(slow)));
+
+    for (int i=1;i<20000;i++) {
+      results.add(sequencer.submit("alice", constant(Futures.immediate(i))));
+    }
+
+    assertEquals(1, sequencer.getPendingKeyCount());
+
+    slow.set(0);
+
+    for (int i=0;i<results.size();i++) {
+      assertTrue(results.get(i).isDone());
+      assertEquals(i, (int) results.get(i).get());
+    }
+
+    assertEquals(0, sequencer.getPendingKeyCount());
+  }
+
+  private static <T> Callable<ListenableFuture<T>> constant(final ListenableFuture<T> future) {
+    return new Callable<ListenableFuture<T>>() {
+      @Override
+      public ListenableFuture<T> call() {
+        return future;
+      }
+    };
+  }
+}
@@ -0,0 +1,70 @@
+package org.whispersystems.libsignal.groups;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.DuplicateMessageException;
+import org.whispersystems.libsignal.NoSessionException;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.async.AsyncSenderKeyStoreAdapter;
+import org.whispersystems.libsignal.async.ListenableFuture;
+import org.whispersystems.libsignal.protocol.SenderKeyDistributionMessage;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class AsyncGroupCipherTest extends TestCase {
+
+  private static final SignalProtocolAddress SENDER_ADDRESS = new SignalProtocolAddress("+14150001111", 1);
+  private static final SenderKeyName         GROUP_SENDER   = new SenderKeyName("async group", SENDER_ADDRESS);
+
+  public void testAsyncGroupMessages() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    try {
+      InMemorySenderKeyStore aliceStore = new InMemorySenderKeyStore();
+      InMemorySenderKeyStore bobStore   = new InMemorySenderKeyStore();
+
+      AsyncGroupCipher aliceCipher = new AsyncGroupCipher(new AsyncSenderKeyStoreAdapter(aliceStore, executor), GROUP_SENDER);
+      AsyncGroupCipher bobCipher   = new AsyncGroupCipher(new AsyncSenderKeyStoreAdapter(bobStore, executor), GROUP_SENDER);
+
+      try {
+        bobCipher.decrypt(new byte[0]).get();
+        fail("Decrypted without a sender key");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof NoSessionException);
+      }
+
+      SenderKeyDistributionMessage distributionMessage = new GroupSessionBuilder(aliceStore).create(GROUP_SENDER);
+      new GroupSessionBuilder(bobStore).process(GROUP_SENDER, distributionMessage);
+
+      List<ListenableFuture<byte[]>> ciphertexts = new LinkedList<>();
+
+      for (int i=0;i<20;i++) {
+        ciphertexts.add(aliceCipher.encrypt(("group message " + i).getBytes()));
+      }
+
+      List<ListenableFuture<byte[]>> plaintexts = new LinkedList<>();
+
+      for (ListenableFuture<byte[]> ciphertext : ciphertexts) {
+        plaintexts.add(bobCipher.decrypt(ciphertext.get()));
+      }
+
+      for (int i=0;i<plaintexts.size();i++) {
+        assertTrue(Arrays.equals(("group message " + i).getBytes(), plaintexts.get(i).get()));
+      }
+
+      try {
+        bobCipher.decrypt(ciphertexts.get(0).get()).get();
+        fail("Decrypted duplicate");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof DuplicateMessageException);
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
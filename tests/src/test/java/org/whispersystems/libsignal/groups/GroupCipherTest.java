@@ -9,10 +9,13 @@ import org.whispersystems.libsignal.LegacyMessageException;
 import org.whispersystems.libsignal.NoSessionException;
 import org.whispersystems.libsignal.protocol.SenderKeyDistributionMessage;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
@@ -91,6 +94,76 @@ public class GroupCipherTest extends TestCase {
     assertTrue(Arrays.equals(plaintext, plaintextFromAlice));
   }
 
+  public void testByteBuffers() throws Exception {
+    InMemorySenderKeyStore aliceStore = new InMemorySenderKeyStore();
+    InMemorySenderKeyStore bobStore   = new InMemorySenderKeyStore();
+
+    GroupSessionBuilder aliceSessionBuilder = new GroupSessionBuilder(aliceStore);
+    GroupSessionBuilder bobSessionBuilder   = new GroupSessionBuilder(bobStore);
+
+    GroupCipher aliceGroupCipher = new GroupCipher(aliceStore, GROUP_SENDER);
+    GroupCipher bobGroupCipher   = new GroupCipher(bobStore, GROUP_SENDER);
+
+    bobSessionBuilder.process(GROUP_SENDER, new SenderKeyDistributionMessage(aliceSessionBuilder.create(GROUP_SENDER).serialize()));
+
+    byte[] plaintext = new byte[4000];
+    new Random().nextBytes(plaintext);
+
+    for (boolean direct : new boolean[] {false, true}) {
+      ByteBuffer input      = allocate(direct, plaintext.length);
+      ByteBuffer ciphertext = allocate(direct, GroupCipher.getMaxCiphertextLength(plaintext.length) + 3);
+      ByteBuffer output     = allocate(direct, ciphertext.capacity());
+
+      input.put(plaintext).flip();
+      ciphertext.position(3);
+
+      int length = aliceGroupCipher.encrypt(input, ciphertext);
+
+      assertFalse(input.hasRemaining());
+      assertEquals(3 + length, ciphertext.position());
+
+      ciphertext.flip().position(3);
+
+      byte[] serialized = new byte[length];
+      ciphertext.duplicate().get(serialized);
+
+      output.position(5);
+
+      assertEquals(plaintext.length, bobGroupCipher.decrypt(ciphertext, output));
+      assertFalse(ciphertext.hasRemaining());
+
+      byte[] decrypted = new byte[plaintext.length];
+      output.flip().position(5);
+      output.get(decrypted);
+
+      assertTrue(Arrays.equals(plaintext, decrypted));
+
+      byte[] next = aliceGroupCipher.encrypt(plaintext);
+
+      input = allocate(direct, next.length);
+      input.put(next).flip();
+      output.clear();
+
+      assertEquals(plaintext.length, bobGroupCipher.decrypt(input, output));
+
+      try {
+        bobGroupCipher.decrypt(serialized);
+        fail("Duplicate message decrypted");
+      } catch (DuplicateMessageException e) {
+        // good
+      }
+    }
+
+    try {
+      aliceGroupCipher.encrypt(ByteBuffer.wrap(plaintext), ByteBuffer.allocate(plaintext.length));
+      fail("Encrypted into a short buffer");
+    } catch (BufferOverflowException e) {
+      // good
+    }
+
+    assertTrue(Arrays.equals(plaintext, bobGroupCipher.decrypt(aliceGroupCipher.encrypt(plaintext))));
+  }
+
   public void testBasicRatchet()
       throws LegacyMessageException, DuplicateMessageException, InvalidMessageException, NoSessionException
   {
@@ -275,6 +348,97 @@ public class GroupCipherTest extends TestCase {
     }
   }
 
+  public void testConcurrentGroups() throws Exception {
+    final InMemorySenderKeyStore aliceStore = new InMemorySenderKeyStore();
+    final InMemorySenderKeyStore bobStore   = new InMemorySenderKeyStore();
+    final List<Throwable>        failures   = Collections.synchronizedList(new LinkedList<Throwable>());
+    final int                    groups     = 8;
+
+    List<Thread> threads = new LinkedList<>();
+
+    for (int i=0;i<groups;i++) {
+      final SenderKeyName groupSender = new SenderKeyName("group " + i, SENDER_ADDRESS);
+
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          try {
+            new GroupSessionBuilder(bobStore).process(groupSender, new GroupSessionBuilder(aliceStore).create(groupSender));
+
+            GroupCipher aliceGroupCipher = new GroupCipher(aliceStore, groupSender);
+            GroupCipher bobGroupCipher   = new GroupCipher(bobStore, groupSender);
+
+            for (int j=0;j<50;j++) {
+              byte[] plaintext = ("message " + j).getBytes();
+              assertTrue(Arrays.equals(plaintext, bobGroupCipher.decrypt(aliceGroupCipher.encrypt(plaintext))));
+            }
+          } catch (Throwable t) {
+            failures.add(t);
+          }
+        }
+      });
+    }
+
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+
+    assertTrue(failures.toString(), failures.isEmpty());
+  }
+
+  public void testConcurrentDecryptsOnOneChain() throws Exception {
+    InMemorySenderKeyStore aliceStore = new InMemorySenderKeyStore();
+    InMemorySenderKeyStore bobStore   = new InMemorySenderKeyStore();
+
+    new GroupSessionBuilder(bobStore).process(GROUP_SENDER, new GroupSessionBuilder(aliceStore).create(GROUP_SENDER));
+
+    GroupCipher       aliceGroupCipher = new GroupCipher(aliceStore, GROUP_SENDER);
+    final GroupCipher bobGroupCipher   = new GroupCipher(bobStore, GROUP_SENDER);
+
+    final List<byte[]>    plaintexts = new ArrayList<>();
+    final List<byte[]>    messages   = new ArrayList<>();
+    final List<Throwable> failures   = Collections.synchronizedList(new LinkedList<Throwable>());
+    final int             decryptors = 4;
+
+    for (int i=0;i<200;i++) {
+      plaintexts.add(("message " + i).getBytes());
+      messages.add(aliceGroupCipher.encrypt(plaintexts.get(i)));
+    }
+
+    List<Thread> threads = new LinkedList<>();
+
+    for (int i=0;i<decryptors;i++) {
+      final int first = i;
+
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int j=messages.size()-1-first;j>=0;j-=decryptors) {
+              assertTrue(Arrays.equals(plaintexts.get(j), bobGroupCipher.decrypt(messages.get(j))));
+            }
+          } catch (Throwable t) {
+            failures.add(t);
+          }
+        }
+      });
+    }
+
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+
+    assertTrue(failures.toString(), failures.isEmpty());
+
+    try {
+      bobGroupCipher.decrypt(messages.get(0));
+      throw new AssertionError("Should have failed!");
+    } catch (DuplicateMessageException e) {
+      // good
+    }
+  }
+
+  private ByteBuffer allocate(boolean direct, int capacity) {
+    return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+  }
 
   private int randomInt() {
     try {
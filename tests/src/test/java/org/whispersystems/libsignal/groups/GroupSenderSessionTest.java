@@ -0,0 +1,141 @@
+package org.whispersystems.libsignal.groups;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.DuplicateMessageException;
+import org.whispersystems.libsignal.NoSessionException;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.groups.state.SenderKeyRecord;
+import org.whispersystems.libsignal.protocol.SenderKeyMessage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class GroupSenderSessionTest extends TestCase {
+
+  private static final SignalProtocolAddress SENDER_ADDRESS = new SignalProtocolAddress("+14150001111", 1);
+  private static final SenderKeyName         GROUP_SENDER   = new SenderKeyName("nihilist history reading group", SENDER_ADDRESS);
+
+  public void testEncryptWithCheckpoints() throws Exception {
+    CountingSenderKeyStore aliceStore = new CountingSenderKeyStore();
+    InMemorySenderKeyStore bobStore   = new InMemorySenderKeyStore();
+
+    new GroupSessionBuilder(bobStore).process(GROUP_SENDER, new GroupSessionBuilder(aliceStore).create(GROUP_SENDER));
+
+    GroupCipher        bobGroupCipher = new GroupCipher(bobStore, GROUP_SENDER);
+    GroupSenderSession session        = new GroupSenderSession(aliceStore, GROUP_SENDER, 10);
+
+    aliceStore.stores = 0;
+
+    for (int i=0;i<25;i++) {
+      byte[] plaintext = ("message " + i).getBytes();
+      byte[] message   = session.encrypt(plaintext);
+
+      assertEquals(i, new SenderKeyMessage(message).getIteration());
+      assertTrue(Arrays.equals(plaintext, bobGroupCipher.decrypt(message)));
+    }
+
+    assertEquals(3, aliceStore.stores);
+    assertEquals(30, currentIteration(aliceStore));
+
+    ByteBuffer ciphertext = ByteBuffer.allocate(GroupCipher.getMaxCiphertextLength(5));
+    session.encrypt(ByteBuffer.wrap("hello".getBytes()), ciphertext);
+    ciphertext.flip();
+
+    assertTrue(Arrays.equals("hello".getBytes(), bobGroupCipher.decrypt(Arrays.copyOf(ciphertext.array(), ciphertext.limit()))));
+
+    session.close();
+
+    assertEquals(26, currentIteration(aliceStore));
+
+    try {
+      session.encrypt("closed".getBytes());
+      fail("Encrypted with a closed session");
+    } catch (IllegalStateException e) {
+      // good
+    }
+
+    GroupCipher aliceGroupCipher = new GroupCipher(aliceStore, GROUP_SENDER);
+    byte[]      message          = aliceGroupCipher.encrypt("after close".getBytes());
+
+    assertEquals(26, new SenderKeyMessage(message).getIteration());
+    assertTrue(Arrays.equals("after close".getBytes(), bobGroupCipher.decrypt(message)));
+  }
+
+  public void testLostSessionNeverReusesKeys() throws Exception {
+    InMemorySenderKeyStore aliceStore = new InMemorySenderKeyStore();
+    InMemorySenderKeyStore bobStore   = new InMemorySenderKeyStore();
+
+    new GroupSessionBuilder(bobStore).process(GROUP_SENDER, new GroupSessionBuilder(aliceStore).create(GROUP_SENDER));
+
+    GroupCipher        bobGroupCipher = new GroupCipher(bobStore, GROUP_SENDER);
+    GroupSenderSession lost           = new GroupSenderSession(aliceStore, GROUP_SENDER, 10);
+    List<byte[]>       inflight       = new ArrayList<>();
+
+    for (int i=0;i<15;i++) {
+      inflight.add(lost.encrypt(("message " + i).getBytes()));
+    }
+
+    GroupSenderSession session = new GroupSenderSession(aliceStore, GROUP_SENDER, 10);
+    byte[]             message = session.encrypt("resumed".getBytes());
+
+    assertEquals(20, new SenderKeyMessage(message).getIteration());
+    assertTrue(Arrays.equals("resumed".getBytes(), bobGroupCipher.decrypt(message)));
+
+    for (byte[] skipped : inflight) {
+      bobGroupCipher.decrypt(skipped);
+    }
+
+    try {
+      bobGroupCipher.decrypt(inflight.get(0));
+      fail("Duplicate message decrypted");
+    } catch (DuplicateMessageException e) {
+      // good
+    }
+  }
+
+  public void testLateJoin() throws Exception {
+    InMemorySenderKeyStore aliceStore = new InMemorySenderKeyStore();
+    InMemorySenderKeyStore bobStore   = new InMemorySenderKeyStore();
+
+    new GroupSessionBuilder(aliceStore).create(GROUP_SENDER);
+
+    GroupSenderSession session = new GroupSenderSession(aliceStore, GROUP_SENDER);
+
+    for (int i=0;i<5;i++) {
+      session.encrypt("before bob".getBytes());
+    }
+
+    new GroupSessionBuilder(bobStore).process(GROUP_SENDER, session.getSenderKeyDistributionMessage());
+
+    byte[] message = session.encrypt("welcome bob".getBytes());
+
+    assertTrue(Arrays.equals("welcome bob".getBytes(), new GroupCipher(bobStore, GROUP_SENDER).decrypt(message)));
+  }
+
+  public void testNoSession() throws Exception {
+    try {
+      new GroupSenderSession(new InMemorySenderKeyStore(), GROUP_SENDER);
+      fail("Opened a session without a sender key");
+    } catch (NoSessionException e) {
+      // good
+    }
+  }
+
+  private int currentIteration(InMemorySenderKeyStore store) throws Exception {
+    SenderKeyRecord record = store.loadSenderKey(GROUP_SENDER);
+    return record.getSenderKeyState().getSenderChainKey().getIteration();
+  }
+
+  private static class CountingSenderKeyStore extends InMemorySenderKeyStore {
+    private int stores;
+
+    @Override
+    public synchronized void storeSenderKey(SenderKeyName senderKeyName, SenderKeyRecord record) {
+      stores++;
+      super.storeSenderKey(senderKeyName, record);
+    }
+  }
+}
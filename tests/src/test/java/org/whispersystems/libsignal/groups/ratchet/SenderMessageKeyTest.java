@@ -0,0 +1,32 @@
+package org.whispersystems.libsignal.groups.ratchet;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.kdf.HKDFv3;
+
+import java.util.Arrays;
+
+public class SenderMessageKeyTest extends TestCase {
+
+  public void testDerivation() {
+    byte[] chainKey = new byte[32];
+    Arrays.fill(chainKey, (byte)0x2a);
+
+    SenderChainKey senderChainKey = new SenderChainKey(7, chainKey);
+
+    byte[]           seed       = new byte[SenderChainKey.SEED_LENGTH];
+    SenderChainKey   next       = senderChainKey.getNext(seed);
+    SenderMessageKey messageKey = senderChainKey.getSenderMessageKey();
+    byte[]           derivative = new HKDFv3().deriveSecrets(seed, "WhisperGroup".getBytes(), 48);
+
+    assertTrue(Arrays.equals(seed, messageKey.getSeed()));
+    assertTrue(Arrays.equals(senderChainKey.getNext().getSeed(), next.getSeed()));
+    assertEquals(8, next.getIteration());
+    assertEquals(7, messageKey.getIteration());
+
+    assertTrue(Arrays.equals(Arrays.copyOfRange(derivative, 0, 16), messageKey.getIv()));
+    assertTrue(Arrays.equals(Arrays.copyOfRange(derivative, 16, 48), messageKey.getCipherKey()));
+    assertSame(messageKey.getIv(), messageKey.getIv());
+    assertSame(messageKey.getCipherKey(), messageKey.getCipherKey());
+  }
+}
@@ -134,4 +134,25 @@ public class HKDFTest extends TestCase {
     byte[] actualOutput = HKDF.createFor(2).deriveSecrets(ikm, salt, info, 64);
     assertTrue(Arrays.equals(okm, actualOutput));
   }
+
+  public void testOutputBuffer() {
+    byte[] ikm  = "input key material".getBytes();
+    byte[] salt = "salt".getBytes();
+    byte[] info = "info".getBytes();
+
+    for (int version=2;version<=3;version++) {
+      HKDF kdf = HKDF.createFor(version);
+
+      for (int length=0;length<=100;length++) {
+        byte[] expected = kdf.deriveSecrets(ikm, salt, info, length);
+        byte[] output   = new byte[length + 10];
+
+        kdf.deriveSecrets(ikm, salt, info, output, 5, length);
+
+        assertTrue(Arrays.equals(expected, Arrays.copyOfRange(output, 5, 5 + length)));
+        assertTrue(Arrays.equals(new byte[5], Arrays.copyOfRange(output, 0, 5)));
+        assertTrue(Arrays.equals(new byte[5], Arrays.copyOfRange(output, 5 + length, output.length)));
+      }
+    }
+  }
 }
@@ -0,0 +1,112 @@
+package org.whispersystems.libsignal.metrics;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.DuplicateMessageException;
+import org.whispersystems.libsignal.InvalidMessageException;
+import org.whispersystems.libsignal.SessionBuilder;
+import org.whispersystems.libsignal.SessionCipher;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.TestInMemorySignalProtocolStore;
+import org.whispersystems.libsignal.TestPreKeyBundles;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import org.whispersystems.libsignal.protocol.PreKeySignalMessage;
+import org.whispersystems.libsignal.protocol.SignalMessage;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+
+import java.util.Arrays;
+
+public class HistogramProtocolMetricsTest extends TestCase {
+
+  private static final SignalProtocolAddress ALICE_ADDRESS = new SignalProtocolAddress("+14151111111", 1);
+  private static final SignalProtocolAddress BOB_ADDRESS   = new SignalProtocolAddress("+14152222222", 1);
+
+  private HistogramProtocolMetrics metrics;
+
+  @Override
+  public void setUp() {
+    metrics = new HistogramProtocolMetrics();
+    ProtocolMetricsProvider.setProvider(metrics);
+  }
+
+  @Override
+  public void tearDown() {
+    ProtocolMetricsProvider.setProvider(null);
+  }
+
+  public void testSessionCipherReports() throws Exception {
+    SignalProtocolStore aliceStore  = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore bobStore    = new TestInMemorySignalProtocolStore();
+    SessionCipher       aliceCipher = new SessionCipher(aliceStore, BOB_ADDRESS);
+    SessionCipher       bobCipher   = new SessionCipher(bobStore, ALICE_ADDRESS);
+
+    new SessionBuilder(aliceStore, BOB_ADDRESS).process(TestPreKeyBundles.createBundle(bobStore, 1));
+
+    bobCipher.decrypt(new PreKeySignalMessage(aliceCipher.encrypt("hello".getBytes()).serialize()));
+    aliceCipher.decrypt(new SignalMessage(bobCipher.encrypt("reply".getBytes()).serialize()));
+
+    SignalMessage[] messages = new SignalMessage[5];
+
+    for (int i=0;i<messages.length;i++) {
+      messages[i] = new SignalMessage(aliceCipher.encrypt(("message " + i).getBytes()).serialize());
+    }
+
+    bobCipher.decrypt(messages[4]);
+    assertEquals(4, metrics.getSkippedMessageKeys(ProtocolMetrics.DECRYPT));
+
+    try {
+      bobCipher.decrypt(messages[4]);
+      fail("Decrypted duplicate");
+    } catch (DuplicateMessageException e) {
+      // good
+    }
+
+    assertEquals(1, metrics.getDuplicateMessages(ProtocolMetrics.DECRYPT));
+
+    SignalMessage late = messages[0];
+
+    new SessionBuilder(aliceStore, BOB_ADDRESS).process(TestPreKeyBundles.createBundle(bobStore, 2));
+    bobCipher.decrypt(new PreKeySignalMessage(aliceCipher.encrypt("rebuilt".getBytes()).serialize()));
+
+    assertTrue(Arrays.equals("message 0".getBytes(), bobCipher.decrypt(late)));
+    assertEquals(1, metrics.getArchivedStateFallbacks());
+    assertEquals(1, metrics.getArchivedStatesTried());
+
+    try {
+      bobCipher.decrypt(new SignalMessage(corrupt(messages[1].serialize())));
+      fail("Decrypted corrupt message");
+    } catch (InvalidMessageException e) {
+      // good
+    }
+
+    assertEquals(1, metrics.getInvalidMessages(ProtocolMetrics.DECRYPT));
+
+    assertEquals(2, metrics.getLatency(ProtocolMetrics.PROCESS_PRE_KEY_BUNDLE).getCount());
+    assertEquals(2, metrics.getLatency(ProtocolMetrics.DECRYPT_PRE_KEY).getCount());
+    assertEquals(5, metrics.getLatency(ProtocolMetrics.DECRYPT).getCount());
+    assertEquals(8, metrics.getLatency(ProtocolMetrics.ENCRYPT).getCount());
+    assertTrue(metrics.getLatency(ProtocolMetrics.LOAD_SESSION).getCount() > 0);
+    assertTrue(metrics.getLatency(ProtocolMetrics.STORE_SESSION).getCount() > 0);
+  }
+
+  public void testLatencyHistogramPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+
+    assertEquals(0, histogram.getPercentile(50));
+
+    for (int i=0;i<90;i++) histogram.record(1000);
+    for (int i=0;i<10;i++) histogram.record(1000000);
+
+    assertEquals(100, histogram.getCount());
+    assertEquals(90 * 1000 + 10 * 1000000, histogram.getTotalNanos());
+    assertEquals(1024, histogram.getPercentile(50));
+    assertEquals(1024, histogram.getPercentile(90));
+    assertEquals(1L << 20, histogram.getPercentile(99));
+  }
+
+  private static byte[] corrupt(byte[] serialized) {
+    byte[] corrupted = serialized.clone();
+    corrupted[corrupted.length - 10] ^= 0x01;
+    return corrupted;
+  }
+}
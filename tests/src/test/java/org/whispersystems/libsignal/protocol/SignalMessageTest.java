@@ -0,0 +1,115 @@
+package org.whispersystems.libsignal.protocol;
+
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.IdentityKey;
+import org.whispersystems.libsignal.InvalidMessageException;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECPublicKey;
+import org.whispersystems.libsignal.util.ByteUtil;
+import org.whispersystems.libsignal.util.guava.Optional;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+public class SignalMessageTest extends TestCase {
+
+  private final SecretKeySpec macKey           = new SecretKeySpec(new byte[32], "HmacSHA256");
+  private final ECPublicKey   ratchetKey       = Curve.generateKeyPair().getPublicKey();
+  private final IdentityKey   senderIdentity   = new IdentityKey(Curve.generateKeyPair().getPublicKey());
+  private final IdentityKey   receiverIdentity = new IdentityKey(Curve.generateKeyPair().getPublicKey());
+  private final byte[]        ciphertext       = new byte[1000];
+
+  public void testWireCompatibility() throws Exception {
+    SignalMessage message = new SignalMessage(3, macKey, ratchetKey, 300, 7, ciphertext,
+                                              senderIdentity, receiverIdentity);
+
+    byte[] version  = {ByteUtil.intsToByteHighAndLow(3, CiphertextMessage.CURRENT_VERSION)};
+    byte[] body     = SignalProtos.SignalMessage.newBuilder()
+                                                .setRatchetKey(ByteString.copyFrom(ratchetKey.serialize()))
+                                                .setCounter(300)
+                                                .setPreviousCounter(7)
+                                                .setCiphertext(ByteString.copyFrom(ciphertext))
+                                                .build().toByteArray();
+    Mac    mac      = Mac.getInstance("HmacSHA256");
+
+    mac.init(macKey);
+    mac.update(senderIdentity.getPublicKey().serialize());
+    mac.update(receiverIdentity.getPublicKey().serialize());
+
+    byte[] expected = ByteUtil.combine(version, body, ByteUtil.trim(mac.doFinal(ByteUtil.combine(version, body)), 8));
+
+    assertTrue(Arrays.equals(expected, message.serialize()));
+
+    PreKeySignalMessage preKeyMessage = new PreKeySignalMessage(3, 1234, Optional.of(5), 6, ratchetKey,
+                                                                senderIdentity, message);
+
+    byte[] preKeyBody = SignalProtos.PreKeySignalMessage.newBuilder()
+                                                        .setSignedPreKeyId(6)
+                                                        .setBaseKey(ByteString.copyFrom(ratchetKey.serialize()))
+                                                        .setIdentityKey(ByteString.copyFrom(senderIdentity.serialize()))
+                                                        .setMessage(ByteString.copyFrom(expected))
+                                                        .setRegistrationId(1234)
+                                                        .setPreKeyId(5)
+                                                        .build().toByteArray();
+
+    assertTrue(Arrays.equals(ByteUtil.combine(version, preKeyBody), preKeyMessage.serialize()));
+  }
+
+  public void testParseInPlace() throws Exception {
+    byte[] serialized = new PreKeySignalMessage(3, 1234, Optional.<Integer>absent(), 6, ratchetKey, senderIdentity,
+                                                new SignalMessage(3, macKey, ratchetKey, 300, 7, ciphertext,
+                                                                  senderIdentity, receiverIdentity)).serialize();
+    byte[] buffer     = new byte[serialized.length + 16];
+
+    System.arraycopy(serialized, 0, buffer, 7, serialized.length);
+
+    ByteBuffer direct = ByteBuffer.allocateDirect(serialized.length);
+    direct.put(serialized).flip();
+
+    for (PreKeySignalMessage message : Arrays.asList(new PreKeySignalMessage(buffer, 7, serialized.length),
+                                                     new PreKeySignalMessage(ByteBuffer.wrap(buffer, 7, serialized.length)),
+                                                     new PreKeySignalMessage(direct)))
+    {
+      assertTrue(Arrays.equals(serialized, message.serialize()));
+      assertEquals(1234, message.getRegistrationId());
+      assertFalse(message.getPreKeyId().isPresent());
+      assertEquals(6, message.getSignedPreKeyId());
+      assertEquals(ratchetKey, message.getBaseKey());
+      assertEquals(senderIdentity, message.getIdentityKey());
+
+      SignalMessage signalMessage = message.getWhisperMessage();
+
+      signalMessage.verifyMac(senderIdentity, receiverIdentity, macKey);
+
+      assertEquals(300, signalMessage.getCounter());
+      assertEquals(ratchetKey, signalMessage.getSenderRatchetKey());
+      assertTrue(Arrays.equals(ciphertext, signalMessage.getBody()));
+      assertEquals(ByteBuffer.wrap(ciphertext), signalMessage.getBodyBuffer());
+    }
+
+    assertEquals(serialized.length, direct.remaining());
+
+    byte[] corrupted = new PreKeySignalMessage(serialized).getWhisperMessage().serialize().clone();
+    corrupted[corrupted.length - 1] ^= 1;
+
+    try {
+      new SignalMessage(corrupted).verifyMac(senderIdentity, receiverIdentity, macKey);
+      fail("Corrupted MAC verified");
+    } catch (InvalidMessageException e) {
+      // good
+    }
+
+    try {
+      new SignalMessage(buffer, 7, 5);
+      fail("Truncated message parsed");
+    } catch (InvalidMessageException e) {
+      // good
+    }
+  }
+}
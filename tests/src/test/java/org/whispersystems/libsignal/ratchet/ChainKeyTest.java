@@ -104,5 +104,14 @@ public class ChainKeyTest extends TestCase {
         assertTrue(chainKey.getMessageKeys().getCounter() == 0);
         assertTrue(chainKey.getNextChainKey().getIndex() == 1);
         assertTrue(chainKey.getNextChainKey().getMessageKeys().getCounter() == 1);
+
+        byte[]   messageKeySeed = new byte[ChainKey.SEED_LENGTH];
+        ChainKey next           = chainKey.getNextChainKey(messageKeySeed);
+
+        assertTrue(Arrays.equals(next.getKey(), nextChainKey));
+        assertTrue(next.getIndex() == 1);
+        assertTrue(Arrays.equals(chainKey.getMessageKeys(messageKeySeed).getCipherKey().getEncoded(), messageKey));
+        assertTrue(Arrays.equals(chainKey.getMessageKeys(messageKeySeed).getMacKey().getEncoded(), macKey));
+        assertTrue(chainKey.getMessageKeys(messageKeySeed).getCounter() == 0);
     }
 }
@@ -0,0 +1,170 @@
+package org.whispersystems.libsignal.state;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.SessionBuilder;
+import org.whispersystems.libsignal.SessionCipher;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.TestInMemorySignalProtocolStore;
+import org.whispersystems.libsignal.TestPreKeyBundles;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import org.whispersystems.libsignal.protocol.PreKeySignalMessage;
+import org.whispersystems.libsignal.protocol.SignalMessage;
+import org.whispersystems.libsignal.state.impl.CachingSessionStore;
+import org.whispersystems.libsignal.state.impl.InMemorySessionStore;
+import org.whispersystems.libsignal.state.impl.MappedSessionStore;
+
+import java.io.File;
+import java.util.Arrays;
+
+public class CachingSessionStoreTest extends TestCase {
+
+  private static final SignalProtocolAddress ALICE_ADDRESS = new SignalProtocolAddress("+14151111111", 1);
+  private static final SignalProtocolAddress BOB_ADDRESS   = new SignalProtocolAddress("+14152222222", 1);
+
+  public void testWriteBehind() throws Exception {
+    CountingSessionStore backingStore = new CountingSessionStore();
+    CachingSessionStore  cachingStore = new CachingSessionStore(backingStore, 10, 100);
+
+    SignalProtocolStore aliceStore = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore bobStore   = new TestInMemorySignalProtocolStore();
+
+    new SessionBuilder(cachingStore, aliceStore, aliceStore, aliceStore, BOB_ADDRESS).process(TestPreKeyBundles.createBundle(bobStore));
+
+    SessionCipher aliceCipher = new SessionCipher(cachingStore, aliceStore, aliceStore, aliceStore, BOB_ADDRESS);
+    SessionCipher bobCipher   = new SessionCipher(bobStore, ALICE_ADDRESS);
+
+    bobCipher.decrypt(new PreKeySignalMessage(aliceCipher.encrypt("hello".getBytes()).serialize()));
+    aliceCipher.decrypt(new SignalMessage(bobCipher.encrypt("reply".getBytes()).serialize()));
+
+    for (int i=0;i<10;i++) {
+      CiphertextMessage message = aliceCipher.encrypt(("message " + i).getBytes());
+      assertTrue(Arrays.equals(("message " + i).getBytes(), bobCipher.decrypt(new SignalMessage(message.serialize()))));
+    }
+
+    assertEquals(0, backingStore.stores);
+    assertEquals(1, cachingStore.getDirtyCount());
+    assertTrue(cachingStore.containsSession(BOB_ADDRESS));
+
+    cachingStore.flush();
+
+    assertEquals(1, backingStore.stores);
+    assertEquals(0, cachingStore.getDirtyCount());
+
+    SessionCipher durableCipher = new SessionCipher(backingStore, aliceStore, aliceStore, aliceStore, BOB_ADDRESS);
+    CiphertextMessage message   = durableCipher.encrypt("after flush".getBytes());
+
+    assertTrue(Arrays.equals("after flush".getBytes(), bobCipher.decrypt(new SignalMessage(message.serialize()))));
+  }
+
+  public void testThresholdAndEviction() throws Exception {
+    CountingSessionStore backingStore = new CountingSessionStore();
+    CachingSessionStore  cachingStore = new CachingSessionStore(backingStore, 2, 4);
+    SessionRecord        record       = new SessionRecord(new SessionState());
+
+    for (int i=0;i<3;i++) {
+      cachingStore.storeSession(new SignalProtocolAddress("+1415000000" + i, 1), record);
+      cachingStore.storeSession(new SignalProtocolAddress("+1415000000" + i, 1), record);
+    }
+
+    assertEquals(0, backingStore.stores);
+    assertEquals(3, cachingStore.getDirtyCount());
+
+    cachingStore.storeSession(new SignalProtocolAddress("+14150000003", 2), record);
+
+    assertEquals(4, backingStore.stores);
+    assertEquals(0, cachingStore.getDirtyCount());
+
+    assertFalse(cachingStore.loadSession(new SignalProtocolAddress("+14150000002", 1)).isFresh());
+    assertFalse(cachingStore.loadSession(new SignalProtocolAddress("+14150000003", 2)).isFresh());
+    assertEquals(0, backingStore.loads);
+
+    assertFalse(cachingStore.loadSession(new SignalProtocolAddress("+14150000000", 1)).isFresh());
+    assertEquals(1, backingStore.loads);
+    assertEquals(Arrays.asList(2), cachingStore.getSubDeviceSessions("+14150000003"));
+
+    cachingStore.deleteSession(new SignalProtocolAddress("+14150000000", 1));
+
+    assertFalse(cachingStore.containsSession(new SignalProtocolAddress("+14150000000", 1)));
+    assertTrue(cachingStore.loadSession(new SignalProtocolAddress("+14150000000", 1)).isFresh());
+  }
+
+  public void testDeleteDuringLoad() throws Exception {
+    final CountingSessionStore backingStore = new CountingSessionStore();
+    final CachingSessionStore  cachingStore = new CachingSessionStore(backingStore, 10, 100);
+
+    backingStore.storeSession(BOB_ADDRESS, new SessionRecord(new SessionState()));
+    backingStore.duringLoad = new Runnable() {
+      @Override
+      public void run() {
+        cachingStore.deleteSession(BOB_ADDRESS);
+      }
+    };
+
+    assertFalse(cachingStore.loadSession(BOB_ADDRESS).isFresh());
+    assertFalse(cachingStore.containsSession(BOB_ADDRESS));
+    assertTrue(cachingStore.loadSession(BOB_ADDRESS).isFresh());
+  }
+
+  public void testChangeSetsThroughCache() throws Exception {
+    File file = File.createTempFile("sessions", ".log");
+    file.delete();
+
+    try {
+      MappedSessionStore  backingStore = new MappedSessionStore(file);
+      CachingSessionStore cachingStore = new CachingSessionStore(backingStore, 10, 1);
+      SignalProtocolStore aliceStore   = new TestInMemorySignalProtocolStore();
+      SignalProtocolStore bobStore     = new TestInMemorySignalProtocolStore();
+
+      new SessionBuilder(cachingStore, aliceStore, aliceStore, aliceStore, BOB_ADDRESS).process(TestPreKeyBundles.createBundle(bobStore));
+
+      SessionCipher aliceCipher = new SessionCipher(cachingStore, aliceStore, aliceStore, aliceStore, BOB_ADDRESS);
+      SessionCipher bobCipher   = new SessionCipher(bobStore, ALICE_ADDRESS);
+
+      bobCipher.decrypt(new PreKeySignalMessage(aliceCipher.encrypt("hello".getBytes()).serialize()));
+      aliceCipher.decrypt(new SignalMessage(bobCipher.encrypt("reply".getBytes()).serialize()));
+
+      int recordLength = backingStore.loadSession(BOB_ADDRESS).serialize().length;
+      int logSize      = backingStore.getLogSize();
+
+      for (int i=0;i<10;i++) {
+        CiphertextMessage message = aliceCipher.encrypt(("message " + i).getBytes());
+        assertTrue(Arrays.equals(("message " + i).getBytes(), bobCipher.decrypt(new SignalMessage(message.serialize()))));
+      }
+
+      assertEquals(0, cachingStore.getDirtyCount());
+      assertTrue(backingStore.getLogSize() - logSize < 10 * recordLength / 2);
+
+      backingStore.close();
+    } finally {
+      file.delete();
+    }
+  }
+
+
+  private static class CountingSessionStore extends InMemorySessionStore {
+    private int      loads;
+    private int      stores;
+    private Runnable duringLoad;
+
+    @Override
+    public synchronized SessionRecord loadSession(SignalProtocolAddress address) {
+      loads++;
+
+      SessionRecord record = super.loadSession(address);
+
+      if (duringLoad != null) {
+        duringLoad.run();
+        duringLoad = null;
+      }
+
+      return record;
+    }
+
+    @Override
+    public synchronized void storeSession(SignalProtocolAddress address, SessionRecord record) {
+      stores++;
+      super.storeSession(address, record);
+    }
+  }
+}
@@ -0,0 +1,215 @@
+package org.whispersystems.libsignal.state;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.IdentityKey;
+import org.whispersystems.libsignal.SessionBuilder;
+import org.whispersystems.libsignal.SessionCipher;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.TestInMemorySignalProtocolStore;
+import org.whispersystems.libsignal.TestPreKeyBundles;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import org.whispersystems.libsignal.protocol.PreKeySignalMessage;
+import org.whispersystems.libsignal.protocol.SignalMessage;
+import org.whispersystems.libsignal.state.impl.ConcurrentSignalProtocolStore;
+import org.whispersystems.libsignal.state.impl.InMemorySessionStore;
+import org.whispersystems.libsignal.util.KeyHelper;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ConcurrentSignalProtocolStoreTest extends TestCase {
+
+  private static final SignalProtocolAddress ALICE_ADDRESS = new SignalProtocolAddress("+14151111111", 1);
+
+  private static final int THREADS    = 8;
+  private static final int OPERATIONS = 20000;
+  private static final int NAMES      = 16;
+  private static final int DEVICES    = 4;
+
+  public void testDeleteAllSessions() {
+    SessionRecord                 record          = new SessionRecord(new SessionState());
+    InMemorySessionStore          inMemoryStore   = new InMemorySessionStore();
+    ConcurrentSignalProtocolStore concurrentStore = newStore();
+
+    for (SessionStore store : Arrays.<SessionStore>asList(inMemoryStore, concurrentStore)) {
+      for (int i=1;i<=DEVICES;i++) {
+        store.storeSession(new SignalProtocolAddress("+14150000000", i), record);
+        store.storeSession(new SignalProtocolAddress("+14150000001", i), record);
+      }
+
+      assertEquals(new HashSet<>(Arrays.asList(2, 3, 4)), new HashSet<>(store.getSubDeviceSessions("+14150000000")));
+
+      store.deleteAllSessions("+14150000000");
+
+      assertTrue(store.getSubDeviceSessions("+14150000000").isEmpty());
+      assertFalse(store.containsSession(new SignalProtocolAddress("+14150000000", 1)));
+      assertTrue(store.containsSession(new SignalProtocolAddress("+14150000001", 1)));
+      assertEquals(3, store.getSubDeviceSessions("+14150000001").size());
+    }
+
+    assertEquals(DEVICES, concurrentStore.getSessionCount());
+  }
+
+  public void testConcurrentMutation() throws Exception {
+    final ConcurrentSignalProtocolStore store    = newStore();
+    final SessionRecord                 record   = new SessionRecord(new SessionState());
+    final IdentityKey[]                 keys     = new IdentityKey[] {new IdentityKey(Curve.generateKeyPair().getPublicKey()),
+                                                                      new IdentityKey(Curve.generateKeyPair().getPublicKey())};
+    final PreKeyRecord                  preKey   = new PreKeyRecord(1, Curve.generateKeyPair());
+    final CountDownLatch                start    = new CountDownLatch(1);
+    final AtomicReference<Throwable>    failure  = new AtomicReference<>();
+    Thread[]                            threads  = new Thread[THREADS];
+
+    for (int i=0;i<THREADS;i++) {
+      final Random random = new Random(i);
+
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+
+            for (int j=0;j<OPERATIONS;j++) {
+              String                name    = "+1415000000" + random.nextInt(NAMES);
+              SignalProtocolAddress address = new SignalProtocolAddress(name, 1 + random.nextInt(DEVICES));
+
+              switch (random.nextInt(8)) {
+                case 0:
+                case 1:
+                  store.storeSession(address, record);
+                  break;
+                case 2:
+                  store.deleteSession(address);
+                  break;
+                case 3:
+                  if (random.nextInt(8) == 0) store.deleteAllSessions(name);
+                  else                        store.loadSession(address);
+                  break;
+                case 4:
+                  List<Integer> deviceIds = store.getSubDeviceSessions(name);
+                  assertFalse(deviceIds.contains(1));
+                  assertEquals(deviceIds.size(), new HashSet<>(deviceIds).size());
+                  break;
+                case 5:
+                  store.saveIdentity(address, keys[random.nextInt(keys.length)]);
+                  break;
+                case 6:
+                  store.storePreKey(address.getDeviceId(), preKey);
+                  break;
+                case 7:
+                  store.removePreKey(address.getDeviceId());
+                  break;
+              }
+            }
+          } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+          }
+        }
+      };
+
+      threads[i].start();
+    }
+
+    start.countDown();
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+
+    int sessions = 0;
+
+    for (int i=0;i<NAMES;i++) {
+      String       name     = "+1415000000" + i;
+      Set<Integer> expected = new HashSet<>();
+
+      for (int j=1;j<=DEVICES;j++) {
+        if (store.containsSession(new SignalProtocolAddress(name, j))) {
+          if (j != 1) expected.add(j);
+          sessions++;
+        }
+      }
+
+      assertEquals(expected, new HashSet<>(store.getSubDeviceSessions(name)));
+    }
+
+    assertEquals(sessions, store.getSessionCount());
+
+    for (int i=0;i<NAMES;i++) {
+      store.deleteAllSessions("+1415000000" + i);
+    }
+
+    assertEquals(0, store.getSessionCount());
+  }
+
+  public void testConcurrentSessions() throws Exception {
+    final ConcurrentSignalProtocolStore aliceStore = newStore();
+    final CountDownLatch                start      = new CountDownLatch(1);
+    final AtomicReference<Throwable>    failure    = new AtomicReference<>();
+    Thread[]                            threads    = new Thread[THREADS];
+
+    for (int i=0;i<THREADS;i++) {
+      final SignalProtocolAddress bobAddress = new SignalProtocolAddress("+1415222222" + i, 1 + i % 2);
+
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            SignalProtocolStore bobStore = new TestInMemorySignalProtocolStore();
+
+            start.await();
+
+            new SessionBuilder(aliceStore, bobAddress).process(TestPreKeyBundles.createBundle(bobStore));
+
+            SessionCipher aliceCipher = new SessionCipher(aliceStore, bobAddress);
+            SessionCipher bobCipher   = new SessionCipher(bobStore, ALICE_ADDRESS);
+
+            bobCipher.decrypt(new PreKeySignalMessage(aliceCipher.encrypt("hello".getBytes()).serialize()));
+            aliceCipher.decrypt(new SignalMessage(bobCipher.encrypt("reply".getBytes()).serialize()));
+
+            for (int j=0;j<50;j++) {
+              byte[]            plaintext = ("message " + j).getBytes();
+              CiphertextMessage message   = (j % 2 == 0) ? aliceCipher.encrypt(plaintext) : bobCipher.encrypt(plaintext);
+              byte[]            decrypted = (j % 2 == 0) ? bobCipher.decrypt(new SignalMessage(message.serialize()))
+                                                         : aliceCipher.decrypt(new SignalMessage(message.serialize()));
+
+              assertTrue(Arrays.equals(plaintext, decrypted));
+            }
+          } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+          }
+        }
+      };
+
+      threads[i].start();
+    }
+
+    start.countDown();
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+
+    assertEquals(THREADS, aliceStore.getSessionCount());
+    assertEquals(Arrays.asList(2), aliceStore.getSubDeviceSessions("+14152222221"));
+  }
+
+  private ConcurrentSignalProtocolStore newStore() {
+    return new ConcurrentSignalProtocolStore(KeyHelper.generateIdentityKeyPair(),
+                                             KeyHelper.generateRegistrationId(false));
+  }
+}
@@ -0,0 +1,234 @@
+package org.whispersystems.libsignal.state;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.SessionBuilder;
+import org.whispersystems.libsignal.SessionCipher;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.TestInMemorySignalProtocolStore;
+import org.whispersystems.libsignal.TestPreKeyBundles;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import org.whispersystems.libsignal.protocol.PreKeySignalMessage;
+import org.whispersystems.libsignal.protocol.SignalMessage;
+import org.whispersystems.libsignal.state.impl.MappedSessionStore;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+public class MappedSessionStoreTest extends TestCase {
+
+  private static final SignalProtocolAddress ALICE_ADDRESS = new SignalProtocolAddress("+14151111111", 1);
+  private static final SignalProtocolAddress BOB_ADDRESS   = new SignalProtocolAddress("+14152222222", 1);
+
+  private File file;
+
+  @Override
+  protected void setUp() throws Exception {
+    file = File.createTempFile("sessions", ".log");
+    file.delete();
+  }
+
+  @Override
+  protected void tearDown() {
+    file.delete();
+    new File(file.getPath() + ".compact").delete();
+  }
+
+  public void testPersistence() throws Exception {
+    MappedSessionStore  sessionStore = new MappedSessionStore(file);
+    SignalProtocolStore aliceStore   = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore bobStore     = new TestInMemorySignalProtocolStore();
+
+    new SessionBuilder(sessionStore, aliceStore, aliceStore, aliceStore, BOB_ADDRESS).process(TestPreKeyBundles.createBundle(bobStore));
+
+    SessionCipher aliceCipher = new SessionCipher(sessionStore, aliceStore, aliceStore, aliceStore, BOB_ADDRESS);
+    SessionCipher bobCipher   = new SessionCipher(bobStore, ALICE_ADDRESS);
+
+    bobCipher.decrypt(new PreKeySignalMessage(aliceCipher.encrypt("hello".getBytes()).serialize()));
+    aliceCipher.decrypt(new SignalMessage(bobCipher.encrypt("reply".getBytes()).serialize()));
+
+    SessionRecord record = new SessionRecord(new SessionState());
+
+    sessionStore.storeSession(new SignalProtocolAddress("+14153333333", 1), record);
+    sessionStore.storeSession(new SignalProtocolAddress("+14153333333", 2), record);
+    sessionStore.storeSession(new SignalProtocolAddress("+14153333333", 3), record);
+    sessionStore.deleteSession(new SignalProtocolAddress("+14153333333", 2));
+    sessionStore.close();
+
+    sessionStore = new MappedSessionStore(file);
+    aliceCipher  = new SessionCipher(sessionStore, aliceStore, aliceStore, aliceStore, BOB_ADDRESS);
+
+    CiphertextMessage message = aliceCipher.encrypt("after reopen".getBytes());
+
+    assertTrue(Arrays.equals("after reopen".getBytes(), bobCipher.decrypt(new SignalMessage(message.serialize()))));
+    assertEquals(Arrays.asList(3), sessionStore.getSubDeviceSessions("+14153333333"));
+    assertTrue(sessionStore.containsSession(new SignalProtocolAddress("+14153333333", 1)));
+
+    sessionStore.deleteAllSessions("+14153333333");
+    sessionStore.close();
+
+    sessionStore = new MappedSessionStore(file);
+
+    assertFalse(sessionStore.containsSession(new SignalProtocolAddress("+14153333333", 1)));
+    assertTrue(sessionStore.containsSession(BOB_ADDRESS));
+
+    sessionStore.close();
+  }
+
+  public void testChangeSets() throws Exception {
+    MappedSessionStore  sessionStore = new MappedSessionStore(file);
+    SignalProtocolStore aliceStore   = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore bobStore     = new TestInMemorySignalProtocolStore();
+
+    new SessionBuilder(sessionStore, aliceStore, aliceStore, aliceStore, BOB_ADDRESS).process(TestPreKeyBundles.createBundle(bobStore));
+
+    SessionCipher aliceCipher = new SessionCipher(sessionStore, aliceStore, aliceStore, aliceStore, BOB_ADDRESS);
+    SessionCipher bobCipher   = new SessionCipher(bobStore, ALICE_ADDRESS);
+
+    bobCipher.decrypt(new PreKeySignalMessage(aliceCipher.encrypt("hello".getBytes()).serialize()));
+    aliceCipher.decrypt(new SignalMessage(bobCipher.encrypt("reply".getBytes()).serialize()));
+
+    int recordLength = sessionStore.loadSession(BOB_ADDRESS).serialize().length;
+    int logSize      = sessionStore.getLogSize();
+
+    for (int i=0;i<10;i++) {
+      CiphertextMessage message = aliceCipher.encrypt(("message " + i).getBytes());
+      assertTrue(Arrays.equals(("message " + i).getBytes(), bobCipher.decrypt(new SignalMessage(message.serialize()))));
+    }
+
+    assertTrue(sessionStore.getLogSize() - logSize < 10 * recordLength / 2);
+
+    sessionStore.close();
+    sessionStore = new MappedSessionStore(file);
+    aliceCipher  = new SessionCipher(sessionStore, aliceStore, aliceStore, aliceStore, BOB_ADDRESS);
+
+    for (int i=0;i<40;i++) {
+      CiphertextMessage message = aliceCipher.encrypt(("reopened " + i).getBytes());
+      assertTrue(Arrays.equals(("reopened " + i).getBytes(), bobCipher.decrypt(new SignalMessage(message.serialize()))));
+    }
+
+    byte[] expected = sessionStore.loadSession(BOB_ADDRESS).serialize();
+
+    sessionStore.compact();
+    assertTrue(Arrays.equals(expected, sessionStore.loadSession(BOB_ADDRESS).serialize()));
+
+    sessionStore.close();
+    sessionStore = new MappedSessionStore(file);
+
+    assertTrue(Arrays.equals(expected, sessionStore.loadSession(BOB_ADDRESS).serialize()));
+
+    sessionStore.close();
+  }
+
+  public void testStoreRecordNotLoadedFromEntry() throws Exception {
+    MappedSessionStore  sessionStore = new MappedSessionStore(file);
+    SignalProtocolStore aliceStore   = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore bobStore     = new TestInMemorySignalProtocolStore();
+
+    new SessionBuilder(sessionStore, aliceStore, aliceStore, aliceStore, BOB_ADDRESS).process(TestPreKeyBundles.createBundle(bobStore));
+
+    SessionCipher aliceCipher = new SessionCipher(sessionStore, aliceStore, aliceStore, aliceStore, BOB_ADDRESS);
+    SessionCipher bobCipher   = new SessionCipher(bobStore, ALICE_ADDRESS);
+
+    bobCipher.decrypt(new PreKeySignalMessage(aliceCipher.encrypt("hello".getBytes()).serialize()));
+    aliceCipher.decrypt(new SignalMessage(bobCipher.encrypt("reply".getBytes()).serialize()));
+
+    SessionRecord stale    = sessionStore.loadSession(BOB_ADDRESS);
+    byte[]        reparsed = stale.serialize();
+
+    aliceCipher.encrypt("advance".getBytes());
+    sessionStore.storeSession(BOB_ADDRESS, stale);
+
+    assertTrue(Arrays.equals(reparsed, sessionStore.loadSession(BOB_ADDRESS).serialize()));
+
+    aliceCipher.encrypt("advance again".getBytes());
+    sessionStore.storeSession(BOB_ADDRESS, new SessionRecord(reparsed));
+
+    assertTrue(Arrays.equals(reparsed, sessionStore.loadSession(BOB_ADDRESS).serialize()));
+
+    SessionState foreignState = new SessionState();
+    foreignState.setSessionVersion(3);
+    foreignState.setAliceBaseKey(new byte[33]);
+
+    byte[] foreign = new SessionRecord(foreignState).serialize();
+
+    sessionStore.storeSession(BOB_ADDRESS, new SessionRecord(foreign));
+
+    assertTrue(Arrays.equals(foreign, sessionStore.loadSession(BOB_ADDRESS).serialize()));
+
+    sessionStore.close();
+    sessionStore = new MappedSessionStore(file);
+
+    assertTrue(Arrays.equals(foreign, sessionStore.loadSession(BOB_ADDRESS).serialize()));
+
+    sessionStore.close();
+  }
+
+  public void testCompaction() throws Exception {
+    MappedSessionStore sessionStore = new MappedSessionStore(file, 100, 16 * 1024);
+    SessionRecord      record       = new SessionRecord(new SessionState());
+
+    for (int i=0;i<10;i++) {
+      sessionStore.storeSession(new SignalProtocolAddress("+1415000000" + i, 1), record);
+    }
+
+    int liveSize = sessionStore.getLogSize();
+
+    for (int i=0;i<5000;i++) {
+      sessionStore.storeSession(new SignalProtocolAddress("+1415000000" + (i % 10), 1), record);
+      assertTrue(sessionStore.getLogSize() <= 32 * 1024);
+    }
+
+    sessionStore.compact();
+    assertEquals(liveSize, sessionStore.getLogSize());
+
+    sessionStore.close();
+    sessionStore = new MappedSessionStore(file);
+
+    assertEquals(liveSize, sessionStore.getLogSize());
+
+    for (int i=0;i<10;i++) {
+      assertFalse(sessionStore.loadSession(new SignalProtocolAddress("+1415000000" + i, 1)).isFresh());
+    }
+
+    sessionStore.close();
+  }
+
+  public void testTornWrite() throws Exception {
+    MappedSessionStore    sessionStore = new MappedSessionStore(file);
+    SignalProtocolAddress first        = new SignalProtocolAddress("+14153333333", 1);
+    SignalProtocolAddress second       = new SignalProtocolAddress("+14154444444", 1);
+
+    sessionStore.storeSession(first, new SessionRecord(new SessionState()));
+    sessionStore.storeSession(second, new SessionRecord(new SessionState()));
+    sessionStore.close();
+
+    RandomAccessFile log  = new RandomAccessFile(file, "rw");
+    long             last = log.length() - 1;
+
+    log.seek(last);
+
+    while (log.read() == 0) {
+      log.seek(--last);
+    }
+
+    log.seek(last);
+    log.write(0x55);
+    log.close();
+
+    sessionStore = new MappedSessionStore(file);
+
+    assertTrue(sessionStore.containsSession(first));
+    assertFalse(sessionStore.containsSession(second));
+
+    sessionStore.storeSession(second, new SessionRecord(new SessionState()));
+    sessionStore.close();
+
+    sessionStore = new MappedSessionStore(file);
+
+    assertTrue(sessionStore.containsSession(second));
+
+    sessionStore.close();
+  }
+}
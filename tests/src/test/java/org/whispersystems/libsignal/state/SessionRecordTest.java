@@ -0,0 +1,267 @@
+package org.whispersystems.libsignal.state;
+
+import com.google.protobuf.CodedOutputStream;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.SessionBuilder;
+import org.whispersystems.libsignal.SessionCipher;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.TestInMemorySignalProtocolStore;
+import org.whispersystems.libsignal.TestPreKeyBundles;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECKeyPair;
+import org.whispersystems.libsignal.kdf.HKDF;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import org.whispersystems.libsignal.protocol.PreKeySignalMessage;
+import org.whispersystems.libsignal.protocol.SignalMessage;
+import org.whispersystems.libsignal.ratchet.ChainKey;
+import org.whispersystems.libsignal.state.StorageProtos.SessionStructure;
+import org.whispersystems.libsignal.state.impl.InMemorySessionStore;
+import org.whispersystems.libsignal.util.guava.Optional;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+public class SessionRecordTest extends TestCase {
+
+  public void testArchivedStatesRoundTrip() throws Exception {
+    SessionRecord record = new SessionRecord(createState(0));
+
+    for (int i=1;i<=3;i++) {
+      record.promoteState(createState(i));
+    }
+
+    byte[]        serialized = record.serialize();
+    SessionRecord parsed     = new SessionRecord(serialized);
+
+    assertTrue(Arrays.equals(serialized, parsed.serialize()));
+    assertTrue(parsed.hasSessionState(3, baseKey(3)));
+    assertTrue(parsed.hasSessionState(3, baseKey(0)));
+    assertFalse(parsed.hasSessionState(2, baseKey(0)));
+    assertFalse(parsed.hasSessionState(3, baseKey(4)));
+    assertTrue(Arrays.equals(serialized, parsed.serialize()));
+
+    assertEquals(3, parsed.getPreviousSessionStates().size());
+    assertEquals(0, parsed.getPreviousSessionStates().get(2).getRemoteRegistrationId());
+
+    parsed.getPreviousSessionStates().get(1).setRemoteRegistrationId(42);
+
+    SessionRecord reparsed = new SessionRecord(parsed.serialize());
+
+    assertEquals(2,  reparsed.getPreviousSessionStates().get(0).getRemoteRegistrationId());
+    assertEquals(42, reparsed.getPreviousSessionStates().get(1).getRemoteRegistrationId());
+    assertEquals(0,  reparsed.getPreviousSessionStates().get(2).getRemoteRegistrationId());
+    assertEquals(3,  reparsed.getSessionState().getRemoteRegistrationId());
+  }
+
+  public void testPreviousStateCandidates() throws Exception {
+    ECKeyPair    ratchetKey = Curve.generateKeyPair();
+    ChainKey     chainKey   = new ChainKey(HKDF.createFor(3), new byte[32], 0);
+    SessionState matching   = createState(1);
+    SessionState deriving   = createState(2);
+    SessionState oldVersion = createState(3);
+    SessionState unfinished = createState(4);
+
+    matching.setSenderChain(Curve.generateKeyPair(), chainKey);
+    matching.addReceiverChain(ratchetKey.getPublicKey(), chainKey);
+    deriving.setSenderChain(Curve.generateKeyPair(), chainKey);
+    deriving.addReceiverChain(Curve.generateKeyPair().getPublicKey(), chainKey);
+    oldVersion.setSessionVersion(2);
+    oldVersion.setSenderChain(Curve.generateKeyPair(), chainKey);
+
+    SessionRecord record = new SessionRecord(matching);
+    record.promoteState(unfinished);
+    record.promoteState(deriving);
+    record.promoteState(oldVersion);
+    record.promoteState(createState(0));
+
+    SessionRecord          parsed     = new SessionRecord(record.serialize());
+    Iterator<SessionState> candidates = parsed.getPreviousSessionStateCandidates(3, ratchetKey.getPublicKey());
+
+    assertEquals(1, candidates.next().getRemoteRegistrationId());
+    candidates.remove();
+    assertEquals(2, candidates.next().getRemoteRegistrationId());
+    assertFalse(candidates.hasNext());
+
+    assertEquals(3, parsed.getPreviousSessionStates().size());
+    assertFalse(parsed.getPreviousSessionStateCandidates(3, ratchetKey.getPublicKey()).next().hasReceiverChain(ratchetKey.getPublicKey()));
+  }
+
+  public void testCheckpointRestore() throws Exception {
+    ECKeyPair    ratchetKey = Curve.generateKeyPair();
+    ChainKey     chainKey   = new ChainKey(HKDF.createFor(3), new byte[32], 0);
+    SessionState matching   = createState(1);
+
+    matching.setSenderChain(Curve.generateKeyPair(), chainKey);
+    matching.addReceiverChain(ratchetKey.getPublicKey(), chainKey);
+
+    SessionRecord record = new SessionRecord(createState(0));
+    record.promoteState(matching);
+    record.promoteState(createState(2));
+    record.promoteState(createState(3));
+
+    byte[]                   serialized = record.serialize();
+    SessionRecord.Checkpoint checkpoint = record.checkpoint();
+    Iterator<SessionState>   candidates = record.getPreviousSessionStateCandidates(3, ratchetKey.getPublicKey());
+    SessionState             promoted   = new SessionState(candidates.next());
+
+    candidates.remove();
+    record.promoteState(promoted);
+
+    assertEquals(1, record.getSessionState().getRemoteRegistrationId());
+    assertFalse(Arrays.equals(serialized, record.serialize()));
+
+    record.restore(checkpoint);
+
+    assertTrue(Arrays.equals(serialized, record.serialize()));
+
+    record.setState(createState(4));
+    record.restore(checkpoint);
+
+    assertTrue(Arrays.equals(serialized, record.serialize()));
+  }
+
+  public void testCorruptArchivedState() throws Exception {
+    ECKeyPair    ratchetKey = Curve.generateKeyPair();
+    ChainKey     chainKey   = new ChainKey(HKDF.createFor(3), new byte[32], 0);
+    SessionState deriving   = createState(2);
+
+    deriving.setSenderChain(Curve.generateKeyPair(), chainKey);
+
+    byte[]            corrupt = new byte[64];
+    CodedOutputStream output  = CodedOutputStream.newInstance(corrupt);
+
+    output.writeUInt32(SessionStructure.SESSIONVERSION_FIELD_NUMBER, 3);
+    output.writeByteArray(SessionStructure.SENDERCHAIN_FIELD_NUMBER, new byte[] {0x0f, 0x00});
+
+    byte[]            serialized = new byte[256];
+    CodedOutputStream record     = CodedOutputStream.newInstance(serialized);
+
+    record.writeMessage(1, createState(1).getStructure());
+    record.writeByteArray(2, Arrays.copyOf(corrupt, output.getTotalBytesWritten()));
+    record.writeByteArray(2, deriving.getStructure().toByteArray());
+
+    serialized = Arrays.copyOf(serialized, record.getTotalBytesWritten());
+
+    SessionRecord          parsed     = new SessionRecord(serialized);
+    Iterator<SessionState> candidates = parsed.getPreviousSessionStateCandidates(3, ratchetKey.getPublicKey());
+
+    assertEquals(2, candidates.next().getRemoteRegistrationId());
+    assertFalse(candidates.hasNext());
+
+    try {
+      parsed.getPreviousSessionStates().get(0);
+      fail("Parsed a corrupt archived state");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+
+    assertTrue(Arrays.equals(serialized, parsed.serialize()));
+  }
+
+  public void testChangeSets() throws Exception {
+    SignalProtocolAddress aliceAddress = new SignalProtocolAddress("+14151111111", 1);
+    SignalProtocolAddress bobAddress   = new SignalProtocolAddress("+14152222222", 1);
+    ChangeCapturingStore  sessionStore = new ChangeCapturingStore();
+    SignalProtocolStore   aliceStore   = new TestInMemorySignalProtocolStore();
+    SignalProtocolStore   bobStore     = new TestInMemorySignalProtocolStore();
+
+    new SessionBuilder(sessionStore, aliceStore, aliceStore, aliceStore, bobAddress).process(TestPreKeyBundles.createBundle(bobStore));
+
+    SessionCipher aliceCipher = new SessionCipher(sessionStore, aliceStore, aliceStore, aliceStore, bobAddress);
+    SessionCipher bobCipher   = new SessionCipher(bobStore, aliceAddress);
+
+    bobCipher.decrypt(new PreKeySignalMessage(aliceCipher.encrypt("hello".getBytes()).serialize()));
+    aliceCipher.decrypt(new SignalMessage(bobCipher.encrypt("reply".getBytes()).serialize()));
+
+    assertFalse(sessionStore.changes.getLast().isPresent());
+
+    byte[] base = sessionStore.loadSession(bobAddress).serialize();
+    sessionStore.changes.clear();
+
+    CiphertextMessage[] incoming = new CiphertextMessage[10];
+
+    for (int i=0;i<incoming.length;i++) {
+      incoming[i] = bobCipher.encrypt(("incoming " + i).getBytes());
+    }
+
+    for (int i=0;i<5;i++) {
+      bobCipher.decrypt(new SignalMessage(aliceCipher.encrypt(("message " + i).getBytes()).serialize()));
+    }
+
+    for (int i : new int[] {5, 2, 7, 0, 9}) {
+      assertTrue(Arrays.equals(("incoming " + i).getBytes(), aliceCipher.decrypt(new SignalMessage(incoming[i].serialize()))));
+    }
+
+    List<byte[]> changes = new LinkedList<>();
+
+    for (Optional<byte[]> change : sessionStore.changes) {
+      assertTrue(change.isPresent());
+      changes.add(change.get());
+    }
+
+    assertEquals(10, changes.size());
+
+    for (byte[] change : changes.subList(0, 5)) {
+      assertTrue(change.length < base.length / 3);
+    }
+
+    byte[] expected = sessionStore.loadSession(bobAddress).serialize();
+
+    assertTrue(Arrays.equals(expected, SessionRecord.compact(base, changes)));
+    assertTrue(Arrays.equals(expected, SessionRecord.compact(SessionRecord.compact(base, changes.subList(0, 5)),
+                                                             changes.subList(5, 10))));
+
+    bobCipher.decrypt(new SignalMessage(aliceCipher.encrypt("ratchet".getBytes()).serialize()));
+    aliceCipher.decrypt(new SignalMessage(bobCipher.encrypt("ratchet".getBytes()).serialize()));
+
+    assertFalse(sessionStore.changes.getLast().isPresent());
+
+    try {
+      new SessionRecord(new SessionRecord(createState(1)).serialize(), changes);
+      fail("Applied change sets to a different session");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+
+  private SessionState createState(int id) {
+    SessionState state = new SessionState();
+    state.setSessionVersion(3);
+    state.setAliceBaseKey(baseKey(id));
+    state.setRemoteRegistrationId(id);
+    return state;
+  }
+
+  private byte[] baseKey(int id) {
+    byte[] baseKey = new byte[33];
+    Arrays.fill(baseKey, (byte)id);
+    return baseKey;
+  }
+
+  private static class ChangeCapturingStore extends InMemorySessionStore {
+    private final LinkedList<Optional<byte[]>> changes = new LinkedList<>();
+    private       Object                       token   = new Object();
+
+    @Override
+    public synchronized SessionRecord loadSession(SignalProtocolAddress address) {
+      SessionRecord record = super.loadSession(address);
+      record.markPersisted(token);
+      return record;
+    }
+
+    @Override
+    public synchronized void storeSession(SignalProtocolAddress address, SessionRecord record) {
+      changes.add(record.serializeChanges(token));
+      super.storeSession(address, record);
+
+      token = new Object();
+      record.markPersisted(token);
+    }
+  }
+}
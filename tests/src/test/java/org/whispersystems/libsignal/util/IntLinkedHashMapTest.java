@@ -0,0 +1,70 @@
+package org.whispersystems.libsignal.util;
+
+import junit.framework.TestCase;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class IntLinkedHashMapTest extends TestCase {
+
+  public void testMatchesLinkedHashMap() {
+    Random                          random   = new Random(1234);
+    IntLinkedHashMap<Integer>       map      = new IntLinkedHashMap<>();
+    LinkedHashMap<Integer, Integer> expected = new LinkedHashMap<>();
+
+    for (int i=0;i<100000;i++) {
+      int key = random.nextInt(512) - 256;
+
+      switch (random.nextInt(4)) {
+        case 0:
+        case 1:
+          assertEquals(expected.put(key, i), map.put(key, i));
+          break;
+        case 2:
+          assertEquals(expected.remove(key), map.remove(key));
+          break;
+        case 3:
+          Integer eldest = expected.isEmpty() ? null : expected.keySet().iterator().next();
+          assertEquals(eldest == null ? null : expected.remove(eldest), map.removeEldest());
+          break;
+      }
+
+      assertEquals(expected.size(), map.size());
+      assertEquals(expected.containsKey(key), map.containsKey(key));
+    }
+
+    assertSameOrder(expected, map);
+    assertSameOrder(expected, new IntLinkedHashMap<>(map));
+  }
+
+  public void testSequentialEviction() {
+    IntLinkedHashMap<Integer> map = new IntLinkedHashMap<>();
+
+    for (int i=0;i<5000;i++) {
+      map.put(i, i);
+
+      if (map.size() > 2000) {
+        assertEquals(Integer.valueOf(i - 2000), map.removeEldest());
+      }
+    }
+
+    assertEquals(2000, map.size());
+    assertFalse(map.containsKey(2999));
+    assertEquals(Integer.valueOf(3000), map.get(3000));
+    assertEquals(Integer.valueOf(4999), map.get(4999));
+  }
+
+  private void assertSameOrder(LinkedHashMap<Integer, Integer> expected, IntLinkedHashMap<Integer> map) {
+    Iterator<Integer> values = map.iterator();
+
+    for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+      assertTrue(values.hasNext());
+      assertEquals(entry.getValue(), values.next());
+      assertEquals(entry.getValue(), map.get(entry.getKey()));
+    }
+
+    assertFalse(values.hasNext());
+  }
+}